@@ -0,0 +1,201 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import nl.ellipsis.webdav.server.util.CharsetUtil;
+import nl.ellipsis.webdav.server.util.URLUtil;
+
+/**
+ * In memory log of the paths changed in the store, for the sync-collection
+ * REPORT of RFC 6578.
+ *
+ * Every change gets the next number of a sequence, and a sync token is the
+ * number of the last change a client has seen. The log keeps one entry per
+ * path, the most recent change, so repeated writes to the same resource do
+ * not grow it. When it holds more than capacity paths the oldest entries are
+ * dropped, and tokens from before the last dropped change are no longer
+ * valid; clients then start over with a full sync.
+ *
+ * Tokens embed the time the log was created, so tokens handed out before a
+ * restart are recognized as invalid instead of silently missing changes.
+ */
+public class ChangeLog implements IStoreListener {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ChangeLog.class);
+
+	private static final String TOKEN_PREFIX = "http://ellipsis.nl/ns/sync/";
+
+	private final int _capacity;
+	private final String _tokenPrefix;
+	private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>();
+	private long _sequence = 0;
+	private long _floor = 0;
+
+	/**
+	 * @param capacity
+	 *            maximum number of paths in the log
+	 */
+	public ChangeLog(int capacity) {
+		_capacity = capacity;
+		_tokenPrefix = TOKEN_PREFIX + System.currentTimeMillis() + CharsetUtil.FORWARD_SLASH;
+	}
+
+	public int getCapacity() {
+		return _capacity;
+	}
+
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	public synchronized void committed(List<StoreChange> changes) {
+		for (StoreChange change : changes) {
+			_sequence++;
+			// re-insert, the map is kept in sequence order
+			_entries.remove(change.getPath());
+			_entries.put(change.getPath(), new Entry(change.getPath(), change.isRemoved(), _sequence));
+		}
+		if (_entries.size() > _capacity) {
+			Iterator<Entry> it = _entries.values().iterator();
+			while (_entries.size() > _capacity) {
+				_floor = it.next()._sequence;
+				it.remove();
+			}
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Compacted change log, tokens before " + _floor + " are no longer valid");
+			}
+		}
+	}
+
+	/**
+	 * @return the token of the current state of the store
+	 */
+	public synchronized String getToken() {
+		return toToken(_sequence);
+	}
+
+	public String toToken(long sequence) {
+		return _tokenPrefix + sequence;
+	}
+
+	/**
+	 * @return the sequence number in a token handed out by this log, -1 if the
+	 *         token is not one of ours
+	 */
+	public long parseToken(String token) {
+		if (token != null && token.startsWith(_tokenPrefix)) {
+			try {
+				return Long.parseLong(token.substring(_tokenPrefix.length()));
+			} catch (NumberFormatException e) {
+				// not one of ours
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Collects the changes to the members of a collection since a token
+	 * 
+	 * @param collectionPath
+	 *            path of the collection
+	 * @param token
+	 *            token the client got from an earlier report
+	 * @param infinite
+	 *            true for all descendants, false for the direct members only
+	 * @return the changes in sequence order with the token to continue from,
+	 *         null if the token is unknown or too old
+	 */
+	public synchronized Delta getChangesSince(String collectionPath, String token, boolean infinite) {
+		long since = parseToken(token);
+		if (since < _floor || since > _sequence) {
+			return null;
+		}
+		String collection = URLUtil.getRelativePath(collectionPath);
+		String prefix = (CharsetUtil.FORWARD_SLASH.equals(collection) ? collection
+				: collection + CharsetUtil.FORWARD_SLASH);
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Entry entry : _entries.values()) {
+			if (entry._sequence > since && entry._path.startsWith(prefix) && entry._path.length() > prefix.length()
+					&& (infinite || collection.equals(URLUtil.getParentPath(entry._path)))) {
+				entries.add(entry);
+			}
+		}
+		return new Delta(Collections.unmodifiableList(entries), _sequence);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ChangeLog[capacity=" + _capacity + ", size=" + _entries.size() + ", sequence=" + _sequence
+				+ ", floor=" + _floor + "]";
+	}
+
+	/**
+	 * Most recent change of one path
+	 */
+	public static final class Entry {
+		private final String _path;
+		private final boolean _removed;
+		private final long _sequence;
+
+		private Entry(String path, boolean removed, long sequence) {
+			_path = path;
+			_removed = removed;
+			_sequence = sequence;
+		}
+
+		public String getPath() {
+			return _path;
+		}
+
+		public boolean isRemoved() {
+			return _removed;
+		}
+
+		public long getSequence() {
+			return _sequence;
+		}
+	}
+
+	/**
+	 * Changes since a token
+	 */
+	public static final class Delta {
+		private final List<Entry> _entries;
+		private final long _sequence;
+
+		private Delta(List<Entry> entries, long sequence) {
+			_entries = entries;
+			_sequence = sequence;
+		}
+
+		public List<Entry> getEntries() {
+			return _entries;
+		}
+
+		/**
+		 * @return sequence number of the state the changes lead up to
+		 */
+		public long getSequence() {
+			return _sequence;
+		}
+	}
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.ellipsis.webdav.server.exceptions.WebDAVException;
+import nl.ellipsis.webdav.server.util.DigestVerifyingInputStream.DigestMismatchException;
+import nl.ellipsis.webdav.server.util.URLUtil;
+
+/**
+ * Store that keeps every distinct content once. The content is stored as
+ * blob named after its SHA-256 digest in blobs/ab/cd/abcd..., the tree of
+ * folders and resources is kept in index/, where every resource is a small
+ * file that holds the digest and length of its blob.
+ *
+ * Writing content that is already stored only adds a reference to the blob,
+ * and copying a resource within the store does not read the content at all,
+ * also through the decorators, which pass copyResource on.
+ * The number of references to each blob is counted in memory when the store
+ * is created; blobs that are no longer referenced are removed right away, or
+ * at the next start if the servlet stopped in between.
+ *
+ * Select it with the ResourceHandlerImplementation init parameter.
+ */
+public class ContentAddressableStore implements IWebDAVStore, ILastModifiedStore, ICopyStore {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ContentAddressableStore.class);
+
+	private static int BUF_SIZE = 65536;
+
+	private static final String INDEX_DIR = "index";
+	private static final String BLOBS_DIR = "blobs";
+	private static final String TEMP_DIR = "tmp";
+
+	/**
+	 * Name of the files written before they are moved into place
+	 */
+	private static final String TEMP_PREFIX = ".webdav-cas-";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * Number of locks the blobs are spread over
+	 */
+	private static final int LOCK_STRIPES = 64;
+
+	private final File _root;
+	private final File _index;
+	private final File _blobs;
+	private final File _temp;
+	private final ConcurrentHashMap<String, Integer> _references = new ConcurrentHashMap<String, Integer>();
+	private final Object[] _locks = new Object[LOCK_STRIPES];
+
+	public ContentAddressableStore(File root) {
+		_root = root;
+		_index = new File(root, INDEX_DIR);
+		_blobs = new File(root, BLOBS_DIR);
+		_temp = new File(_blobs, TEMP_DIR);
+		for (int i = 0; i < _locks.length; i++) {
+			_locks[i] = new Object();
+		}
+		if (_index.isDirectory() && _blobs.isDirectory()) {
+			countReferences();
+		}
+	}
+
+	public void destroy() {
+		LOG.debug("ContentAddressableStore.destroy()");
+	}
+
+	public ITransaction begin(Principal principal) throws WebDAVException {
+		LOG.debug("ContentAddressableStore.begin()");
+		for (File dir : new File[] { _index, _temp }) {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				String msg = "root path '" + _root.getAbsolutePath() + "' does not exist and could not be created";
+				LOG.error("ContentAddressableStore.begin() failed: " + msg);
+				throw new WebDAVException(msg);
+			}
+		}
+		return null;
+	}
+
+	public void checkAuthentication(ITransaction transaction) throws SecurityException {
+		LOG.debug("ContentAddressableStore.checkAuthentication()");
+		// do nothing
+	}
+
+	public void commit(ITransaction transaction) throws WebDAVException {
+		// do nothing
+		LOG.debug("ContentAddressableStore.commit()");
+	}
+
+	public void rollback(ITransaction transaction) throws WebDAVException {
+		// do nothing
+		LOG.debug("ContentAddressableStore.rollback()");
+	}
+
+	public void createFolder(ITransaction transaction, String uri) throws WebDAVException {
+		LOG.debug("ContentAddressableStore.createFolder(" + uri + ")");
+		File file = new File(_index, uri);
+		if (!file.mkdir()) {
+			LOG.error("ContentAddressableStore.createFolder(" + uri + ") failed");
+			throw new WebDAVException("cannot create folder '" + uri + "'");
+		}
+	}
+
+	public void createResource(ITransaction transaction, String uri) throws WebDAVException {
+		LOG.debug("ContentAddressableStore.createResource(" + uri + ")");
+		if (new File(_index, uri).exists()) {
+			throw new WebDAVException("cannot create file '" + uri + "'");
+		}
+		setResourceContent(transaction, uri, new ByteArrayInputStream(new byte[0]), null, null);
+	}
+
+	public long setResourceContent(ITransaction transaction, String uri, InputStream is, String contentType,
+			String characterEncoding) throws WebDAVException {
+		LOG.debug("ContentAddressableStore.setResourceContent(" + uri + ")");
+		File file = new File(_index, uri);
+		Pointer pointer = null;
+		try {
+			Pointer old = readPointer(file);
+			if (is instanceof BlobInputStream && ((BlobInputStream) is).isUnreadFrom(this)) {
+				// a copy within the store only needs another reference
+				Pointer source = ((BlobInputStream) is)._pointer;
+				if (addReference(source._hash)) {
+					pointer = source;
+					is.close();
+				}
+			}
+			if (pointer == null) {
+				pointer = storeBlob(is);
+			}
+			try {
+				writePointer(file, pointer);
+			} catch (IOException e) {
+				removeReference(pointer._hash);
+				throw e;
+			}
+			if (old != null) {
+				removeReference(old._hash);
+			}
+		} catch (DigestMismatchException | Quota.QuotaExceededException e) {
+			LOG.info("ContentAddressableStore.setResourceContent(" + uri + ") rejected: " + e.getMessage());
+			throw new WebDAVException(e);
+		} catch (IOException e) {
+			LOG.error("ContentAddressableStore.setResourceContent(" + uri + ") failed");
+			throw new WebDAVException(e);
+		}
+		return pointer._length;
+	}
+
+	public long copyResource(ITransaction transaction, String sourceUri, String destinationUri)
+			throws WebDAVException {
+		// the content of the source is not read, only referenced
+		return setResourceContent(transaction, destinationUri, getResourceContent(transaction, sourceUri), null,
+				null);
+	}
+
+	public void setLastModified(ITransaction transaction, String uri, Date lastModified) throws WebDAVException {
+		LOG.debug("ContentAddressableStore.setLastModified(" + uri + ")");
+		if (!new File(_index, uri).setLastModified(lastModified.getTime())) {
+			throw new WebDAVException("cannot set the modification time of '" + uri + "'");
+		}
+	}
+
+	public String[] getChildrenNames(ITransaction transaction, String uri) throws WebDAVException {
+		LOG.debug("ContentAddressableStore.getChildrenNames(" + uri + ")");
+		File file = new File(_index, uri);
+		String[] childrenNames = null;
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children != null) {
+				List<String> childList = new ArrayList<String>();
+				for (File child : children) {
+					if (!isHidden(child)) {
+						childList.add(child.getName());
+					}
+				}
+				childrenNames = childList.toArray(new String[childList.size()]);
+			}
+		}
+		return childrenNames;
+	}
+
+	public void removeObject(ITransaction transaction, String uri) throws WebDAVException {
+		File file = new File(_index, uri);
+		Pointer pointer = null;
+		try {
+			pointer = readPointer(file);
+		} catch (IOException e) {
+			LOG.warn("ContentAddressableStore.removeObject(" + uri + ") cannot read " + file + ": " + e.getMessage());
+		}
+		boolean success = file.delete();
+		LOG.debug("ContentAddressableStore.removeObject(" + uri + ")=" + success);
+		if (!success) {
+			throw new WebDAVException("cannot remove object '" + uri + "'");
+		}
+		if (pointer != null) {
+			removeReference(pointer._hash);
+		}
+	}
+
+	public InputStream getResourceContent(ITransaction transaction, String uri) throws WebDAVException {
+		LOG.debug("ContentAddressableStore.getResourceContent(" + uri + ")");
+		try {
+			File file = new File(_index, uri);
+			Pointer pointer = readPointer(file);
+			while (pointer != null) {
+				// the blob is removed with its last reference under the same lock
+				synchronized (getLock(pointer._hash)) {
+					if (_references.containsKey(pointer._hash)) {
+						return new BlobInputStream(pointer);
+					}
+				}
+				// replaced since the pointer was read
+				Pointer current = readPointer(file);
+				if (current != null && current._hash.equals(pointer._hash)) {
+					throw new IOException("no blob for '" + uri + "'");
+				}
+				pointer = current;
+			}
+			throw new IOException("no resource at '" + uri + "'");
+		} catch (IOException e) {
+			LOG.error("ContentAddressableStore.getResourceContent(" + uri + ") failed");
+			throw new WebDAVException(e);
+		}
+	}
+
+	public long getResourceLength(ITransaction transaction, String uri) {
+		LOG.debug("ContentAddressableStore.getResourceLength(" + uri + ")");
+		try {
+			Pointer pointer = readPointer(new File(_index, uri));
+			return pointer != null ? pointer._length : 0;
+		} catch (IOException e) {
+			LOG.error("ContentAddressableStore.getResourceLength(" + uri + ") failed");
+			return -1;
+		}
+	}
+
+	public StoredObject getStoredObject(ITransaction transaction, String uri) {
+		uri = URLUtil.getCleanPath(uri);
+		LOG.debug("ContentAddressableStore.getStoredObject(" + uri + ")");
+		StoredObject so = null;
+		File file = new File(_index, uri);
+		if (file.exists() && !isHidden(file)) {
+			try {
+				so = new StoredObject(uri);
+				so.setFolder(file.isDirectory());
+				BasicFileAttributes attr = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+				so.setLastModified(new Date(attr.lastModifiedTime().toMillis()));
+				so.setCreationDate(new Date(attr.creationTime().toMillis()));
+				if (so.isFolder()) {
+					so.setResourceLength(0);
+				} else {
+					Pointer pointer = readPointer(file);
+					so.setResourceLength(pointer != null ? pointer._length : 0);
+					so.setContentDigest(pointer != null ? pointer._hash : null);
+					so.setMimeType(Files.probeContentType(file.toPath()));
+				}
+			} catch (IOException e) {
+				LOG.error("ContentAddressableStore.getStoredObject(" + uri + ") failed", e);
+			}
+		}
+		return so;
+	}
+
+	/**
+	 * @return the number of resources that refer to the blob with the digest
+	 */
+	int getReferences(String hash) {
+		Integer count = _references.get(hash);
+		return count != null ? count : 0;
+	}
+
+	File getBlobFile(String hash) {
+		return new File(_blobs, hash.substring(0, 2) + File.separator + hash.substring(2, 4) + File.separator + hash);
+	}
+
+	/**
+	 * Copies the content to a temporary file while computing its digest, and
+	 * moves it into place unless a blob with that digest is stored already
+	 *
+	 * @return a pointer to the blob, which has one more reference
+	 */
+	private Pointer storeBlob(InputStream is) throws IOException {
+		MessageDigest digest = ContentDigestIndex.createDigest();
+		long length = 0;
+		File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, _temp);
+		try {
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(temp), BUF_SIZE);
+			try {
+				int read;
+				byte[] copyBuffer = new byte[BUF_SIZE];
+				while ((read = is.read(copyBuffer, 0, copyBuffer.length)) != -1) {
+					digest.update(copyBuffer, 0, read);
+					os.write(copyBuffer, 0, read);
+					length += read;
+				}
+			} finally {
+				try {
+					is.close();
+				} finally {
+					os.close();
+				}
+			}
+			String hash = ContentDigestIndex.toHex(digest.digest());
+			File blob = getBlobFile(hash);
+			synchronized (getLock(hash)) {
+				if (!blob.exists()) {
+					File shard = blob.getParentFile();
+					if (!shard.isDirectory() && !shard.mkdirs()) {
+						throw new IOException("cannot create " + shard);
+					}
+					move(temp, blob);
+					temp = null;
+				}
+				Integer count = _references.get(hash);
+				_references.put(hash, count != null ? count + 1 : 1);
+			}
+			return new Pointer(hash, length);
+		} finally {
+			if (temp != null && !temp.delete()) {
+				LOG.warn("ContentAddressableStore.storeBlob() left " + temp);
+			}
+		}
+	}
+
+	/**
+	 * @return false if the blob is gone, because its last reference was
+	 *         removed in the meantime
+	 */
+	private boolean addReference(String hash) {
+		synchronized (getLock(hash)) {
+			Integer count = _references.get(hash);
+			if (count == null || !getBlobFile(hash).isFile()) {
+				return false;
+			}
+			_references.put(hash, count + 1);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes the blob with its last reference; streams that still read it
+	 * keep their open file
+	 */
+	private void removeReference(String hash) {
+		synchronized (getLock(hash)) {
+			Integer count = _references.get(hash);
+			if (count != null && count > 1) {
+				_references.put(hash, count - 1);
+				return;
+			}
+			_references.remove(hash);
+			File blob = getBlobFile(hash);
+			if (blob.exists() && !blob.delete()) {
+				LOG.warn("ContentAddressableStore cannot remove unreferenced blob " + blob);
+			}
+		}
+	}
+
+	private Object getLock(String hash) {
+		return _locks[(hash.hashCode() & 0x7fffffff) % _locks.length];
+	}
+
+	/**
+	 * Writes the pointer next to the index file and moves it into place, so a
+	 * reader never sees half of it
+	 */
+	private static void writePointer(File file, Pointer pointer) throws IOException {
+		File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, file.getParentFile());
+		try {
+			Files.write(temp.toPath(), (pointer._hash + " " + pointer._length + "\n").getBytes(StandardCharsets.UTF_8));
+			move(temp, file);
+			temp = null;
+		} finally {
+			if (temp != null && !temp.delete()) {
+				LOG.warn("ContentAddressableStore.writePointer() left " + temp);
+			}
+		}
+	}
+
+	/**
+	 * @return the pointer in the index file, null if there is no such file
+	 */
+	private static Pointer readPointer(File file) throws IOException {
+		if (!file.isFile() || isHidden(file)) {
+			return null;
+		}
+		String[] fields = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+		try {
+			if (fields.length == 2 && fields[0].length() == 64) {
+				return new Pointer(fields[0], Long.parseLong(fields[1]));
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IOException("invalid index file " + file);
+	}
+
+	private static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static boolean isHidden(File file) {
+		return file.getName().startsWith(TEMP_PREFIX);
+	}
+
+	/**
+	 * Counts the references in the index, and removes the blobs that are not
+	 * referenced and the temporary files left by a previous run
+	 */
+	private void countReferences() {
+		long start = System.currentTimeMillis();
+		try {
+			Files.walkFileTree(_index.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+					File file = path.toFile();
+					if (isHidden(file)) {
+						Files.deleteIfExists(path);
+						return FileVisitResult.CONTINUE;
+					}
+					try {
+						Pointer pointer = readPointer(file);
+						if (pointer != null) {
+							Integer count = _references.get(pointer._hash);
+							_references.put(pointer._hash, count != null ? count + 1 : 1);
+						}
+					} catch (IOException e) {
+						LOG.warn(e.getMessage());
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			final int[] removed = new int[1];
+			Files.walkFileTree(_blobs.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+					if (path.getParent().toFile().equals(_temp)
+							|| !_references.containsKey(path.getFileName().toString())) {
+						Files.deleteIfExists(path);
+						removed[0]++;
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			LOG.info("Counted " + _references.size() + " blobs and removed " + removed[0] + " unreferenced files in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} catch (IOException e) {
+			LOG.warn("Counting the references to the blobs in " + _root + " failed", e);
+		}
+	}
+
+	/**
+	 * Content of an index file: the digest and length of the blob
+	 */
+	private static class Pointer {
+
+		private final String _hash;
+		private final long _length;
+
+		private Pointer(String hash, long length) {
+			_hash = hash;
+			_length = length;
+		}
+	}
+
+	/**
+	 * Content of a blob, which knows what blob it reads so that it can be
+	 * copied within the store by reference
+	 */
+	private class BlobInputStream extends BufferedInputStream {
+
+		private final Pointer _pointer;
+		private boolean _read = false;
+
+		private BlobInputStream(Pointer pointer) throws IOException {
+			super(new FileInputStream(getBlobFile(pointer._hash)), BUF_SIZE);
+			_pointer = pointer;
+		}
+
+		private boolean isUnreadFrom(ContentAddressableStore store) {
+			return !_read && ContentAddressableStore.this == store;
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			_read = true;
+			return super.read();
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			_read = true;
+			return super.read(b, off, len);
+		}
+
+		@Override
+		public synchronized long skip(long n) throws IOException {
+			_read = true;
+			return super.skip(n);
+		}
+	}
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nl.ellipsis.webdav.server.util.CharsetUtil;
+
+/**
+ * SHA-256 digests of the files of a LocalFileSystemStore, computed when the
+ * content is written and used as strong entity tags.
+ *
+ * A digest is stored together with the length and modification time of the
+ * file it was computed for, and is ignored once the file no longer matches,
+ * for instance because it was changed outside the servlet. Digests are kept
+ * in a user-defined extended attribute of the file when the file system
+ * supports it, and otherwise in an append-only index file in the root folder
+ * that is read back into memory at startup. The index file is rewritten with
+ * only the current digests once it has grown to several times their number.
+ */
+public class ContentDigestIndex {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ContentDigestIndex.class);
+
+	public static final String ALGORITHM = "SHA-256";
+	public static final String INDEX_FILE_NAME = ".webdav-digests";
+
+	private static final String ATTRIBUTE_NAME = "webdav.sha256";
+	private static final String REMOVED = "-";
+	private static final char SEPARATOR = ' ';
+	private static final char INDEX_SEPARATOR = '\t';
+	private static final char[] HEXADECIMAL = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd',
+			'e', 'f' };
+	private static final int BUF_SIZE = 65536;
+
+	/**
+	 * lines per current digest at which the index file is rewritten
+	 */
+	private static final int COMPACT_FACTOR = 4;
+	/**
+	 * lines below which the index file is never rewritten
+	 */
+	private static final int MIN_COMPACT_LINES = 1000;
+
+	private final File _root;
+	private final File _indexFile;
+	private final File _compactFile;
+	private final boolean _useAttributes;
+	private final HashMap<String, String> _index = new HashMap<String, String>();
+	private Writer _indexWriter = null;
+	private int _indexLines = 0;
+
+	public ContentDigestIndex(File root) {
+		this(root, supportsAttributes(root));
+	}
+
+	ContentDigestIndex(File root, boolean useAttributes) {
+		_root = root;
+		_indexFile = new File(root, INDEX_FILE_NAME);
+		_compactFile = new File(root, INDEX_FILE_NAME + ".tmp");
+		_useAttributes = useAttributes;
+		loadIndex();
+		if (isBloated()) {
+			compactIndex();
+		}
+		LOG.info("Content digests of " + root.getAbsolutePath() + " are kept in "
+				+ (useAttributes ? "extended attributes" : _indexFile.getName()));
+	}
+
+	/**
+	 * @return a digest for computing the content digest of a file
+	 */
+	public static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform implements SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the digest as lower case hexadecimal string
+	 */
+	public static String toHex(byte[] digest) {
+		char[] buffer = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			buffer[i * 2] = HEXADECIMAL[(digest[i] & 0xf0) >> 4];
+			buffer[i * 2 + 1] = HEXADECIMAL[digest[i] & 0x0f];
+		}
+		return new String(buffer);
+	}
+
+	/**
+	 * Reads the file and computes its digest
+	 */
+	public static String compute(File file) throws IOException {
+		MessageDigest digest = createDigest();
+		InputStream is = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[BUF_SIZE];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			is.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @return true if the file is the index file or the one it is rewritten
+	 *         to, which are not part of the content of the store
+	 */
+	public boolean isIndexFile(File file) {
+		return _indexFile.equals(file) || _compactFile.equals(file);
+	}
+
+	/**
+	 * @return the number of lines in the index file
+	 */
+	synchronized int getIndexLines() {
+		return _indexLines;
+	}
+
+	/**
+	 * @return the digest of the file, null if there is none or the file has
+	 *         changed since it was computed
+	 */
+	public String get(String uri, File file) {
+		String record = null;
+		if (_useAttributes) {
+			record = readAttribute(file);
+		}
+		if (record == null) {
+			synchronized (this) {
+				record = _index.get(uri);
+			}
+		}
+		return parseRecord(record, file.length(), file.lastModified());
+	}
+
+	/**
+	 * Stores the digest of the file as it is now
+	 */
+	public void put(String uri, File file, String digest) {
+		put(uri, file, digest, file.length(), file.lastModified());
+	}
+
+	/**
+	 * Removes the digest of a file that is being deleted
+	 */
+	public void remove(String uri) {
+		synchronized (this) {
+			if (_index.remove(uri) != null) {
+				appendIndex(uri, REMOVED);
+			}
+		}
+	}
+
+	/**
+	 * Computes the digests of the files that do not have a valid one, for
+	 * files that were written before digests were enabled or outside the
+	 * servlet. Files that change while they are read are skipped.
+	 *
+	 * @param stop
+	 *            checked between files, the walk ends once it is true
+	 * @return the number of digests computed
+	 */
+	public int backfill(final AtomicBoolean stop) throws IOException {
+		final int[] count = new int[1];
+		final Path rootPath = _root.toPath();
+		Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+				if (stop.get()) {
+					return FileVisitResult.TERMINATE;
+				}
+				File file = path.toFile();
+				if (!attrs.isRegularFile() || isIndexFile(file)) {
+					return FileVisitResult.CONTINUE;
+				}
+				String uri = CharsetUtil.FORWARD_SLASH
+						+ rootPath.relativize(path).toString().replace(File.separatorChar, CharsetUtil.CHAR_FORWARD_SLASH);
+				long length = file.length();
+				long lastModified = file.lastModified();
+				if (get(uri, file) == null) {
+					try {
+						String digest = compute(file);
+						if (file.length() == length && file.lastModified() == lastModified) {
+							put(uri, file, digest, length, lastModified);
+							count[0]++;
+						}
+					} catch (IOException e) {
+						LOG.debug("ContentDigestIndex.backfill(" + uri + ") skipped: " + e.getMessage());
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path path, IOException e) {
+				LOG.debug("ContentDigestIndex.backfill(" + path + ") skipped: " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return count[0];
+	}
+
+	public synchronized void close() {
+		if (_indexWriter != null) {
+			try {
+				_indexWriter.close();
+			} catch (IOException e) {
+				LOG.warn("ContentDigestIndex.close() failed", e);
+			}
+			_indexWriter = null;
+		}
+	}
+
+	private void put(String uri, File file, String digest, long length, long lastModified) {
+		String record = digest + SEPARATOR + length + SEPARATOR + lastModified;
+		if (_useAttributes && writeAttribute(file, record)) {
+			return;
+		}
+		synchronized (this) {
+			_index.put(uri, record);
+			appendIndex(uri, record);
+		}
+	}
+
+	private static String parseRecord(String record, long length, long lastModified) {
+		if (record == null) {
+			return null;
+		}
+		String[] parts = record.split(String.valueOf(SEPARATOR));
+		if (parts.length != 3) {
+			return null;
+		}
+		try {
+			if (Long.parseLong(parts[1]) != length || Long.parseLong(parts[2]) != lastModified) {
+				return null;
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return parts[0];
+	}
+
+	private static boolean supportsAttributes(File root) {
+		try {
+			return Files.getFileStore(root.toPath()).supportsFileAttributeView(UserDefinedFileAttributeView.class);
+		} catch (IOException e) {
+			LOG.debug("ContentDigestIndex: cannot determine the file store of " + root.getAbsolutePath(), e);
+			return false;
+		}
+	}
+
+	private static String readAttribute(File file) {
+		try {
+			UserDefinedFileAttributeView view = Files.getFileAttributeView(file.toPath(),
+					UserDefinedFileAttributeView.class);
+			if (view == null || !view.list().contains(ATTRIBUTE_NAME)) {
+				return null;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(view.size(ATTRIBUTE_NAME));
+			view.read(ATTRIBUTE_NAME, buffer);
+			buffer.flip();
+			return StandardCharsets.US_ASCII.decode(buffer).toString();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static boolean writeAttribute(File file, String record) {
+		try {
+			UserDefinedFileAttributeView view = Files.getFileAttributeView(file.toPath(),
+					UserDefinedFileAttributeView.class);
+			if (view == null) {
+				return false;
+			}
+			view.write(ATTRIBUTE_NAME, StandardCharsets.US_ASCII.encode(record));
+			return true;
+		} catch (IOException e) {
+			LOG.debug("ContentDigestIndex: cannot write the attribute of " + file.getAbsolutePath() + ", using the index");
+			return false;
+		}
+	}
+
+	private void loadIndex() {
+		if (!_indexFile.exists()) {
+			return;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(new FileInputStream(_indexFile), StandardCharsets.UTF_8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					_indexLines++;
+					int separator = line.lastIndexOf(INDEX_SEPARATOR);
+					if (separator > 0) {
+						String uri = line.substring(0, separator);
+						String record = line.substring(separator + 1);
+						if (REMOVED.equals(record)) {
+							_index.remove(uri);
+						} else {
+							_index.put(uri, record);
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			LOG.debug("ContentDigestIndex: read " + _index.size() + " digests from " + _indexFile.getAbsolutePath());
+		} catch (IOException e) {
+			LOG.warn("ContentDigestIndex: cannot read " + _indexFile.getAbsolutePath(), e);
+		}
+	}
+
+	private void appendIndex(String uri, String record) {
+		try {
+			if (_indexWriter == null) {
+				_indexWriter = new OutputStreamWriter(new FileOutputStream(_indexFile, true), StandardCharsets.UTF_8);
+			}
+			_indexWriter.write(uri + INDEX_SEPARATOR + record + "\n");
+			_indexWriter.flush();
+			_indexLines++;
+		} catch (IOException e) {
+			LOG.warn("ContentDigestIndex: cannot write " + _indexFile.getAbsolutePath(), e);
+		}
+		if (isBloated()) {
+			compactIndex();
+		}
+	}
+
+	/**
+	 * @return true if the index file holds mostly replaced and removed
+	 *         digests
+	 */
+	private boolean isBloated() {
+		return _indexLines >= MIN_COMPACT_LINES && _indexLines >= COMPACT_FACTOR * _index.size();
+	}
+
+	/**
+	 * Writes the current digests to a new index file and moves it over the
+	 * old one, so a crash leaves either of them
+	 */
+	private void compactIndex() {
+		close();
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(_compactFile), StandardCharsets.UTF_8);
+			try {
+				for (Map.Entry<String, String> entry : _index.entrySet()) {
+					writer.write(entry.getKey() + INDEX_SEPARATOR + entry.getValue() + "\n");
+				}
+			} finally {
+				writer.close();
+			}
+			try {
+				Files.move(_compactFile.toPath(), _indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(_compactFile.toPath(), _indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			LOG.debug("ContentDigestIndex: rewrote " + _indexFile.getAbsolutePath() + " from " + _indexLines
+					+ " to " + _index.size() + " lines");
+			_indexLines = _index.size();
+		} catch (IOException e) {
+			LOG.warn("ContentDigestIndex: cannot rewrite " + _indexFile.getAbsolutePath(), e);
+			_compactFile.delete();
+		}
+	}
+}
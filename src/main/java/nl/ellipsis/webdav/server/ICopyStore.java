@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+/**
+ * A store that can copy the content of a resource without it being read and
+ * written through the methods, like a store that only adds a reference.
+ * Decorators pass the copy on to their delegate, or copy the content
+ * themselves if it can not.
+ */
+public interface ICopyStore {
+
+	/**
+	 * Sets the content of the destination, which exists, to the content of
+	 * the source
+	 * 
+	 * @return the length of the content, -1 if it is not known
+	 */
+	long copyResource(ITransaction transaction, String sourceUri, String destinationUri);
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+import java.io.File;
+
+/**
+ * A store that keeps the content of its resources in files on the local file
+ * system, so it can be handed to something outside the JVM, like a front
+ * proxy that sends the file itself.
+ */
+public interface ILocalFileStore {
+
+	/**
+	 * @return the file that holds the content of the resource, null if the
+	 *         resource is not kept in a file of its own
+	 */
+	File getFile(ITransaction transaction, String uri);
+
+}
@@ -17,14 +17,14 @@ package nl.ellipsis.webdav.server;
 
 import java.io.IOException;
 
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-
 import nl.ellipsis.webdav.server.exceptions.LockFailedException;
 
+/**
+ * Executes one HTTP method. Implementations are shared between concurrent
+ * requests and must keep all per-request state in the given context.
+ */
 public interface IMethodExecutor {
 
-	void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException;
+	void execute(RequestContext context) throws IOException, LockFailedException;
 
 }
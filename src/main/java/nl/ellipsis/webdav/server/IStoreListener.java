@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+import java.util.List;
+
+/**
+ * Is told about the changes made through an {@link ObservableStore}, once the
+ * transaction that made them has been committed. Listeners are called on the
+ * request thread and shared by all requests, so they must be thread safe and
+ * should return quickly.
+ */
+public interface IStoreListener {
+
+	/**
+	 * @param changes
+	 *            the changes of one transaction, in the order they were made
+	 */
+	void committed(List<StoreChange> changes);
+
+}
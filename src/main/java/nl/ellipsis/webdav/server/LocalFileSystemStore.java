@@ -25,16 +25,24 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import nl.ellipsis.webdav.server.exceptions.WebDAVException;
+import nl.ellipsis.webdav.server.util.DigestVerifyingInputStream;
+import nl.ellipsis.webdav.server.util.DigestVerifyingInputStream.DigestMismatchException;
+import nl.ellipsis.webdav.server.util.IStagedContent;
 import nl.ellipsis.webdav.server.util.URLUtil;
 
 /**
@@ -43,20 +51,51 @@ import nl.ellipsis.webdav.server.util.URLUtil;
  * @author joa
  * @author re
  */
-public class LocalFileSystemStore implements IWebDAVStore {
+public class LocalFileSystemStore implements IWebDAVStore, ILocalFileStore, ILastModifiedStore {
 
 	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(LocalFileSystemStore.class);
 
 	private static int BUF_SIZE = 65536;
 
+	/**
+	 * Name of the files staged content is written to before it replaces a
+	 * resource
+	 */
+	private static final String UPLOAD_PREFIX = ".webdav-upload-";
+	private static final String UPLOAD_SUFFIX = ".tmp";
+
 	private File _root = null;
+	private volatile ContentDigestIndex _digests = null;
+	private Thread _backfill = null;
+	private final AtomicBoolean _stopBackfill = new AtomicBoolean();
 
 	public LocalFileSystemStore(File root) {
 		_root = root;
 	}
 
+	/**
+	 * Computes a digest of the content of every file written, which is served
+	 * as strong entity tag. The digests of files that already exist are
+	 * computed by a background thread.
+	 */
+	public synchronized void setContentDigests(boolean enabled) {
+		if (enabled && _digests == null) {
+			_digests = new ContentDigestIndex(_root);
+			startBackfill(_digests);
+		} else if (!enabled && _digests != null) {
+			stopBackfill();
+			_digests.close();
+			_digests = null;
+		}
+	}
+
+	public boolean isContentDigests() {
+		return _digests != null;
+	}
+
 	public void destroy() {
 		LOG.debug("LocalFileSystemStore.destroy()");
+		setContentDigests(false);
 	}
 
 	public ITransaction begin(Principal principal) throws WebDAVException {
@@ -112,8 +151,25 @@ public class LocalFileSystemStore implements IWebDAVStore {
 			String characterEncoding) throws WebDAVException {
 		LOG.debug("LocalFileSystemStore.setResourceContent(" + uri + ")");
 		File file = new File(_root, uri);
+		ContentDigestIndex digests = _digests;
+		MessageDigest digest = null;
+		DigestVerifyingInputStream verifying = (is instanceof DigestVerifyingInputStream
+				? (DigestVerifyingInputStream) is : null);
+		boolean staged = is instanceof IStagedContent;
+		if (digests != null && (verifying == null || !verifying.isDigesting(ContentDigestIndex.ALGORITHM))) {
+			// digest the content while it is copied, instead of reading the file again
+			digest = ContentDigestIndex.createDigest();
+			is = new DigestInputStream(is, digest);
+		}
+		// staged content is written next to the file and only replaces it
+		// once all of it has been read, so a rejected upload leaves the file
+		// as it was
+		File temp = null;
 		try {
-			OutputStream os = new BufferedOutputStream(new FileOutputStream(file), BUF_SIZE);
+			if (staged) {
+				temp = File.createTempFile(UPLOAD_PREFIX, UPLOAD_SUFFIX, file.getParentFile());
+			}
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(temp != null ? temp : file), BUF_SIZE);
 			try {
 				int read;
 				byte[] copyBuffer = new byte[BUF_SIZE];
@@ -128,13 +184,58 @@ public class LocalFileSystemStore implements IWebDAVStore {
 					os.close();
 				}
 			}
+			if (temp != null) {
+				publish(temp, file);
+				temp = null;
+			}
+		} catch (DigestMismatchException | Quota.QuotaExceededException e) {
+			LOG.info("LocalFileSystemStore.setResourceContent(" + uri + ") rejected: " + e.getMessage());
+			throw new WebDAVException(e);
 		} catch (IOException e) {
 			LOG.error("LocalFileSystemStore.setResourceContent(" + uri + ") failed");
 			throw new WebDAVException(e);
+		} finally {
+			if (temp != null && !temp.delete()) {
+				LOG.warn("LocalFileSystemStore.setResourceContent(" + uri + ") left " + temp);
+			}
+		}
+		if (digests != null) {
+			byte[] value = (digest != null ? digest.digest() : verifying.getDigest(ContentDigestIndex.ALGORITHM));
+			digests.put(URLUtil.getCleanPath(uri), file, ContentDigestIndex.toHex(value));
 		}
 		return getResourceLength(file);
 	}
 
+	public void setLastModified(ITransaction transaction, String uri, Date lastModified) throws WebDAVException {
+		LOG.debug("LocalFileSystemStore.setLastModified(" + uri + ")");
+		File file = new File(_root, uri);
+		ContentDigestIndex digests = _digests;
+		String digest = (digests != null ? digests.get(URLUtil.getCleanPath(uri), file) : null);
+		if (!file.setLastModified(lastModified.getTime())) {
+			throw new WebDAVException("cannot set the modification time of '" + uri + "'");
+		}
+		// the digest is recorded with the modification time
+		if (digest != null) {
+			digests.put(URLUtil.getCleanPath(uri), file, digest);
+		}
+	}
+
+	private static void publish(File temp, File file) throws IOException {
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @return true for the files of the store itself, which are not resources
+	 */
+	private static boolean isHidden(File file, ContentDigestIndex digests) {
+		return (digests != null && digests.isIndexFile(file)) || file.getName().startsWith(UPLOAD_PREFIX);
+	}
+
 	public String[] getChildrenNames(ITransaction transaction, String uri) throws WebDAVException {
 		LOG.debug("LocalFileSystemStore.getChildrenNames(" + uri + ")");
 		File file = new File(_root, uri);
@@ -144,7 +245,11 @@ public class LocalFileSystemStore implements IWebDAVStore {
 			if (children != null) {
 				List<String> childList = new ArrayList<String>();
 				String name = null;
+				ContentDigestIndex digests = _digests;
 				for (int i = 0; i < children.length; i++) {
+					if (isHidden(children[i], digests)) {
+						continue;
+					}
 					name = children[i].getName();
 					childList.add(name);
 					LOG.debug("\tChild " + i + ": " + name);
@@ -163,6 +268,10 @@ public class LocalFileSystemStore implements IWebDAVStore {
 		if (!success) {
 			throw new WebDAVException("cannot remove object '" + uri+"'");
 		}
+		ContentDigestIndex digests = _digests;
+		if (digests != null) {
+			digests.remove(URLUtil.getCleanPath(uri));
+		}
 	}
 
 	public InputStream getResourceContent(ITransaction transaction, String uri) throws WebDAVException {
@@ -179,6 +288,15 @@ public class LocalFileSystemStore implements IWebDAVStore {
 		return in;
 	}
 
+	public File getFile(ITransaction transaction, String uri) {
+		File file = new File(_root, URLUtil.getCleanPath(uri));
+		ContentDigestIndex digests = _digests;
+		if (!file.isFile() || isHidden(file, digests)) {
+			return null;
+		}
+		return file;
+	}
+
 	public long getResourceLength(ITransaction transaction, String uri) {
 		LOG.debug("LocalFileSystemStore.getResourceLength(" + uri + ")");
 		File file = new File(_root, uri);
@@ -193,7 +311,8 @@ public class LocalFileSystemStore implements IWebDAVStore {
 		LOG.debug("LocalFileSystemStore.getStoredObject(" + uri + ")");
 		StoredObject so = null;
 		File file = new File(_root, uri);
-		if (file.exists()) {
+		ContentDigestIndex digests = _digests;
+		if (file.exists() && !isHidden(file, digests)) {
 			try {
 				so = new StoredObject(uri);
 				so.setFolder(file.isDirectory());
@@ -203,6 +322,9 @@ public class LocalFileSystemStore implements IWebDAVStore {
 				BasicFileAttributes attr = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
 				so.setCreationDate(new Date(attr.creationTime().toMillis()));
 				so.setMimeType(Files.probeContentType(Paths.get(file.toURI())));
+				if (digests != null && !so.isFolder()) {
+					so.setContentDigest(digests.get(uri, file));
+				}
 			} catch (IOException e) {
 				LOG.error("LocalFileSystemStore.getStoredObject(" + uri + ") failed",e);
 			}
@@ -210,6 +332,37 @@ public class LocalFileSystemStore implements IWebDAVStore {
 		return so;
 	}
 	
+	private void startBackfill(final ContentDigestIndex digests) {
+		_stopBackfill.set(false);
+		_backfill = new Thread(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				try {
+					int count = digests.backfill(_stopBackfill);
+					LOG.info("Computed " + count + " content digests of existing files in "
+							+ (System.currentTimeMillis() - start) + " ms");
+				} catch (IOException e) {
+					LOG.warn("Computing the content digests of existing files failed", e);
+				}
+			}
+		}, "webdav-digest-backfill");
+		_backfill.setDaemon(true);
+		_backfill.setPriority(Thread.MIN_PRIORITY);
+		_backfill.start();
+	}
+
+	private void stopBackfill() {
+		_stopBackfill.set(true);
+		if (_backfill != null) {
+			try {
+				_backfill.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			_backfill = null;
+		}
+	}
+
 	private long getResourceLength(File file) {
 		long length = -1;
 		try {
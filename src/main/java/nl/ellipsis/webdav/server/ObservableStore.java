@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+import java.io.InputStream;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import nl.ellipsis.webdav.server.util.URLUtil;
+
+/**
+ * Store decorator that reports every createFolder, createResource,
+ * setResourceContent and removeObject to the registered listeners, so that
+ * all methods that change the store are covered without each of them having
+ * to notify someone.
+ *
+ * The changes of a transaction are collected in the transaction and only
+ * passed on after the delegate has committed it; a rollback discards them.
+ * To do so begin() wraps the transaction of the delegate, which gets its own
+ * transaction back in every call.
+ */
+public class ObservableStore implements IWebDAVStore, IStoreDecorator, ICopyStore {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ObservableStore.class);
+
+	private final IWebDAVStore _delegate;
+	private final List<IStoreListener> _listeners = new CopyOnWriteArrayList<IStoreListener>();
+
+	public ObservableStore(IWebDAVStore delegate) {
+		_delegate = delegate;
+	}
+
+	public IWebDAVStore getDelegate() {
+		return _delegate;
+	}
+
+	public void addListener(IStoreListener listener) {
+		_listeners.add(listener);
+	}
+
+	public void removeListener(IStoreListener listener) {
+		_listeners.remove(listener);
+	}
+
+	public void destroy() {
+		_delegate.destroy();
+	}
+
+	public ITransaction begin(Principal principal) {
+		return new ObservedTransaction(_delegate.begin(principal), principal);
+	}
+
+	public void checkAuthentication(ITransaction transaction) {
+		_delegate.checkAuthentication(unwrap(transaction));
+	}
+
+	public void commit(ITransaction transaction) {
+		_delegate.commit(unwrap(transaction));
+		if (transaction instanceof ObservedTransaction) {
+			List<StoreChange> changes = ((ObservedTransaction) transaction).takeChanges();
+			if (!changes.isEmpty()) {
+				changes = Collections.unmodifiableList(changes);
+				for (IStoreListener listener : _listeners) {
+					try {
+						listener.committed(changes);
+					} catch (RuntimeException e) {
+						// the transaction is committed, the request must not fail anymore
+						LOG.error("Store listener " + listener + " failed", e);
+					}
+				}
+			}
+		}
+	}
+
+	public void rollback(ITransaction transaction) {
+		if (transaction instanceof ObservedTransaction) {
+			((ObservedTransaction) transaction).takeChanges();
+		}
+		_delegate.rollback(unwrap(transaction));
+	}
+
+	public void createFolder(ITransaction transaction, String folderUri) {
+		_delegate.createFolder(unwrap(transaction), folderUri);
+		record(transaction, folderUri, false);
+	}
+
+	public void createResource(ITransaction transaction, String resourceUri) {
+		_delegate.createResource(unwrap(transaction), resourceUri);
+		record(transaction, resourceUri, false);
+	}
+
+	public InputStream getResourceContent(ITransaction transaction, String resourceUri) {
+		return _delegate.getResourceContent(unwrap(transaction), resourceUri);
+	}
+
+	public long setResourceContent(ITransaction transaction, String resourceUri, InputStream content,
+			String contentType, String characterEncoding) {
+		long length = _delegate.setResourceContent(unwrap(transaction), resourceUri, content, contentType,
+				characterEncoding);
+		record(transaction, resourceUri, false);
+		return length;
+	}
+
+	public long copyResource(ITransaction transaction, String sourceUri, String destinationUri) {
+		long length;
+		if (_delegate instanceof ICopyStore) {
+			length = ((ICopyStore) _delegate).copyResource(unwrap(transaction), sourceUri, destinationUri);
+		} else {
+			length = _delegate.setResourceContent(unwrap(transaction), destinationUri,
+					_delegate.getResourceContent(unwrap(transaction), sourceUri), null, null);
+		}
+		record(transaction, destinationUri, false);
+		return length;
+	}
+
+	public String[] getChildrenNames(ITransaction transaction, String folderUri) {
+		return _delegate.getChildrenNames(unwrap(transaction), folderUri);
+	}
+
+	public long getResourceLength(ITransaction transaction, String path) {
+		return _delegate.getResourceLength(unwrap(transaction), path);
+	}
+
+	public void removeObject(ITransaction transaction, String uri) {
+		_delegate.removeObject(unwrap(transaction), uri);
+		record(transaction, uri, true);
+	}
+
+	public StoredObject getStoredObject(ITransaction transaction, String uri) {
+		return _delegate.getStoredObject(unwrap(transaction), uri);
+	}
+
+	private static ITransaction unwrap(ITransaction transaction) {
+		if (transaction instanceof ObservedTransaction) {
+			return ((ObservedTransaction) transaction)._delegate;
+		}
+		return transaction;
+	}
+
+	private static void record(ITransaction transaction, String uri, boolean removed) {
+		if (transaction instanceof ObservedTransaction) {
+			((ObservedTransaction) transaction).record(new StoreChange(URLUtil.getRelativePath(uri), removed));
+		}
+	}
+
+	/**
+	 * Transaction of the delegate with the changes made in it so far
+	 */
+	private static final class ObservedTransaction implements ITransaction {
+		private final ITransaction _delegate;
+		private final Principal _principal;
+		private List<StoreChange> _changes = new ArrayList<StoreChange>();
+
+		private ObservedTransaction(ITransaction delegate, Principal principal) {
+			_delegate = delegate;
+			_principal = principal;
+		}
+
+		public Principal getPrincipal() {
+			return (_delegate != null ? _delegate.getPrincipal() : _principal);
+		}
+
+		private synchronized void record(StoreChange change) {
+			_changes.add(change);
+		}
+
+		private synchronized List<StoreChange> takeChanges() {
+			List<StoreChange> changes = _changes;
+			_changes = new ArrayList<StoreChange>();
+			return changes;
+		}
+	}
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.ellipsis.webdav.server.util.CharsetUtil;
+import nl.ellipsis.webdav.server.util.IStagedContent;
+import nl.ellipsis.webdav.server.util.URLUtil;
+
+/**
+ * Limits on what may be stored: the size of one resource, the bytes stored
+ * in the whole mount, the bytes stored in each home collection and the free
+ * space left on the volume. Home collections are the collections directly
+ * below the root, named after their principal in the usual layout.
+ *
+ * The bytes used are counted once when the servlet starts and from then on
+ * kept up to date by {@link QuotaStore} with the difference every write and
+ * removal makes. Content being written reserves its bytes as they are read,
+ * so uploads running at the same time can not each take the room left. The
+ * usable space of the volume is asked from the file system at most every few
+ * seconds and lowered by what was written since.
+ */
+public class Quota {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(Quota.class);
+
+	/**
+	 * No limits
+	 */
+	public static final Quota NONE = new Quota(-1, -1, -1, null, 0);
+
+	/**
+	 * milliseconds the usable space of the volume is cached
+	 */
+	private static final long USABLE_SPACE_TTL = 5000;
+
+	/**
+	 * Content was stopped because it does not fit
+	 */
+	public static class QuotaExceededException extends IOException {
+
+		private static final long serialVersionUID = -6329583040911526113L;
+
+		private final boolean _tooLarge;
+
+		public QuotaExceededException(String message, boolean tooLarge) {
+			super(message);
+			_tooLarge = tooLarge;
+		}
+
+		/**
+		 * @return true if the content is larger than a resource may be, false
+		 *         if there is no room left for it
+		 */
+		public boolean isTooLarge() {
+			return _tooLarge;
+		}
+	}
+
+	private final long _maxResourceSize;
+	private final long _mountLimit;
+	private final long _homeLimit;
+	private final File _volume;
+	private final long _minFreeSpace;
+
+	private final AtomicLong _used = new AtomicLong();
+	private final ConcurrentHashMap<String, AtomicLong> _homeUsed = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final Object _usableSpaceLock = new Object();
+	private long _usableSpace;
+	private long _usableSpaceCheckedAt = 0;
+	private final AtomicLong _writtenSinceCheck = new AtomicLong();
+
+	/**
+	 * @param maxResourceSize
+	 *            bytes one resource may have, -1 for no limit
+	 * @param mountLimit
+	 *            bytes all resources together may have, -1 for no limit
+	 * @param homeLimit
+	 *            bytes the resources in each home collection may have, -1
+	 *            for no limit
+	 * @param volume
+	 *            directory on the volume the resources are stored on, null to
+	 *            not check the free space
+	 * @param minFreeSpace
+	 *            bytes that have to stay free on the volume
+	 */
+	public Quota(long maxResourceSize, long mountLimit, long homeLimit, File volume, long minFreeSpace) {
+		_maxResourceSize = maxResourceSize;
+		_mountLimit = mountLimit;
+		_homeLimit = homeLimit;
+		_volume = volume;
+		_minFreeSpace = minFreeSpace;
+	}
+
+	public boolean isEnabled() {
+		return _maxResourceSize >= 0 || isCounting() || _volume != null;
+	}
+
+	/**
+	 * @return true if the bytes used are counted, for the mount or home limit
+	 */
+	public boolean isCounting() {
+		return _mountLimit >= 0 || _homeLimit >= 0;
+	}
+
+	/**
+	 * Counts the bytes used, once before the store is used
+	 */
+	public void count(IWebDAVStore store, ITransaction transaction) {
+		if (!isCounting()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		int resources = 0;
+		Deque<String> folders = new ArrayDeque<String>();
+		folders.push(CharsetUtil.FORWARD_SLASH);
+		while (!folders.isEmpty()) {
+			String folder = folders.pop();
+			String[] names = store.getChildrenNames(transaction, folder);
+			if (names == null) {
+				continue;
+			}
+			for (String name : names) {
+				String path = URLUtil.getCleanPath(folder, name);
+				StoredObject so = store.getStoredObject(transaction, path);
+				if (so == null) {
+					continue;
+				} else if (so.isFolder()) {
+					folders.push(path);
+				} else {
+					account(path, so.getResourceLength());
+					resources++;
+				}
+			}
+		}
+		LOG.info("Counted " + _used.get() + " bytes in " + resources + " resources in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * @return true if the length exceeds the size a resource may have
+	 */
+	public boolean isTooLarge(long length) {
+		return _maxResourceSize >= 0 && length > _maxResourceSize;
+	}
+
+	/**
+	 * @param path
+	 *            path of a resource
+	 * @param growth
+	 *            bytes the resource grows by, negative if it shrinks
+	 * @return true if the growth fits in the limits that apply to the path
+	 */
+	public boolean hasRoom(String path, long growth) {
+		return growth <= 0 || growth <= getAvailable(path, false);
+	}
+
+	/**
+	 * @return the bytes used by the home collection the path is in, or by the
+	 *         mount if the path is not in one or homes have no limit
+	 */
+	public long getUsed(String path, boolean collection) {
+		String home = (_homeLimit >= 0 ? getHome(path, collection) : null);
+		return home != null ? getHomeUsed(home).get() : _used.get();
+	}
+
+	/**
+	 * @return the bytes that can still be stored at the path,
+	 *         Long.MAX_VALUE if no limit applies
+	 */
+	public long getAvailable(String path, boolean collection) {
+		long available = Long.MAX_VALUE;
+		if (_mountLimit >= 0) {
+			available = Math.min(available, _mountLimit - _used.get());
+		}
+		String home = (_homeLimit >= 0 ? getHome(path, collection) : null);
+		if (home != null) {
+			available = Math.min(available, _homeLimit - getHomeUsed(home).get());
+		}
+		if (_volume != null) {
+			available = Math.min(available, getUsableSpace() - _minFreeSpace);
+		}
+		return Math.max(0, available);
+	}
+
+	/**
+	 * @param oldLength
+	 *            length of the content that is replaced
+	 * @return the content, stopped with a QuotaExceededException as soon as
+	 *         it does not fit anymore; the bytes it grows the resource by are
+	 *         reserved while it is read, and have to be settled once it is
+	 *         written or rejected
+	 */
+	public InputStream limit(String path, InputStream content, long oldLength) {
+		if (_maxResourceSize < 0 && getAvailable(path, false) == Long.MAX_VALUE) {
+			return content;
+		}
+		return new LimitedInputStream(path, content, oldLength);
+	}
+
+	/**
+	 * Accounts for a write of content returned by
+	 * {@link #limit(String, InputStream, long)}, in place of what it reserved
+	 *
+	 * @param delta
+	 *            bytes the resource grew by in the end, 0 if the write failed
+	 */
+	public void settle(String path, InputStream content, long delta) {
+		long reserved = (content instanceof LimitedInputStream ? ((LimitedInputStream) content).release() : 0);
+		add(path, delta - reserved);
+	}
+
+	/**
+	 * Accounts for a change of the resource at the path
+	 *
+	 * @param delta
+	 *            bytes the resource grew by, negative if it shrunk or was
+	 *            removed
+	 */
+	public void add(String path, long delta) {
+		if (delta == 0) {
+			return;
+		}
+		if (isCounting()) {
+			account(path, delta);
+		}
+		if (_volume != null) {
+			_writtenSinceCheck.addAndGet(delta);
+		}
+	}
+
+	/**
+	 * Adds the bytes if they fit in the limits that apply to the path
+	 *
+	 * @return false if they do not fit
+	 */
+	private synchronized boolean reserve(String path, long bytes) {
+		if (bytes > getAvailable(path, false)) {
+			return false;
+		}
+		add(path, bytes);
+		return true;
+	}
+
+	private void account(String path, long delta) {
+		_used.addAndGet(delta);
+		String home = getHome(path, false);
+		if (home != null) {
+			getHomeUsed(home).addAndGet(delta);
+		}
+	}
+
+	private AtomicLong getHomeUsed(String home) {
+		AtomicLong used = _homeUsed.get(home);
+		if (used == null) {
+			AtomicLong created = new AtomicLong();
+			used = _homeUsed.putIfAbsent(home, created);
+			if (used == null) {
+				used = created;
+			}
+		}
+		return used;
+	}
+
+	private long getUsableSpace() {
+		synchronized (_usableSpaceLock) {
+			long now = System.currentTimeMillis();
+			if (now - _usableSpaceCheckedAt > USABLE_SPACE_TTL) {
+				try {
+					_usableSpace = Files.getFileStore(_volume.toPath()).getUsableSpace();
+					_writtenSinceCheck.set(0);
+					_usableSpaceCheckedAt = now;
+				} catch (IOException e) {
+					LOG.warn("Cannot get the usable space of " + _volume + ": " + e.getMessage());
+				}
+			}
+			return _usableSpace - _writtenSinceCheck.get();
+		}
+	}
+
+	/**
+	 * @return name of the home collection the path is in, null for the root
+	 *         and resources directly in it
+	 */
+	private static String getHome(String path, boolean collection) {
+		String cleanPath = URLUtil.getCleanPath(path);
+		if (cleanPath == null || cleanPath.length() <= 1) {
+			return null;
+		}
+		int slash = cleanPath.indexOf(CharsetUtil.CHAR_FORWARD_SLASH, 1);
+		if (slash == -1) {
+			return collection ? cleanPath.substring(1) : null;
+		}
+		return cleanPath.substring(1, slash);
+	}
+
+	/**
+	 * Content that has to fit in the limits, which reserves what it grows the
+	 * resource by as it is read. Stores that can, write it aside so a stopped
+	 * upload leaves the resource as it was.
+	 */
+	private class LimitedInputStream extends FilterInputStream implements IStagedContent {
+
+		private final String _path;
+		private final long _oldLength;
+		private long _read = 0;
+		private long _reserved = 0;
+		private boolean _released = false;
+
+		private LimitedInputStream(String path, InputStream in, long oldLength) {
+			super(in);
+			_path = path;
+			_oldLength = oldLength;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read != -1) {
+				count(read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void count(long read) throws QuotaExceededException {
+			_read += read;
+			if (_maxResourceSize >= 0 && _read > _maxResourceSize) {
+				throw new QuotaExceededException("content is larger than " + _maxResourceSize + " bytes", true);
+			}
+			long growth = _read - _oldLength;
+			if (growth > _reserved && !_released) {
+				if (!reserve(_path, growth - _reserved)) {
+					throw new QuotaExceededException("no room for " + _read + " bytes", false);
+				}
+				_reserved = growth;
+			}
+		}
+
+		/**
+		 * @return the bytes reserved, which are given back to the caller
+		 */
+		private long release() {
+			_released = true;
+			long reserved = _reserved;
+			_reserved = 0;
+			return reserved;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+import java.io.InputStream;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.ellipsis.webdav.server.exceptions.WebDAVException;
+import nl.ellipsis.webdav.server.util.URLUtil;
+
+/**
+ * Store decorator that enforces a {@link Quota} on every setResourceContent,
+ * whichever method calls it, and tells the quota how many bytes each write
+ * and removal added or freed. Content that does not fit is stopped while it
+ * is copied, the store reports that as a WebDAVException caused by a
+ * QuotaExceededException.
+ *
+ * The bytes are reserved while the content is read and settled when the
+ * call returns, not when the transaction commits, as the stores write to
+ * disk right away.
+ */
+public class QuotaStore implements IWebDAVStore, IStoreDecorator, ICopyStore {
+
+	private final IWebDAVStore _delegate;
+	private final Quota _quota;
+
+	public QuotaStore(IWebDAVStore delegate, Quota quota) {
+		_delegate = delegate;
+		_quota = quota;
+	}
+
+	public IWebDAVStore getDelegate() {
+		return _delegate;
+	}
+
+	public Quota getQuota() {
+		return _quota;
+	}
+
+	public void destroy() {
+		_delegate.destroy();
+	}
+
+	public ITransaction begin(Principal principal) {
+		return _delegate.begin(principal);
+	}
+
+	public void checkAuthentication(ITransaction transaction) {
+		_delegate.checkAuthentication(transaction);
+	}
+
+	public void commit(ITransaction transaction) {
+		_delegate.commit(transaction);
+	}
+
+	public void rollback(ITransaction transaction) {
+		_delegate.rollback(transaction);
+	}
+
+	public void createFolder(ITransaction transaction, String folderUri) {
+		_delegate.createFolder(transaction, folderUri);
+	}
+
+	public void createResource(ITransaction transaction, String resourceUri) {
+		_delegate.createResource(transaction, resourceUri);
+	}
+
+	public InputStream getResourceContent(ITransaction transaction, String resourceUri) {
+		return _delegate.getResourceContent(transaction, resourceUri);
+	}
+
+	public long setResourceContent(ITransaction transaction, String resourceUri, InputStream content,
+			String contentType, String characterEncoding) {
+		long oldLength = getLength(transaction, resourceUri);
+		InputStream limited = _quota.limit(resourceUri, content, oldLength);
+		long length;
+		try {
+			length = _delegate.setResourceContent(transaction, resourceUri, limited, contentType, characterEncoding);
+		} catch (RuntimeException e) {
+			// the content was written aside, the resource is as it was
+			_quota.settle(resourceUri, limited, 0);
+			throw e;
+		}
+		_quota.settle(resourceUri, limited,
+				(length != -1 ? length : getLength(transaction, resourceUri)) - oldLength);
+		return length;
+	}
+
+	public long copyResource(ITransaction transaction, String sourceUri, String destinationUri) {
+		if (!(_delegate instanceof ICopyStore)) {
+			return setResourceContent(transaction, destinationUri, _delegate.getResourceContent(transaction, sourceUri),
+					null, null);
+		}
+		// the content is not read, so it is checked against the limits up front
+		long oldLength = getLength(transaction, destinationUri);
+		long sourceLength = getLength(transaction, sourceUri);
+		if (_quota.isTooLarge(sourceLength)) {
+			throw new WebDAVException(new Quota.QuotaExceededException("content is larger than allowed", true));
+		} else if (!_quota.hasRoom(destinationUri, sourceLength - oldLength)) {
+			throw new WebDAVException(new Quota.QuotaExceededException("no room for " + sourceLength + " bytes", false));
+		}
+		long length = ((ICopyStore) _delegate).copyResource(transaction, sourceUri, destinationUri);
+		_quota.add(destinationUri, (length != -1 ? length : getLength(transaction, destinationUri)) - oldLength);
+		return length;
+	}
+
+	public String[] getChildrenNames(ITransaction transaction, String folderUri) {
+		return _delegate.getChildrenNames(transaction, folderUri);
+	}
+
+	public long getResourceLength(ITransaction transaction, String path) {
+		return _delegate.getResourceLength(transaction, path);
+	}
+
+	public void removeObject(ITransaction transaction, String uri) {
+		Map<String, Long> lengths = new HashMap<String, Long>();
+		collectLengths(transaction, uri, lengths);
+		_delegate.removeObject(transaction, uri);
+		for (Map.Entry<String, Long> length : lengths.entrySet()) {
+			_quota.add(length.getKey(), -length.getValue());
+		}
+	}
+
+	public StoredObject getStoredObject(ITransaction transaction, String uri) {
+		return _delegate.getStoredObject(transaction, uri);
+	}
+
+	private long getLength(ITransaction transaction, String uri) {
+		StoredObject so = _delegate.getStoredObject(transaction, uri);
+		return (so != null && so.isResource() ? so.getResourceLength() : 0);
+	}
+
+	/**
+	 * Collects the lengths of the resource, or of the resources below a
+	 * folder; DoDelete empties folders first, so this rarely has to descend
+	 */
+	private void collectLengths(ITransaction transaction, String uri, Map<String, Long> lengths) {
+		StoredObject so = _delegate.getStoredObject(transaction, uri);
+		if (so == null) {
+			return;
+		} else if (!so.isFolder()) {
+			lengths.put(uri, so.getResourceLength());
+			return;
+		}
+		String[] names = _delegate.getChildrenNames(transaction, uri);
+		if (names != null) {
+			for (String name : names) {
+				collectLengths(transaction, URLUtil.getCleanPath(uri, name), lengths);
+			}
+		}
+	}
+}
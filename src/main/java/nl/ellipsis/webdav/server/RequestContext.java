@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Immutable state of a single request, passed to the method executors.
+ *
+ * The executors are shared between all requests, anything that belongs to
+ * one request must be kept in this context or in local variables, never in
+ * executor fields.
+ */
+public final class RequestContext {
+
+	private final ITransaction _transaction;
+	private final HttpServletRequest _request;
+	private final HttpServletResponse _response;
+
+	public RequestContext(ITransaction transaction, HttpServletRequest request, HttpServletResponse response) {
+		_transaction = transaction;
+		_request = request;
+		_response = response;
+	}
+
+	public ITransaction getTransaction() {
+		return _transaction;
+	}
+
+	public HttpServletRequest getRequest() {
+		return _request;
+	}
+
+	public HttpServletResponse getResponse() {
+		return _response;
+	}
+
+}
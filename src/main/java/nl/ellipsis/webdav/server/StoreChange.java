@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+/**
+ * A path that was created, written or removed by a committed transaction
+ */
+public final class StoreChange {
+
+	private final String _path;
+	private final boolean _removed;
+
+	public StoreChange(String path, boolean removed) {
+		_path = path;
+		_removed = removed;
+	}
+
+	public String getPath() {
+		return _path;
+	}
+
+	/**
+	 * @return true if the object at the path was removed, false if it was
+	 *         created or its content was set
+	 */
+	public boolean isRemoved() {
+		return _removed;
+	}
+
+	@Override
+	public String toString() {
+		return (_removed ? "removed " : "changed ") + _path;
+	}
+}
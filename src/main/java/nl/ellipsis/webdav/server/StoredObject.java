@@ -33,6 +33,7 @@ public class StoredObject {
     private Date creationDate;
     private long contentLength;
     private String  mimeType;
+    private String contentDigest;
 
     private boolean isNullRessource;
     
@@ -42,6 +43,16 @@ public class StoredObject {
     }
 
     /**
+	 * Gets the digest of the resource content, as computed by the store when
+	 * the content was written
+	 * 
+	 * @return hexadecimal content digest, null if the store has none
+	 */
+	public String getContentDigest() {
+	    return contentDigest;
+	}
+
+	/**
 	 * Gets the date of the creation
 	 * 
 	 * @return creation Date
@@ -127,6 +138,16 @@ public class StoredObject {
     }
 
     /**
+	 * Sets the digest of the resource content
+	 * 
+	 * @param digest
+	 *      hexadecimal content digest, null if unknown
+	 */
+	public void setContentDigest(String digest) {
+	    this.contentDigest = digest;
+	}
+
+	/**
 	 * Sets the date of the creation
 	 * 
 	 * @param d
@@ -179,6 +200,7 @@ public class StoredObject {
 	    // this.content = null;
 	    this.contentLength = 0;
 	    this.mimeType= null;
+	    this.contentDigest = null;
 	}
 
 	/**
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.ellipsis.webdav.server.exceptions.WebDAVException;
+import nl.ellipsis.webdav.server.util.URLUtil;
+
+/**
+ * Fetches the StoredObjects of the children of a folder ahead of the thread
+ * that consumes them, so a listing on a high latency store does not wait for
+ * one round trip per child.
+ *
+ * Each {@link Lookahead} keeps at most window lookups in flight and returns
+ * the children in the order of their names. The lookups share one bounded
+ * pool; when its queue is full the consuming thread does the lookup itself.
+ * Lookups run on pool threads within the transaction of the request, so the
+ * store must allow concurrent getStoredObject calls in one transaction.
+ */
+public class StoredObjectPrefetcher {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(StoredObjectPrefetcher.class);
+
+	/**
+	 * Prefetcher that looks up every child on the consuming thread
+	 */
+	public static final StoredObjectPrefetcher NONE = new StoredObjectPrefetcher(0, 0);
+
+	private final int _parallelism;
+	private final int _window;
+	private final ThreadPoolExecutor _executor;
+
+	/**
+	 * @param parallelism
+	 *            number of lookup threads
+	 * @param window
+	 *            maximum number of children fetched ahead per folder, 0 or less
+	 *            disables prefetching
+	 */
+	public StoredObjectPrefetcher(int parallelism, int window) {
+		_parallelism = parallelism;
+		_window = window;
+		if (parallelism > 0 && window > 0) {
+			_executor = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(parallelism * window), new PrefetchThreadFactory(),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+			_executor.allowCoreThreadTimeOut(true);
+		} else {
+			_executor = null;
+		}
+	}
+
+	public int getParallelism() {
+		return _parallelism;
+	}
+
+	public int getWindow() {
+		return _window;
+	}
+
+	public boolean isEnabled() {
+		return _executor != null;
+	}
+
+	/**
+	 * Starts fetching the children of a folder
+	 *
+	 * @param store
+	 *            the store to fetch from
+	 * @param transaction
+	 *            transaction of the request
+	 * @param folderPath
+	 *            path of the folder
+	 * @param names
+	 *            names of the children, as returned by getChildrenNames
+	 * @return the children in the order of names, to be closed when the
+	 *         caller stops before the last child
+	 */
+	public Lookahead open(IWebDAVStore store, ITransaction transaction, String folderPath, String[] names) {
+		return new Lookahead(store, transaction, folderPath, names);
+	}
+
+	/**
+	 * Stops the lookup threads, lookups already queued still complete
+	 */
+	public void shutdown() {
+		if (_executor != null) {
+			_executor.shutdown();
+		}
+	}
+
+	/**
+	 * The children of one folder, fetched ahead in a sliding window
+	 */
+	public class Lookahead {
+
+		private final IWebDAVStore _store;
+		private final ITransaction _transaction;
+		private final String _folderPath;
+		private final String[] _names;
+		private final Future<?>[] _pending;
+		private int _next = 0;
+		private int _submitted = 0;
+
+		private Lookahead(IWebDAVStore store, ITransaction transaction, String folderPath, String[] names) {
+			_store = store;
+			_transaction = transaction;
+			_folderPath = folderPath;
+			_names = names;
+			_pending = new Future<?>[_executor != null ? Math.min(_window, names.length) : 0];
+		}
+
+		public boolean hasNext() {
+			return _next < _names.length;
+		}
+
+		/**
+		 * @return path of the child returned by the next call of next()
+		 */
+		public String nextPath() {
+			return getPath(_next);
+		}
+
+		/**
+		 * @return the StoredObject of the next child, null if it no longer
+		 *         exists
+		 */
+		public StoredObject next() {
+			int index = _next++;
+			if (_pending.length == 0) {
+				return _store.getStoredObject(_transaction, getPath(index));
+			}
+			// keep the window full
+			while (_submitted < _names.length && _submitted < index + _pending.length) {
+				final String path = getPath(_submitted);
+				_pending[_submitted % _pending.length] = _executor.submit(new Callable<StoredObject>() {
+					public StoredObject call() {
+						return _store.getStoredObject(_transaction, path);
+					}
+				});
+				_submitted++;
+			}
+			Future<?> future = _pending[index % _pending.length];
+			_pending[index % _pending.length] = null;
+			try {
+				return (StoredObject) future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new WebDAVException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new WebDAVException(e.getCause());
+			}
+		}
+
+		/**
+		 * Cancels the lookups that have not been consumed
+		 */
+		public void close() {
+			for (int i = 0; i < _pending.length; i++) {
+				if (_pending[i] != null) {
+					_pending[i].cancel(false);
+					_pending[i] = null;
+				}
+			}
+		}
+
+		private String getPath(int index) {
+			return URLUtil.getCleanPath(_folderPath, _names[index]);
+		}
+	}
+
+	private static class PrefetchThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+		private final int _poolNumber = POOL_NUMBER.incrementAndGet();
+		private final AtomicInteger _threadNumber = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "webdav-prefetch-" + _poolNumber + "-" + _threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Starting " + thread.getName());
+			}
+			return thread;
+		}
+	}
+}
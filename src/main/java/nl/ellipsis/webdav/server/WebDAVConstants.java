@@ -5,6 +5,8 @@ public interface WebDAVConstants {
 	public final static String PREFIX_DOMAIN_PERMISSION = "imDomain";
 	public final static String ENCODING_UTF8 = "UTF-8";
 	public final static String CONTENTTYPE_XML_UTF8 = "text/xml; charset=utf-8";
+	public final static String MEDIATYPE_JSON = "application/json";
+	public final static String CONTENTTYPE_JSON_UTF8 = MEDIATYPE_JSON + "; charset=utf-8";
 	// public static final String RESOURCES_ATTR = "nl.ellipsis.webdav.naming.resources";
 
 	public interface HttpRequestParam {
@@ -50,6 +52,7 @@ public interface WebDAVConstants {
 		public final static String CREATIONDATE				= "creationdate";
 		public final static String DEPTH					= "depth";
 		public final static String DISPLAYNAME				= "displayname";
+		public final static String ERROR					= "error";
 		public static final String EXCLUSIVE 				= "exclusive";
 		public final static String GET_CONTENTLANGUAGE		= "getcontentlanguage";
 		public final static String GET_CONTENTLENGTH		= "getcontentlength";
@@ -57,6 +60,7 @@ public interface WebDAVConstants {
 		public final static String GET_ETAG					= "getetag";
 		public final static String GET_LASTMODIFIED			= "getlastmodified";
 		public final static String HREF						= "href";
+		public final static String LIMIT					= "limit";
 		public final static String LOCK_NULL				= "lock-null";
 		public final static String LOCKDISCOVERY			= "lockdiscovery";
 		public static final String LOCKENTRY 				= "lockentry";
@@ -66,16 +70,24 @@ public interface WebDAVConstants {
 		public final static String OWNER					= "owner";
 		public final static String PROP						= "prop";
 		public static final String PROPERTYUPDATE 			= "propertyupdate";	
+		public final static String PROPFIND_FINITE_DEPTH	= "propfind-finite-depth";
 		public static final String PROPNAME 				= "propname";	
 		public final static String PROPSTAT					= "propstat";
 		public final static String MULTISTATUS				= "multistatus";
+		public final static String NRESULTS					= "nresults";
+		public final static String NUMBER_OF_MATCHES_WITHIN_LIMITS = "number-of-matches-within-limits";
 		public final static String RESPONSE					= "response";
 		public final static String RESOURCETYPE				= "resourcetype";
 		public final static String SOURCE					= "source";
 		public static final String SHARED 					= "shared";
 		public final static String STATUS					= "status";
+		public final static String SUPPORTED_REPORT			= "supported-report";
 		public final static String SUPPORTEDLOCK			= "supportedlock";
+		public final static String SYNC_COLLECTION			= "sync-collection";
+		public final static String SYNC_LEVEL				= "sync-level";
+		public final static String SYNC_TOKEN				= "sync-token";
 		public final static String TIMEOUT					= "timeout";
+		public final static String VALID_SYNC_TOKEN			= "valid-sync-token";
 		public static final String WRITE 					= "write";
 	}
 	
@@ -19,12 +19,25 @@ package nl.ellipsis.webdav.server;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletException;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.velocity.app.Velocity;
 
 import nl.ellipsis.webdav.server.exceptions.WebDAVException;
+import nl.ellipsis.webdav.server.methods.AsyncDownloads;
+import nl.ellipsis.webdav.server.methods.ChunkedUploads;
+import nl.ellipsis.webdav.server.methods.ContentCache;
+import nl.ellipsis.webdav.server.methods.FolderListing;
+import nl.ellipsis.webdav.server.methods.GzipVariants;
+import nl.ellipsis.webdav.server.methods.PropfindCache;
+import nl.ellipsis.webdav.server.methods.PropfindFragmentCache;
+import nl.ellipsis.webdav.server.methods.PropfindPolicy;
+import nl.ellipsis.webdav.server.methods.ProxyOffload;
+import nl.ellipsis.webdav.server.properties.IPropertyProvider;
 import nl.ellipsis.webdav.server.util.CharsetUtil;
+import nl.ellipsis.webdav.server.util.ResponseCompressor;
 
 /**
  * Servlet which provides support for WebDAV level 2.
@@ -44,14 +57,47 @@ public class WebDAVServlet extends WebDAVServletBean {
 	
 	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(WebDAVServlet.class);
 
+	private static final String INIT_PARAM_COMPRESSION_LEVEL = "compression-level";
+	private static final String INIT_PARAM_COMPRESSION_MIN_SIZE = "compression-min-size";
+	private static final String INIT_PARAM_CONTENT_CACHE_MAX_FILE_SIZE = "content-cache-max-file-size";
+	private static final String INIT_PARAM_CONTENT_CACHE_SIZE = "content-cache-size";
+	private static final String INIT_PARAM_CONTENT_DIGESTS = "content-digests";
 	private static final String INIT_PARAM_CREATE_ROOT_IF_NOT_EXISTS = "createRootIfNotExists";
 	private static final String INIT_PARAM_DEFAULT_INDEX_FILE = "default-index-file";
+	private static final String INIT_PARAM_ASYNC_DOWNLOAD_MIN_SIZE = "async-download-min-size";
+	private static final String INIT_PARAM_ASYNC_DOWNLOAD_TIMEOUT = "async-download-timeout";
+	private static final String INIT_PARAM_PROXY_OFFLOAD = "proxy-offload";
+	private static final String INIT_PARAM_PROXY_OFFLOAD_LOCATION = "proxy-offload-location";
+	private static final String INIT_PARAM_CHUNKED_UPLOADS_PATH = "chunked-uploads-path";
+	private static final String INIT_PARAM_CHUNKED_UPLOADS_EXPIRY = "chunked-uploads-expiry";
+	private static final String INIT_PARAM_MAX_UPLOAD_SIZE = "maxUploadSize";
+	private static final String INIT_PARAM_QUOTA_MOUNT_BYTES = "quota-mount-bytes";
+	private static final String INIT_PARAM_QUOTA_HOME_BYTES = "quota-home-bytes";
+	private static final String INIT_PARAM_QUOTA_MIN_FREE_BYTES = "quota-min-free-bytes";
+	private static final String INIT_PARAM_WRITE_BEHIND_SPOOL = "write-behind-spool";
+	private static final String INIT_PARAM_WRITE_BEHIND_ACKNOWLEDGE = "write-behind-acknowledge";
+	private static final String INIT_PARAM_WRITE_BEHIND_THREADS = "write-behind-threads";
+	private static final String INIT_PARAM_WRITE_BEHIND_QUEUE_SIZE = "write-behind-queue-size";
+	private static final String INIT_PARAM_FOLDER_LISTING_PAGE_SIZE = "folder-listing-page-size";
+	private static final String INIT_PARAM_GZIP_VARIANTS_BACKGROUND = "gzip-variants-background";
+	private static final String INIT_PARAM_GZIP_VARIANTS_MIN_SIZE = "gzip-variants-min-size";
+	private static final String INIT_PARAM_GZIP_VARIANTS_PATH = "gzip-variants-path";
 	private static final String INIT_PARAM_INSTEAD_OF_404 = "instead-of-404";
 	private static final String INIT_PARAM_LAZY_FOLDER_CREATION_ON_PUT = "lazyFolderCreationOnPut";
 	private static final String INIT_PARAM_NO_CONTENT_LENGTH_HEADERS = "no-content-length-headers";
+	private static final String INIT_PARAM_PROPFIND_CACHE_SIZE = "propfind-cache-size";
+	private static final String INIT_PARAM_PROPFIND_CACHE_TTL = "propfind-cache-ttl";
+	private static final String INIT_PARAM_PROPFIND_FRAGMENT_CACHE_SIZE = "propfind-fragment-cache-size";
+	private static final String INIT_PARAM_PROPFIND_MAX_DEPTH = "propfind-max-depth";
+	private static final String INIT_PARAM_PROPFIND_MAX_ENTRIES = "propfind-max-entries";
+	private static final String INIT_PARAM_PROPFIND_PREFETCH_THREADS = "propfind-prefetch-threads";
+	private static final String INIT_PARAM_PROPFIND_PREFETCH_WINDOW = "propfind-prefetch-window";
+	private static final String INIT_PARAM_PROPERTY_PROVIDERS = "property-providers";
+	private static final String INIT_PARAM_PROPFIND_REJECT_INFINITY = "propfind-reject-infinity";
 	private static final String INIT_PARAM_RESOURCE_HANDLER_IMPL = "ResourceHandlerImplementation";
 	private static final String INIT_PARAM_ROOTPATH = "rootpath";
 	private static final String INIT_PARAM_ROOTPATH_WAR_FILE_ROOT_VALUE = "*WAR-FILE-ROOT*";
+	private static final String INIT_PARAM_SYNC_CHANGE_LOG_SIZE = "sync-change-log-size";
 	
 	public static boolean useVelocity = false;
 
@@ -72,6 +118,160 @@ public class WebDAVServlet extends WebDAVServletBean {
 		String dftIndexFile = getInitParameter(INIT_PARAM_DEFAULT_INDEX_FILE);
 		String insteadOf404 = getInitParameter(INIT_PARAM_INSTEAD_OF_404);
 		int noContentLengthHeader = getIntInitParameter(INIT_PARAM_NO_CONTENT_LENGTH_HEADERS, -1);
+
+		// gzip compression of multistatus responses, disabled by default
+		int compressionLevel = getIntInitParameter(INIT_PARAM_COMPRESSION_LEVEL, 0);
+		int compressionMinSize = getIntInitParameter(INIT_PARAM_COMPRESSION_MIN_SIZE, 1024);
+		if (compressionLevel > 0) {
+			LOG.info("Compressing multistatus responses of at least " + compressionMinSize + " bytes with level " + compressionLevel);
+			setResponseCompressor(new ResponseCompressor(compressionLevel, compressionMinSize));
+		}
+
+		// limits for PROPFIND, depth infinity is allowed without limits by default
+		boolean propfindRejectInfinity = getBooleanInitParameter(INIT_PARAM_PROPFIND_REJECT_INFINITY, false);
+		int propfindMaxDepth = getIntInitParameter(INIT_PARAM_PROPFIND_MAX_DEPTH, -1);
+		int propfindMaxEntries = getIntInitParameter(INIT_PARAM_PROPFIND_MAX_ENTRIES, 0);
+		PropfindPolicy propfindPolicy = new PropfindPolicy(propfindRejectInfinity, propfindMaxDepth, propfindMaxEntries);
+		LOG.info("PROPFIND limits: " + propfindPolicy);
+		setPropfindPolicy(propfindPolicy);
+
+		// concurrent lookup of the children listed by PROPFIND, disabled by default
+		int prefetchWindow = getIntInitParameter(INIT_PARAM_PROPFIND_PREFETCH_WINDOW, 0);
+		int prefetchThreads = getIntInitParameter(INIT_PARAM_PROPFIND_PREFETCH_THREADS, 8);
+		if (prefetchWindow > 0 && prefetchThreads > 0) {
+			LOG.info("Prefetching up to " + prefetchWindow + " children per folder with " + prefetchThreads + " threads");
+			setStoredObjectPrefetcher(new StoredObjectPrefetcher(prefetchThreads, prefetchWindow));
+		}
+
+		// cache for clients that repeat the same PROPFIND, disabled by default
+		int propfindCacheSize = getIntInitParameter(INIT_PARAM_PROPFIND_CACHE_SIZE, 0);
+		int propfindCacheTtl = getIntInitParameter(INIT_PARAM_PROPFIND_CACHE_TTL, 2000);
+		if (propfindCacheSize > 0 && propfindCacheTtl > 0) {
+			LOG.info("Caching up to " + propfindCacheSize + " PROPFIND responses for " + propfindCacheTtl + " ms");
+			setPropfindCache(new PropfindCache(propfindCacheSize, propfindCacheTtl));
+		}
+
+		// rendered response elements of unchanged resources, disabled by default
+		int propfindFragmentCacheSize = getIntInitParameter(INIT_PARAM_PROPFIND_FRAGMENT_CACHE_SIZE, 0);
+		if (propfindFragmentCacheSize > 0) {
+			LOG.info("Caching up to " + propfindFragmentCacheSize + " PROPFIND response fragments");
+			setPropfindFragmentCache(new PropfindFragmentCache(propfindFragmentCacheSize));
+		}
+
+		// additional live properties, comma separated class names
+		String propertyProviders = getInitParameter(INIT_PARAM_PROPERTY_PROVIDERS);
+		if (!StringUtils.isBlank(propertyProviders)) {
+			for (String providerClazzName : propertyProviders.split(",")) {
+				if (!StringUtils.isBlank(providerClazzName)) {
+					addPropertyProvider(constructPropertyProvider(providerClazzName.trim()));
+				}
+			}
+		}
+
+		// sync-collection REPORT, disabled by default
+		int changeLogSize = getIntInitParameter(INIT_PARAM_SYNC_CHANGE_LOG_SIZE, 0);
+		if (changeLogSize > 0) {
+			LOG.info("Keeping the last " + changeLogSize + " changed paths for sync-collection reports");
+			setChangeLog(new ChangeLog(changeLogSize));
+		}
+
+		// strong entity tags from content digests, disabled by default
+		boolean contentDigests = getBooleanInitParameter(INIT_PARAM_CONTENT_DIGESTS, false);
+		if (contentDigests) {
+			if (webdavStore instanceof LocalFileSystemStore) {
+				((LocalFileSystemStore) webdavStore).setContentDigests(true);
+			} else {
+				LOG.warn("Content digests are not supported by " + clazzName);
+			}
+		}
+
+		// off-heap cache of small files served by GET, disabled by default
+		int contentCacheSize = getIntInitParameter(INIT_PARAM_CONTENT_CACHE_SIZE, 0);
+		int contentCacheMaxFileSize = getIntInitParameter(INIT_PARAM_CONTENT_CACHE_MAX_FILE_SIZE, 65536);
+		if (contentCacheSize > 0) {
+			LOG.info("Caching files of up to " + contentCacheMaxFileSize + " bytes in " + contentCacheSize + " bytes");
+			setContentCache(new ContentCache(contentCacheSize, contentCacheMaxFileSize));
+		}
+
+		// gzip compressed copies of text-like files, disabled by default
+		String gzipVariantsPath = getInitParameter(INIT_PARAM_GZIP_VARIANTS_PATH);
+		int gzipVariantsMinSize = getIntInitParameter(INIT_PARAM_GZIP_VARIANTS_MIN_SIZE, 1024);
+		boolean gzipVariantsBackground = getBooleanInitParameter(INIT_PARAM_GZIP_VARIANTS_BACKGROUND, true);
+		if (!StringUtils.isBlank(gzipVariantsPath)) {
+			LOG.info("Keeping gzip variants of files of at least " + gzipVariantsMinSize + " bytes in "
+					+ gzipVariantsPath + (gzipVariantsBackground ? ", made in the background" : ""));
+			setGzipVariants(new GzipVariants(new File(gzipVariantsPath.trim()), gzipVariantsMinSize,
+					gzipVariantsBackground));
+		}
+
+		// children per page of the html folder listing
+		setFolderListingPageSize(getIntInitParameter(INIT_PARAM_FOLDER_LISTING_PAGE_SIZE,
+				FolderListing.DEFAULT_PAGE_SIZE));
+
+		// non-blocking downloads of large files, disabled by default
+		int asyncDownloadMinSize = getIntInitParameter(INIT_PARAM_ASYNC_DOWNLOAD_MIN_SIZE, -1);
+		int asyncDownloadTimeout = getIntInitParameter(INIT_PARAM_ASYNC_DOWNLOAD_TIMEOUT, 0);
+		if (asyncDownloadMinSize >= 0) {
+			LOG.info("Sending files of at least " + asyncDownloadMinSize + " bytes asynchronously");
+			setAsyncDownloads(new AsyncDownloads(asyncDownloadMinSize, asyncDownloadTimeout));
+		}
+
+		// GET bodies sent by the front proxy, disabled by default
+		String proxyOffload = getInitParameter(INIT_PARAM_PROXY_OFFLOAD);
+		String proxyOffloadLocation = getInitParameter(INIT_PARAM_PROXY_OFFLOAD_LOCATION);
+		if (!StringUtils.isBlank(proxyOffload)) {
+			ProxyOffload.Mode mode = ProxyOffload.Mode.fromName(proxyOffload);
+			LOG.info("Offloading GET bodies to the proxy with " + mode.getHeader()
+					+ (mode == ProxyOffload.Mode.X_ACCEL_REDIRECT ? " below " + proxyOffloadLocation : ""));
+			setProxyOffload(mode, proxyOffloadLocation);
+		}
+
+		// PUT in parts with Content-Range, disabled by default
+		String chunkedUploadsPath = getInitParameter(INIT_PARAM_CHUNKED_UPLOADS_PATH);
+		int chunkedUploadsExpiry = getIntInitParameter(INIT_PARAM_CHUNKED_UPLOADS_EXPIRY, 1440);
+		if (!StringUtils.isBlank(chunkedUploadsPath)) {
+			LOG.info("Keeping uploads sent in parts in " + chunkedUploadsPath + " for " + chunkedUploadsExpiry
+					+ " minutes");
+			setChunkedUploads(new ChunkedUploads(new File(chunkedUploadsPath.trim()),
+					TimeUnit.MINUTES.toMillis(chunkedUploadsExpiry)));
+		}
+
+		// upload size, quotas and free space, not limited by default
+		long maxUploadSize = getLongInitParameter(INIT_PARAM_MAX_UPLOAD_SIZE, -1);
+		long quotaMountBytes = getLongInitParameter(INIT_PARAM_QUOTA_MOUNT_BYTES, -1);
+		long quotaHomeBytes = getLongInitParameter(INIT_PARAM_QUOTA_HOME_BYTES, -1);
+		long quotaMinFreeBytes = getLongInitParameter(INIT_PARAM_QUOTA_MIN_FREE_BYTES, -1);
+		File volume = null;
+		if (quotaMinFreeBytes >= 0) {
+			if (webdavStore instanceof ILocalFileStore) {
+				volume = root;
+			} else {
+				LOG.warn("Free space is not checked for " + clazzName);
+			}
+		}
+		Quota quota = new Quota(maxUploadSize, quotaMountBytes, quotaHomeBytes, volume, Math.max(0, quotaMinFreeBytes));
+		if (quota.isEnabled()) {
+			LOG.info("Limiting resources to " + maxUploadSize + " bytes, the mount to " + quotaMountBytes
+					+ " bytes, home collections to " + quotaHomeBytes + " bytes and keeping " + quotaMinFreeBytes
+					+ " bytes free (-1 is no limit)");
+			setQuota(quota);
+		}
+
+		// content written behind from a spool, disabled by default
+		String writeBehindSpool = getInitParameter(INIT_PARAM_WRITE_BEHIND_SPOOL);
+		String writeBehindAcknowledge = getInitParameter(INIT_PARAM_WRITE_BEHIND_ACKNOWLEDGE);
+		int writeBehindThreads = getIntInitParameter(INIT_PARAM_WRITE_BEHIND_THREADS, 4);
+		int writeBehindQueueSize = getIntInitParameter(INIT_PARAM_WRITE_BEHIND_QUEUE_SIZE, 1000);
+		if (!StringUtils.isBlank(writeBehindSpool)) {
+			WriteBehindStore.Acknowledge acknowledge = WriteBehindStore.Acknowledge.STAGED;
+			if (!StringUtils.isBlank(writeBehindAcknowledge)) {
+				acknowledge = WriteBehindStore.Acknowledge.fromName(writeBehindAcknowledge);
+			}
+			LOG.info("Writing content behind from " + writeBehindSpool + " with " + writeBehindThreads
+					+ " threads, acknowledged once " + acknowledge.name().toLowerCase(Locale.ENGLISH));
+			webdavStore = new WriteBehindStore(webdavStore, new File(writeBehindSpool.trim()), acknowledge,
+					writeBehindThreads, writeBehindQueueSize);
+		}
 		
 		/**
 		 *  Use singletron pattern to create and initialize the Velocity engine
@@ -102,6 +302,15 @@ public class WebDAVServlet extends WebDAVServletBean {
 		return webdavStore;
 	}
 
+	protected IPropertyProvider constructPropertyProvider(String clazzName) {
+		try {
+			Class<?> clazz = WebDAVServlet.class.getClassLoader().loadClass(clazzName);
+			return (IPropertyProvider) clazz.newInstance();
+		} catch (Exception e) {
+			throw new RuntimeException("some problem making property provider " + clazzName, e);
+		}
+	}
+
 	private boolean getBooleanInitParameter(String key, boolean defaultValue) {
 		String value = getInitParameter(key);
 		return value == null ? defaultValue : ("1".equals(value) || Boolean.getBoolean(value));
@@ -112,6 +321,11 @@ public class WebDAVServlet extends WebDAVServletBean {
 		return value == null ? defaultValue : Integer.parseInt(value);
 	}
 
+	private long getLongInitParameter(String key, long defaultValue) {
+		String value = getInitParameter(key);
+		return StringUtils.isBlank(value) ? defaultValue : Long.parseLong(value.trim());
+	}
+
 	private File getFileRoot(boolean createRootIfNotExists) {
 		File root = null;
 		String rootPath = getInitParameter(INIT_PARAM_ROOTPATH);
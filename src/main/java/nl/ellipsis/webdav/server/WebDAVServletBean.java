@@ -18,8 +18,6 @@
 package nl.ellipsis.webdav.server;
 
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -34,6 +32,10 @@ import org.springframework.http.HttpStatus;
 import nl.ellipsis.webdav.server.exceptions.UnauthenticatedException;
 import nl.ellipsis.webdav.server.exceptions.WebDAVException;
 import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.methods.AbstractMethod;
+import nl.ellipsis.webdav.server.methods.AsyncDownloads;
+import nl.ellipsis.webdav.server.methods.ChunkedUploads;
+import nl.ellipsis.webdav.server.methods.ContentCache;
 import nl.ellipsis.webdav.server.methods.DoCopy;
 import nl.ellipsis.webdav.server.methods.DoDelete;
 import nl.ellipsis.webdav.server.methods.DoGet;
@@ -46,8 +48,19 @@ import nl.ellipsis.webdav.server.methods.DoOptions;
 import nl.ellipsis.webdav.server.methods.DoPropfind;
 import nl.ellipsis.webdav.server.methods.DoProppatch;
 import nl.ellipsis.webdav.server.methods.DoPut;
+import nl.ellipsis.webdav.server.methods.DoReport;
 import nl.ellipsis.webdav.server.methods.DoUnlock;
+import nl.ellipsis.webdav.server.methods.FolderListing;
+import nl.ellipsis.webdav.server.methods.GzipVariants;
+import nl.ellipsis.webdav.server.methods.PropfindCache;
+import nl.ellipsis.webdav.server.methods.PropfindFragmentCache;
+import nl.ellipsis.webdav.server.methods.PropfindPolicy;
+import nl.ellipsis.webdav.server.methods.ProxyOffload;
+import nl.ellipsis.webdav.server.properties.IPropertyProvider;
+import nl.ellipsis.webdav.server.properties.PropertyProviderRegistry;
+import nl.ellipsis.webdav.server.properties.QuotaPropertyProvider;
 import nl.ellipsis.webdav.server.util.MD5Encoder;
+import nl.ellipsis.webdav.server.util.ResponseCompressor;
 
 public class WebDAVServletBean extends HttpServlet {
 
@@ -58,11 +71,6 @@ public class WebDAVServletBean extends HttpServlet {
 
 	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(WebDAVServletBean.class);
 
-	/**
-	 * MD5 message digest provider.
-	 */
-	protected static MessageDigest MD5_HELPER;
-
 	/**
 	 * The MD5 helper object for this class.
 	 */
@@ -72,20 +80,69 @@ public class WebDAVServletBean extends HttpServlet {
 	protected ResourceLocks _resLocks;
 	protected IWebDAVStore _store;
 	private HashMap<String, IMethodExecutor> _methodMap = new HashMap<String, IMethodExecutor>();
+	private ResponseCompressor _responseCompressor = ResponseCompressor.NONE;
+	private PropfindPolicy _propfindPolicy = PropfindPolicy.UNLIMITED;
+	private StoredObjectPrefetcher _prefetcher = StoredObjectPrefetcher.NONE;
+	private PropertyProviderRegistry _propertyProviders = new PropertyProviderRegistry();
+	private ChangeLog _changeLog;
+	private PropfindCache _propfindCache = PropfindCache.NONE;
+	private PropfindFragmentCache _propfindFragmentCache = PropfindFragmentCache.NONE;
+	private ContentCache _contentCache = ContentCache.NONE;
+	private GzipVariants _gzipVariants = GzipVariants.NONE;
+	private int _folderListingPageSize = FolderListing.DEFAULT_PAGE_SIZE;
+	private AsyncDownloads _asyncDownloads = AsyncDownloads.NONE;
+	private ProxyOffload.Mode _proxyOffloadMode = null;
+	private String _proxyOffloadLocation = null;
+	private ChunkedUploads _chunkedUploads = ChunkedUploads.NONE;
+	private Quota _quota = Quota.NONE;
 
 	public WebDAVServletBean() {
 		_resLocks = new ResourceLocks();
-
-		try {
-			MD5_HELPER = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			throw new IllegalStateException();
-		}
 	}
 
 	public void init(IWebDAVStore store, String dftIndexFile, String insteadOf404, int nocontentLenghHeaders,
 			boolean lazyFolderCreationOnPut) throws ServletException {
 
+		if (_quota.isEnabled()) {
+			// limits are enforced on every write, whichever method makes it
+			store = new QuotaStore(store, _quota);
+			if (_quota.isCounting()) {
+				ITransaction transaction = store.begin(null);
+				try {
+					_quota.count(store, transaction);
+					store.commit(transaction);
+				} catch (RuntimeException e) {
+					store.rollback(transaction);
+					throw e;
+				}
+				addPropertyProvider(
+						new QuotaPropertyProvider(store, _quota, QuotaPropertyProvider.QUOTA_AVAILABLE_BYTES));
+				addPropertyProvider(new QuotaPropertyProvider(store, _quota, QuotaPropertyProvider.QUOTA_USED_BYTES));
+			}
+		}
+
+		if (_changeLog != null || _propfindCache.isEnabled() || _propfindFragmentCache.isEnabled()
+				|| _contentCache.isEnabled() || _gzipVariants.isEnabled()) {
+			// all changes go through the decorator, whichever method makes them
+			ObservableStore observableStore = new ObservableStore(store);
+			if (_changeLog != null) {
+				observableStore.addListener(_changeLog);
+			}
+			if (_propfindCache.isEnabled()) {
+				observableStore.addListener(_propfindCache);
+			}
+			if (_propfindFragmentCache.isEnabled()) {
+				observableStore.addListener(_propfindFragmentCache);
+			}
+			if (_contentCache.isEnabled()) {
+				observableStore.addListener(_contentCache);
+			}
+			if (_gzipVariants.isEnabled()) {
+				observableStore.addListener(_gzipVariants);
+			}
+			store = observableStore;
+		}
+		_gzipVariants.setStore(store);
 		_store = store;
 
 		IMimeTyper mimeTyper = new IMimeTyper() {
@@ -98,8 +155,11 @@ public class WebDAVServletBean extends HttpServlet {
 			}
 		};
 
-		register("GET", new DoGet(store, dftIndexFile, insteadOf404, _resLocks, mimeTyper, nocontentLenghHeaders));
-		register("HEAD", new DoHead(store, dftIndexFile, insteadOf404, _resLocks, mimeTyper, nocontentLenghHeaders));
+		register("GET", new DoGet(store, dftIndexFile, insteadOf404, _resLocks, mimeTyper, nocontentLenghHeaders,
+				_contentCache, _gzipVariants, new FolderListing(store, _prefetcher, _folderListingPageSize),
+				_asyncDownloads, new ProxyOffload(_proxyOffloadMode, _proxyOffloadLocation, store)));
+		register("HEAD", new DoHead(store, dftIndexFile, insteadOf404, _resLocks, mimeTyper, nocontentLenghHeaders,
+				_gzipVariants));
 		DoDelete doDelete = (DoDelete) register("DELETE", new DoDelete(store, _resLocks, READ_ONLY));
 		DoCopy doCopy = (DoCopy) register("COPY", new DoCopy(store, _resLocks, doDelete, READ_ONLY));
 		register("LOCK", new DoLock(store, _resLocks, READ_ONLY));
@@ -107,21 +167,151 @@ public class WebDAVServletBean extends HttpServlet {
 		register("MOVE", new DoMove(_resLocks, doDelete, doCopy, READ_ONLY));
 		register("MKCOL", new DoMkcol(store, _resLocks, READ_ONLY));
 		register("OPTIONS", new DoOptions(store, _resLocks));
-		register("PUT", new DoPut(store, _resLocks, READ_ONLY, lazyFolderCreationOnPut));
-		register("PROPFIND", new DoPropfind(store, _resLocks, mimeTyper));
+		register("PUT", new DoPut(store, _resLocks, READ_ONLY, lazyFolderCreationOnPut, _chunkedUploads,
+				_quota));
+		DoPropfind doPropfind = (DoPropfind) register("PROPFIND", new DoPropfind(store, _resLocks, mimeTyper,
+				_propfindPolicy, _prefetcher, _propertyProviders, _propfindCache, _propfindFragmentCache));
+		if (_changeLog != null) {
+			register("REPORT", new DoReport(store, _resLocks, _changeLog, doPropfind));
+		}
 		register("PROPPATCH", new DoProppatch(store, _resLocks, READ_ONLY));
 		register("*NO*IMPL*", new DoNotImplemented(READ_ONLY));
 	}
 
 	@Override
 	public void destroy() {
+		_prefetcher.shutdown();
+		_gzipVariants.shutdown();
+		_chunkedUploads.shutdown();
+		_contentCache.shutdown();
+		_asyncDownloads.shutdown();
 		if (_store != null) {
 			_store.destroy();
 		}
 		super.destroy();
 	}
 
+	/**
+	 * Sets the compression for generated XML responses, must be called before
+	 * init(...)
+	 */
+	public void setResponseCompressor(ResponseCompressor responseCompressor) {
+		_responseCompressor = responseCompressor;
+	}
+
+	/**
+	 * Sets the limits for PROPFIND requests, must be called before init(...)
+	 */
+	public void setPropfindPolicy(PropfindPolicy propfindPolicy) {
+		_propfindPolicy = propfindPolicy;
+	}
+
+	/**
+	 * Sets the prefetcher for the children listed by PROPFIND, must be called
+	 * before init(...)
+	 */
+	public void setStoredObjectPrefetcher(StoredObjectPrefetcher prefetcher) {
+		_prefetcher = prefetcher;
+	}
+
+	/**
+	 * Adds a live property to PROPFIND responses, must be called before
+	 * init(...)
+	 */
+	public void addPropertyProvider(IPropertyProvider provider) {
+		_propertyProviders.register(provider);
+	}
+
+	/**
+	 * Sets the cache for repeated PROPFIND requests, must be called before
+	 * init(...)
+	 */
+	public void setPropfindCache(PropfindCache propfindCache) {
+		_propfindCache = propfindCache;
+	}
+
+	/**
+	 * Sets the cache for the response elements of single resources in PROPFIND
+	 * listings, must be called before init(...)
+	 */
+	public void setPropfindFragmentCache(PropfindFragmentCache propfindFragmentCache) {
+		_propfindFragmentCache = propfindFragmentCache;
+	}
+
+	/**
+	 * Sets the cache for the content of small files served by GET, must be
+	 * called before init(...)
+	 */
+	public void setContentCache(ContentCache contentCache) {
+		_contentCache = contentCache;
+	}
+
+	/**
+	 * Sets the gzip variants served by GET to clients that accept them, must
+	 * be called before init(...)
+	 */
+	public void setGzipVariants(GzipVariants gzipVariants) {
+		_gzipVariants = gzipVariants;
+	}
+
+	/**
+	 * Sets the number of children per page of the HTML folder listing, 0 or
+	 * less lists all children; must be called before init(...)
+	 */
+	public void setFolderListingPageSize(int folderListingPageSize) {
+		_folderListingPageSize = folderListingPageSize;
+	}
+
+	/**
+	 * Sets the downloads GET sends with non-blocking I/O, the servlet has to
+	 * be async-supported; must be called before init(...)
+	 */
+	public void setAsyncDownloads(AsyncDownloads asyncDownloads) {
+		_asyncDownloads = asyncDownloads;
+	}
+
+	/**
+	 * Leaves sending GET bodies to the front proxy, for stores that keep
+	 * resources in local files; must be called before init(...)
+	 *
+	 * @param location
+	 *            internal location of the proxy that maps to the root of the
+	 *            store, only used with X-Accel-Redirect
+	 */
+	public void setProxyOffload(ProxyOffload.Mode mode, String location) {
+		_proxyOffloadMode = mode;
+		_proxyOffloadLocation = location;
+	}
+
+	/**
+	 * Sets where PUT keeps uploads sent in parts with Content-Range until
+	 * all parts have been received; must be called before init(...)
+	 */
+	public void setChunkedUploads(ChunkedUploads chunkedUploads) {
+		_chunkedUploads = chunkedUploads;
+	}
+
+	/**
+	 * Sets the limits on what may be stored, enforced by a QuotaStore around
+	 * the store; must be called before init(...)
+	 */
+	public void setQuota(Quota quota) {
+		_quota = quota;
+	}
+
+	/**
+	 * Enables the sync-collection REPORT, with the log that keeps track of the
+	 * changes; must be called before init(...)
+	 */
+	public void setChangeLog(ChangeLog changeLog) {
+		_changeLog = changeLog;
+	}
+
 	protected IMethodExecutor register(String methodName, IMethodExecutor method) {
+		if (method instanceof AbstractMethod) {
+			((AbstractMethod) method).setResponseCompressor(_responseCompressor);
+			((AbstractMethod) method).setSyncCollection(_changeLog != null);
+		}
 		_methodMap.put(methodName, method);
 		return method;
 	}
@@ -153,7 +343,7 @@ public class WebDAVServletBean extends HttpServlet {
 					methodExecutor = (IMethodExecutor) _methodMap.get("*NO*IMPL*");
 				}
 
-				methodExecutor.execute(transaction, req, resp);
+				methodExecutor.execute(new RequestContext(transaction, req, resp));
 
 				_store.commit(transaction);
 				/**
@@ -161,8 +351,11 @@ public class WebDAVServletBean extends HttpServlet {
 				 *
 				 * Clear input stream if available otherwise later access include current input.
 				 * These cases occur if the client sends a request with body to a nonexisting resource.
+				 * A client waiting for 100 Continue has not sent a body that was not asked for, touching
+				 * the input stream would ask for it after all.
 				 */
-				if (req.getContentLength() != 0 && req.getInputStream().available() > 0) {
+				if (req.getContentLength() != 0 && !AbstractMethod.isExpectContinue(req)
+						&& req.getInputStream().available() > 0) {
 					if (LOG.isDebugEnabled()) {
 						LOG.debug("Clear not consumed data!");
 					}
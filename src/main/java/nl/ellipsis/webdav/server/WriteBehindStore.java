@@ -0,0 +1,649 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.ellipsis.webdav.server.exceptions.WebDAVException;
+import nl.ellipsis.webdav.server.util.DigestVerifyingInputStream.DigestMismatchException;
+import nl.ellipsis.webdav.server.util.IStagedContent;
+import nl.ellipsis.webdav.server.util.URLUtil;
+
+/**
+ * Store decorator that writes content behind: setResourceContent copies the
+ * content to a spool directory, preferably on a fast volume like tmpfs, and
+ * a background thread writes it to the store afterwards. With
+ * {@link Acknowledge#STAGED} the call returns once the content is in the
+ * spool, with {@link Acknowledge#PERSISTED} once the store has it.
+ *
+ * The writes of a path are always made in the order they were staged, a
+ * write that is replaced by a newer one before its turn is skipped. At most
+ * queueSize writes wait at a time, more block the caller until there is
+ * room. Until its content is written, the path is read from the spool.
+ * Removing a resource or folder drops the writes below it that were not
+ * made yet.
+ *
+ * A write acknowledged once staged that the store fails is tried again,
+ * waiting longer each time, and stays in the spool until the store has it.
+ *
+ * Writes staged but not written when the servlet stopped are made when the
+ * store is created again, as long as the spool survived. Staged content is
+ * forced to disk before it is acknowledged, so that holds after a crash too.
+ */
+public class WriteBehindStore implements IWebDAVStore, IStoreDecorator, ILocalFileStore, ICopyStore {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(WriteBehindStore.class);
+
+	private static int BUF_SIZE = 65536;
+
+	private static final String DATA_SUFFIX = ".data";
+	private static final String PATH_SUFFIX = ".path";
+
+	/**
+	 * longest wait in milliseconds before a failed write is tried again
+	 */
+	private static final long MAX_RETRY_DELAY = 60000;
+
+	/**
+	 * When a write is acknowledged
+	 */
+	public enum Acknowledge {
+		STAGED, PERSISTED;
+
+		/**
+		 * @return the level with the name, case insensitive
+		 * @throws IllegalArgumentException
+		 *             for an unknown name
+		 */
+		public static Acknowledge fromName(String name) {
+			return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+		}
+	}
+
+	private final IWebDAVStore _delegate;
+	private final File _spool;
+	private final Acknowledge _acknowledge;
+	private final ExecutorService[] _writers;
+	private final Semaphore _queue;
+	private final ScheduledExecutorService _retries;
+	private final long _retryDelay;
+	private final ConcurrentHashMap<String, Pending> _pending = new ConcurrentHashMap<String, Pending>();
+	private final AtomicLong _sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+	/**
+	 * @param spool
+	 *            directory the content is staged in
+	 * @param threads
+	 *            number of threads that write to the store
+	 * @param queueSize
+	 *            number of writes that may wait
+	 */
+	public WriteBehindStore(IWebDAVStore delegate, File spool, Acknowledge acknowledge, int threads, int queueSize) {
+		this(delegate, spool, acknowledge, threads, queueSize, 1000);
+	}
+
+	/**
+	 * @param retryDelay
+	 *            milliseconds before a failed write is tried again the first
+	 *            time, doubled every next time
+	 */
+	WriteBehindStore(IWebDAVStore delegate, File spool, Acknowledge acknowledge, int threads, int queueSize,
+			long retryDelay) {
+		_delegate = delegate;
+		_spool = spool;
+		_acknowledge = acknowledge;
+		_retryDelay = retryDelay;
+		_queue = new Semaphore(queueSize);
+		if (!spool.isDirectory() && !spool.mkdirs()) {
+			throw new IllegalArgumentException("cannot create spool directory " + spool);
+		}
+		recover();
+		ThreadFactory threadFactory = new WriterThreadFactory();
+		// every path has its own writer, so its writes stay in order
+		_writers = new ExecutorService[threads];
+		for (int i = 0; i < threads; i++) {
+			_writers[i] = Executors.newSingleThreadExecutor(threadFactory);
+		}
+		_retries = Executors.newSingleThreadScheduledExecutor(threadFactory);
+	}
+
+	public IWebDAVStore getDelegate() {
+		return _delegate;
+	}
+
+	public Acknowledge getAcknowledge() {
+		return _acknowledge;
+	}
+
+	/**
+	 * Waits for the writes that are queued, and destroys the store. Writes
+	 * waiting to be tried again stay in the spool.
+	 */
+	public void destroy() {
+		if (!_retries.shutdownNow().isEmpty()) {
+			LOG.warn("Failed writes are left in the spool, they are made when the store is created again");
+		}
+		for (ExecutorService writer : _writers) {
+			writer.shutdown();
+		}
+		for (ExecutorService writer : _writers) {
+			try {
+				if (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+					LOG.warn("Writes are still queued, they are made when the store is created again");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		_delegate.destroy();
+	}
+
+	public ITransaction begin(Principal principal) {
+		return _delegate.begin(principal);
+	}
+
+	public void checkAuthentication(ITransaction transaction) {
+		_delegate.checkAuthentication(transaction);
+	}
+
+	public void commit(ITransaction transaction) {
+		_delegate.commit(transaction);
+	}
+
+	public void rollback(ITransaction transaction) {
+		_delegate.rollback(transaction);
+	}
+
+	public void createFolder(ITransaction transaction, String folderUri) {
+		_delegate.createFolder(transaction, folderUri);
+	}
+
+	public void createResource(ITransaction transaction, String resourceUri) {
+		_delegate.createResource(transaction, resourceUri);
+	}
+
+	public InputStream getResourceContent(ITransaction transaction, String resourceUri) {
+		Pending pending = _pending.get(URLUtil.getCleanPath(resourceUri));
+		if (pending != null) {
+			try {
+				return new BufferedInputStream(new FileInputStream(pending._data), BUF_SIZE);
+			} catch (FileNotFoundException e) {
+				// written in the meantime
+			}
+		}
+		return _delegate.getResourceContent(transaction, resourceUri);
+	}
+
+	public long setResourceContent(ITransaction transaction, String resourceUri, InputStream content,
+			String contentType, String characterEncoding) {
+		String path = URLUtil.getCleanPath(resourceUri);
+		try {
+			_queue.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WebDAVException("interrupted while waiting to stage '" + path + "'");
+		}
+		Pending pending;
+		try {
+			pending = stage(path, content, contentType, characterEncoding);
+		} catch (DigestMismatchException | Quota.QuotaExceededException e) {
+			_queue.release();
+			LOG.info("WriteBehindStore.setResourceContent(" + path + ") rejected: " + e.getMessage());
+			throw new WebDAVException(e);
+		} catch (IOException e) {
+			_queue.release();
+			LOG.error("WriteBehindStore.setResourceContent(" + path + ") failed");
+			throw new WebDAVException(e);
+		}
+		_pending.put(path, pending);
+		getWriter(path).execute(new Writer(pending));
+		if (_acknowledge == Acknowledge.PERSISTED) {
+			await(pending);
+			if (pending._failure != null) {
+				throw new WebDAVException("cannot write '" + path + "'", pending._failure);
+			}
+		}
+		return pending._length;
+	}
+
+	/**
+	 * Copies within the store right away, unless the source is still in the
+	 * spool. Writes of the destination that were not made yet are dropped.
+	 */
+	public long copyResource(ITransaction transaction, String sourceUri, String destinationUri) {
+		if (!(_delegate instanceof ICopyStore) || _pending.containsKey(URLUtil.getCleanPath(sourceUri))) {
+			return setResourceContent(transaction, destinationUri, getResourceContent(transaction, sourceUri), null,
+					null);
+		}
+		dropBelow(URLUtil.getCleanPath(destinationUri));
+		return ((ICopyStore) _delegate).copyResource(transaction, sourceUri, destinationUri);
+	}
+
+	public String[] getChildrenNames(ITransaction transaction, String folderUri) {
+		return _delegate.getChildrenNames(transaction, folderUri);
+	}
+
+	public long getResourceLength(ITransaction transaction, String path) {
+		Pending pending = _pending.get(URLUtil.getCleanPath(path));
+		return pending != null ? pending._length : _delegate.getResourceLength(transaction, path);
+	}
+
+	public void removeObject(ITransaction transaction, String uri) {
+		if (dropBelow(URLUtil.getCleanPath(uri)) && _delegate.getStoredObject(transaction, uri) == null) {
+			// the resource was only in the spool
+			return;
+		}
+		_delegate.removeObject(transaction, uri);
+	}
+
+	public StoredObject getStoredObject(ITransaction transaction, String uri) {
+		StoredObject so = _delegate.getStoredObject(transaction, uri);
+		Pending pending = _pending.get(URLUtil.getCleanPath(uri));
+		if (pending != null && (so == null || so.isResource())) {
+			if (so == null) {
+				so = new StoredObject(pending._path);
+				so.setCreationDate(pending._staged);
+			}
+			so.setResourceLength(pending._length);
+			so.setLastModified(pending._staged);
+			// the digest the store computes once it has the content
+			so.setContentDigest(isContentDigests() ? pending._digest : null);
+		}
+		return so;
+	}
+
+	/**
+	 * @return the file of the resource, null while its content is in the
+	 *         spool or if the store does not keep it in a file
+	 */
+	public File getFile(ITransaction transaction, String uri) {
+		if (!(_delegate instanceof ILocalFileStore) || _pending.containsKey(URLUtil.getCleanPath(uri))) {
+			return null;
+		}
+		return ((ILocalFileStore) _delegate).getFile(transaction, uri);
+	}
+
+	/**
+	 * @return the number of writes that are staged and not made yet
+	 */
+	public int getPendingCount() {
+		return _pending.size();
+	}
+
+	/**
+	 * @return true if the store serves the digests of the content
+	 */
+	private boolean isContentDigests() {
+		IWebDAVStore store = _delegate;
+		while (store instanceof IStoreDecorator) {
+			store = ((IStoreDecorator) store).getDelegate();
+		}
+		return store instanceof ContentAddressableStore
+				|| (store instanceof LocalFileSystemStore && ((LocalFileSystemStore) store).isContentDigests());
+	}
+
+	private static ILastModifiedStore getLastModifiedStore(IWebDAVStore store) {
+		while (!(store instanceof ILastModifiedStore) && store instanceof IStoreDecorator) {
+			store = ((IStoreDecorator) store).getDelegate();
+		}
+		return store instanceof ILastModifiedStore ? (ILastModifiedStore) store : null;
+	}
+
+	private ExecutorService getWriter(String path) {
+		return _writers[(path.hashCode() & 0x7fffffff) % _writers.length];
+	}
+
+	/**
+	 * Copies the content to the spool, with the path it is for next to it
+	 */
+	private Pending stage(String path, InputStream is, String contentType, String characterEncoding)
+			throws IOException {
+		String name = String.valueOf(_sequence.incrementAndGet());
+		File data = new File(_spool, name + DATA_SUFFIX);
+		File marker = new File(_spool, name + PATH_SUFFIX);
+		MessageDigest digest = ContentDigestIndex.createDigest();
+		long length = 0;
+		Date stagedAt = new Date();
+		boolean staged = false;
+		try {
+			FileOutputStream fos = new FileOutputStream(data);
+			OutputStream os = new BufferedOutputStream(fos, BUF_SIZE);
+			try {
+				int read;
+				byte[] copyBuffer = new byte[BUF_SIZE];
+				while ((read = is.read(copyBuffer, 0, copyBuffer.length)) != -1) {
+					digest.update(copyBuffer, 0, read);
+					os.write(copyBuffer, 0, read);
+					length += read;
+				}
+				// on disk before the marker says it is complete
+				os.flush();
+				fos.getFD().sync();
+			} finally {
+				try {
+					is.close();
+				} finally {
+					os.close();
+				}
+			}
+			// the data is complete once its path is written, and acknowledged
+			// once both survive a crash
+			write(marker, (path + "\n" + nullToEmpty(contentType) + "\n" + nullToEmpty(characterEncoding) + "\n"
+					+ stagedAt.getTime() + "\n").getBytes(StandardCharsets.UTF_8));
+			syncSpool();
+			staged = true;
+		} finally {
+			if (!staged) {
+				marker.delete();
+				data.delete();
+			}
+		}
+		return new Pending(name, path, data, length, ContentDigestIndex.toHex(digest.digest()), contentType,
+				characterEncoding, stagedAt);
+	}
+
+	private static void write(File file, byte[] content) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(content);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Forces the names of the files staged to disk, where the file system
+	 * allows to open a directory
+	 */
+	private void syncSpool() {
+		try {
+			FileChannel channel = FileChannel.open(_spool.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			LOG.debug("Cannot force the spool " + _spool + " to disk: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the content to the store in a transaction of its own
+	 */
+	private void persist(Pending pending) {
+		ITransaction transaction = _delegate.begin(null);
+		try {
+			_delegate.setResourceContent(transaction, pending._path, new StagedInputStream(pending._data),
+					pending._contentType, pending._characterEncoding);
+			// the resource was reported modified when it was staged
+			ILastModifiedStore store = getLastModifiedStore(_delegate);
+			if (store != null) {
+				store.setLastModified(transaction, pending._path, pending._staged);
+			}
+			_delegate.commit(transaction);
+		} catch (IOException | RuntimeException e) {
+			_delegate.rollback(transaction);
+			throw new WebDAVException("cannot write '" + pending._path + "'", e);
+		}
+	}
+
+	private void remove(Pending pending) {
+		new File(_spool, pending._name + PATH_SUFFIX).delete();
+		pending._data.delete();
+	}
+
+	/**
+	 * Drops the writes of the path and of the paths below it, a write that
+	 * is being made is waited for
+	 *
+	 * @return true if there were writes
+	 */
+	private boolean dropBelow(String path) {
+		String prefix = path.endsWith("/") ? path : path + "/";
+		boolean dropped = false;
+		for (Pending pending : _pending.values()) {
+			if (pending._path.equals(path) || pending._path.startsWith(prefix)) {
+				synchronized (pending) {
+					if (_pending.remove(pending._path, pending)) {
+						// not left for the next start, its writer may wait to try again
+						remove(pending);
+						dropped = true;
+					}
+				}
+			}
+		}
+		return dropped;
+	}
+
+	private static void await(Pending pending) {
+		try {
+			pending._written.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WebDAVException("interrupted while waiting for '" + pending._path + "' to be written");
+		}
+	}
+
+	/**
+	 * Makes the writes that were staged but not made before the servlet
+	 * stopped, oldest first
+	 */
+	private void recover() {
+		File[] files = _spool.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<Long> names = new ArrayList<Long>();
+		for (File file : files) {
+			String name = file.getName();
+			try {
+				if (name.endsWith(PATH_SUFFIX)) {
+					names.add(Long.valueOf(name.substring(0, name.length() - PATH_SUFFIX.length())));
+				} else if (name.endsWith(DATA_SUFFIX) && !new File(_spool,
+						name.substring(0, name.length() - DATA_SUFFIX.length()) + PATH_SUFFIX).exists()) {
+					// staging did not finish, so the write was never acknowledged
+					file.delete();
+				}
+			} catch (NumberFormatException e) {
+				LOG.warn("Ignoring " + file + " in the spool");
+			}
+		}
+		Collections.sort(names);
+		int written = 0;
+		for (Long name : names) {
+			File data = new File(_spool, name + DATA_SUFFIX);
+			try {
+				List<String> lines = Files.readAllLines(new File(_spool, name + PATH_SUFFIX).toPath(),
+						StandardCharsets.UTF_8);
+				String stagedAt = emptyToNull(lines, 3);
+				Pending pending = new Pending(String.valueOf(name), lines.get(0), data, data.length(), null,
+						emptyToNull(lines, 1), emptyToNull(lines, 2),
+						new Date(stagedAt != null ? Long.parseLong(stagedAt) : data.lastModified()));
+				persist(pending);
+				remove(pending);
+				written++;
+			} catch (IOException | RuntimeException e) {
+				LOG.error("Cannot write " + data + " left in the spool", e);
+			}
+			_sequence.set(Math.max(_sequence.get(), name));
+		}
+		if (!names.isEmpty()) {
+			LOG.info("Wrote " + written + " of " + names.size() + " uploads left in the spool " + _spool);
+		}
+	}
+
+	private static String nullToEmpty(String value) {
+		return value != null ? value : "";
+	}
+
+	private static String emptyToNull(List<String> lines, int index) {
+		return lines.size() > index && !lines.get(index).isEmpty() ? lines.get(index) : null;
+	}
+
+	/**
+	 * A write that is staged
+	 */
+	private static class Pending {
+
+		private final String _name;
+		private final String _path;
+		private final File _data;
+		private final long _length;
+		private final String _digest;
+		private final String _contentType;
+		private final String _characterEncoding;
+		private final Date _staged;
+		private final CountDownLatch _written = new CountDownLatch(1);
+		private volatile Exception _failure = null;
+		private int _attempts = 0;
+
+		private Pending(String name, String path, File data, long length, String digest, String contentType,
+				String characterEncoding, Date staged) {
+			_name = name;
+			_path = path;
+			_data = data;
+			_length = length;
+			_digest = digest;
+			_contentType = contentType;
+			_characterEncoding = characterEncoding;
+			_staged = staged;
+		}
+	}
+
+	/**
+	 * Writes one staged write to the store, unless a newer one replaces it
+	 */
+	private class Writer implements Runnable {
+
+		private final Pending _write;
+
+		private Writer(Pending pending) {
+			_write = pending;
+		}
+
+		public void run() {
+			boolean done = true;
+			try {
+				// a removal drops the write while it is not being made
+				synchronized (_write) {
+					if (_pending.get(_write._path) == _write) {
+						persist(_write);
+					} else if (LOG.isDebugEnabled()) {
+						LOG.debug("Skipping write of " + _write._path + ", a newer one or a removal replaces it");
+					}
+				}
+			} catch (RuntimeException e) {
+				if (_acknowledge == Acknowledge.STAGED) {
+					// the client was told the content is stored
+					done = false;
+					retry(e);
+				} else {
+					_write._failure = e;
+					LOG.error("Writing " + _write._path + " behind failed", e);
+				}
+			} finally {
+				if (done) {
+					_pending.remove(_write._path, _write);
+					remove(_write);
+					_write._written.countDown();
+					_queue.release();
+				}
+			}
+		}
+
+		/**
+		 * Queues the write again after a while, on the writer of its path so
+		 * it stays in order with newer writes
+		 */
+		private void retry(RuntimeException e) {
+			long delay = Math.min(_retryDelay << Math.min(_write._attempts++, 16), MAX_RETRY_DELAY);
+			LOG.error("Writing " + _write._path + " behind failed, trying again in " + delay + " ms", e);
+			try {
+				_retries.schedule(new Runnable() {
+					public void run() {
+						try {
+							getWriter(_write._path).execute(Writer.this);
+						} catch (RejectedExecutionException e) {
+							LOG.warn("Write of " + _write._path + " is left in the spool");
+						}
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException re) {
+				LOG.warn("Write of " + _write._path + " is left in the spool");
+			}
+		}
+	}
+
+	/**
+	 * Content of the spool, which is complete, so the store may write it
+	 * aside and replace the resource at once
+	 */
+	private static class StagedInputStream extends BufferedInputStream implements IStagedContent {
+
+		private StagedInputStream(File data) throws IOException {
+			super(new FileInputStream(data), BUF_SIZE);
+		}
+	}
+
+	private static class WriterThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+		private final int _poolNumber = POOL_NUMBER.incrementAndGet();
+		private final AtomicInteger _threadNumber = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "webdav-write-behind-" + _poolNumber + "-" + _threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Starting " + thread.getName());
+			}
+			return thread;
+		}
+	}
+}
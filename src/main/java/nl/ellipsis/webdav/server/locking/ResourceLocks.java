@@ -18,6 +18,7 @@ package nl.ellipsis.webdav.server.locking;
 
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import nl.ellipsis.webdav.server.ITransaction;
 import nl.ellipsis.webdav.server.exceptions.LockFailedException;
@@ -72,6 +73,11 @@ public class ResourceLocks implements IResourceLocks {
 
 	private boolean _temporary = true;
 
+	/**
+	 * incremented whenever a lock is granted, released or expires
+	 */
+	private final AtomicLong _version = new AtomicLong();
+
 	public ResourceLocks() {
 		_root = new LockedObject(this, CharsetUtil.FORWARD_SLASH, true);
 		_tempRoot = new LockedObject(this, CharsetUtil.FORWARD_SLASH, false);
@@ -108,6 +114,9 @@ public class ResourceLocks implements IResourceLocks {
 				}
 			}
 			if (lo.addLockedObjectOwner(owner)) {
+				if (!temporary) {
+					_version.incrementAndGet();
+				}
 				return true;
 			} else {
 				LOG.debug("Could not set owner '" + owner + "' to resource at '" + path + "'");
@@ -127,6 +136,7 @@ public class ResourceLocks implements IResourceLocks {
 			if (_locks.containsKey(path)) {
 				LockedObject lo = _locks.get(path);
 				lo.removeLockedObjectOwner(owner);
+				_version.incrementAndGet();
 				if (lo._children == null && lo._owner == null) {
 					lo.removeLockedObject();
 				}
@@ -174,6 +184,7 @@ public class ResourceLocks implements IResourceLocks {
 
 				if (currentLockedObject._expiresAt < System.currentTimeMillis()) {
 					currentLockedObject.removeLockedObject();
+					_version.incrementAndGet();
 				}
 			}
 		} else {
@@ -188,6 +199,14 @@ public class ResourceLocks implements IResourceLocks {
 		}
 	}
 
+	/**
+	 * @return a number that changes whenever a lock (not a temporary one) is
+	 *         granted, released or expires, for caches of lock state
+	 */
+	public long getVersion() {
+		return _version.get();
+	}
+
 	public boolean exclusiveLock(ITransaction transaction, String path, String owner, int depth, int timeout)
 			throws LockFailedException {
 		return lock(transaction, path, owner, true, depth, timeout, false);
@@ -49,6 +49,7 @@ import nl.ellipsis.webdav.server.exceptions.LockFailedException;
 import nl.ellipsis.webdav.server.locking.IResourceLocks;
 import nl.ellipsis.webdav.server.locking.LockedObject;
 import nl.ellipsis.webdav.server.util.CharsetUtil;
+import nl.ellipsis.webdav.server.util.ResponseCompressor;
 import nl.ellipsis.webdav.server.util.URLEncoder;
 import nl.ellipsis.webdav.server.util.URLUtil;
 import nl.ellipsis.webdav.server.util.XMLHelper;
@@ -92,6 +93,9 @@ public abstract class AbstractMethod implements IMethodExecutor {
 
 	protected static final String PARAM_LOCKTOKEN = "locktoken";
 
+	protected static final String HEADER_EXPECT = "Expect";
+	protected static final String EXPECT_CONTINUE = "100-continue";
+
 	protected static final String NS_DAV_FULLNAME = "DAV:";
 	protected static final String NS_DAV_PREFIX = "D";
 
@@ -135,7 +139,32 @@ public abstract class AbstractMethod implements IMethodExecutor {
 	 * Timeout for temporary locks
 	 */
 	protected static final int TEMP_TIMEOUT = 10;
-	
+
+	/**
+	 * Compression applied to generated XML responses
+	 */
+	protected ResponseCompressor _responseCompressor = ResponseCompressor.NONE;
+
+	/**
+	 * True if folders support the sync-collection REPORT
+	 */
+	protected boolean _syncCollection = false;
+
+	public void setResponseCompressor(ResponseCompressor responseCompressor) {
+		_responseCompressor = (responseCompressor != null ? responseCompressor : ResponseCompressor.NONE);
+	}
+
+	public void setSyncCollection(boolean syncCollection) {
+		_syncCollection = syncCollection;
+	}
+
+	/**
+	 * @return the methods allowed for the resource, for the Allow header
+	 */
+	protected String getMethodsAllowed(StoredObject so) {
+		return DeterminableMethod.determineMethodsAllowed(so, _syncCollection);
+	}
+
 	public static String lastModifiedDateFormat(final Date date) {
 		DateFormat df = thLastmodifiedDateFormat.get();
 		if (df == null) {
@@ -189,6 +218,19 @@ public abstract class AbstractMethod implements IMethodExecutor {
 		return URLUtil.getRelativePath(path);
 	}
 	
+	/**
+	 * A client that sends "Expect: 100-continue" waits for the container to
+	 * ask for the body, which it does on the first read of the request input
+	 * stream. A request rejected before that never transfers its body.
+	 * 
+	 * @return true if the client waits for 100 Continue before sending the
+	 *         body
+	 */
+	public static boolean isExpectContinue(HttpServletRequest request) {
+		String expect = request.getHeader(HEADER_EXPECT);
+		return expect != null && expect.trim().equalsIgnoreCase(EXPECT_CONTINUE);
+	}
+
 	/**
 	 * Return W3C document 
 	 * @throws IOException 
@@ -238,14 +280,19 @@ public abstract class AbstractMethod implements IMethodExecutor {
 	}
 
 	/**
-	 * Get the ETag associated with a file.
+	 * Get the ETag associated with a file. A strong ETag when the store
+	 * provides a digest of the content, otherwise a weak ETag derived from
+	 * resourceLength and lastModified.
 	 * 
 	 * @param StoredObject
-	 *            StoredObject to get resourceLength, lastModified and a hashCode of
-	 *            StoredObject
+	 *            StoredObject to get contentDigest, or resourceLength and
+	 *            lastModified of
 	 * @return the ETag
 	 */
 	protected static String getETag(StoredObject so) {
+		if (so != null && so.isResource() && so.getContentDigest() != null) {
+			return CharsetUtil.DQUOTE + so.getContentDigest() + CharsetUtil.DQUOTE;
+		}
 		String resourceLength = "";
 		String lastModified = "";
 		if (so != null && so.isResource()) {
@@ -255,6 +302,57 @@ public abstract class AbstractMethod implements IMethodExecutor {
 		return "W/"+CharsetUtil.DQUOTE + resourceLength + CharsetUtil.CHAR_DASH + lastModified + CharsetUtil.DQUOTE;
 	}
 
+	/**
+	 * Evaluates the conditional headers of a request against the resource,
+	 * and answers the request with 304 or 412 if they do not hold. Only files
+	 * have an entity tag and modification date to compare with.
+	 *
+	 * @param preconditions
+	 *            the conditional headers, see Preconditions.fromRequest
+	 * @param so
+	 *            the resource, null if it does not exist
+	 * @param safe
+	 *            true for GET and HEAD
+	 * @return true if the method may be performed
+	 */
+	protected static boolean checkPreconditions(Preconditions preconditions, HttpServletResponse resp, StoredObject so,
+			boolean safe) throws IOException {
+		return checkPreconditions(preconditions, resp, so, null, safe);
+	}
+
+	/**
+	 * Evaluates the conditional headers of a request against a representation
+	 * of the resource with its own entity tag, such as a compressed variant.
+	 *
+	 * @param eTag
+	 *            entity tag of the representation, null for getETag(so)
+	 * @see #checkPreconditions(Preconditions, HttpServletResponse, StoredObject, boolean)
+	 */
+	protected static boolean checkPreconditions(Preconditions preconditions, HttpServletResponse resp, StoredObject so,
+			String eTag, boolean safe) throws IOException {
+		boolean exists = (so != null && !so.isNullResource());
+		boolean isResource = (exists && so.isResource());
+		if (!isResource) {
+			eTag = null;
+		} else if (eTag == null) {
+			eTag = getETag(so);
+		}
+		Date lastModified = (isResource ? so.getLastModified() : null);
+		int status = preconditions.evaluate(exists, eTag, lastModified, safe);
+		if (status == HttpServletResponse.SC_NOT_MODIFIED) {
+			resp.setHeader(javax.ws.rs.core.HttpHeaders.ETAG, eTag);
+			if (lastModified != null) {
+				resp.setDateHeader(javax.ws.rs.core.HttpHeaders.LAST_MODIFIED, lastModified.getTime());
+			}
+			resp.setStatus(status);
+			return false;
+		} else if (status != HttpServletResponse.SC_OK) {
+			resp.sendError(status);
+			return false;
+		}
+		return true;
+	}
+
 	protected static String[] getLockIdFromIfHeader(HttpServletRequest req) {
 		String[] ids = new String[2];
 		String id = req.getHeader(HttpHeaders.IF);
@@ -365,7 +463,7 @@ public abstract class AbstractMethod implements IMethodExecutor {
 	 * @param errorList
 	 *            List of error to be displayed
 	 */
-	protected static void sendReport(HttpServletRequest req, HttpServletResponse resp, Hashtable<String,Integer> errorList)
+	protected void sendReport(HttpServletRequest req, HttpServletResponse resp, Hashtable<String,Integer> errorList)
 			throws IOException {
 
 		if (errorList.size() == 1) {
@@ -422,10 +520,35 @@ public abstract class AbstractMethod implements IMethodExecutor {
 
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.MULTISTATUS,XMLWriter.CLOSING);
 
-			Writer writer = resp.getWriter();
+			Writer writer = _responseCompressor.getWriter(req, resp);
 			writer.write(generatedXML.toString());
 			writer.close();
 		}
 	}
 
+	/**
+	 * Send an error response with a DAV:error body naming the precondition or
+	 * postcondition that failed (RFC 4918 section 16).
+	 * 
+	 * @param resp
+	 *            Servlet response
+	 * @param code
+	 *            HTTP status code
+	 * @param condition
+	 *            name of the condition element in the DAV: namespace
+	 */
+	protected static void sendConditionError(HttpServletResponse resp, int code, String condition) throws IOException {
+		XMLWriter generatedXML = new XMLWriter();
+		generatedXML.writeXMLHeader();
+		generatedXML.writeElement(NS_DAV_PREFIX,NS_DAV_FULLNAME,WebDAVConstants.XMLTag.ERROR,XMLWriter.OPENING);
+		generatedXML.writeElement(NS_DAV_PREFIX,condition,XMLWriter.NO_CONTENT);
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.ERROR,XMLWriter.CLOSING);
+
+		resp.setStatus(code);
+		resp.setContentType("text/xml; charset=UTF-8");
+		Writer writer = resp.getWriter();
+		writer.write(generatedXML.toString());
+		writer.close();
+	}
+
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends the content of large resources with Servlet 3.1 non-blocking I/O.
+ *
+ * Once the headers are set the request is put in asynchronous mode and the
+ * container thread returns. The content is written by a WriteListener, a
+ * chunk at a time and only while the connection can take more, so a slow
+ * client holds a buffer and an open file instead of a container thread.
+ *
+ * The content stream is read after the transaction of the request has been
+ * committed, which is fine for stores that hand out a stream on a file of
+ * their own, like LocalFileSystemStore.
+ */
+public class AsyncDownloads {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(AsyncDownloads.class);
+
+	/**
+	 * Downloads that are always sent on the container thread
+	 */
+	public static final AsyncDownloads NONE = new AsyncDownloads(-1, 0);
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final long _minSize;
+	private final long _timeout;
+	private final AtomicInteger _active = new AtomicInteger();
+	private final Set<Download> _downloads = Collections.newSetFromMap(new ConcurrentHashMap<Download, Boolean>());
+
+	/**
+	 * @param minSize
+	 *            smallest resource sent asynchronously in bytes, negative
+	 *            to send everything on the container thread
+	 * @param timeout
+	 *            milliseconds a download may take, 0 for no limit
+	 */
+	public AsyncDownloads(long minSize, long timeout) {
+		_minSize = minSize;
+		_timeout = timeout;
+	}
+
+	public boolean isEnabled() {
+		return _minSize >= 0;
+	}
+
+	/**
+	 * @return true if the content of the given length is sent asynchronously
+	 *         for the request, the container has to support it
+	 */
+	public boolean isAsync(HttpServletRequest req, long length) {
+		return isEnabled() && length >= _minSize && req.isAsyncSupported();
+	}
+
+	/**
+	 * @return downloads being sent
+	 */
+	public int getActive() {
+		return _active.get();
+	}
+
+	/**
+	 * Ends the downloads that are still being sent, their responses are
+	 * completed as they are and their content streams closed
+	 */
+	public void shutdown() {
+		for (Download download : _downloads) {
+			download.cancel();
+		}
+	}
+
+	/**
+	 * Puts the request in asynchronous mode and sends the content from a
+	 * WriteListener. The stream is owned by the download from here on and is
+	 * closed when it completes or fails.
+	 */
+	public void start(HttpServletRequest req, HttpServletResponse resp, String path, InputStream in)
+			throws IOException {
+		AsyncContext asyncContext;
+		ServletOutputStream out;
+		try {
+			asyncContext = req.startAsync();
+			out = resp.getOutputStream();
+		} catch (IOException | RuntimeException e) {
+			closeQuietly(in);
+			throw e;
+		}
+		asyncContext.setTimeout(_timeout);
+		Download download = new Download(asyncContext, out, path, in);
+		asyncContext.addListener(download);
+		_active.incrementAndGet();
+		_downloads.add(download);
+		out.setWriteListener(download);
+	}
+
+	private static void closeQuietly(InputStream in) {
+		try {
+			in.close();
+		} catch (Exception e) {
+			LOG.warn("Closing InputStream causes Exception!\n" + e.toString());
+		}
+	}
+
+	/**
+	 * One response being sent, called by the container whenever the
+	 * connection can take more content
+	 */
+	private class Download implements WriteListener, AsyncListener {
+
+		private final AsyncContext _asyncContext;
+		private final ServletOutputStream _out;
+		private final String _path;
+		private final InputStream _in;
+		private final byte[] _buffer = new byte[CHUNK_SIZE];
+		private final AtomicInteger _done = new AtomicInteger();
+
+		Download(AsyncContext asyncContext, ServletOutputStream out, String path, InputStream in) {
+			_asyncContext = asyncContext;
+			_out = out;
+			_path = path;
+			_in = in;
+		}
+
+		public void onWritePossible() throws IOException {
+			// a write that can not complete at once makes isReady() false and
+			// the container calls again when the rest is sent
+			while (_done.get() == 0 && _out.isReady()) {
+				int read = _in.read(_buffer, 0, _buffer.length);
+				if (read == -1) {
+					finish();
+					_asyncContext.complete();
+					return;
+				}
+				_out.write(_buffer, 0, read);
+			}
+		}
+
+		public void onError(Throwable t) {
+			// client disconnected before server finished sending response
+			LOG.debug("Download of " + _path + " failed: " + t);
+			finish();
+			_asyncContext.complete();
+		}
+
+		public void onComplete(AsyncEvent event) {
+			finish();
+		}
+
+		public void onTimeout(AsyncEvent event) {
+			LOG.warn("Download of " + _path + " timed out");
+			finish();
+			_asyncContext.complete();
+		}
+
+		public void onError(AsyncEvent event) {
+			finish();
+		}
+
+		public void onStartAsync(AsyncEvent event) {
+			// not dispatched again
+		}
+
+		private void cancel() {
+			LOG.debug("Download of " + _path + " cancelled");
+			finish();
+			try {
+				_asyncContext.complete();
+			} catch (IllegalStateException e) {
+				// completed by the container in the meantime
+			}
+		}
+
+		private void finish() {
+			if (_done.compareAndSet(0, 1)) {
+				closeQuietly(_in);
+				_active.decrementAndGet();
+				_downloads.remove(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nl.ellipsis.webdav.server.ContentDigestIndex;
+import nl.ellipsis.webdav.server.util.CharsetUtil;
+import nl.ellipsis.webdav.server.util.IStagedContent;
+
+/**
+ * Uploads sent in parts with PUT and Content-Range, so an upload can be
+ * resumed after a dropped connection and parts can be sent over several
+ * connections at once.
+ *
+ * Each part is written at its offset in a part file in a directory of its
+ * own, with a positional FileChannel so parts can be written concurrently.
+ * The ranges received are appended to a file next to it once a part has
+ * been written completely, and survive a restart. When the ranges cover the
+ * whole length, one request hands the part file to the store as staged
+ * content, which replaces the resource at once. Uploads that are not
+ * touched for the expiry time are removed when a new upload starts.
+ */
+public class ChunkedUploads {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ChunkedUploads.class);
+
+	/**
+	 * Uploads in parts are not supported
+	 */
+	public static final ChunkedUploads NONE = new ChunkedUploads(null, 0);
+
+	public static final String HEADER_CONTENT_RANGE = "Content-Range";
+	public static final String HEADER_RANGE = "Range";
+
+	private static final String BYTES_UNIT = "bytes";
+	private static final String PART_SUFFIX = ".part";
+	private static final String RANGES_SUFFIX = ".ranges";
+	private static final int BUF_SIZE = 65536;
+
+	/**
+	 * The body of a part does not have the length of its Content-Range
+	 */
+	public static class BadChunkException extends IOException {
+
+		private static final long serialVersionUID = 2771402409838123904L;
+
+		public BadChunkException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A part gives another total length than the upload in progress to the
+	 * same path, which other parts may still be writing to
+	 */
+	public static class UploadConflictException extends IOException {
+
+		private static final long serialVersionUID = -4180351245541870322L;
+
+		public UploadConflictException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * The bytes a PUT carries, or the length of an upload asked about
+	 */
+	public static final class ContentRange {
+
+		private final long _first;
+		private final long _last;
+		private final long _total;
+
+		private ContentRange(long first, long last, long total) {
+			_first = first;
+			_last = last;
+			_total = total;
+		}
+
+		public long getFirst() {
+			return _first;
+		}
+
+		public long getLast() {
+			return _last;
+		}
+
+		public long getTotal() {
+			return _total;
+		}
+
+		/**
+		 * @return true for "bytes *&#47;total", a request for the ranges
+		 *         received so far
+		 */
+		public boolean isStatusQuery() {
+			return _first == -1;
+		}
+	}
+
+	private final File _directory;
+	private final long _expiry;
+	private final Map<String, Upload> _uploads = new HashMap<String, Upload>();
+
+	/**
+	 * @param directory
+	 *            directory for the parts, null to disable
+	 * @param expiry
+	 *            milliseconds after which an upload that is not touched is
+	 *            removed
+	 */
+	public ChunkedUploads(File directory, long expiry) {
+		_directory = directory;
+		_expiry = expiry;
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			LOG.error("Cannot create directory for chunked uploads " + directory);
+		}
+	}
+
+	public boolean isEnabled() {
+		return _directory != null;
+	}
+
+	/**
+	 * Parses "bytes first-last/total" or "bytes *&#47;total", the total length
+	 * must be known
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the value is malformed or does not describe a part
+	 */
+	public static ContentRange parseContentRange(String value) {
+		String spec = value.trim();
+		if (!spec.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+			throw new IllegalArgumentException("unsupported unit in " + HEADER_CONTENT_RANGE + ": " + value);
+		}
+		spec = spec.substring(BYTES_UNIT.length()).trim();
+		int slash = spec.indexOf(CharsetUtil.CHAR_FORWARD_SLASH);
+		if (slash == -1) {
+			throw new IllegalArgumentException("malformed " + HEADER_CONTENT_RANGE + ": " + value);
+		}
+		try {
+			long total = Long.parseLong(spec.substring(slash + 1).trim());
+			String range = spec.substring(0, slash).trim();
+			if (range.equals(String.valueOf(CharsetUtil.CHAR_ASTERIX)) && total >= 0) {
+				return new ContentRange(-1, -1, total);
+			}
+			int dash = range.indexOf(CharsetUtil.CHAR_DASH);
+			long first = Long.parseLong(range.substring(0, dash).trim());
+			long last = Long.parseLong(range.substring(dash + 1).trim());
+			if (first < 0 || last < first || last >= total) {
+				throw new IllegalArgumentException("invalid " + HEADER_CONTENT_RANGE + ": " + value);
+			}
+			return new ContentRange(first, last, total);
+		} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("malformed " + HEADER_CONTENT_RANGE + ": " + value, e);
+		}
+	}
+
+	/**
+	 * @return the upload to the path, null if none of it has been received
+	 */
+	public Upload getUpload(String path) throws IOException {
+		synchronized (_uploads) {
+			Upload upload = _uploads.get(path);
+			if (upload == null) {
+				upload = load(path);
+			}
+			return upload;
+		}
+	}
+
+	/**
+	 * Writes a part of the upload to the path. The range is only counted as
+	 * received when the body has exactly its length and, if the body is
+	 * verified, its digest matches.
+	 *
+	 * @return the upload the part belongs to
+	 * @throws BadChunkException
+	 *             if the body is shorter or longer than the range
+	 * @throws UploadConflictException
+	 *             if an upload of another length to the path has not expired
+	 */
+	public Upload write(String path, ContentRange range, InputStream in) throws IOException {
+		Upload upload = getOrCreate(path, range.getTotal());
+		ByteBuffer buffer = ByteBuffer.allocate(BUF_SIZE);
+		long position = range.getFirst();
+		long remaining = range.getLast() - range.getFirst() + 1;
+		while (remaining > 0) {
+			int read = in.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), remaining));
+			if (read == -1) {
+				throw new BadChunkException("body ends " + remaining + " bytes before the end of its range");
+			}
+			buffer.position(0);
+			buffer.limit(read);
+			while (buffer.hasRemaining()) {
+				position += upload._channel.write(buffer, position);
+			}
+			remaining -= read;
+		}
+		// also lets a verifying stream check the digest of the part
+		if (in.read() != -1) {
+			throw new BadChunkException("body is longer than its range");
+		}
+		upload.received(range.getFirst(), range.getLast());
+		return upload;
+	}
+
+	/**
+	 * Closes the part files, the uploads can be resumed after a restart
+	 */
+	public void shutdown() {
+		synchronized (_uploads) {
+			for (Upload upload : _uploads.values()) {
+				upload.close();
+			}
+			_uploads.clear();
+		}
+	}
+
+	private Upload getOrCreate(String path, long total) throws IOException {
+		synchronized (_uploads) {
+			Upload upload = getUpload(path);
+			if (upload != null && upload._total != total) {
+				// a different file is sent to the same path, only once the
+				// parts of the old one can no longer be writing
+				if (upload._rangesFile.lastModified() >= System.currentTimeMillis() - _expiry) {
+					throw new UploadConflictException("upload of " + upload._total + " bytes to " + path
+							+ " is in progress");
+				}
+				LOG.info("Restarting upload of " + path + " with " + total + " instead of " + upload._total
+						+ " bytes");
+				remove(upload);
+				upload = null;
+			}
+			if (upload == null) {
+				expire();
+				String name = getName(path);
+				upload = new Upload(path, total, new File(_directory, name + PART_SUFFIX),
+						new File(_directory, name + RANGES_SUFFIX));
+				Writer writer = new OutputStreamWriter(Files.newOutputStream(upload._rangesFile.toPath()),
+						StandardCharsets.UTF_8);
+				try {
+					writer.write(total + "\n" + path + "\n");
+				} finally {
+					writer.close();
+				}
+				_uploads.put(path, upload);
+			}
+			return upload;
+		}
+	}
+
+	private Upload load(String path) throws IOException {
+		String name = getName(path);
+		File rangesFile = new File(_directory, name + RANGES_SUFFIX);
+		if (!rangesFile.isFile()) {
+			return null;
+		}
+		List<String> lines = Files.readAllLines(rangesFile.toPath(), StandardCharsets.UTF_8);
+		if (lines.size() < 2 || !lines.get(1).equals(path)) {
+			return null;
+		}
+		Upload upload = new Upload(path, Long.parseLong(lines.get(0)), new File(_directory, name + PART_SUFFIX),
+				rangesFile);
+		for (String line : lines.subList(2, lines.size())) {
+			int dash = line.indexOf(CharsetUtil.CHAR_DASH);
+			if (dash != -1) {
+				upload.merge(Long.parseLong(line.substring(0, dash)), Long.parseLong(line.substring(dash + 1)));
+			}
+		}
+		_uploads.put(path, upload);
+		LOG.debug("Resuming upload of " + path + ", received " + upload.getReceived());
+		return upload;
+	}
+
+	/**
+	 * Removes the uploads that have not been touched for the expiry time,
+	 * called with the lock on the uploads held
+	 */
+	private void expire() {
+		File[] files = _directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		long limit = System.currentTimeMillis() - _expiry;
+		for (File file : files) {
+			if (file.getName().endsWith(RANGES_SUFFIX) && file.lastModified() < limit) {
+				String name = file.getName().substring(0, file.getName().length() - RANGES_SUFFIX.length());
+				Upload active = null;
+				for (Upload upload : _uploads.values()) {
+					if (upload._rangesFile.equals(file)) {
+						active = upload;
+					}
+				}
+				if (active != null) {
+					remove(active);
+				} else {
+					deleteFile(file);
+					deleteFile(new File(_directory, name + PART_SUFFIX));
+				}
+				LOG.info("Removed expired upload " + name);
+			}
+		}
+	}
+
+	private void remove(Upload upload) {
+		synchronized (_uploads) {
+			if (_uploads.get(upload._path) == upload) {
+				_uploads.remove(upload._path);
+			}
+		}
+		upload.close();
+		deleteFile(upload._rangesFile);
+		deleteFile(upload._partFile);
+	}
+
+	private static String getName(String path) {
+		return ContentDigestIndex
+				.toHex(ContentDigestIndex.createDigest().digest(path.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static void deleteFile(File file) {
+		if (file.exists() && !file.delete()) {
+			LOG.warn("Cannot delete " + file);
+		}
+	}
+
+	/**
+	 * An upload in progress
+	 */
+	public class Upload {
+
+		private final String _path;
+		private final long _total;
+		private final File _partFile;
+		private final File _rangesFile;
+		private final FileChannel _channel;
+		/**
+		 * first and last byte of the ranges received, merged
+		 */
+		private final TreeMap<Long, Long> _received = new TreeMap<Long, Long>();
+		private boolean _publishing = false;
+
+		private Upload(String path, long total, File partFile, File rangesFile) throws IOException {
+			_path = path;
+			_total = total;
+			_partFile = partFile;
+			_rangesFile = rangesFile;
+			_channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		}
+
+		public long getTotal() {
+			return _total;
+		}
+
+		/**
+		 * @return the ranges received as value for a Range header, like
+		 *         "bytes=0-99,200-299", null if nothing has been received
+		 */
+		public synchronized String getReceived() {
+			if (_received.isEmpty()) {
+				return null;
+			}
+			StringBuilder sb = new StringBuilder(BYTES_UNIT).append(CharsetUtil.CHAR_EQUALS);
+			for (Map.Entry<Long, Long> range : _received.entrySet()) {
+				if (sb.length() > BYTES_UNIT.length() + 1) {
+					sb.append(',');
+				}
+				sb.append(range.getKey()).append(CharsetUtil.CHAR_DASH).append(range.getValue());
+			}
+			return sb.toString();
+		}
+
+		public synchronized boolean isComplete() {
+			return _received.size() == 1 && _received.firstKey() == 0 && _received.firstEntry().getValue() == _total - 1;
+		}
+
+		/**
+		 * @return true if all of the upload has been received and the caller
+		 *         is the one to publish it
+		 */
+		public synchronized boolean startPublish() {
+			if (!isComplete() || _publishing) {
+				return false;
+			}
+			_publishing = true;
+			return true;
+		}
+
+		/**
+		 * @return the assembled content, for the caller of startPublish()
+		 */
+		public InputStream openContent() throws IOException {
+			_channel.force(false);
+			return new StagedFileInputStream(_partFile);
+		}
+
+		/**
+		 * Removes the upload once its content has been stored
+		 */
+		public void published() {
+			LOG.debug("Published upload of " + _path + ", " + _total + " bytes");
+			remove(this);
+		}
+
+		/**
+		 * Lets a later part publish the upload again
+		 */
+		public synchronized void publishFailed() {
+			_publishing = false;
+		}
+
+		private synchronized void received(long first, long last) throws IOException {
+			// a range is only recorded once its bytes are on disk, a resumed
+			// upload trusts the ranges
+			_channel.force(false);
+			merge(first, last);
+			OutputStream os = Files.newOutputStream(_rangesFile.toPath(), StandardOpenOption.APPEND);
+			try {
+				os.write((first + String.valueOf(CharsetUtil.CHAR_DASH) + last + "\n").getBytes(StandardCharsets.UTF_8));
+			} finally {
+				os.close();
+			}
+		}
+
+		private void merge(long first, long last) {
+			Map.Entry<Long, Long> lower = _received.floorEntry(first);
+			if (lower != null && lower.getValue() >= first - 1) {
+				first = lower.getKey();
+				last = Math.max(last, lower.getValue());
+				_received.remove(lower.getKey());
+			}
+			Map.Entry<Long, Long> next;
+			while ((next = _received.ceilingEntry(first)) != null && next.getKey() <= last + 1) {
+				last = Math.max(last, next.getValue());
+				_received.remove(next.getKey());
+			}
+			_received.put(first, last);
+		}
+
+		private void close() {
+			try {
+				_channel.close();
+			} catch (IOException e) {
+				LOG.warn("Closing " + _partFile + " causes Exception!\n" + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * The assembled part file, replaces the resource at once
+	 */
+	private static class StagedFileInputStream extends FileInputStream implements IStagedContent {
+
+		StagedFileInputStream(File file) throws FileNotFoundException {
+			super(file);
+		}
+	}
+}
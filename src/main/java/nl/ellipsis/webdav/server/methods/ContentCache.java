@@ -0,0 +1,512 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.ellipsis.webdav.server.IStoreListener;
+import nl.ellipsis.webdav.server.StoreChange;
+import nl.ellipsis.webdav.server.util.CharsetUtil;
+
+/**
+ * Cache of the content of small, frequently requested files, so GET can
+ * answer them without opening the file.
+ *
+ * Content is kept outside the heap, in pages of direct buffers that are
+ * allocated in slabs as the cache fills up. Entries are looked up by path
+ * and ETag, so changed content never matches an old entry, and the entries
+ * of changed paths are dropped when the store reports the change.
+ *
+ * A file is only admitted when it is requested more often than the least
+ * recently used entries it would replace, as counted by a small frequency
+ * sketch of recent requests. Files that are requested once, such as the
+ * members of a folder being downloaded, so do not push out the files that
+ * are requested all the time.
+ */
+public class ContentCache implements IStoreListener {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ContentCache.class);
+
+	/**
+	 * Cache that never holds anything, used when caching is not configured
+	 */
+	public static final ContentCache NONE = new ContentCache(0, 0);
+
+	static final int PAGE_SIZE = 8192;
+	private static final int PAGES_PER_SLAB = 128;
+
+	private final long _capacity;
+	private final int _maxFileSize;
+	private final ByteBuffer[] _slabs;
+	private final int[] _freePages;
+	private int _freeCount;
+	private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final HashMap<String, Loader> _loading = new HashMap<String, Loader>();
+	private final FrequencySketch _sketch;
+	private volatile boolean _shutdown = false;
+
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _rejected = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            maximum number of bytes of content, 0 or less disables the
+	 *            cache
+	 * @param maxFileSize
+	 *            largest file that is cached, in bytes
+	 */
+	public ContentCache(long capacity, int maxFileSize) {
+		int pages = (int) Math.min(Math.max(capacity, 0) / PAGE_SIZE, Integer.MAX_VALUE);
+		_capacity = (long) pages * PAGE_SIZE;
+		_maxFileSize = maxFileSize;
+		_slabs = new ByteBuffer[(pages + PAGES_PER_SLAB - 1) / PAGES_PER_SLAB];
+		_freePages = new int[pages];
+		// low pages first, so slabs are only allocated when they are needed
+		for (int i = 0; i < pages; i++) {
+			_freePages[i] = pages - 1 - i;
+		}
+		_freeCount = pages;
+		_sketch = new FrequencySketch(Math.max(16, pages));
+	}
+
+	public boolean isEnabled() {
+		return _capacity > 0 && _maxFileSize >= 0;
+	}
+
+	public long getCapacity() {
+		return _capacity;
+	}
+
+	public int getMaxFileSize() {
+		return _maxFileSize;
+	}
+
+	/**
+	 * @return number of responses served from the cache
+	 */
+	public long getHits() {
+		return _hits.get();
+	}
+
+	/**
+	 * @return number of cacheable responses that were read from the store
+	 */
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	/**
+	 * @return number of files that were not admitted because the entries
+	 *         they would replace are requested more often
+	 */
+	public long getRejected() {
+		return _rejected.get();
+	}
+
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	/**
+	 * @return number of bytes of off-heap memory holding content
+	 */
+	public synchronized long getUsed() {
+		return _capacity - (long) _freeCount * PAGE_SIZE;
+	}
+
+	/**
+	 * @return true if a file of the length would be cached
+	 */
+	public boolean isCacheable(long length) {
+		return isEnabled() && length >= 0 && length <= _maxFileSize;
+	}
+
+	public static String createKey(String path, String eTag) {
+		return path + CharsetUtil.CHAR_SPACE + eTag;
+	}
+
+	/**
+	 * Looks up the content and keeps it from being reused until it is
+	 * released, which must be done once the content is written.
+	 *
+	 * @param key
+	 *            path and ETag, see createKey
+	 * @return the entry, null if the content has to be read from the store
+	 */
+	public synchronized Entry acquire(String key) {
+		if (_shutdown) {
+			return null;
+		}
+		_sketch.increment(key);
+		Entry entry = _entries.get(key);
+		if (entry != null) {
+			entry._readers++;
+			_hits.incrementAndGet();
+		} else {
+			_misses.incrementAndGet();
+		}
+		return entry;
+	}
+
+	public synchronized void release(Entry entry) {
+		entry._readers--;
+		if (entry._removed && entry._readers == 0) {
+			freePages(entry._pages);
+		}
+	}
+
+	/**
+	 * Writes the content of an acquired entry
+	 */
+	public void writeTo(Entry entry, OutputStream out) throws IOException {
+		WritableByteChannel channel = Channels.newChannel(out);
+		int remaining = entry._length;
+		for (int page : entry._pages) {
+			ByteBuffer buffer = getPage(page);
+			if (buffer == null) {
+				throw new IOException("content cache is shut down");
+			}
+			buffer.limit(buffer.position() + Math.min(remaining, PAGE_SIZE));
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			remaining -= PAGE_SIZE;
+		}
+	}
+
+	/**
+	 * Reserves room for content that is about to be read from the store.
+	 *
+	 * @param key
+	 *            path and ETag, see createKey
+	 * @param path
+	 *            path of the resource, for invalidation
+	 * @param length
+	 *            length of the content
+	 * @return a loader to copy the content into, null if the file is not
+	 *         admitted
+	 */
+	public synchronized Loader startLoad(String key, String path, long length) {
+		if (_shutdown || !isCacheable(length) || _entries.containsKey(key) || _loading.containsKey(key)) {
+			return null;
+		}
+		int needed = (int) ((length + PAGE_SIZE - 1) / PAGE_SIZE);
+		if (needed > _freeCount && !evictFor(key, needed)) {
+			_rejected.incrementAndGet();
+			return null;
+		}
+		int[] pages = new int[needed];
+		for (int i = 0; i < needed; i++) {
+			pages[i] = _freePages[--_freeCount];
+		}
+		Loader loader = new Loader(key, path, (int) length, pages);
+		_loading.put(key, loader);
+		return loader;
+	}
+
+	public synchronized void committed(List<StoreChange> changes) {
+		Iterator<Entry> it = _entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (isChanged(entry._path, changes)) {
+				it.remove();
+				remove(entry);
+			}
+		}
+		for (Loader loader : _loading.values()) {
+			if (isChanged(loader._path, changes)) {
+				loader._cancelled = true;
+			}
+		}
+	}
+
+	/**
+	 * Drops all cached content
+	 */
+	public synchronized void clear() {
+		for (Entry entry : _entries.values()) {
+			remove(entry);
+		}
+		_entries.clear();
+	}
+
+	/**
+	 * Drops all cached content and the off-heap slabs, which are freed once
+	 * the responses that are still copying from them are done. The cache
+	 * stays empty from then on.
+	 */
+	public synchronized void shutdown() {
+		_shutdown = true;
+		clear();
+		for (Loader loader : _loading.values()) {
+			loader._cancelled = true;
+		}
+		synchronized (_slabs) {
+			Arrays.fill(_slabs, null);
+		}
+	}
+
+	/**
+	 * Frees the least recently used entries to make room for the key, if
+	 * they are all requested less often than the key
+	 */
+	private boolean evictFor(String key, int needed) {
+		int frequency = _sketch.frequency(key);
+		int reclaimable = _freeCount;
+		List<Entry> victims = new ArrayList<Entry>();
+		for (Entry entry : _entries.values()) {
+			if (reclaimable >= needed) {
+				break;
+			}
+			if (entry._readers > 0) {
+				continue;
+			}
+			if (_sketch.frequency(entry._key) >= frequency) {
+				return false;
+			}
+			victims.add(entry);
+			reclaimable += entry._pages.length;
+		}
+		if (reclaimable < needed) {
+			return false;
+		}
+		for (Entry victim : victims) {
+			_entries.remove(victim._key);
+			remove(victim);
+		}
+		return true;
+	}
+
+	private synchronized void finish(Loader loader) {
+		_loading.remove(loader._key);
+		if (loader._cancelled || loader._written != loader._length) {
+			freePages(loader._pages);
+			return;
+		}
+		_entries.put(loader._key, new Entry(loader._key, loader._path, loader._length, loader._pages));
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Content cache holds " + _entries.size() + " files in " + getUsed() + " bytes");
+		}
+	}
+
+	private synchronized void abort(Loader loader) {
+		if (_loading.get(loader._key) == loader) {
+			_loading.remove(loader._key);
+			freePages(loader._pages);
+		}
+	}
+
+	private void remove(Entry entry) {
+		entry._removed = true;
+		if (entry._readers == 0) {
+			freePages(entry._pages);
+		}
+	}
+
+	private void freePages(int[] pages) {
+		for (int page : pages) {
+			_freePages[_freeCount++] = page;
+		}
+	}
+
+	/**
+	 * @return a view of the page, positioned at its start, null once the
+	 *         cache is shut down
+	 */
+	private ByteBuffer getPage(int page) {
+		int slab = page / PAGES_PER_SLAB;
+		ByteBuffer buffer;
+		synchronized (_slabs) {
+			if (_shutdown) {
+				return null;
+			}
+			if (_slabs[slab] == null) {
+				int pages = Math.min(PAGES_PER_SLAB, _freePages.length - slab * PAGES_PER_SLAB);
+				_slabs[slab] = ByteBuffer.allocateDirect(pages * PAGE_SIZE);
+			}
+			buffer = _slabs[slab].duplicate();
+		}
+		int offset = (page % PAGES_PER_SLAB) * PAGE_SIZE;
+		buffer.limit(offset + PAGE_SIZE).position(offset);
+		return buffer;
+	}
+
+	private static boolean isChanged(String path, List<StoreChange> changes) {
+		for (StoreChange change : changes) {
+			// a removed folder takes its members along
+			if (isAncestorOrSelf(change.getPath(), path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isAncestorOrSelf(String ancestor, String path) {
+		if (path.equals(ancestor) || CharsetUtil.FORWARD_SLASH.equals(ancestor)) {
+			return true;
+		}
+		return path.startsWith(ancestor) && path.charAt(ancestor.length()) == CharsetUtil.CHAR_FORWARD_SLASH;
+	}
+
+	/**
+	 * Cached content of a file
+	 */
+	public static final class Entry {
+
+		private final String _key;
+		private final String _path;
+		private final int _length;
+		private final int[] _pages;
+		private int _readers = 0;
+		private boolean _removed = false;
+
+		private Entry(String key, String path, int length, int[] pages) {
+			_key = key;
+			_path = path;
+			_length = length;
+			_pages = pages;
+		}
+
+		public int getLength() {
+			return _length;
+		}
+	}
+
+	/**
+	 * Copies content into reserved pages while it is sent to the client. The
+	 * content is added to the cache by finish, if all of it was written.
+	 */
+	public final class Loader {
+
+		private final String _key;
+		private final String _path;
+		private final int _length;
+		private final int[] _pages;
+		private int _written = 0;
+		private volatile boolean _cancelled = false;
+
+		private Loader(String key, String path, int length, int[] pages) {
+			_key = key;
+			_path = path;
+			_length = length;
+			_pages = pages;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			if (_cancelled) {
+				return;
+			}
+			if (_written + len > _length) {
+				// the file grew since its length was read
+				_cancelled = true;
+				return;
+			}
+			while (len > 0) {
+				ByteBuffer buffer = getPage(_pages[_written / PAGE_SIZE]);
+				if (buffer == null) {
+					_cancelled = true;
+					return;
+				}
+				buffer.position(buffer.position() + _written % PAGE_SIZE);
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				_written += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		public void finish() {
+			ContentCache.this.finish(this);
+		}
+
+		/**
+		 * Returns the pages, if finish was not called
+		 */
+		public void abort() {
+			ContentCache.this.abort(this);
+		}
+	}
+
+	/**
+	 * Count-min sketch of how often keys were requested recently. Counters
+	 * saturate at 15 and are halved once the sketch has seen ten times as
+	 * many requests as it has counters per row, so the counts follow
+	 * changes in popularity.
+	 */
+	static final class FrequencySketch {
+
+		private static final int[] SEEDS = { 0x97cb3127, 0xb3d4ac5d, 0x6d4c3e5b, 0xe1f2a7c3 };
+		private static final int MAX_COUNT = 15;
+
+		private final int[][] _counters;
+		private final int _mask;
+		private final int _sampleSize;
+		private int _samples = 0;
+
+		FrequencySketch(int expectedEntries) {
+			int width = Integer.highestOneBit(Math.max(16, Math.min(expectedEntries, 1 << 24)) * 2 - 1);
+			_counters = new int[SEEDS.length][width];
+			_mask = width - 1;
+			_sampleSize = 10 * width;
+		}
+
+		void increment(String key) {
+			int hash = key.hashCode();
+			for (int i = 0; i < SEEDS.length; i++) {
+				int index = index(hash, i);
+				if (_counters[i][index] < MAX_COUNT) {
+					_counters[i][index]++;
+				}
+			}
+			if (++_samples >= _sampleSize) {
+				for (int[] row : _counters) {
+					for (int j = 0; j < row.length; j++) {
+						row[j] >>>= 1;
+					}
+				}
+				_samples /= 2;
+			}
+		}
+
+		int frequency(String key) {
+			int hash = key.hashCode();
+			int frequency = MAX_COUNT;
+			for (int i = 0; i < SEEDS.length; i++) {
+				frequency = Math.min(frequency, _counters[i][index(hash, i)]);
+			}
+			return frequency;
+		}
+
+		private int index(int hash, int row) {
+			int h = hash * SEEDS[row];
+			h ^= h >>> 16;
+			return h & _mask;
+		}
+	}
+}
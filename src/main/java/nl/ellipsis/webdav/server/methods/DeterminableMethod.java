@@ -27,6 +27,8 @@ public abstract class DeterminableMethod extends AbstractMethod {
 
 	private static final String LESS_ALLOWED_METHODS = "OPTIONS, MKCOL, PUT";
 
+	private static final String SYNC_METHOD_ALLOWED = "REPORT";
+
 	/**
 	 * Determines the methods normally allowed for the resource.
 	 * 
@@ -35,12 +37,26 @@ public abstract class DeterminableMethod extends AbstractMethod {
 	 * @return all allowed methods, separated by commas
 	 */
 	protected static String determineMethodsAllowed(StoredObject so) {
+		return determineMethodsAllowed(so, false);
+	}
+
+	/**
+	 * Determines the methods allowed for the resource.
+	 * 
+	 * @param so
+	 *            StoredObject representing the resource
+	 * @param syncCollection
+	 *            true if folders support the sync-collection REPORT
+	 * @return all allowed methods, separated by commas
+	 */
+	protected static String determineMethodsAllowed(StoredObject so, boolean syncCollection) {
 		try {
 			if (so != null) {
 				if (so.isNullResource()) {
 					return NULL_RESOURCE_METHODS_ALLOWED;
 				} else if (so.isFolder()) {
-					return RESOURCE_METHODS_ALLOWED + ", " + FOLDER_METHOD_ALLOWED;
+					return RESOURCE_METHODS_ALLOWED + ", " + FOLDER_METHOD_ALLOWED
+							+ (syncCollection ? ", " + SYNC_METHOD_ALLOWED : "");
 				}
 				// else resource
 				return RESOURCE_METHODS_ALLOWED;
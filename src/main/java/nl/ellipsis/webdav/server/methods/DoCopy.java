@@ -24,7 +24,9 @@ import javax.servlet.http.HttpServletResponse;
 import org.springframework.http.HttpStatus;
 
 import nl.ellipsis.webdav.HttpHeaders;
+import nl.ellipsis.webdav.server.ICopyStore;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -54,8 +56,10 @@ public class DoCopy extends AbstractMethod {
 		_readOnly = readOnly;
 	}
 
-	public void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException {
+	public void execute(RequestContext context) throws IOException, LockFailedException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
 		String path = getRelativePath(req);
 		if(LOG.isDebugEnabled()) {
 			LOG.debug("-- " + this.getClass().getName()+" "+path);
@@ -163,7 +167,7 @@ public class DoCopy extends AbstractMethod {
 				}
 
 				if (copySo.isNullResource()) {
-					String methodsAllowed = DeterminableMethod.determineMethodsAllowed(copySo);
+					String methodsAllowed = getMethodsAllowed(copySo);
 					resp.addHeader(javax.ws.rs.core.HttpHeaders.ALLOW, methodsAllowed);
 					resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
 					return false;
@@ -232,8 +236,7 @@ public class DoCopy extends AbstractMethod {
 		StoredObject sourceSo = _store.getStoredObject(transaction, sourcePath);
 		if (sourceSo.isResource()) {
 			_store.createResource(transaction, destinationPath);
-			long resourceLength = _store.setResourceContent(transaction, destinationPath,
-					_store.getResourceContent(transaction, sourcePath), null, null);
+			long resourceLength = copyContent(transaction, sourcePath, destinationPath);
 
 			if (resourceLength != -1) {
 				StoredObject destinationSo = _store.getStoredObject(transaction, destinationPath);
@@ -248,6 +251,19 @@ public class DoCopy extends AbstractMethod {
 		}
 	}
 
+	/**
+	 * Copies the content of a resource, without reading it if the store can
+	 * 
+	 * @return the length of the content, -1 if it is not known
+	 */
+	private long copyContent(ITransaction transaction, String sourcePath, String destinationPath) {
+		if (_store instanceof ICopyStore) {
+			return ((ICopyStore) _store).copyResource(transaction, sourcePath, destinationPath);
+		}
+		return _store.setResourceContent(transaction, destinationPath,
+				_store.getResourceContent(transaction, sourcePath), null, null);
+	}
+
 	/**
 	 * helper method of copy() recursively copies the FOLDER at source path to
 	 * destination path
@@ -292,8 +308,7 @@ public class DoCopy extends AbstractMethod {
 					childSo = _store.getStoredObject(transaction, childSourcePath);
 					if (childSo.isResource()) {
 						_store.createResource(transaction, destinationSourcePath);
-						long resourceLength = _store.setResourceContent(transaction,destinationSourcePath,
-								_store.getResourceContent(transaction, childSourcePath), null, null);
+						long resourceLength = copyContent(transaction, childSourcePath, destinationSourcePath);
 
 						if (resourceLength != -1) {
 							StoredObject destinationSo = _store.getStoredObject(transaction,destinationSourcePath);
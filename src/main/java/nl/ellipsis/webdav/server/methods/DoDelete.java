@@ -24,6 +24,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.springframework.http.HttpStatus;
 
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.exceptions.AccessDeniedException;
@@ -48,8 +49,10 @@ public class DoDelete extends AbstractMethod {
 		_readOnly = readOnly;
 	}
 
-	public void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException {
+	public void execute(RequestContext context) throws IOException, LockFailedException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
 		String path = getRelativePath(req);
 		if(LOG.isDebugEnabled()) {
 			LOG.debug("-- " + this.getClass().getName()+" "+path);
@@ -72,6 +75,11 @@ public class DoDelete extends AbstractMethod {
 			String tempLockOwner = "doDelete" + System.currentTimeMillis() + req.toString();
 			if (_resourceLocks.lock(transaction, path, tempLockOwner, false, 0, TEMP_TIMEOUT, TEMPORARY)) {
 				try {
+					Preconditions preconditions = Preconditions.fromRequest(req);
+					if (preconditions != null
+							&& !checkPreconditions(preconditions, resp, _store.getStoredObject(transaction, path), false)) {
+						return;
+					}
 					errorList = new Hashtable<String, Integer>();
 					deleteResource(transaction, path, errorList, req, resp);
 					if (!errorList.isEmpty()) {
@@ -15,18 +15,21 @@
  */
 package nl.ellipsis.webdav.server.methods;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Locale;
-import java.util.Vector;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.Velocity;
@@ -35,29 +38,92 @@ import nl.ellipsis.webdav.server.IMimeTyper;
 import nl.ellipsis.webdav.server.ITransaction;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
+import nl.ellipsis.webdav.server.StoredObjectPrefetcher;
 import nl.ellipsis.webdav.server.WebDAVServlet;
 import nl.ellipsis.webdav.server.locking.ResourceLocks;
-import nl.ellipsis.webdav.server.util.CharsetUtil;
+import nl.ellipsis.webdav.server.util.ResponseCompressor;
 import nl.ellipsis.webdav.server.util.URLUtil;
 
 public class DoGet extends DoHead {
 
 	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(DoGet.class);
 
+	private final ContentCache _contentCache;
+	private final FolderListing _folderListing;
+	private final AsyncDownloads _asyncDownloads;
+	private final FolderArchive _folderArchive;
+	private final ProxyOffload _proxyOffload;
+	private volatile Template _template = null;
+
 	public DoGet(IWebDAVStore store, String dftIndexFile, String insteadOf404, ResourceLocks resourceLocks,
 			IMimeTyper mimeTyper, int contentLengthHeader) {
-		super(store, dftIndexFile, insteadOf404, resourceLocks, mimeTyper, contentLengthHeader);
+		this(store, dftIndexFile, insteadOf404, resourceLocks, mimeTyper, contentLengthHeader, ContentCache.NONE);
 	}
 
-	protected void doBody(ITransaction transaction, HttpServletResponse resp, String path) {
+	public DoGet(IWebDAVStore store, String dftIndexFile, String insteadOf404, ResourceLocks resourceLocks,
+			IMimeTyper mimeTyper, int contentLengthHeader, ContentCache contentCache) {
+		this(store, dftIndexFile, insteadOf404, resourceLocks, mimeTyper, contentLengthHeader, contentCache,
+				GzipVariants.NONE);
+	}
+
+	public DoGet(IWebDAVStore store, String dftIndexFile, String insteadOf404, ResourceLocks resourceLocks,
+			IMimeTyper mimeTyper, int contentLengthHeader, ContentCache contentCache, GzipVariants gzipVariants) {
+		this(store, dftIndexFile, insteadOf404, resourceLocks, mimeTyper, contentLengthHeader, contentCache,
+				gzipVariants, new FolderListing(store, StoredObjectPrefetcher.NONE, FolderListing.DEFAULT_PAGE_SIZE));
+	}
+
+	public DoGet(IWebDAVStore store, String dftIndexFile, String insteadOf404, ResourceLocks resourceLocks,
+			IMimeTyper mimeTyper, int contentLengthHeader, ContentCache contentCache, GzipVariants gzipVariants,
+			FolderListing folderListing) {
+		this(store, dftIndexFile, insteadOf404, resourceLocks, mimeTyper, contentLengthHeader, contentCache,
+				gzipVariants, folderListing, AsyncDownloads.NONE);
+	}
+
+	public DoGet(IWebDAVStore store, String dftIndexFile, String insteadOf404, ResourceLocks resourceLocks,
+			IMimeTyper mimeTyper, int contentLengthHeader, ContentCache contentCache, GzipVariants gzipVariants,
+			FolderListing folderListing, AsyncDownloads asyncDownloads) {
+		this(store, dftIndexFile, insteadOf404, resourceLocks, mimeTyper, contentLengthHeader, contentCache,
+				gzipVariants, folderListing, asyncDownloads, ProxyOffload.NONE);
+	}
+
+	public DoGet(IWebDAVStore store, String dftIndexFile, String insteadOf404, ResourceLocks resourceLocks,
+			IMimeTyper mimeTyper, int contentLengthHeader, ContentCache contentCache, GzipVariants gzipVariants,
+			FolderListing folderListing, AsyncDownloads asyncDownloads, ProxyOffload proxyOffload) {
+		super(store, dftIndexFile, insteadOf404, resourceLocks, mimeTyper, contentLengthHeader, gzipVariants);
+		_contentCache = contentCache;
+		_folderListing = folderListing;
+		_asyncDownloads = asyncDownloads;
+		_folderArchive = new FolderArchive(store, mimeTyper);
+		_proxyOffload = proxyOffload;
+	}
+
+	protected void doBody(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp, String path) {
 		try {
 			StoredObject so = _store.getStoredObject(transaction, path);
 			if (so.isNullResource()) {
-				String methodsAllowed = DeterminableMethod.determineMethodsAllowed(so);
+				String methodsAllowed = getMethodsAllowed(so);
 				resp.addHeader(javax.ws.rs.core.HttpHeaders.ALLOW, methodsAllowed);
 				resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
 				return;
 			}
+			if (_proxyOffload.offload(transaction, resp, path)) {
+				return;
+			}
+			ContentCache.Loader loader = null;
+			if (_contentCache.isCacheable(so.getResourceLength())) {
+				String key = ContentCache.createKey(path, getETag(so));
+				ContentCache.Entry entry = _contentCache.acquire(key);
+				if (entry != null) {
+					writeCachedBody(resp, entry);
+					return;
+				}
+				loader = _contentCache.startLoad(key, path, so.getResourceLength());
+			}
+			if (loader == null && _asyncDownloads.isAsync(req, so.getResourceLength())) {
+				// the container thread returns once the download is started
+				_asyncDownloads.start(req, resp, path, _store.getResourceContent(transaction, path));
+				return;
+			}
 			OutputStream out = resp.getOutputStream();
 			InputStream in = _store.getResourceContent(transaction, path);
 			try {
@@ -66,8 +132,18 @@ public class DoGet extends DoHead {
 
 				while ((read = in.read(copyBuffer, 0, copyBuffer.length)) != -1) {
 					out.write(copyBuffer, 0, read);
+					if (loader != null) {
+						loader.write(copyBuffer, 0, read);
+					}
+				}
+				if (loader != null) {
+					loader.finish();
+					loader = null;
 				}
 			} finally {
+				if (loader != null) {
+					loader.abort();
+				}
 				// flushing causes a IOE if a file is opened on the webserver
 				// client disconnected before server finished sending response
 				try {
@@ -87,6 +163,39 @@ public class DoGet extends DoHead {
 		}
 	}
 
+	@Override
+	protected void variantBody(HttpServletResponse resp, FileChannel content) throws IOException {
+		OutputStream out = resp.getOutputStream();
+		try {
+			// the handle the length was taken from, not the file by its name
+			IOUtils.copy(Channels.newInputStream(content), out);
+		} finally {
+			try {
+				out.flush();
+				out.close();
+			} catch (Exception e) {
+				LOG.warn("Flushing OutputStream causes Exception!\n" + e.toString());
+			}
+		}
+	}
+
+	private void writeCachedBody(HttpServletResponse resp, ContentCache.Entry entry) {
+		try {
+			OutputStream out = resp.getOutputStream();
+			_contentCache.writeTo(entry, out);
+			try {
+				out.flush();
+				out.close();
+			} catch (Exception e) {
+				LOG.warn("Flushing OutputStream causes Exception!\n" + e.toString());
+			}
+		} catch (IOException e) {
+			LOG.warn("Writing cached content causes Exception!\n" + e.toString());
+		} finally {
+			_contentCache.release(entry);
+		}
+	}
+
 	protected void folderBody(ITransaction transaction, String path, HttpServletResponse resp, HttpServletRequest req)
 			throws IOException {
 
@@ -96,198 +205,61 @@ public class DoGet extends DoHead {
 		} else {
 
 			if (so.isNullResource()) {
-				String methodsAllowed = DeterminableMethod.determineMethodsAllowed(so);
+				String methodsAllowed = getMethodsAllowed(so);
 				resp.addHeader(javax.ws.rs.core.HttpHeaders.ALLOW, methodsAllowed);
 				resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
 				return;
 			}
 
 			if (so.isFolder()) {
-				// TODO some folder response (for browsers, DAV tools
-				// use propfind) in html?
-				// Locale locale = req.getLocale();
-				
-				DateFormat shortDF = getDateTimeFormat(req.getLocale());
+				ResponseCompressor.addVary(resp, javax.ws.rs.core.HttpHeaders.ACCEPT);
+				if (FolderArchive.isRequested(req)) {
+					resp.setContentType(FolderArchive.CONTENT_TYPE);
+					resp.setHeader(javax.ws.rs.core.HttpHeaders.CONTENT_DISPOSITION,
+							FolderArchive.getContentDisposition(path));
+					// the archive is written as the tree is walked
+					OutputStream out = resp.getOutputStream();
+					_folderArchive.write(transaction, path, out);
+					out.flush();
+					return;
+				}
+				// browsers get html, DAV tools use propfind
+				Locale locale = req.getLocale();
 				resp.setContentType("text/html");
 				resp.setCharacterEncoding("UTF8");
 				String[] children = _store.getChildrenNames(transaction, path);
 				// Make sure it's not null
 				children = (children == null ? new String[] {} : children);
-				// Sort by name
-				Arrays.sort(children);
-				
-				String css = getCSS();
-				
+				FolderListing.Page page = _folderListing.select(transaction, path, children,
+						req.getParameter(FolderListing.PARAM_SORT), req.getParameter(FolderListing.PARAM_ORDER),
+						req.getParameter(FolderListing.PARAM_PAGE), req.getParameter(FolderListing.PARAM_LIMIT));
+
 				String href = URLUtil.getCleanPath(req.getContextPath(),req.getServletPath());
 
 				if(WebDAVServlet.useVelocity) {
-					Template t = Velocity.getTemplate("webdav.vm");
+					Template t = getTemplate();
 					VelocityContext context = new VelocityContext();
 					context.put("path", URLUtil.getCleanPath(href,path));
-					context.put("css", css);
-					Vector resources = new Vector();
-					boolean isEven = false;
-					for (String child : children) {
-						isEven = !isEven;
-						StoredObject obj = _store.getStoredObject(transaction, URLUtil.getCleanPath(path,child));
-						resources.add(obj);
-					}
-					context.put("resources", resources);
-					t.merge(context, resp.getWriter());				
+					context.put("css", _folderListing.getCSS());
+					context.put("resources", page.getResources());
+					context.put("page", page);
+					t.merge(context, resp.getWriter());
 				} else  {
-					OutputStream out = resp.getOutputStream();
-					
-					StringBuilder sbFolderBody = new StringBuilder();
-					sbFolderBody.append("<html><head><title>Content of folder ");
-					sbFolderBody.append(URLUtil.getCleanPath(href,path));
-					sbFolderBody.append("</title><style type=\"text/css\">");
-					sbFolderBody.append(css);
-					sbFolderBody.append("</style></head>");
-					sbFolderBody.append("<body>");
-					sbFolderBody.append(getHeader(transaction, URLUtil.getCleanPath(href,path), resp, req));
-					sbFolderBody.append("<table>");
-					sbFolderBody.append("<tr><th>Name</th><th>Size</th><th>Created</th><th>Modified</th></tr>");
-					sbFolderBody.append("<tr>");
-					if(!path.equals(CharsetUtil.FORWARD_SLASH)) {
-						sbFolderBody.append("<td colspan=\"4\"><a href=\"../\">Parent</a></td></tr>");
-					}
-					boolean isEven = false;
-					for (String child : children) {
-						isEven = !isEven;
-						StoredObject obj = _store.getStoredObject(transaction, URLUtil.getCleanPath(path,child));
-						appendTableRow(transaction,sbFolderBody,URLUtil.getCleanPath(href,path),child,obj,isEven,shortDF);
-					}
-					sbFolderBody.append("</table>");
-					sbFolderBody.append(getFooter(transaction, path, resp, req));
-					sbFolderBody.append("</body></html>");
-					out.write(sbFolderBody.toString().getBytes("UTF-8"));
+					Writer out = new BufferedWriter(new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8),
+							BUF_SIZE);
+					_folderListing.write(out, href, path, page, locale);
+					out.flush();
 				}
 			}
 		}
 	}
 
-	/**
-	 * Return the header to be displayed in front of the folder content
-	 * 
-	 * @param transaction
-	 * @param path
-	 * @param resp
-	 * @param req
-	 * @return
-	 */
-	private void appendTableRow(ITransaction transaction, StringBuilder sb, String resourcePath, String resourceName, StoredObject obj, boolean isEven, DateFormat df) {
-		sb.append("<tr class=\"");
-		sb.append(isEven ? "even" : "odd");
-		sb.append("\">");
-		sb.append("<td>");
-		sb.append("<a href=\"");
-		sb.append(URLUtil.getCleanPath(resourcePath,resourceName));
-		if (obj == null) {
-			LOG.error("Should not return null for " + URLUtil.getCleanPath(resourcePath,resourceName));
-		}
-		if (obj != null && obj.isFolder()) {
-			sb.append("/");
-		}
-		sb.append("\">");
-		sb.append(resourceName);
-		sb.append("</a></td>");
-		if (obj != null && obj.isFolder()) {
-			sb.append("<td>Folder</td>");
-		} else {
-			sb.append("<td>");
-			if (obj != null) {
-				sb.append(obj.getResourceLength());
-			} else {
-				sb.append("Unknown");
-			}
-			sb.append(" Bytes</td>");
+	private Template getTemplate() {
+		Template template = _template;
+		if (template == null) {
+			template = Velocity.getTemplate("webdav.vm");
+			_template = template;
 		}
-		if (obj != null && obj.getCreationDate() != null) {
-			sb.append("<td>");
-			sb.append(df.format(obj.getCreationDate()));
-			sb.append("</td>");
-		} else {
-			sb.append("<td></td>");
-		}
-		if (obj != null && obj.getLastModified() != null) {
-			sb.append("<td>");
-			sb.append(df.format(obj.getLastModified()));
-			sb.append("</td>");
-		} else {
-			sb.append("<td></td>");
-		}
-		sb.append("</tr>");
-	}
-
-	/**
-	 * Return the CSS styles used to display the HTML representation of the webdav
-	 * content.
-	 * 
-	 * @return
-	 */
-	private String getCSS() {
-		// The default styles to use
-		String retVal = "body {\n" + "	font-family: Arial, Helvetica, sans-serif;\n" + "}\n" + "h1 {\n"
-				+ "	font-size: 1.5em;\n" + "}\n" + "th {\n" + "	background-color: #9DACBF;\n" + "}\n" + "table {\n"
-				+ "	border-top-style: solid;\n" + "	border-right-style: solid;\n" + "	border-bottom-style: solid;\n"
-				+ "	border-left-style: solid;\n" + "}\n" + "td {\n" + "	margin: 0px;\n" + "	padding-top: 2px;\n"
-				+ "	padding-right: 5px;\n" + "	padding-bottom: 2px;\n" + "	padding-left: 5px;\n" + "}\n"
-				+ "tr.even {\n" + "	background-color: #CCCCCC;\n" + "}\n" + "tr.odd {\n"
-				+ "	background-color: #FFFFFF;\n" + "}\n" + "";
-		try {
-			// Try loading one via class loader and use that one instead
-			ClassLoader cl = getClass().getClassLoader();
-			InputStream iStream = cl.getResourceAsStream("webdav.css");
-			if (iStream != null) {
-				// Found css via class loader, use that one
-				StringBuffer out = new StringBuffer();
-				byte[] b = new byte[4096];
-				for (int n; (n = iStream.read(b)) != -1;) {
-					out.append(new String(b, 0, n));
-				}
-				retVal = out.toString();
-			}
-		} catch (Exception ex) {
-			LOG.error("Error in reading webdav.css", ex);
-		}
-
-		return retVal;
-	}
-
-	/**
-	 * Return the header to be displayed in front of the folder content
-	 * 
-	 * @param transaction
-	 * @param path
-	 * @param resp
-	 * @param req
-	 * @return
-	 */
-	private String getHeader(ITransaction transaction, String path, HttpServletResponse resp, HttpServletRequest req) {
-		return "<h1>Content of folder " + path + "</h1>";
-	}
-
-	/**
-	 * Return the footer to be displayed after the folder content
-	 * 
-	 * @param transaction
-	 * @param path
-	 * @param resp
-	 * @param req
-	 * @return
-	 */
-	private String getFooter(ITransaction transaction, String path, HttpServletResponse resp, HttpServletRequest req) {
-		return "";
-	}
-	
-	/**
-	 * Return this as the Date/Time format for displaying Creation + Modification
-	 * dates
-	 *
-	 * @param browserLocale
-	 * @return DateFormat used to display creation and modification dates
-	 */
-	private DateFormat getDateTimeFormat(Locale browserLocale) {
-		return SimpleDateFormat.getDateTimeInstance(SimpleDateFormat.SHORT, SimpleDateFormat.MEDIUM, browserLocale);
+		return template;
 	}
 }
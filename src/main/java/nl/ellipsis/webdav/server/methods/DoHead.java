@@ -17,12 +17,14 @@ implied.
 package nl.ellipsis.webdav.server.methods;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.server.IMimeTyper;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -32,6 +34,7 @@ import nl.ellipsis.webdav.server.exceptions.ObjectAlreadyExistsException;
 import nl.ellipsis.webdav.server.exceptions.WebDAVException;
 import nl.ellipsis.webdav.server.locking.ResourceLocks;
 import nl.ellipsis.webdav.server.util.CharsetUtil;
+import nl.ellipsis.webdav.server.util.ResponseCompressor;
 import nl.ellipsis.webdav.server.util.URLUtil;
 
 public class DoHead extends AbstractMethod {
@@ -42,21 +45,32 @@ public class DoHead extends AbstractMethod {
 	protected ResourceLocks _resourceLocks;
 	protected IMimeTyper _mimeTyper;
 	protected int _contentLength;
+	protected GzipVariants _gzipVariants;
 
 	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(DoHead.class);
 
+	protected static final String HEADER_RANGE = "Range";
+
 	public DoHead(IWebDAVStore store, String dftIndexFile, String insteadOf404, ResourceLocks resourceLocks,
 			IMimeTyper mimeTyper, int contentLengthHeader) {
+		this(store, dftIndexFile, insteadOf404, resourceLocks, mimeTyper, contentLengthHeader, GzipVariants.NONE);
+	}
+
+	public DoHead(IWebDAVStore store, String dftIndexFile, String insteadOf404, ResourceLocks resourceLocks,
+			IMimeTyper mimeTyper, int contentLengthHeader, GzipVariants gzipVariants) {
 		_store = store;
 		_dftIndexFile = dftIndexFile;
 		_insteadOf404 = insteadOf404;
 		_resourceLocks = resourceLocks;
 		_mimeTyper = mimeTyper;
 		_contentLength = contentLengthHeader;
+		_gzipVariants = gzipVariants;
 	}
 
-	public void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException {
+	public void execute(RequestContext context) throws IOException, LockFailedException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
 		String path = getRelativePath(req);
 		if(LOG.isDebugEnabled()) {
 			LOG.debug("-- " + this.getClass().getName()+" "+path);
@@ -86,7 +100,7 @@ public class DoHead extends AbstractMethod {
 					return;
 				}
 			} else if (so.isNullResource()) {
-				String methodsAllowed = DeterminableMethod.determineMethodsAllowed(so);
+				String methodsAllowed = getMethodsAllowed(so);
 				resp.addHeader(javax.ws.rs.core.HttpHeaders.ALLOW, methodsAllowed);
 				resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
 				return;
@@ -95,16 +109,30 @@ public class DoHead extends AbstractMethod {
 			String tempLockOwner = "doGet" + System.currentTimeMillis() + req.toString();
 
 			if (_resourceLocks.lock(transaction, path, tempLockOwner, false, 0, TEMP_TIMEOUT, TEMPORARY)) {
+				FileChannel variantContent = null;
 				try {
 
-					String eTagMatch = req.getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
-					if (eTagMatch != null) {
-						if (eTagMatch.equals(getETag(so))) {
-							resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-							return;
+					GzipVariants.Variant variant = null;
+					if (bUriExists && so.isResource() && _gzipVariants.isCompressible(path)) {
+						ResponseCompressor.addVary(resp, javax.ws.rs.core.HttpHeaders.ACCEPT_ENCODING);
+						// a range always refers to the uncompressed content
+						if (req.getHeader(HEADER_RANGE) == null && ResponseCompressor
+								.acceptsGzip(req.getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT_ENCODING))) {
+							variant = _gzipVariants.getVariant(path, getETag(so));
+							variantContent = (variant != null ? variant.open() : null);
+							if (variantContent == null) {
+								variant = null;
+							}
 						}
 					}
 
+					// before the content is opened
+					Preconditions preconditions = Preconditions.fromRequest(req);
+					if (preconditions != null && !checkPreconditions(preconditions, resp, bUriExists ? so : null,
+							variant != null ? variant.getETag() : null, true)) {
+						return;
+					}
+
 					if (so.isResource()) {
 						// path points to a file but ends with / or \
 						if (path.endsWith(CharsetUtil.FORWARD_SLASH) || (path.endsWith(CharsetUtil.BACKSLASH))) {
@@ -115,10 +143,14 @@ public class DoHead extends AbstractMethod {
 							long lastModified = so.getLastModified().getTime();
 							resp.setDateHeader("last-modified", lastModified);
 
-							String eTag = getETag(so);
+							String eTag = (variant != null ? variant.getETag() : getETag(so));
 							resp.addHeader(javax.ws.rs.core.HttpHeaders.ETAG, eTag);
 
 							long resourceLength = so.getResourceLength();
+							if (variant != null) {
+								resp.setHeader(javax.ws.rs.core.HttpHeaders.CONTENT_ENCODING, ResponseCompressor.ENCODING_GZIP);
+								resourceLength = variantContent.size();
+							}
 
 							if (_contentLength == 1) {
 								if (resourceLength > 0) {
@@ -142,7 +174,11 @@ public class DoHead extends AbstractMethod {
 									resp.setContentType("text/html");
 								}
 							}
-							doBody(transaction, resp, path);
+							if (variant != null) {
+								variantBody(resp, variantContent);
+							} else {
+								doBody(transaction, req, resp, path);
+							}
 						}
 					} else {
 						folderBody(transaction, path, resp, req);
@@ -154,6 +190,9 @@ public class DoHead extends AbstractMethod {
 				} catch (WebDAVException e) {
 					resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 				} finally {
+					if (variantContent != null) {
+						variantContent.close();
+					}
 					_resourceLocks.unlockTemporaryLockedObjects(transaction, path, tempLockOwner);
 				}
 			} else {
@@ -173,7 +212,17 @@ public class DoHead extends AbstractMethod {
 		// no body for HEAD
 	}
 
-	protected void doBody(ITransaction transaction, HttpServletResponse resp, String path) throws IOException {
+	protected void doBody(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp, String path)
+			throws IOException {
+		// no body for HEAD
+	}
+
+	/**
+	 * @param content
+	 *            the open gzip variant, positioned at its start and closed by
+	 *            the caller
+	 */
+	protected void variantBody(HttpServletResponse resp, FileChannel content) throws IOException {
 		// no body for HEAD
 	}
 }
@@ -16,6 +16,7 @@
 package nl.ellipsis.webdav.server.methods;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Hashtable;
 
@@ -36,6 +37,7 @@ import org.xml.sax.SAXException;
 
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -54,144 +56,124 @@ public class DoLock extends AbstractMethod {
 	private IResourceLocks _resourceLocks;
 	private boolean _readOnly;
 
-	private boolean _macLockRequest = false;
-
-	private boolean _exclusive = false;
-	private String _type = null;
-	private String _lockOwner = null;
-
-	private String _path = null;
-	private String _parentPath = null;
-
-	private String _userAgent = null;
-
 	public DoLock(IWebDAVStore store, IResourceLocks resourceLocks, boolean readOnly) {
 		_store = store;
 		_resourceLocks = resourceLocks;
 		_readOnly = readOnly;
 	}
 
-	public void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException {
-		_path = getRelativePath(req);
+	public void execute(RequestContext context) throws IOException, LockFailedException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
+		String path = getRelativePath(req);
 		if(LOG.isDebugEnabled()) {
-			LOG.debug("-- " + this.getClass().getName()+" "+_path);
+			LOG.debug("-- " + this.getClass().getName()+" "+path);
 		}
 
 		if (_readOnly) {
 			resp.sendError(HttpServletResponse.SC_FORBIDDEN);
 			return;
 		} else {
-			_parentPath = URLUtil.getParentPath(_path);
+			String parentPath = URLUtil.getParentPath(path);
 
 			// Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
 
-			if (!checkLocks(transaction, req, resp, _resourceLocks, _path)) {
+			if (!checkLocks(transaction, req, resp, _resourceLocks, path)) {
 				resp.setStatus(HttpStatus.LOCKED.value());
 				return; // resource is locked
 			}
 
-			if (!checkLocks(transaction, req, resp, _resourceLocks, _parentPath)) {
+			if (!checkLocks(transaction, req, resp, _resourceLocks, parentPath)) {
 				resp.setStatus(HttpStatus.LOCKED.value());
 				return; // parent is locked
 			}
 
-			// Mac OS Finder (whether 10.4.x or 10.5) can't store files
-			// because executing a LOCK without lock information causes a
-			// SC_BAD_REQUEST
-			_userAgent = req.getHeader(javax.ws.rs.core.HttpHeaders.USER_AGENT);
-			if (_userAgent != null && _userAgent.indexOf("Darwin") != -1) {
-				_macLockRequest = true;
-
-				String timeString = new Long(System.currentTimeMillis()).toString();
-				_lockOwner = _userAgent.concat(timeString);
-			}
+			String userAgent = req.getHeader(javax.ws.rs.core.HttpHeaders.USER_AGENT);
+			LockRequest lockRequest = new LockRequest(path, parentPath, userAgent);
 
 			String tempLockOwner = "doLock" + System.currentTimeMillis() + req.toString();
-			if (_resourceLocks.lock(transaction, _path, tempLockOwner, false, 0, TEMP_TIMEOUT, TEMPORARY)) {
+			if (_resourceLocks.lock(transaction, path, tempLockOwner, false, 0, TEMP_TIMEOUT, TEMPORARY)) {
 				try {
 					if (req.getHeader(HttpHeaders.IF) != null) {
 						doRefreshLock(transaction, req, resp);
 					} else {
-						doLock(transaction, req, resp);
+						doLock(transaction, req, resp, lockRequest);
 					}
 				} catch (LockFailedException e) {
 					resp.sendError(HttpStatus.LOCKED.value());
 					LOG.error("Lockfailed exception", e);
 				} finally {
-					_resourceLocks.unlockTemporaryLockedObjects(transaction, _path, tempLockOwner);
+					_resourceLocks.unlockTemporaryLockedObjects(transaction, path, tempLockOwner);
 				}
 			}
 		}
 	}
 
-	private void doLock(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException {
+	private void doLock(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp,
+			LockRequest lockRequest) throws IOException, LockFailedException {
 
-		StoredObject so = _store.getStoredObject(transaction, _path);
+		StoredObject so = _store.getStoredObject(transaction, lockRequest.getPath());
 
 		if (so != null) {
-			doLocking(transaction, req, resp);
+			doLocking(transaction, req, resp, lockRequest);
 		} else {
 			// resource doesn't exist, null-resource lock
-			doNullResourceLock(transaction, req, resp);
+			doNullResourceLock(transaction, req, resp, lockRequest);
 		}
-
-		so = null;
-		_exclusive = false;
-		_type = null;
-		_lockOwner = null;
-
 	}
 
-	private void doLocking(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException {
+	private void doLocking(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp,
+			LockRequest lockRequest) throws IOException {
 
 		// Tests if LockObject on requested path exists, and if so, tests
 		// exclusivity
-		LockedObject lo = _resourceLocks.getLockedObjectByPath(transaction, _path);
+		LockedObject lo = _resourceLocks.getLockedObjectByPath(transaction, lockRequest.getPath());
 		if (lo != null) {
 			if (lo.isExclusive()) {
-				sendLockFailError(transaction, req, resp);
+				sendLockFailError(transaction, req, resp, lockRequest.getPath());
 				return;
 			}
 		}
 		try {
 			// Thats the locking itself
-			executeLock(transaction, req, resp);
+			executeLock(transaction, req, resp, lockRequest);
 		} catch (ServletException e) {
 			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 			LOG.error(e.toString());
 		} catch (LockFailedException e) {
-			sendLockFailError(transaction, req, resp);
+			sendLockFailError(transaction, req, resp, lockRequest.getPath());
 		} finally {
 			lo = null;
 		}
 
 	}
 
-	private void doNullResourceLock(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException {
+	private void doNullResourceLock(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp,
+			LockRequest lockRequest) throws IOException {
 
+		String path = lockRequest.getPath();
+		String parentPath = lockRequest.getParentPath();
+		String userAgent = lockRequest.getUserAgent();
 		StoredObject parentSo, nullSo = null;
 
 		try {
-			parentSo = _store.getStoredObject(transaction, _parentPath);
-			if (_parentPath != null && parentSo == null) {
-				_store.createFolder(transaction, _parentPath);
-			} else if (_parentPath != null && parentSo != null && parentSo.isResource()) {
+			parentSo = _store.getStoredObject(transaction, parentPath);
+			if (parentPath != null && parentSo == null) {
+				_store.createFolder(transaction, parentPath);
+			} else if (parentPath != null && parentSo != null && parentSo.isResource()) {
 				resp.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
 				return;
 			}
 
-			nullSo = _store.getStoredObject(transaction, _path);
+			nullSo = _store.getStoredObject(transaction, path);
 			if (nullSo == null) {
 				// resource doesn't exist
-				_store.createResource(transaction, _path);
+				_store.createResource(transaction, path);
 
 				// Transmit expects 204 response-code, not 201
-				if (_userAgent != null && _userAgent.indexOf("Transmit") != -1) {
-					LOG.debug("DoLock.execute() : do workaround for user agent '" + _userAgent + "'");
+				if (userAgent != null && userAgent.indexOf("Transmit") != -1) {
+					LOG.debug("DoLock.execute() : do workaround for user agent '" + userAgent + "'");
 					resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
 				} else {
 					resp.setStatus(HttpServletResponse.SC_CREATED);
@@ -199,18 +181,18 @@ public class DoLock extends AbstractMethod {
 
 			} else {
 				// resource already exists, could not execute null-resource lock
-				sendLockFailError(transaction, req, resp);
+				sendLockFailError(transaction, req, resp, path);
 				return;
 			}
-			nullSo = _store.getStoredObject(transaction, _path);
+			nullSo = _store.getStoredObject(transaction, path);
 			// define the newly created resource as null-resource
 			nullSo.setNullResource(true);
 
 			// Thats the locking itself
-			executeLock(transaction, req, resp);
+			executeLock(transaction, req, resp, lockRequest);
 
 		} catch (LockFailedException e) {
-			sendLockFailError(transaction, req, resp);
+			sendLockFailError(transaction, req, resp, path);
 		} catch (WebDAVException e) {
 			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 			LOG.error("Webdav exception", e);
@@ -238,8 +220,10 @@ public class DoLock extends AbstractMethod {
 				int timeout = getTimeout(transaction, req);
 
 				refreshLo.refreshTimeout(timeout);
-				// sending success response
-				generateXMLReport(transaction, resp, refreshLo);
+				// sending success response, with the lock information it was created with
+				String[] owners = refreshLo.getOwner();
+				generateXMLReport(transaction, req, resp, refreshLo, new LockInfo(refreshLo.isExclusive(),
+						refreshLo.getType(), owners != null && owners.length > 0 ? owners[0] : null));
 
 				refreshLo = null;
 			} else {
@@ -257,37 +241,39 @@ public class DoLock extends AbstractMethod {
 	/**
 	 * Executes the LOCK
 	 */
-	private void executeLock(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws LockFailedException, IOException, ServletException {
+	private void executeLock(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp,
+			LockRequest lockRequest) throws LockFailedException, IOException, ServletException {
 
+		String path = lockRequest.getPath();
 		// Mac OS lock request workaround
-		if (_macLockRequest) {
-			LOG.debug("DoLock.execute() : do workaround for user agent '" + _userAgent + "'");
+		if (lockRequest.isMacLockRequest()) {
+			LOG.debug("DoLock.execute() : do workaround for user agent '" + lockRequest.getUserAgent() + "'");
 
-			doMacLockRequestWorkaround(transaction, req, resp);
+			doMacLockRequestWorkaround(transaction, req, resp, lockRequest);
 		} else {
 			// Getting LockInformation from request
-			if (getLockInformation(transaction, req, resp)) {
+			LockInfo lockInfo = getLockInformation(transaction, req, resp);
+			if (lockInfo != null) {
 				int depth = getDepth(req);
 				int lockDuration = getTimeout(transaction, req);
 
 				boolean lockSuccess = false;
-				if (_exclusive) {
-					lockSuccess = _resourceLocks.exclusiveLock(transaction, _path, _lockOwner, depth, lockDuration);
+				if (lockInfo.isExclusive()) {
+					lockSuccess = _resourceLocks.exclusiveLock(transaction, path, lockInfo.getOwner(), depth, lockDuration);
 				} else {
-					lockSuccess = _resourceLocks.sharedLock(transaction, _path, _lockOwner, depth, lockDuration);
+					lockSuccess = _resourceLocks.sharedLock(transaction, path, lockInfo.getOwner(), depth, lockDuration);
 				}
 
 				if (lockSuccess) {
 					// Locks successfully placed - return information about
-					LockedObject lo = _resourceLocks.getLockedObjectByPath(transaction, _path);
+					LockedObject lo = _resourceLocks.getLockedObjectByPath(transaction, path);
 					if (lo != null) {
-						generateXMLReport(transaction, resp, lo);
+						generateXMLReport(transaction, req, resp, lo, lockInfo);
 					} else {
 						resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 					}
 				} else {
-					sendLockFailError(transaction, req, resp);
+					sendLockFailError(transaction, req, resp, path);
 
 					throw new LockFailedException();
 				}
@@ -301,10 +287,16 @@ public class DoLock extends AbstractMethod {
 
 	/**
 	 * Tries to get the LockInformation from LOCK request
+	 * 
+	 * @return the lock information, or null if the request does not contain
+	 *         valid lock information
 	 */
-	private boolean getLockInformation(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
+	private LockInfo getLockInformation(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
 
+		boolean exclusive = false;
+		String type = null;
+		String lockOwner = null;
 		Node lockInfoNode = null;
 		try {
 			Document document = getDocument(req);
@@ -339,7 +331,7 @@ public class DoLock extends AbstractMethod {
 							lockOwnerNode = currentNode;
 						}
 					} else {
-						return false;
+						return null;
 					}
 				}
 
@@ -353,18 +345,18 @@ public class DoLock extends AbstractMethod {
 							scope = currentNode.getNodeName();
 
 							if (scope.endsWith("exclusive")) {
-								_exclusive = true;
+								exclusive = true;
 							} else if (scope.equals("shared")) {
-								_exclusive = false;
+								exclusive = false;
 							}
 						}
 					}
 					if (scope == null) {
-						return false;
+						return null;
 					}
 
 				} else {
-					return false;
+					return null;
 				}
 
 				if (lockTypeNode != null) {
@@ -373,20 +365,20 @@ public class DoLock extends AbstractMethod {
 						currentNode = childList.item(i);
 
 						if (currentNode.getNodeType() == Node.ELEMENT_NODE) {
-							_type = currentNode.getNodeName();
+							type = currentNode.getNodeName();
 
-							if (_type.endsWith("write")) {
-								_type = "write";
-							} else if (_type.equals("read")) {
-								_type = "read";
+							if (type.endsWith("write")) {
+								type = "write";
+							} else if (type.equals("read")) {
+								type = "read";
 							}
 						}
 					}
-					if (_type == null) {
-						return false;
+					if (type == null) {
+						return null;
 					}
 				} else {
-					return false;
+					return null;
 				}
 
 				if (lockOwnerNode != null) {
@@ -394,28 +386,28 @@ public class DoLock extends AbstractMethod {
 					for (int i = 0; i < childList.getLength(); i++) {
 						currentNode = childList.item(i);				
 						if (currentNode.getNodeType() == Node.ELEMENT_NODE || currentNode.getNodeType() == Node.TEXT_NODE) {
-							_lockOwner = currentNode.hasChildNodes() ? currentNode.getFirstChild().getNodeValue() : currentNode.getNodeValue();
+							lockOwner = currentNode.hasChildNodes() ? currentNode.getFirstChild().getNodeValue() : currentNode.getNodeValue();
 						}
 					}
 				}
-				if (_lockOwner == null) {
-					return false;
+				if (lockOwner == null) {
+					return null;
 				}
 			} else {
-				return false;
+				return null;
 			}
 
 		} catch (DOMException e) {
 			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 			LOG.error("DOM exception", e);
-			return false;
+			return null;
 		} catch (SAXException | ParserConfigurationException e) {
 			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 			LOG.error("SAX exception", e);
-			return false;
+			return null;
 		}
 
-		return true;
+		return new LockInfo(exclusive, type, lockOwner);
 	}
 
 	/**
@@ -460,24 +452,25 @@ public class DoLock extends AbstractMethod {
 	/**
 	 * Generates the response XML with all lock information
 	 */
-	private void generateXMLReport(ITransaction transaction, HttpServletResponse resp, LockedObject lo)
-			throws IOException {
+	private void generateXMLReport(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp, LockedObject lo,
+			LockInfo lockInfo) throws IOException {
 
 		resp.setStatus(HttpServletResponse.SC_OK);
 		resp.setContentType("text/xml; charset=UTF-8");
 
-		XMLWriter generatedXML = new XMLWriter(resp.getWriter());
+		Writer writer = _responseCompressor.getWriter(req, resp);
+		XMLWriter generatedXML = new XMLWriter(writer);
 		generatedXML.writeXMLHeader();
 		generatedXML.writeElement(NS_DAV_PREFIX,NS_DAV_FULLNAME,WebDAVConstants.XMLTag.PROP, XMLWriter.OPENING);
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.LOCKDISCOVERY, XMLWriter.OPENING);
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.ACTIVELOCK, XMLWriter.OPENING);
 
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.LOCKTYPE, XMLWriter.OPENING);
-		generatedXML.writeProperty(NS_DAV_PREFIX,_type);
+		generatedXML.writeProperty(NS_DAV_PREFIX,lockInfo.getType());
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.LOCKTYPE, XMLWriter.CLOSING);
 
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.LOCKSCOPE, XMLWriter.OPENING);
-		if (_exclusive) {
+		if (lockInfo.isExclusive()) {
 			generatedXML.writeProperty(NS_DAV_PREFIX,"exclusive");
 		} else {
 			generatedXML.writeProperty(NS_DAV_PREFIX,"shared");
@@ -496,7 +489,7 @@ public class DoLock extends AbstractMethod {
 
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.OWNER, XMLWriter.OPENING);
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.HREF, XMLWriter.OPENING);
-		generatedXML.writeText(_lockOwner);
+		generatedXML.writeText(lockInfo.getOwner());
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.HREF, XMLWriter.CLOSING);
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.OWNER, XMLWriter.CLOSING);
 
@@ -519,13 +512,18 @@ public class DoLock extends AbstractMethod {
 		resp.addHeader(HttpHeaders.LOCK_TOKEN, "<opaquelocktoken:" + lockToken + ">");
 
 		generatedXML.sendData("doLock.response "+lo.getPath()+"\n");
+		writer.close();
 	}
 
 	/**
 	 * Executes the lock for a Mac OS Finder client
 	 */
-	private void doMacLockRequestWorkaround(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws LockFailedException, IOException {
+	private void doMacLockRequestWorkaround(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp,
+			LockRequest lockRequest) throws LockFailedException, IOException {
+		String path = lockRequest.getPath();
+		// the Finder sends no lock information, lock exclusively for the client
+		LockInfo lockInfo = new LockInfo(true, WebDAVConstants.XMLTag.WRITE,
+				lockRequest.getUserAgent().concat(Long.toString(System.currentTimeMillis())));
 		LockedObject lo;
 		int depth = getDepth(req);
 		int lockDuration = getTimeout(transaction, req);
@@ -533,30 +531,95 @@ public class DoLock extends AbstractMethod {
 			lockDuration = DEFAULT_TIMEOUT;
 
 		boolean lockSuccess = false;
-		lockSuccess = _resourceLocks.exclusiveLock(transaction, _path, _lockOwner, depth, lockDuration);
+		lockSuccess = _resourceLocks.exclusiveLock(transaction, path, lockInfo.getOwner(), depth, lockDuration);
 
 		if (lockSuccess) {
 			// Locks successfully placed - return information about
-			lo = _resourceLocks.getLockedObjectByPath(transaction, _path);
+			lo = _resourceLocks.getLockedObjectByPath(transaction, path);
 			if (lo != null) {
-				generateXMLReport(transaction, resp, lo);
+				generateXMLReport(transaction, req, resp, lo, lockInfo);
 			} else {
 				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 			}
 		} else {
 			// Locking was not successful
-			sendLockFailError(transaction, req, resp);
+			sendLockFailError(transaction, req, resp, path);
 		}
 	}
 
 	/**
 	 * Sends an error report to the client
 	 */
-	private void sendLockFailError(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException {
+	private void sendLockFailError(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp,
+			String path) throws IOException {
 		Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
-		errorList.put(_path, HttpStatus.LOCKED.value());
+		errorList.put(path, HttpStatus.LOCKED.value());
 		sendReport(req, resp, errorList);
 	}
 
+	/**
+	 * Immutable description of the resource a LOCK request applies to
+	 */
+	private static final class LockRequest {
+
+		private final String _path;
+		private final String _parentPath;
+		private final String _userAgent;
+		private final boolean _macLockRequest;
+
+		LockRequest(String path, String parentPath, String userAgent) {
+			_path = path;
+			_parentPath = parentPath;
+			_userAgent = userAgent;
+			// Mac OS Finder (whether 10.4.x or 10.5) can't store files
+			// because executing a LOCK without lock information causes a
+			// SC_BAD_REQUEST
+			_macLockRequest = userAgent != null && userAgent.indexOf("Darwin") != -1;
+		}
+
+		String getPath() {
+			return _path;
+		}
+
+		String getParentPath() {
+			return _parentPath;
+		}
+
+		String getUserAgent() {
+			return _userAgent;
+		}
+
+		boolean isMacLockRequest() {
+			return _macLockRequest;
+		}
+	}
+
+	/**
+	 * Immutable lock information (scope, type and owner) of a LOCK request
+	 */
+	private static final class LockInfo {
+
+		private final boolean _exclusive;
+		private final String _type;
+		private final String _owner;
+
+		LockInfo(boolean exclusive, String type, String owner) {
+			_exclusive = exclusive;
+			_type = type;
+			_owner = owner;
+		}
+
+		boolean isExclusive() {
+			return _exclusive;
+		}
+
+		String getType() {
+			return _type;
+		}
+
+		String getOwner() {
+			return _owner;
+		}
+	}
+
 }
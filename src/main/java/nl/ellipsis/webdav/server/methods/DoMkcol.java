@@ -24,6 +24,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.springframework.http.HttpStatus;
 
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -48,8 +49,10 @@ public class DoMkcol extends AbstractMethod {
 		_readOnly = readOnly;
 	}
 
-	public void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException {
+	public void execute(RequestContext context) throws IOException, LockFailedException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
 		String path = getRelativePath(req);
 		if(LOG.isDebugEnabled()) {
 			LOG.debug("-- " + this.getClass().getName()+" "+path);
@@ -128,7 +131,7 @@ public class DoMkcol extends AbstractMethod {
 								}
 
 							} else {
-								String methodsAllowed = DeterminableMethod.determineMethodsAllowed(so);
+								String methodsAllowed = getMethodsAllowed(so);
 								resp.addHeader(javax.ws.rs.core.HttpHeaders.ALLOW, methodsAllowed);
 								resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
 							}
@@ -139,7 +142,7 @@ public class DoMkcol extends AbstractMethod {
 						LOG.debug("MkCol on resource is not executable"
 								+ "\n Sending SC_METHOD_NOT_ALLOWED (405) error response!");
 
-						String methodsAllowed = DeterminableMethod.determineMethodsAllowed(parentSo);
+						String methodsAllowed = getMethodsAllowed(parentSo);
 						resp.addHeader(javax.ws.rs.core.HttpHeaders.ALLOW, methodsAllowed);
 						resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
 
@@ -25,6 +25,7 @@ import org.springframework.http.HttpStatus;
 
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.WebDAVConstants;
 import nl.ellipsis.webdav.server.exceptions.AccessDeniedException;
 import nl.ellipsis.webdav.server.exceptions.LockFailedException;
@@ -48,8 +49,10 @@ public class DoMove extends AbstractMethod {
 		_readOnly = readOnly;
 	}
 
-	public void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException {
+	public void execute(RequestContext context) throws IOException, LockFailedException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
 		String sourcePath = getRelativePath(req);
 		String destinationPath = req.getHeader(HttpHeaders.DESTINATION);
 		if(LOG.isDebugEnabled()) {
@@ -23,6 +23,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.server.IMethodExecutor;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 
 public class DoNotImplemented implements IMethodExecutor {
 
@@ -33,7 +34,10 @@ public class DoNotImplemented implements IMethodExecutor {
 		_readOnly = readOnly;
 	}
 
-	public void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+	public void execute(RequestContext context) throws IOException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
 		LOG.debug("-- " + req.getMethod());
 
 		if (_readOnly) {
@@ -22,6 +22,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -42,8 +43,10 @@ public class DoOptions extends DeterminableMethod {
 		_resourceLocks = resLocks;
 	}
 
-	public void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException {
+	public void execute(RequestContext context) throws IOException, LockFailedException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
 		String path = getRelativePath(req);
 		if(LOG.isDebugEnabled()) {
 			LOG.debug("-- " + this.getClass().getName()+" "+path);
@@ -56,7 +59,7 @@ public class DoOptions extends DeterminableMethod {
 				resp.addHeader(HttpHeaders.DAV, "1, 2");
 
 				so = _store.getStoredObject(transaction, path);
-				String methodsAllowed = determineMethodsAllowed(so);
+				String methodsAllowed = getMethodsAllowed(so);
 				resp.addHeader(javax.ws.rs.core.HttpHeaders.ALLOW, methodsAllowed);
 				resp.addHeader(HttpHeaders.MS_AUTHOR_VIA, "DAV");
 			} catch (AccessDeniedException e) {
@@ -15,11 +15,22 @@
  */
 package nl.ellipsis.webdav.server.methods;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Enumeration;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Vector;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -34,15 +45,20 @@ import org.xml.sax.InputSource;
 
 import nl.ellipsis.webdav.server.IMimeTyper;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
+import nl.ellipsis.webdav.server.StoredObjectPrefetcher;
 import nl.ellipsis.webdav.server.WebDAVConstants;
 import nl.ellipsis.webdav.server.exceptions.AccessDeniedException;
 import nl.ellipsis.webdav.server.exceptions.LockFailedException;
 import nl.ellipsis.webdav.server.exceptions.WebDAVException;
 import nl.ellipsis.webdav.server.locking.LockedObject;
 import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.properties.IPropertyProvider;
+import nl.ellipsis.webdav.server.properties.PropertyProviderRegistry;
 import nl.ellipsis.webdav.server.util.CharsetUtil;
+import nl.ellipsis.webdav.server.util.JSONWriter;
 import nl.ellipsis.webdav.server.util.URLEncoder;
 import nl.ellipsis.webdav.server.util.URLUtil;
 import nl.ellipsis.webdav.server.util.XMLHelper;
@@ -72,20 +88,110 @@ public class DoPropfind extends AbstractMethod {
 	 */
 	private static final int FIND_PROPERTY_NAMES = 2;
 
+	/**
+	 * Status lines of the propstat elements
+	 */
+	private static final String STATUS_OK = "HTTP/1.1 " + HttpServletResponse.SC_OK + " "
+			+ HttpStatus.OK.getReasonPhrase();
+	private static final String STATUS_NOT_FOUND = "HTTP/1.1 " + HttpServletResponse.SC_NOT_FOUND + " "
+			+ HttpStatus.NOT_FOUND.getReasonPhrase();
+
+	/**
+	 * Prefix for properties outside the DAV: namespace that are not found,
+	 * declared on the element itself
+	 */
+	private static final String NS_OTHER_PREFIX = "ns";
+
+	/**
+	 * Member names of the JSON listing
+	 */
+	private static final String JSON_COLLECTION = "collection";
+	private static final String JSON_ETAG = "etag";
+	private static final String JSON_HREF = "href";
+	private static final String JSON_MTIME = "mtime";
+	private static final String JSON_NAME = "name";
+	private static final String JSON_SIZE = "size";
+
+	/**
+	 * Number of entries after which the generated response is flushed to the
+	 * client
+	 */
+	private static final int FLUSH_INTERVAL = 100;
+
 	private IWebDAVStore _store;
 	private ResourceLocks _resourceLocks;
 	private IMimeTyper _mimeTyper;
+	private PropfindPolicy _policy;
+	private StoredObjectPrefetcher _prefetcher;
+	private PropertyProviderRegistry _propertyProviders;
+	private PropfindCache _cache;
+	private PropfindFragmentCache _fragmentCache;
 
-	private int _depth;
+	private final AtomicLong _requestCount = new AtomicLong();
+	private final AtomicLong _entriesVisited = new AtomicLong();
+	private final AtomicLong _truncatedCount = new AtomicLong();
 
 	public DoPropfind(IWebDAVStore store, ResourceLocks resLocks, IMimeTyper mimeTyper) {
+		this(store, resLocks, mimeTyper, PropfindPolicy.UNLIMITED);
+	}
+
+	public DoPropfind(IWebDAVStore store, ResourceLocks resLocks, IMimeTyper mimeTyper, PropfindPolicy policy) {
+		this(store, resLocks, mimeTyper, policy, StoredObjectPrefetcher.NONE);
+	}
+
+	public DoPropfind(IWebDAVStore store, ResourceLocks resLocks, IMimeTyper mimeTyper, PropfindPolicy policy,
+			StoredObjectPrefetcher prefetcher) {
+		this(store, resLocks, mimeTyper, policy, prefetcher, new PropertyProviderRegistry());
+	}
+
+	public DoPropfind(IWebDAVStore store, ResourceLocks resLocks, IMimeTyper mimeTyper, PropfindPolicy policy,
+			StoredObjectPrefetcher prefetcher, PropertyProviderRegistry propertyProviders) {
+		this(store, resLocks, mimeTyper, policy, prefetcher, propertyProviders, PropfindCache.NONE);
+	}
+
+	public DoPropfind(IWebDAVStore store, ResourceLocks resLocks, IMimeTyper mimeTyper, PropfindPolicy policy,
+			StoredObjectPrefetcher prefetcher, PropertyProviderRegistry propertyProviders, PropfindCache cache) {
+		this(store, resLocks, mimeTyper, policy, prefetcher, propertyProviders, cache, PropfindFragmentCache.NONE);
+	}
+
+	public DoPropfind(IWebDAVStore store, ResourceLocks resLocks, IMimeTyper mimeTyper, PropfindPolicy policy,
+			StoredObjectPrefetcher prefetcher, PropertyProviderRegistry propertyProviders, PropfindCache cache,
+			PropfindFragmentCache fragmentCache) {
 		_store = store;
 		_resourceLocks = resLocks;
 		_mimeTyper = mimeTyper;
+		_policy = policy;
+		_prefetcher = prefetcher;
+		_propertyProviders = propertyProviders;
+		_cache = cache;
+		_fragmentCache = fragmentCache;
+	}
+
+	/**
+	 * @return number of PROPFIND requests that produced a listing
+	 */
+	public long getRequestCount() {
+		return _requestCount.get();
 	}
 
-	public void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException {
+	/**
+	 * @return total number of entries written by all PROPFIND requests
+	 */
+	public long getEntriesVisited() {
+		return _entriesVisited.get();
+	}
+
+	/**
+	 * @return number of listings that were cut off by the entry limit
+	 */
+	public long getTruncatedCount() {
+		return _truncatedCount.get();
+	}
+
+	public void execute(RequestContext context) throws IOException, LockFailedException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
 		String path = getRelativePath(req);
 		if(LOG.isDebugEnabled()) {
 			LOG.debug("-- " + this.getClass().getName()+" "+path);
@@ -93,9 +199,14 @@ public class DoPropfind extends AbstractMethod {
 
 		// Retrieve the resources
 		String tempLockOwner = "doPropfind" + System.currentTimeMillis() + req.toString();
-		_depth = getDepth(req);
+		int requestedDepth = getDepth(req);
+		if (_policy.rejects(requestedDepth)) {
+			sendConditionError(resp, HttpServletResponse.SC_FORBIDDEN, WebDAVConstants.XMLTag.PROPFIND_FINITE_DEPTH);
+			return;
+		}
+		final int depth = _policy.getEffectiveDepth(requestedDepth);
 
-		if (_resourceLocks.lock(transaction, path, tempLockOwner, false, _depth, TEMP_TIMEOUT, TEMPORARY)) {
+		if (_resourceLocks.lock(transaction, path, tempLockOwner, false, depth, TEMP_TIMEOUT, TEMPORARY)) {
 
 			StoredObject so = null;
 			try {
@@ -106,11 +217,11 @@ public class DoPropfind extends AbstractMethod {
 					return;
 				}
 
-				Vector<String> properties = null;
 				path = getRelativePath(req);
 
 				int propertyFindType = FIND_ALL_PROP;
 				Node propNode = null;
+				Node includeNode = null;
 
 				if (req.getContentLength() != 0) {
 					try {
@@ -125,6 +236,7 @@ public class DoPropfind extends AbstractMethod {
 							propertyFindType = FIND_PROPERTY_NAMES;
 						} else if (XMLHelper.findSubElement(rootElement, "allprop") != null) {
 							propertyFindType = FIND_ALL_PROP;
+							includeNode = XMLHelper.findSubElement(rootElement, "include");
 						}
 					} catch (Exception e) {
 						resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -135,31 +247,38 @@ public class DoPropfind extends AbstractMethod {
 					propertyFindType = FIND_ALL_PROP;
 				}
 
+				PropertyPlan plan = null;
 				if (propertyFindType == FIND_BY_PROPERTY) {
-					propertyFindType = 0;
-					properties = XMLHelper.getPropertiesFromXML(propNode);
+					plan = PropertyPlan.forProp(propNode, _propertyProviders);
+				} else if (propertyFindType == FIND_ALL_PROP) {
+					plan = PropertyPlan.forAllprop(includeNode, _propertyProviders);
 				}
 
-				resp.setStatus(HttpStatus.MULTI_STATUS.value());
-				resp.setContentType("text/xml; charset=UTF-8");
-
-				// Create multistatus object
-				XMLWriter generatedXML = new XMLWriter(resp.getWriter());
-				generatedXML.writeXMLHeader();
-				generatedXML.writeElement(NS_DAV_PREFIX,NS_DAV_FULLNAME,WebDAVConstants.XMLTag.MULTISTATUS,XMLWriter.OPENING);
-				if (_depth == 0) {
-					parseProperties(transaction, req, generatedXML, path, propertyFindType, properties);
-				} else {
-					recursiveParseProperties(transaction, path, req, generatedXML, propertyFindType, properties, _depth);
+				final boolean json = isJSONRequested(req);
+				// values of providers, like the quota, can change with writes
+				// elsewhere, which do not invalidate the path
+				if (_cache.isEnabled() && depth != DEPTH_INFINITY && (plan == null || plan._resourceOnly)) {
+					PropfindCache.Entry entry = getCachedResponse(transaction, req, path, so, propertyFindType, plan,
+							depth, json);
+					if (entry != null) {
+						resp.setStatus(entry.getStatus());
+						resp.setContentType(entry.getContentType());
+						_responseCompressor.send(req, resp, entry.getBody(), entry.getCompressedBody());
+						return;
+					}
 				}
-				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.MULTISTATUS,XMLWriter.CLOSING);
 
-				generatedXML.sendData("doPropfind.response "+path+"\n");
+				resp.setStatus(json ? HttpServletResponse.SC_OK : HttpStatus.MULTI_STATUS.value());
+				resp.setContentType(json ? WebDAVConstants.CONTENTTYPE_JSON_UTF8 : "text/xml; charset=UTF-8");
+				Writer writer = _responseCompressor.getWriter(req, resp);
+				Traversal traversal = render(transaction, req, resp, path, so, propertyFindType, plan, depth, json,
+						writer);
+				writer.close();
+				countTraversal(path, depth, traversal);
 			} catch (AccessDeniedException e) {
-				resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+				sendFailure(resp, path, HttpServletResponse.SC_FORBIDDEN, e);
 			} catch (WebDAVException e) {
-				LOG.warn("Sending internal error!");
-				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				sendFailure(resp, path, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e);
 			} finally {
 				_resourceLocks.unlockTemporaryLockedObjects(transaction, path, tempLockOwner);
 			}
@@ -171,35 +290,618 @@ public class DoPropfind extends AbstractMethod {
 	}
 
 	/**
-	 * goes recursive through all folders. used by propfind
+	 * Sends the error status, unless part of the listing has been sent
+	 * already; the listing is cut off then
+	 */
+	private static void sendFailure(HttpServletResponse resp, String path, int status, WebDAVException e)
+			throws IOException {
+		if (resp.isCommitted()) {
+			LOG.error("Listing " + path + " failed after the response was committed", e);
+			return;
+		}
+		if (status == HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+			LOG.warn("Sending internal error!");
+		}
+		resp.sendError(status);
+	}
+
+	/**
+	 * Renders the listing into the cache, or takes it from there
+	 * 
+	 * @return the response, null if it has to be rendered to the client
+	 *         directly
+	 */
+	private PropfindCache.Entry getCachedResponse(final ITransaction transaction, final HttpServletRequest req,
+			final String path, final StoredObject so, final int type, final PropertyPlan plan, final int depth,
+			final boolean json) throws IOException {
+		// the property mask does not apply to JSON
+		String properties = (json ? WebDAVConstants.MEDIATYPE_JSON : describeProperties(type, plan));
+		Principal principal = (transaction != null ? transaction.getPrincipal() : null);
+		if (principal == null) {
+			principal = req.getUserPrincipal();
+		}
+		String key = PropfindCache.createKey(URLUtil.getCleanPath(req.getContextPath(), req.getServletPath()),
+				(principal != null ? principal.getName() : null), path, depth,
+				(json ? WebDAVConstants.MEDIATYPE_JSON : NS_DAV_FULLNAME), properties);
+
+		return _cache.get(key, path, _resourceLocks.getVersion(), new Callable<PropfindCache.Entry>() {
+			public PropfindCache.Entry call() throws IOException {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+				Traversal traversal = render(transaction, req, null, path, so, type, plan, depth, json, writer);
+				writer.close();
+				countTraversal(path, depth, traversal);
+
+				byte[] body = buffer.toByteArray();
+				return new PropfindCache.Entry(json ? HttpServletResponse.SC_OK : HttpStatus.MULTI_STATUS.value(),
+						json ? WebDAVConstants.CONTENTTYPE_JSON_UTF8 : "text/xml; charset=UTF-8", body,
+						_responseCompressor.compress(body));
+			}
+		});
+	}
+
+	/**
+	 * @return normalized description of the requested properties, for cache
+	 *         keys
+	 */
+	private static String describeProperties(int type, PropertyPlan plan) {
+		if (type == FIND_PROPERTY_NAMES) {
+			return WebDAVConstants.XMLTag.PROPNAME;
+		}
+		return (type == FIND_ALL_PROP ? WebDAVConstants.XMLTag.ALLPROP : WebDAVConstants.XMLTag.PROP)
+				+ plan.describe();
+	}
+
+	/**
+	 * Writes the listing of the resource at path, as a multistatus or as JSON
 	 * 
-	 * @param currentPath
-	 *            the current path
+	 * @param writer
+	 *            receives the response body, is not closed
+	 * @return number of entries written and whether the listing is complete
+	 */
+	private Traversal render(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp, String path,
+			StoredObject so, final int type, final PropertyPlan plan, final int depth, boolean json, Writer writer)
+			throws IOException {
+		final Traversal traversal = new Traversal();
+		if (json) {
+			// compact listing, the property mask does not apply
+			final JSONWriter generatedJSON = new JSONWriter(writer);
+			generatedJSON.writeArrayStart();
+			traverse(transaction, path, so, req, new IResourceWriter() {
+				public void write(ITransaction transaction, HttpServletRequest req, String path,
+						StoredObject so) throws IOException {
+					parseJSONProperties(transaction, req, generatedJSON, path, so);
+				}
+
+				public void folderListed(ITransaction transaction, String path, String[] names) {
+				}
+
+				public void flush() throws IOException {
+					generatedJSON.flush();
+				}
+			}, depth, traversal);
+			generatedJSON.writeArrayEnd();
+		} else {
+			// Create multistatus object
+			final XMLWriter generatedXML = new XMLWriter(writer);
+			final IOBatch ioBatch = (plan != null && plan._hasIO ? new IOBatch(plan) : null);
+			// only responses that follow from the resource alone are kept as fragments
+			final String fragmentProperties = (_fragmentCache.isEnabled() && (plan == null || plan._resourceOnly)
+					? describeProperties(type, plan) : null);
+			generatedXML.writeXMLHeader();
+			generatedXML.writeElement(NS_DAV_PREFIX,NS_DAV_FULLNAME,WebDAVConstants.XMLTag.MULTISTATUS,XMLWriter.OPENING);
+			try {
+				traverse(transaction, path, so, req, new IResourceWriter() {
+					public void write(ITransaction transaction, HttpServletRequest req, String path,
+							StoredObject so) {
+						if (fragmentProperties != null) {
+							writeFragment(transaction, req, generatedXML, path, so, type, plan, depth,
+									fragmentProperties);
+						} else {
+							String[] ioValues = (ioBatch != null ? ioBatch.take(transaction, path) : null);
+							parseProperties(transaction, req, generatedXML, path, so, type, plan, ioValues, depth);
+						}
+						traversal._complete = generatedXML.getBufferedLength();
+					}
+
+					public void folderListed(ITransaction transaction, String path, String[] names) {
+						if (ioBatch != null) {
+							ioBatch.load(transaction, path, names);
+						}
+					}
+
+					public void flush() throws IOException {
+						generatedXML.flush();
+						traversal._complete = 0;
+					}
+				}, depth, traversal);
+			} catch (WebDAVException e) {
+				if (resp == null || !resp.isCommitted()) {
+					throw e;
+				}
+				// the status has been sent, the failure can only be reported in the multistatus
+				LOG.error("Listing " + path + " failed after the response was committed", e);
+				generatedXML.discard(traversal._complete);
+				writeStatusResponse(req, generatedXML, traversal._path, e instanceof AccessDeniedException
+						? HttpStatus.FORBIDDEN : HttpStatus.INTERNAL_SERVER_ERROR);
+			}
+			if (traversal._truncated) {
+				writeStatusResponse(req, generatedXML, path, HttpStatus.INSUFFICIENT_STORAGE);
+			}
+			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.MULTISTATUS,XMLWriter.CLOSING);
+
+			generatedXML.sendData("doPropfind.response "+path+"\n");
+		}
+		return traversal;
+	}
+
+	/**
+	 * Copies the response element of a resource from the fragment cache,
+	 * recording it first if it is not there. Only the lock elements are
+	 * rendered.
+	 */
+	private void writeFragment(ITransaction transaction, HttpServletRequest req, XMLWriter generatedXML, String path,
+			StoredObject so, int type, PropertyPlan plan, int depth, String properties) {
+		String key = PropfindFragmentCache.createKey(URLUtil.getCleanPath(req.getContextPath(), req.getServletPath()),
+				path, getResourceState(so), properties);
+		PropfindFragmentCache.Fragment fragment = _fragmentCache.get(key);
+		if (fragment == null) {
+			PropfindFragmentCache.Recorder recorder = new PropfindFragmentCache.Recorder();
+			parseProperties(transaction, req, recorder, path, so, type, plan, null, depth);
+			fragment = recorder.toFragment();
+			_fragmentCache.put(key, path, fragment);
+		}
+		int lockElements = fragment.getLockElementCount();
+		for (int i = 0; i < lockElements; i++) {
+			generatedXML.writeMarkup(fragment.getSegment(i));
+			writeLockElement(transaction, generatedXML, path, fragment.getLockElement(i), depth);
+		}
+		generatedXML.writeMarkup(fragment.getSegment(lockElements));
+	}
+
+	/**
+	 * @return the fields of a resource its properties are computed from: those
+	 *         of the ETag, and the dates and type the ETag leaves out
+	 */
+	private static String getResourceState(StoredObject so) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(so.isFolder() ? 'F' : 'R').append(so.isNullResource() ? 'N' : '-');
+		sb.append(so.getResourceLength()).append(CharsetUtil.CHAR_DASH);
+		sb.append(so.getLastModified() != null ? so.getLastModified().getTime() : -1).append(CharsetUtil.CHAR_DASH);
+		sb.append(so.getCreationDate() != null ? so.getCreationDate().getTime() : -1).append(CharsetUtil.CHAR_DASH);
+		sb.append(so.getMimeType()).append(CharsetUtil.CHAR_DASH);
+		sb.append(so.getContentDigest());
+		return sb.toString();
+	}
+
+	private void countTraversal(String path, int depth, Traversal traversal) {
+		_requestCount.incrementAndGet();
+		_entriesVisited.addAndGet(traversal._entries);
+		if (traversal._truncated) {
+			_truncatedCount.incrementAndGet();
+		}
+		if(LOG.isDebugEnabled()) {
+			LOG.debug("doPropfind " + path + " depth " + depth + ": " + traversal._entries + " entries"
+					+ (traversal._truncated ? ", truncated" : ""));
+		}
+	}
+
+	/**
+	 * Compiles the prop element of a report that lists resources with their
+	 * properties, see writeResponse
+	 */
+	PropertyPlan compileProperties(Node propNode) {
+		return PropertyPlan.forProp(propNode, _propertyProviders);
+	}
+
+	/**
+	 * Writes the response element of one resource with the properties of the
+	 * plan, as a PROPFIND with Depth 0 would
+	 */
+	void writeResponse(ITransaction transaction, HttpServletRequest req, XMLWriter generatedXML, String path,
+			StoredObject so, PropertyPlan plan) {
+		String[] ioValues = (plan._hasIO ? new IOBatch(plan).take(transaction, path) : null);
+		parseProperties(transaction, req, generatedXML, path, so, FIND_BY_PROPERTY, plan, ioValues, DEPTH_RESOURCE);
+	}
+
+	/**
+	 * Writes the properties of one resource visited by traverse, in the
+	 * representation requested by the client
+	 */
+	private interface IResourceWriter {
+		void write(ITransaction transaction, HttpServletRequest req, String path, StoredObject so) throws IOException;
+
+		/**
+		 * Called when the children of a folder are about to be visited
+		 */
+		void folderListed(ITransaction transaction, String path, String[] names);
+
+		/**
+		 * Sends what has been written so far to the client
+		 */
+		void flush() throws IOException;
+	}
+
+	/**
+	 * Outcome of a traversal
+	 */
+	private static class Traversal {
+		private int _entries = 0;
+		private boolean _truncated = false;
+		/**
+		 * path of the resource being visited
+		 */
+		private String _path;
+		/**
+		 * length of the buffered output up to the last complete response
+		 */
+		private int _complete = 0;
+	}
+
+	/**
+	 * Children of a folder that remain to be visited
+	 */
+	private static class Frame {
+		private final StoredObjectPrefetcher.Lookahead _children;
+		private final int _depth;
+
+		private Frame(StoredObjectPrefetcher.Lookahead children, int depth) {
+			_children = children;
+			_depth = depth;
+		}
+	}
+
+	/**
+	 * Visits the resource at path and its descendants up to the given depth, in
+	 * document order. The traversal keeps an explicit stack with one frame per
+	 * open folder instead of recursing, and flushes the response every
+	 * FLUSH_INTERVAL entries, so memory use does not grow with the size of the
+	 * tree. The children of each folder are looked up by the prefetcher, which
+	 * may run ahead of the output. Stops when the entry limit of the policy is
+	 * reached.
+	 * 
+	 * @param path
+	 *            path of the requested resource
+	 * @param so
+	 *            the requested resource
 	 * @param req
 	 *            HttpServletRequest
-	 * @param generatedXML
-	 * @param propertyFindType
-	 * @param properties
+	 * @param resourceWriter
+	 *            writes the properties of each resource found
 	 * @param depth
 	 *            depth of the propfind
+	 * @param traversal
+	 *            receives the number of entries written and whether the
+	 *            listing is complete
 	 * @throws IOException
 	 *             if an error in the underlying store occurs
 	 */
-	private void recursiveParseProperties(ITransaction transaction, String currentPath, HttpServletRequest req,
-			XMLWriter generatedXML, int propertyFindType, Vector<String> properties, int depth)
-			throws WebDAVException {
+	private void traverse(ITransaction transaction, String path, StoredObject so, HttpServletRequest req,
+			IResourceWriter resourceWriter, int depth, Traversal traversal) throws IOException {
+
+		Deque<Frame> stack = new ArrayDeque<Frame>();
+
+		String currentPath = path;
+		StoredObject currentSo = so;
+		int currentDepth = depth;
+		try {
+			while (true) {
+				if (currentSo != null) {
+					traversal._path = currentPath;
+					resourceWriter.write(transaction, req, currentPath, currentSo);
+					traversal._entries++;
+					if (traversal._entries % FLUSH_INTERVAL == 0) {
+						resourceWriter.flush();
+					}
+					// only folders have children, no need to ask for them at depth zero
+					if (currentDepth != 0 && currentSo.isFolder()) {
+						String[] names = _store.getChildrenNames(transaction, currentPath);
+						if (names != null && names.length > 0) {
+							resourceWriter.folderListed(transaction, currentPath, names);
+							stack.push(new Frame(_prefetcher.open(_store, transaction, currentPath, names),
+									currentDepth - 1));
+						}
+					}
+				}
 
-		parseProperties(transaction, req, generatedXML, currentPath, propertyFindType, properties);
+				// continue with the next unvisited child of the innermost open folder
+				Frame frame = stack.peek();
+				while (frame != null && !frame._children.hasNext()) {
+					stack.pop();
+					frame = stack.peek();
+				}
+				if (frame == null) {
+					break;
+				}
+				if (_policy.isEntryLimitReached(traversal._entries)) {
+					traversal._truncated = true;
+					break;
+				}
+				currentPath = frame._children.nextPath();
+				traversal._path = currentPath;
+				currentDepth = frame._depth;
+				// null if the child has been removed since the folder was listed
+				currentSo = frame._children.next();
+			}
+		} finally {
+			for (Frame frame : stack) {
+				frame._children.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes a response with only a status for the path. Ends a listing that
+	 * was cut off by the entry limit with a 507 for the request URI, as RFC
+	 * 4918 section 11.5 allows, or one that failed after it was committed
+	 * with the error of the failing resource.
+	 */
+	private void writeStatusResponse(HttpServletRequest req, XMLWriter generatedXML, String path, HttpStatus status) {
+		String href = URLUtil.getCleanPath(req.getContextPath(),req.getServletPath());
+		href = URLUtil.getCleanPath(href,path);
+
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESPONSE,XMLWriter.OPENING);
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.HREF,XMLWriter.OPENING);
+		generatedXML.writeText(rewriteUrl(href));
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.HREF,XMLWriter.CLOSING);
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS,XMLWriter.OPENING);
+		generatedXML.writeText("HTTP/1.1 " + status.value() + " " + status.getReasonPhrase());
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS,XMLWriter.CLOSING);
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESPONSE,XMLWriter.CLOSING);
+	}
 
-		if (depth != 0) {
-			// no need to get name if depth is already zero
-			String[] names = _store.getChildrenNames(transaction, currentPath);
-			names = names == null ? new String[] {} : names;
-			for (String name : names) {
-				recursiveParseProperties(transaction, URLUtil.getCleanPath(currentPath, name), req, generatedXML, propertyFindType, properties,
-						depth - 1);
+	/**
+	 * Checks if the client asked for the compact JSON listing instead of a
+	 * multistatus
+	 */
+	private static boolean isJSONRequested(HttpServletRequest req) {
+		String accept = req.getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT);
+		if (accept == null) {
+			return false;
+		}
+		for (String mediaRange : accept.split(",")) {
+			String[] params = mediaRange.split(String.valueOf(CharsetUtil.CHAR_SEMICOLON));
+			if (params[0].trim().equalsIgnoreCase(WebDAVConstants.MEDIATYPE_JSON)) {
+				for (int i = 1; i < params.length; i++) {
+					String param = params[i].trim();
+					if (param.startsWith("q=") && param.substring(2).trim().matches("0(\\.0*)?")) {
+						return false;
+					}
+				}
+				return true;
 			}
 		}
+		return false;
+	}
+
+	/**
+	 * JSON variant of parseProperties: writes one compact object with name,
+	 * href, collection flag, size, last modification time and etag.
+	 *
+	 * @param req
+	 *            The servlet request
+	 * @param generatedJSON
+	 *            JSON response to the Propfind request
+	 * @param path
+	 *            Path of the current resource
+	 * @param so
+	 *            The current resource
+	 */
+	private void parseJSONProperties(ITransaction transaction, HttpServletRequest req, JSONWriter generatedJSON,
+			String path, StoredObject so) throws IOException {
+
+		boolean isFolder = so.isFolder();
+
+		String href = URLUtil.getCleanPath(req.getContextPath(),req.getServletPath());
+		href = URLUtil.getCleanPath(href,path);
+		if ((isFolder) && (!href.endsWith(CharsetUtil.FORWARD_SLASH))) {
+			href += CharsetUtil.FORWARD_SLASH;
+		}
+
+		generatedJSON.writeObjectStart();
+		generatedJSON.writeMember(JSON_HREF, rewriteUrl(href));
+		generatedJSON.writeMember(JSON_NAME, getResourceName(path));
+		generatedJSON.writeMember(JSON_COLLECTION, isFolder);
+		if (so.getLastModified() != null) {
+			generatedJSON.writeMember(JSON_MTIME, so.getLastModified().getTime());
+		}
+		if (!isFolder) {
+			generatedJSON.writeMember(JSON_SIZE, so.getResourceLength());
+			if (!so.isNullResource()) {
+				generatedJSON.writeMember(JSON_ETAG, getETag(so));
+			}
+		}
+		generatedJSON.writeObjectEnd();
+	}
+
+	/**
+	 * Live properties that can be requested by name. Requests are compiled to
+	 * an array of these once, instead of matching property names for every
+	 * resource.
+	 */
+	private enum LiveProperty {
+		CREATIONDATE(WebDAVConstants.XMLTag.CREATIONDATE),
+		DISPLAYNAME(WebDAVConstants.XMLTag.DISPLAYNAME),
+		GET_CONTENTLANGUAGE(WebDAVConstants.XMLTag.GET_CONTENTLANGUAGE),
+		GET_CONTENTLENGTH(WebDAVConstants.XMLTag.GET_CONTENTLENGTH),
+		GET_CONTENTTYPE(WebDAVConstants.XMLTag.GET_CONTENTTYPE),
+		GET_ETAG(WebDAVConstants.XMLTag.GET_ETAG),
+		GET_LASTMODIFIED(WebDAVConstants.XMLTag.GET_LASTMODIFIED),
+		LOCKDISCOVERY(WebDAVConstants.XMLTag.LOCKDISCOVERY),
+		RESOURCETYPE(WebDAVConstants.XMLTag.RESOURCETYPE),
+		SOURCE(WebDAVConstants.XMLTag.SOURCE),
+		SUPPORTEDLOCK(WebDAVConstants.XMLTag.SUPPORTEDLOCK);
+
+		private static final HashMap<String, LiveProperty> BY_NAME = new HashMap<String, LiveProperty>();
+
+		static {
+			for (LiveProperty property : values()) {
+				BY_NAME.put(property._name, property);
+			}
+		}
+
+		private final String _name;
+
+		private LiveProperty(String name) {
+			_name = name;
+		}
+
+		/**
+		 * @return the live property with the given name, null for any other
+		 *         (dead or unknown) property
+		 */
+		private static LiveProperty forName(String name) {
+			return BY_NAME.get(name);
+		}
+	}
+
+	/**
+	 * Evaluation plan of a PROPFIND: the requested properties in request
+	 * order, each resolved once per request to a built-in live property or a
+	 * registered property provider. For allprop the plan only holds the
+	 * providers, the built-in properties are always written.
+	 */
+	static final class PropertyPlan {
+		private final String[] _namespaces;
+		private final String[] _names;
+		private final LiveProperty[] _properties;
+		private final IPropertyProvider[] _providers;
+		private final boolean _hasIO;
+		/**
+		 * true if all values follow from the StoredObject, no provider of cost
+		 * CHEAP or IO is asked for
+		 */
+		private final boolean _resourceOnly;
+
+		private PropertyPlan(List<String> namespaces, List<String> names, PropertyProviderRegistry registry) {
+			_namespaces = namespaces.toArray(new String[namespaces.size()]);
+			_names = names.toArray(new String[names.size()]);
+			_properties = new LiveProperty[_names.length];
+			_providers = new IPropertyProvider[_names.length];
+			boolean hasIO = false;
+			boolean resourceOnly = true;
+			for (int i = 0; i < _names.length; i++) {
+				if (_namespaces[i] == null || NS_DAV_FULLNAME.equals(_namespaces[i])) {
+					_properties[i] = LiveProperty.forName(_names[i]);
+				}
+				if (_properties[i] == null) {
+					_providers[i] = registry.getProvider(_namespaces[i], _names[i]);
+					hasIO |= (_providers[i] != null && _providers[i].getCost() == IPropertyProvider.Cost.IO);
+					resourceOnly &= (_providers[i] == null || _providers[i].getCost() == IPropertyProvider.Cost.FREE);
+				}
+			}
+			_hasIO = hasIO;
+			_resourceOnly = resourceOnly;
+		}
+
+		/**
+		 * @return the properties of the plan in a canonical order, for cache
+		 *         keys
+		 */
+		private String describe() {
+			String[] names = new String[_names.length];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = "{" + (_namespaces[i] != null ? _namespaces[i] : "") + "}" + _names[i];
+			}
+			Arrays.sort(names);
+			return Arrays.toString(names);
+		}
+
+		/**
+		 * @param propNode
+		 *            the prop element of the request
+		 */
+		private static PropertyPlan forProp(Node propNode, PropertyProviderRegistry registry) {
+			List<String> namespaces = new ArrayList<String>();
+			List<String> names = new ArrayList<String>();
+			for (Node node = propNode.getFirstChild(); node != null; node = node.getNextSibling()) {
+				if (node.getNodeType() == Node.ELEMENT_NODE) {
+					namespaces.add(node.getNamespaceURI());
+					names.add(node.getLocalName());
+				}
+			}
+			return new PropertyPlan(namespaces, names, registry);
+		}
+
+		/**
+		 * @param includeNode
+		 *            the include element of the request, may be null
+		 */
+		private static PropertyPlan forAllprop(Node includeNode, PropertyProviderRegistry registry) {
+			List<String> namespaces = new ArrayList<String>();
+			List<String> names = new ArrayList<String>();
+			for (IPropertyProvider provider : registry.getProviders()) {
+				// I/O bound properties only when asked for
+				if (provider.getCost() != IPropertyProvider.Cost.IO || isIncluded(includeNode, provider)) {
+					namespaces.add(provider.getNamespace());
+					names.add(provider.getName());
+				}
+			}
+			return new PropertyPlan(namespaces, names, registry);
+		}
+
+		private static boolean isIncluded(Node includeNode, IPropertyProvider provider) {
+			if (includeNode != null) {
+				for (Node node = includeNode.getFirstChild(); node != null; node = node.getNextSibling()) {
+					if (node.getNodeType() == Node.ELEMENT_NODE && provider.getName().equals(node.getLocalName())
+							&& provider.getNamespace().equals(node.getNamespaceURI())) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Values of the I/O bound providers of a plan, fetched for all children of
+	 * a folder at once and taken out per resource as it is written
+	 */
+	private static final class IOBatch {
+		private final PropertyPlan _plan;
+		private final HashMap<String, String[]> _values = new HashMap<String, String[]>();
+
+		private IOBatch(PropertyPlan plan) {
+			_plan = plan;
+		}
+
+		private void load(ITransaction transaction, String folderPath, String[] names) {
+			String[] paths = new String[names.length];
+			for (int i = 0; i < names.length; i++) {
+				paths[i] = URLUtil.getCleanPath(folderPath, names[i]);
+			}
+			load(transaction, paths);
+		}
+
+		private void load(ITransaction transaction, String[] paths) {
+			String[][] values = new String[paths.length][];
+			for (int i = 0; i < paths.length; i++) {
+				values[i] = new String[_plan._providers.length];
+				_values.put(paths[i], values[i]);
+			}
+			for (int p = 0; p < _plan._providers.length; p++) {
+				IPropertyProvider provider = _plan._providers[p];
+				if (provider != null && provider.getCost() == IPropertyProvider.Cost.IO) {
+					Map<String, String> batch = provider.getValues(transaction, paths);
+					for (int i = 0; i < paths.length; i++) {
+						values[i][p] = batch.get(paths[i]);
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return the I/O bound values of the resource, indexed like the plan
+		 */
+		private String[] take(ITransaction transaction, String path) {
+			String[] values = _values.remove(path);
+			if (values == null) {
+				// the requested resource itself is not part of a folder batch
+				load(transaction, new String[] { path });
+				values = _values.remove(path);
+			}
+			return values;
+		}
 	}
 
 	/**
@@ -211,27 +913,24 @@ public class DoPropfind extends AbstractMethod {
 	 *            XML response to the Propfind request
 	 * @param path
 	 *            Path of the current resource
+	 * @param so
+	 *            The current resource
 	 * @param type
 	 *            Propfind type
-	 * @param propertiesVector
-	 *            If the propfind type is find properties by name, then this Vector
-	 *            contains those properties
+	 * @param plan
+	 *            The compiled list of requested properties, null for propname
+	 * @param ioValues
+	 *            Values of the I/O bound providers in the plan, null if there
+	 *            are none
+	 * @param depth
+	 *            depth of the propfind, reported in the lock discovery
 	 */
 	private void parseProperties(ITransaction transaction, HttpServletRequest req, XMLWriter generatedXML, String path,
-			int type, Vector<String> propertiesVector) throws WebDAVException {
-
-		StoredObject so = _store.getStoredObject(transaction, path);
+			StoredObject so, int type, PropertyPlan plan, String[] ioValues, int depth) throws WebDAVException {
 
 		boolean isFolder = so.isFolder();
-		final String creationdate = creationDateFormat(so.getCreationDate());
-		final String lastModified = lastModifiedDateFormat(so.getLastModified());
-		String resourceLength = String.valueOf(so.getResourceLength());
-
-		// ResourceInfo resourceInfo = new ResourceInfo(path, resources);
 
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESPONSE,XMLWriter.OPENING);
-		String status = new String(
-				"HTTP/1.1 " + HttpServletResponse.SC_OK + " " + HttpStatus.OK.getReasonPhrase());
 
 		// Generating href element
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.HREF,XMLWriter.OPENING);
@@ -247,11 +946,6 @@ public class DoPropfind extends AbstractMethod {
 
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.HREF,XMLWriter.CLOSING);
 
-		String resourceName = path;
-		int lastSlash = path.lastIndexOf(CharsetUtil.CHAR_FORWARD_SLASH);
-		if (lastSlash != -1)
-			resourceName = resourceName.substring(lastSlash + 1);
-
 		switch (type) {
 
 		case FIND_ALL_PROP:
@@ -259,13 +953,13 @@ public class DoPropfind extends AbstractMethod {
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROPSTAT, XMLWriter.OPENING);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROP, XMLWriter.OPENING);
 
-			generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.CREATIONDATE, creationdate);
+			generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.CREATIONDATE, creationDateFormat(so.getCreationDate()));
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.DISPLAYNAME, XMLWriter.OPENING);
-			generatedXML.writeData(resourceName);
+			generatedXML.writeData(getResourceName(path));
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.DISPLAYNAME, XMLWriter.CLOSING);
 			if (!isFolder) {
-				generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_LASTMODIFIED, lastModified);
-				generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_CONTENTLENGTH, resourceLength);
+				generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_LASTMODIFIED, lastModifiedDateFormat(so.getLastModified()));
+				generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_CONTENTLENGTH, String.valueOf(so.getResourceLength()));
 				String contentType = (so.getMimeType()!=null ? so.getMimeType() : _mimeTyper.getMimeType(transaction, path));
 				if (contentType != null) {
 					generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_CONTENTTYPE, contentType);
@@ -278,14 +972,21 @@ public class DoPropfind extends AbstractMethod {
 				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESOURCETYPE, XMLWriter.CLOSING);
 			}
 
-			writeSupportedLockElements(transaction, generatedXML, path);
+			writeLockElement(transaction, generatedXML, path, PropfindFragmentCache.LockElement.SUPPORTEDLOCK, depth);
 
-			writeLockDiscoveryElements(transaction, generatedXML, path);
+			writeLockElement(transaction, generatedXML, path, PropfindFragmentCache.LockElement.LOCKDISCOVERY, depth);
 
 			generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.SOURCE, "");
+
+			for (int i = 0; i < plan._providers.length; i++) {
+				String value = getProviderValue(transaction, path, so, plan, ioValues, i);
+				if (value != null) {
+					writeProviderProperty(generatedXML, plan._providers[i], value);
+				}
+			}
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROP, XMLWriter.CLOSING);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS, XMLWriter.OPENING);
-			generatedXML.writeText(status);
+			generatedXML.writeText(STATUS_OK);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS, XMLWriter.CLOSING);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROPSTAT, XMLWriter.CLOSING);
 
@@ -308,10 +1009,13 @@ public class DoPropfind extends AbstractMethod {
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESOURCETYPE, XMLWriter.NO_CONTENT);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.SUPPORTEDLOCK, XMLWriter.NO_CONTENT);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.SOURCE, XMLWriter.NO_CONTENT);
+			for (IPropertyProvider provider : _propertyProviders.getProviders()) {
+				writeProviderProperty(generatedXML, provider, null);
+			}
 
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROP, XMLWriter.CLOSING);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS, XMLWriter.OPENING);
-			generatedXML.writeText(status);
+			generatedXML.writeText(STATUS_OK);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS, XMLWriter.CLOSING);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROPSTAT, XMLWriter.CLOSING);
 
@@ -319,98 +1023,53 @@ public class DoPropfind extends AbstractMethod {
 
 		case FIND_BY_PROPERTY:
 
-			Vector<String> propertiesNotFound = new Vector<String>();
-
-			// Parse the list of properties
+			ArrayList<Integer> propertiesNotFound = null;
 
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROPSTAT, XMLWriter.OPENING);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROP, XMLWriter.OPENING);
 
-			Enumeration<String> properties = propertiesVector.elements();
-
-			while (properties.hasMoreElements()) {
-
-				String property = (String) properties.nextElement();
-
-				if (property.equals(WebDAVConstants.XMLTag.CREATIONDATE)) {
-					generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.CREATIONDATE, creationdate);
-				} else if (property.equals("DAV::displayname")) {
-					generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.DISPLAYNAME, XMLWriter.OPENING);
-					generatedXML.writeData(resourceName);
-					generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.DISPLAYNAME, XMLWriter.CLOSING);
-				} else if (property.equals(WebDAVConstants.XMLTag.GET_CONTENTLANGUAGE)) {
-					if (isFolder) {
-						propertiesNotFound.addElement(property);
-					} else {
-						generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_CONTENTLANGUAGE, XMLWriter.NO_CONTENT);
-					}
-				} else if (property.equals(WebDAVConstants.XMLTag.GET_CONTENTLENGTH)) {
-					if (isFolder) {
-						propertiesNotFound.addElement(property);
-					} else {
-						generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_CONTENTLENGTH, resourceLength);
-					}
-				} else if (property.equals(WebDAVConstants.XMLTag.GET_CONTENTTYPE)) {
-					if (isFolder) {
-						propertiesNotFound.addElement(property);
-					} else {
-						String mimeType = (so.getMimeType()!=null ? so.getMimeType() : _mimeTyper.getMimeType(transaction, path));
-						generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_CONTENTTYPE, mimeType);
-					}
-				} else if (property.equals(WebDAVConstants.XMLTag.GET_ETAG)) {
-					if (isFolder || so.isNullResource()) {
-						propertiesNotFound.addElement(property);
-					} else {
-						generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_ETAG, getETag(so));
-					}
-				} else if (property.equals(WebDAVConstants.XMLTag.GET_LASTMODIFIED)) {
-					if (isFolder && lastModified==null) {
-						propertiesNotFound.addElement(property);
-					} else {
-						generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_LASTMODIFIED, lastModified);
+			for (int i = 0; i < plan._properties.length; i++) {
+				boolean found;
+				if (plan._properties[i] != null) {
+					found = writeLiveProperty(transaction, generatedXML, path, so, plan._properties[i], depth);
+				} else {
+					String value = getProviderValue(transaction, path, so, plan, ioValues, i);
+					found = (value != null);
+					if (found) {
+						writeProviderProperty(generatedXML, plan._providers[i], value);
 					}
-				} else if (property.equals(WebDAVConstants.XMLTag.RESOURCETYPE)) {
-					if (isFolder) {
-						generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESOURCETYPE, XMLWriter.OPENING);
-						generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.COLLECTION, XMLWriter.NO_CONTENT);
-						generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESOURCETYPE, XMLWriter.CLOSING);
-					} else {
-						generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESOURCETYPE, XMLWriter.NO_CONTENT);
+				}
+				if (!found) {
+					if (propertiesNotFound == null) {
+						propertiesNotFound = new ArrayList<Integer>();
 					}
-				} else if (property.equals(WebDAVConstants.XMLTag.SOURCE)) {
-					generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.SOURCE, "");
-				} else if (property.equals(WebDAVConstants.XMLTag.SUPPORTEDLOCK)) {
-					writeSupportedLockElements(transaction, generatedXML, path);
-				} else if (property.equals(WebDAVConstants.XMLTag.LOCKDISCOVERY)) {
-					writeLockDiscoveryElements(transaction, generatedXML, path);
-				} else {
-					propertiesNotFound.addElement(property);
+					propertiesNotFound.add(i);
 				}
 			}
 
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROP, XMLWriter.CLOSING);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS, XMLWriter.OPENING);
-			generatedXML.writeText(status);
+			generatedXML.writeText(STATUS_OK);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS, XMLWriter.CLOSING);
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROPSTAT, XMLWriter.CLOSING);
 
-			Enumeration<String> propertiesNotFoundList = propertiesNotFound.elements();
-
-			if (propertiesNotFoundList.hasMoreElements()) {
-
-				status = new String("HTTP/1.1 " + HttpServletResponse.SC_NOT_FOUND + " "
-						+ HttpStatus.NOT_FOUND.getReasonPhrase());
+			if (propertiesNotFound != null) {
 
 				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROPSTAT, XMLWriter.OPENING);
 				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROP, XMLWriter.OPENING);
 
-				while (propertiesNotFoundList.hasMoreElements()) {
-					generatedXML.writeElement(NS_DAV_PREFIX,(String) propertiesNotFoundList.nextElement(), XMLWriter.NO_CONTENT);
+				for (int i : propertiesNotFound) {
+					String namespace = plan._namespaces[i];
+					if (namespace == null || NS_DAV_FULLNAME.equals(namespace)) {
+						generatedXML.writeElement(NS_DAV_PREFIX,plan._names[i], XMLWriter.NO_CONTENT);
+					} else {
+						generatedXML.writeElement(NS_OTHER_PREFIX,namespace,plan._names[i], XMLWriter.NO_CONTENT);
+					}
 				}
 
 				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROP, XMLWriter.CLOSING);
 				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS, XMLWriter.OPENING);
-				generatedXML.writeText(status);
+				generatedXML.writeText(STATUS_NOT_FOUND);
 				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS, XMLWriter.CLOSING);
 				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.PROPSTAT, XMLWriter.CLOSING);
 			}
@@ -418,8 +1077,135 @@ public class DoPropfind extends AbstractMethod {
 		}
 
 		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESPONSE, XMLWriter.CLOSING);
+	}
+
+	/**
+	 * Writes one requested live property of a resource. Values are only
+	 * computed for the properties that are asked for.
+	 * 
+	 * @return false if the resource does not have the property
+	 */
+	private boolean writeLiveProperty(ITransaction transaction, XMLWriter generatedXML, String path, StoredObject so,
+			LiveProperty property, int depth) {
+
+		boolean isFolder = so.isFolder();
+		switch (property) {
+		case CREATIONDATE:
+			if (so.getCreationDate() == null) {
+				return false;
+			}
+			generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.CREATIONDATE, creationDateFormat(so.getCreationDate()));
+			return true;
+		case DISPLAYNAME:
+			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.DISPLAYNAME, XMLWriter.OPENING);
+			generatedXML.writeData(getResourceName(path));
+			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.DISPLAYNAME, XMLWriter.CLOSING);
+			return true;
+		case GET_CONTENTLANGUAGE:
+			if (isFolder) {
+				return false;
+			}
+			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_CONTENTLANGUAGE, XMLWriter.NO_CONTENT);
+			return true;
+		case GET_CONTENTLENGTH:
+			if (isFolder) {
+				return false;
+			}
+			generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_CONTENTLENGTH, String.valueOf(so.getResourceLength()));
+			return true;
+		case GET_CONTENTTYPE:
+			if (isFolder) {
+				return false;
+			}
+			String mimeType = (so.getMimeType()!=null ? so.getMimeType() : _mimeTyper.getMimeType(transaction, path));
+			generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_CONTENTTYPE, mimeType);
+			return true;
+		case GET_ETAG:
+			if (isFolder || so.isNullResource()) {
+				return false;
+			}
+			generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_ETAG, getETag(so));
+			return true;
+		case GET_LASTMODIFIED:
+			if (so.getLastModified() == null) {
+				return false;
+			}
+			generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.GET_LASTMODIFIED, lastModifiedDateFormat(so.getLastModified()));
+			return true;
+		case LOCKDISCOVERY:
+			writeLockElement(transaction, generatedXML, path, PropfindFragmentCache.LockElement.LOCKDISCOVERY, depth);
+			return true;
+		case RESOURCETYPE:
+			if (isFolder) {
+				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESOURCETYPE, XMLWriter.OPENING);
+				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.COLLECTION, XMLWriter.NO_CONTENT);
+				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESOURCETYPE, XMLWriter.CLOSING);
+			} else {
+				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESOURCETYPE, XMLWriter.NO_CONTENT);
+			}
+			return true;
+		case SOURCE:
+			generatedXML.writeProperty(NS_DAV_PREFIX,WebDAVConstants.XMLTag.SOURCE, "");
+			return true;
+		case SUPPORTEDLOCK:
+			writeLockElement(transaction, generatedXML, path, PropfindFragmentCache.LockElement.SUPPORTEDLOCK, depth);
+			return true;
+		default:
+			return false;
+		}
+	}
 
-		so = null;
+	/**
+	 * @return the value of the i-th property of the plan, which must come from
+	 *         a provider; null if the resource does not have the property
+	 */
+	private static String getProviderValue(ITransaction transaction, String path, StoredObject so, PropertyPlan plan,
+			String[] ioValues, int i) {
+		IPropertyProvider provider = plan._providers[i];
+		if (provider == null) {
+			return null;
+		} else if (provider.getCost() == IPropertyProvider.Cost.IO) {
+			return ioValues[i];
+		}
+		return provider.getValue(transaction, path, so);
+	}
+
+	/**
+	 * Writes a property of a provider, as an empty element if value is null
+	 */
+	private void writeProviderProperty(XMLWriter generatedXML, IPropertyProvider provider, String value) {
+		String prefix = _propertyProviders.getPrefix(provider);
+		// the DAV: prefix is declared on the multistatus element
+		String namespace = (NS_DAV_PREFIX.equals(prefix) ? null : provider.getNamespace());
+		if (value == null) {
+			generatedXML.writeElement(prefix, namespace, provider.getName(), XMLWriter.NO_CONTENT);
+		} else {
+			generatedXML.writeProperty(prefix, namespace, provider.getName(), value);
+		}
+	}
+
+	/**
+	 * @return the last segment of path
+	 */
+	private static String getResourceName(String path) {
+		int lastSlash = path.lastIndexOf(CharsetUtil.CHAR_FORWARD_SLASH);
+		return lastSlash != -1 ? path.substring(lastSlash + 1) : path;
+	}
+
+	/**
+	 * Writes the supportedlock or lockdiscovery element of a resource. They
+	 * depend on the lock state, a fragment that is being recorded only gets
+	 * their place.
+	 */
+	private void writeLockElement(ITransaction transaction, XMLWriter generatedXML, String path,
+			PropfindFragmentCache.LockElement lockElement, int depth) {
+		if (generatedXML instanceof PropfindFragmentCache.Recorder) {
+			((PropfindFragmentCache.Recorder) generatedXML).writeLockElement(lockElement);
+		} else if (lockElement == PropfindFragmentCache.LockElement.SUPPORTEDLOCK) {
+			writeSupportedLockElements(transaction, generatedXML, path);
+		} else {
+			writeLockDiscoveryElements(transaction, generatedXML, path, depth);
+		}
 	}
 
 	private void writeSupportedLockElements(ITransaction transaction, XMLWriter generatedXML, String path) {
@@ -478,7 +1264,7 @@ public class DoPropfind extends AbstractMethod {
 		lo = null;
 	}
 
-	private void writeLockDiscoveryElements(ITransaction transaction, XMLWriter generatedXML, String path) {
+	private void writeLockDiscoveryElements(ITransaction transaction, XMLWriter generatedXML, String path, int depth) {
 
 		LockedObject lo = _resourceLocks.getLockedObjectByPath(transaction, path);
 
@@ -500,10 +1286,10 @@ public class DoPropfind extends AbstractMethod {
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.LOCKSCOPE, XMLWriter.CLOSING);
 
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.DEPTH, XMLWriter.OPENING);
-			if (_depth == DEPTH_INFINITY) {
+			if (depth == DEPTH_INFINITY) {
 				generatedXML.writeText(S_DEPTH_INFINITY);
 			} else {
-				generatedXML.writeText(String.valueOf(_depth));
+				generatedXML.writeText(String.valueOf(depth));
 			}
 			generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.DEPTH, XMLWriter.CLOSING);
 
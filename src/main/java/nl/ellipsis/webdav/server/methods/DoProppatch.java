@@ -17,6 +17,7 @@
 package nl.ellipsis.webdav.server.methods;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
@@ -35,6 +36,7 @@ import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -62,8 +64,10 @@ public class DoProppatch extends AbstractMethod {
 		_resourceLocks = resLocks;
 	}
 
-	public void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException {
+	public void execute(RequestContext context) throws IOException, LockFailedException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
 		String path = getRelativePath(req);
 		if(LOG.isDebugEnabled()) {
 			LOG.debug("-- " + this.getClass().getName()+" "+path);
@@ -109,7 +113,7 @@ public class DoProppatch extends AbstractMethod {
 				}
 
 				if (so.isNullResource()) {
-					String methodsAllowed = DeterminableMethod.determineMethodsAllowed(so);
+					String methodsAllowed = getMethodsAllowed(so);
 					resp.addHeader(javax.ws.rs.core.HttpHeaders.ALLOW, methodsAllowed);
 					resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
 					return;
@@ -169,7 +173,8 @@ public class DoProppatch extends AbstractMethod {
 				resp.setContentType("text/xml; charset=UTF-8");
 
 				// Create multistatus object
-				XMLWriter generatedXML = new XMLWriter(resp.getWriter());
+				Writer writer = _responseCompressor.getWriter(req, resp);
+				XMLWriter generatedXML = new XMLWriter(writer);
 				generatedXML.writeXMLHeader();
 				generatedXML.writeElement(NS_DAV_PREFIX,NS_DAV_FULLNAME,WebDAVConstants.XMLTag.MULTISTATUS, XMLWriter.OPENING);
 
@@ -210,6 +215,7 @@ public class DoProppatch extends AbstractMethod {
 				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.MULTISTATUS, XMLWriter.CLOSING);
 
 				generatedXML.sendData("doPropPatch "+path+"/n");
+				writer.close();
 			} catch (AccessDeniedException e) {
 				resp.sendError(HttpServletResponse.SC_FORBIDDEN);
 			} catch (WebDAVException e) {
@@ -16,6 +16,7 @@
 package nl.ellipsis.webdav.server.methods;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Hashtable;
 
 import javax.servlet.http.HttpServletRequest;
@@ -24,7 +25,10 @@ import javax.servlet.http.HttpServletResponse;
 import org.springframework.http.HttpStatus;
 
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
+import nl.ellipsis.webdav.server.Quota;
+import nl.ellipsis.webdav.server.Quota.QuotaExceededException;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
 import nl.ellipsis.webdav.server.exceptions.AccessDeniedException;
@@ -32,6 +36,7 @@ import nl.ellipsis.webdav.server.exceptions.LockFailedException;
 import nl.ellipsis.webdav.server.exceptions.WebDAVException;
 import nl.ellipsis.webdav.server.locking.IResourceLocks;
 import nl.ellipsis.webdav.server.locking.LockedObject;
+import nl.ellipsis.webdav.server.util.DigestVerifyingInputStream.DigestMismatchException;
 import nl.ellipsis.webdav.server.util.URLUtil;
 
 public class DoPut extends AbstractMethod {
@@ -42,18 +47,37 @@ public class DoPut extends AbstractMethod {
 	private IResourceLocks _resourceLocks;
 	private boolean _readOnly;
 	private boolean _lazyFolderCreationOnPut;
-
-	private String _userAgent;
+	private ChunkedUploads _chunkedUploads;
+	private Quota _quota;
 
 	public DoPut(IWebDAVStore store, IResourceLocks resLocks, boolean readOnly, boolean lazyFolderCreationOnPut) {
+		this(store, resLocks, readOnly, lazyFolderCreationOnPut, ChunkedUploads.NONE);
+	}
+
+	public DoPut(IWebDAVStore store, IResourceLocks resLocks, boolean readOnly, boolean lazyFolderCreationOnPut,
+			ChunkedUploads chunkedUploads) {
+		this(store, resLocks, readOnly, lazyFolderCreationOnPut, chunkedUploads, Quota.NONE);
+	}
+
+	/**
+	 * @param quota
+	 *            the quota the store enforces, to turn uploads that do not
+	 *            fit away before their body is read
+	 */
+	public DoPut(IWebDAVStore store, IResourceLocks resLocks, boolean readOnly, boolean lazyFolderCreationOnPut,
+			ChunkedUploads chunkedUploads, Quota quota) {
 		_store = store;
 		_resourceLocks = resLocks;
 		_readOnly = readOnly;
 		_lazyFolderCreationOnPut = lazyFolderCreationOnPut;
+		_chunkedUploads = chunkedUploads;
+		_quota = quota;
 	}
 
-	public void execute(ITransaction transaction, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException, LockFailedException {
+	public void execute(RequestContext context) throws IOException, LockFailedException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
 		String path = getRelativePath(req);
 		if(LOG.isDebugEnabled()) {
 			LOG.debug("-- " + this.getClass().getName()+" "+path);
@@ -62,7 +86,7 @@ public class DoPut extends AbstractMethod {
 		if (!_readOnly) {
 			String parentPath = URLUtil.getParentPath(path);
 
-			_userAgent = req.getHeader(javax.ws.rs.core.HttpHeaders.USER_AGENT);
+			String userAgent = req.getHeader(javax.ws.rs.core.HttpHeaders.USER_AGENT);
 
 			Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
 
@@ -76,16 +100,69 @@ public class DoPut extends AbstractMethod {
 				return; // resource is locked
 			}
 
+			// https://tools.ietf.org/html/rfc7231#section-5.1.1
+			if (req.getHeader(HEADER_EXPECT) != null && !isExpectContinue(req)) {
+				resp.sendError(HttpServletResponse.SC_EXPECTATION_FAILED);
+				return;
+			}
+
 			String tempLockOwner = "doPut" + System.currentTimeMillis() + req.toString();
 			if (_resourceLocks.lock(transaction, path, tempLockOwner, false, 0, TEMP_TIMEOUT, TEMPORARY)) {
 				StoredObject parentSo, so = null;
+				boolean created = false;
+				ChunkedUploads.Upload upload = null;
+				boolean published = false;
 				try {
+					// before anything is created or the body is read
+					Preconditions preconditions = Preconditions.fromRequest(req);
+					if (preconditions != null
+							&& !checkPreconditions(preconditions, resp, _store.getStoredObject(transaction, path), false)) {
+						return;
+					}
+					UploadDigests uploadDigests;
+					try {
+						uploadDigests = UploadDigests.fromRequest(req);
+					} catch (IllegalArgumentException e) {
+						LOG.debug("DoPut.execute() : " + e.getMessage());
+						resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+						return;
+					}
+					// a part of an upload, or a question which parts have been received
+					ChunkedUploads.ContentRange contentRange = null;
+					String contentRangeHeader = req.getHeader(ChunkedUploads.HEADER_CONTENT_RANGE);
+					if (contentRangeHeader != null) {
+						try {
+							if (!_chunkedUploads.isEnabled()) {
+								// https://tools.ietf.org/html/rfc7231#section-4.3.4
+								throw new IllegalArgumentException("partial PUT is not supported");
+							}
+							contentRange = ChunkedUploads.parseContentRange(contentRangeHeader);
+						} catch (IllegalArgumentException e) {
+							LOG.debug("DoPut.execute() : " + e.getMessage());
+							resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+							return;
+						}
+						if (contentRange.isStatusQuery()) {
+							sendUploadStatus(resp, _chunkedUploads.getUpload(path));
+							return;
+						}
+						int contentLength = req.getContentLength();
+						if (contentLength != -1
+								&& contentLength != contentRange.getLast() - contentRange.getFirst() + 1) {
+							LOG.debug("DoPut.execute() : Content-Length " + contentLength + " does not match "
+									+ contentRangeHeader);
+							resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+							return;
+						}
+					}
 					parentSo = _store.getStoredObject(transaction, parentPath);
+					boolean createParent = false;
 					if (parentPath != null && parentSo != null && parentSo.isResource()) {
 						resp.sendError(HttpServletResponse.SC_FORBIDDEN);
 						return;
 					} else if (parentPath != null && parentSo == null && _lazyFolderCreationOnPut) {
-						_store.createFolder(transaction, parentPath);
+						// created once the request passed all checks below
+						createParent = true;
 					} else if (parentPath != null && parentSo == null && !_lazyFolderCreationOnPut) {
 						// https://tools.ietf.org/html/rfc4918#page-50 
 						// A PUT that would result in the creation of a resource without an appropriately scoped parent collection MUST fail with a 409 (Conflict).
@@ -94,52 +171,104 @@ public class DoPut extends AbstractMethod {
 						return;
 					}
 
+					// a lock-null resource is only replaced with the token of its lock
 					so = _store.getStoredObject(transaction, path);
+					LockedObject nullResourceLo = null;
+					String lockToken = null;
+					if (so != null && so.isNullResource()) {
+						nullResourceLo = _resourceLocks.getLockedObjectByPath(transaction, path);
+						if (nullResourceLo == null) {
+							resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+							return;
+						}
+						String[] lockTokens = getLockIdFromIfHeader(req);
+						if (lockTokens != null) {
+							lockToken = lockTokens[0];
+						} else {
+							resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+							return;
+						}
+						if (!lockToken.equals(nullResourceLo.getID())) {
+							errorList.put(path, HttpStatus.LOCKED.value());
+							sendReport(req, resp, errorList);
+							return;
+						}
+					}
+
+					// the declared length has to fit, the store stops content that
+					// turns out not to
+					if (_quota.isEnabled()) {
+						long length = (contentRange != null ? contentRange.getTotal() : req.getContentLengthLong());
+						long oldLength = (so != null && so.isResource() ? so.getResourceLength() : 0);
+						if (length != -1 && _quota.isTooLarge(length)) {
+							resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+							return;
+						} else if (length != -1 && !_quota.hasRoom(path, length - oldLength)) {
+							resp.sendError(HttpStatus.INSUFFICIENT_STORAGE.value());
+							return;
+						}
+					}
+
+					if (createParent) {
+						_store.createFolder(transaction, parentPath);
+					}
+
+					// all checks are done, a client that sent Expect: 100-continue
+					// only gets asked for the body by the first read below
+					// verified in the same pass as the store or the part file copies it
+					InputStream content = req.getInputStream();
+					if (uploadDigests != null) {
+						content = uploadDigests.verify(content);
+					}
+					if (contentRange != null) {
+						try {
+							upload = _chunkedUploads.write(path, contentRange, content);
+						} catch (DigestMismatchException | ChunkedUploads.BadChunkException e) {
+							LOG.info("DoPut.execute() : rejected part of " + path + ", " + e.getMessage());
+							resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+							return;
+						} catch (ChunkedUploads.UploadConflictException e) {
+							LOG.info("DoPut.execute() : rejected part of " + path + ", " + e.getMessage());
+							resp.sendError(HttpServletResponse.SC_CONFLICT);
+							return;
+						}
+						if (!upload.startPublish()) {
+							// more parts to come, or another request publishes it
+							sendUploadStatus(resp, upload);
+							upload = null;
+							return;
+						}
+						content = upload.openContent();
+					}
 
 					if (so == null) {
 						_store.createResource(transaction, path);
+						created = true;
 						// resp.setStatus(HttpServletResponse.SC_CREATED);
-					} else {
+					} else if (nullResourceLo != null) {
 						// This has already been created, just update the data
-						if (so.isNullResource()) {
+						so.setNullResource(false);
+						so.setFolder(false);
 
-							LockedObject nullResourceLo = _resourceLocks.getLockedObjectByPath(transaction, path);
-							if (nullResourceLo == null) {
-								resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-								return;
-							}
-							String nullResourceLockToken = nullResourceLo.getID();
-							String[] lockTokens = getLockIdFromIfHeader(req);
-							String lockToken = null;
-							if (lockTokens != null) {
-								lockToken = lockTokens[0];
-							} else {
-								resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
-								return;
-							}
-							if (lockToken.equals(nullResourceLockToken)) {
-								so.setNullResource(false);
-								so.setFolder(false);
-
-								String[] nullResourceLockOwners = nullResourceLo.getOwner();
-								String owner = null;
-								if (nullResourceLockOwners != null)
-									owner = nullResourceLockOwners[0];
-
-								if (!_resourceLocks.unlock(transaction, lockToken, owner)) {
-									resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-								}
-							} else {
-								errorList.put(path, HttpStatus.LOCKED.value());
-								sendReport(req, resp, errorList);
-							}
+						String[] nullResourceLockOwners = nullResourceLo.getOwner();
+						String owner = null;
+						if (nullResourceLockOwners != null)
+							owner = nullResourceLockOwners[0];
+
+						if (!_resourceLocks.unlock(transaction, lockToken, owner)) {
+							resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+							return;
 						}
 					}
 					// User-Agent workarounds
-					doUserAgentWorkaround(resp);
+					doUserAgentWorkaround(userAgent, resp);
 
 					// setting resourceContent
-					long resourceLength = _store.setResourceContent(transaction, path, req.getInputStream(), null, null);
+					long resourceLength = _store.setResourceContent(transaction, path, content, null, null);
+					if (upload != null) {
+						upload.published();
+						published = true;
+					}
 
 					so = _store.getStoredObject(transaction, path);
 					if (resourceLength != -1) {
@@ -149,8 +278,27 @@ public class DoPut extends AbstractMethod {
 				} catch (AccessDeniedException e) {
 					resp.sendError(HttpServletResponse.SC_FORBIDDEN);
 				} catch (WebDAVException e) {
-					resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					if (e.getCause() instanceof QuotaExceededException) {
+						LOG.info("DoPut.execute() : rejected " + path + ", " + e.getCause().getMessage());
+						if (created) {
+							_store.removeObject(transaction, path);
+						}
+						resp.sendError(((QuotaExceededException) e.getCause()).isTooLarge()
+								? HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE
+								: HttpStatus.INSUFFICIENT_STORAGE.value());
+					} else if (e.getCause() instanceof DigestMismatchException) {
+						LOG.info("DoPut.execute() : rejected " + path + ", " + e.getCause().getMessage());
+						if (created) {
+							_store.removeObject(transaction, path);
+						}
+						resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+					} else {
+						resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					}
 				} finally {
+					if (upload != null && !published) {
+						upload.publishFailed();
+					}
 					_resourceLocks.unlockTemporaryLockedObjects(transaction, path, tempLockOwner);
 				}
 			} else {
@@ -162,16 +310,30 @@ public class DoPut extends AbstractMethod {
 	}
 
 	/**
+	 * Answers with 202 Accepted and the ranges received so far, as Range
+	 * header like the resumable upload drafts do
+	 */
+	private void sendUploadStatus(HttpServletResponse resp, ChunkedUploads.Upload upload) {
+		resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+		String received = (upload != null ? upload.getReceived() : null);
+		if (received != null) {
+			resp.setHeader(ChunkedUploads.HEADER_RANGE, received);
+		}
+		resp.setContentLength(0);
+	}
+
+	/**
+	 * @param userAgent
 	 * @param resp
 	 */
-	private void doUserAgentWorkaround(HttpServletResponse resp) {
-		if (_userAgent != null && _userAgent.indexOf("WebDAVFS") != -1 && _userAgent.indexOf("Transmit") == -1) {
-			LOG.debug("DoPut.execute() : do workaround for user agent '" + _userAgent + "'");
+	private void doUserAgentWorkaround(String userAgent, HttpServletResponse resp) {
+		if (userAgent != null && userAgent.indexOf("WebDAVFS") != -1 && userAgent.indexOf("Transmit") == -1) {
+			LOG.debug("DoPut.execute() : do workaround for user agent '" + userAgent + "'");
 			resp.setStatus(HttpServletResponse.SC_CREATED);
-		} else if (_userAgent != null && _userAgent.indexOf("Transmit") != -1) {
+		} else if (userAgent != null && userAgent.indexOf("Transmit") != -1) {
 			// Transmit also uses WEBDAVFS 1.x.x but crashes
 			// with SC_CREATED response
-			LOG.debug("DoPut.execute() : do workaround for user agent '" + _userAgent + "'");
+			LOG.debug("DoPut.execute() : do workaround for user agent '" + userAgent + "'");
 			resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
 		} else {
 			resp.setStatus(HttpServletResponse.SC_CREATED);
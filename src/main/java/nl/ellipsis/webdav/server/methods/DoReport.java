@@ -0,0 +1,343 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.http.HttpStatus;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import nl.ellipsis.webdav.HttpHeaders;
+import nl.ellipsis.webdav.server.ChangeLog;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.IWebDAVStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.StoredObject;
+import nl.ellipsis.webdav.server.WebDAVConstants;
+import nl.ellipsis.webdav.server.exceptions.AccessDeniedException;
+import nl.ellipsis.webdav.server.exceptions.LockFailedException;
+import nl.ellipsis.webdav.server.exceptions.WebDAVException;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.util.URLUtil;
+import nl.ellipsis.webdav.server.util.XMLHelper;
+import nl.ellipsis.webdav.server.util.XMLWriter;
+
+/**
+ * REPORT method, only the sync-collection report of RFC 6578.
+ *
+ * With an empty sync-token all members of the collection are listed, as a
+ * PROPFIND would. With a token from an earlier report only the members that
+ * changed since are listed, taken from the change log, and members that were
+ * removed get a 404 response. Every report ends with the token to use next
+ * time.
+ *
+ * A limit on the number of results cuts a list of changes off at a token the
+ * client continues from. An initial sync can not be continued, so one with
+ * more members than the limit is rejected.
+ */
+public class DoReport extends AbstractMethod {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(DoReport.class);
+
+	private static final String SYNC_LEVEL_INFINITE = "infinite";
+
+	private static final String STATUS_NOT_FOUND = "HTTP/1.1 " + HttpServletResponse.SC_NOT_FOUND + " "
+			+ HttpStatus.NOT_FOUND.getReasonPhrase();
+
+	/**
+	 * Number of entries after which the generated response is flushed to the
+	 * client
+	 */
+	private static final int FLUSH_INTERVAL = 100;
+
+	private IWebDAVStore _store;
+	private ResourceLocks _resourceLocks;
+	private ChangeLog _changeLog;
+	private DoPropfind _doPropfind;
+
+	public DoReport(IWebDAVStore store, ResourceLocks resLocks, ChangeLog changeLog, DoPropfind doPropfind) {
+		_store = store;
+		_resourceLocks = resLocks;
+		_changeLog = changeLog;
+		_doPropfind = doPropfind;
+	}
+
+	public void execute(RequestContext context) throws IOException, LockFailedException {
+		ITransaction transaction = context.getTransaction();
+		HttpServletRequest req = context.getRequest();
+		HttpServletResponse resp = context.getResponse();
+		String path = getRelativePath(req);
+		if(LOG.isDebugEnabled()) {
+			LOG.debug("-- " + this.getClass().getName()+" "+path);
+		}
+
+		// RFC 6578 section 3.2: the sync level is in the body, the Depth header must be 0
+		String depth = req.getHeader(HttpHeaders.DEPTH);
+		if (depth != null && !depth.equals(S_DEPTH_RESOURCE)) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		String tempLockOwner = "doReport" + System.currentTimeMillis() + req.toString();
+		if (_resourceLocks.lock(transaction, path, tempLockOwner, false, DEPTH_RESOURCE, TEMP_TIMEOUT, TEMPORARY)) {
+			try {
+				StoredObject so = _store.getStoredObject(transaction, path);
+				if (so == null) {
+					resp.sendError(HttpServletResponse.SC_NOT_FOUND, req.getRequestURI());
+					return;
+				}
+
+				Element rootElement;
+				try {
+					Document document = getDocument(req);
+					rootElement = document.getDocumentElement();
+				} catch (Exception e) {
+					resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+					return;
+				}
+				if (!WebDAVConstants.XMLTag.SYNC_COLLECTION.equals(rootElement.getLocalName())
+						|| !NS_DAV_FULLNAME.equals(rootElement.getNamespaceURI()) || !so.isFolder()) {
+					sendConditionError(resp, HttpServletResponse.SC_FORBIDDEN, WebDAVConstants.XMLTag.SUPPORTED_REPORT);
+					return;
+				}
+				Node propNode = XMLHelper.findSubElement(rootElement, WebDAVConstants.XMLTag.PROP);
+				if (propNode == null) {
+					resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+					return;
+				}
+				String token = getText(rootElement, WebDAVConstants.XMLTag.SYNC_TOKEN);
+				boolean infinite = SYNC_LEVEL_INFINITE.equals(getText(rootElement, WebDAVConstants.XMLTag.SYNC_LEVEL));
+				int limit = getLimit(rootElement);
+
+				ChangeLog.Delta delta = null;
+				String nextToken;
+				if (StringUtils.isEmpty(token)) {
+					if (limit > 0 && countMembers(transaction, path, infinite, limit + 1) > limit) {
+						// RFC 6578 section 3.6
+						sendConditionError(resp, HttpStatus.INSUFFICIENT_STORAGE.value(),
+								WebDAVConstants.XMLTag.NUMBER_OF_MATCHES_WITHIN_LIMITS);
+						return;
+					}
+					// initial sync, taken before listing so nothing changed during the listing is missed
+					nextToken = _changeLog.getToken();
+				} else {
+					delta = _changeLog.getChangesSince(path, token, infinite);
+					if (delta == null) {
+						sendConditionError(resp, HttpServletResponse.SC_FORBIDDEN, WebDAVConstants.XMLTag.VALID_SYNC_TOKEN);
+						return;
+					}
+					nextToken = _changeLog.toToken(delta.getSequence());
+				}
+
+				resp.setStatus(HttpStatus.MULTI_STATUS.value());
+				resp.setContentType("text/xml; charset=UTF-8");
+
+				Writer writer = _responseCompressor.getWriter(req, resp);
+				XMLWriter generatedXML = new XMLWriter(writer);
+				generatedXML.writeXMLHeader();
+				generatedXML.writeElement(NS_DAV_PREFIX,NS_DAV_FULLNAME,WebDAVConstants.XMLTag.MULTISTATUS,XMLWriter.OPENING);
+
+				DoPropfind.PropertyPlan plan = _doPropfind.compileProperties(propNode);
+				int entries;
+				if (delta == null) {
+					entries = writeMembers(transaction, req, generatedXML, path, plan, infinite);
+				} else {
+					List<ChangeLog.Entry> changes = delta.getEntries();
+					if (limit > 0 && changes.size() > limit) {
+						// the client continues from the last change it got
+						changes = changes.subList(0, limit);
+						nextToken = _changeLog.toToken(changes.get(limit - 1).getSequence());
+						writeTruncatedResponse(req, generatedXML, path);
+					}
+					entries = writeChanges(transaction, req, generatedXML, changes, plan);
+				}
+
+				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.SYNC_TOKEN,XMLWriter.OPENING);
+				generatedXML.writeText(nextToken);
+				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.SYNC_TOKEN,XMLWriter.CLOSING);
+				generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.MULTISTATUS,XMLWriter.CLOSING);
+
+				generatedXML.sendData("doReport.response "+path+"\n");
+				writer.close();
+
+				if(LOG.isDebugEnabled()) {
+					LOG.debug("doReport " + path + (delta == null ? " initial sync: " : " since " + token + ": ")
+							+ entries + " entries");
+				}
+			} catch (AccessDeniedException e) {
+				resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+			} catch (WebDAVException e) {
+				LOG.warn("Sending internal error!");
+				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			} finally {
+				_resourceLocks.unlockTemporaryLockedObjects(transaction, path, tempLockOwner);
+			}
+		} else {
+			Hashtable<String, Integer> errorList = new Hashtable<String, Integer>();
+			errorList.put(path, HttpStatus.LOCKED.value());
+			sendReport(req, resp, errorList);
+		}
+	}
+
+	/**
+	 * Lists the members of the collection for an initial sync
+	 * 
+	 * @return number of entries written
+	 */
+	private int writeMembers(ITransaction transaction, HttpServletRequest req, XMLWriter generatedXML, String path,
+			DoPropfind.PropertyPlan plan, boolean infinite) throws IOException {
+		int entries = 0;
+		Deque<String> folders = new ArrayDeque<String>();
+		folders.push(path);
+		while (!folders.isEmpty()) {
+			String folderPath = folders.pop();
+			String[] names = _store.getChildrenNames(transaction, folderPath);
+			if (names == null) {
+				continue;
+			}
+			for (String name : names) {
+				String memberPath = URLUtil.getCleanPath(folderPath, name);
+				StoredObject so = _store.getStoredObject(transaction, memberPath);
+				if (so == null) {
+					// removed since the folder was listed
+					continue;
+				}
+				_doPropfind.writeResponse(transaction, req, generatedXML, memberPath, so, plan);
+				if (++entries % FLUSH_INTERVAL == 0) {
+					generatedXML.flush();
+				}
+				if (infinite && so.isFolder()) {
+					folders.push(memberPath);
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Counts the members of the collection an initial sync would list
+	 *
+	 * @return the number of members, at most max
+	 */
+	private int countMembers(ITransaction transaction, String path, boolean infinite, int max) {
+		int members = 0;
+		Deque<String> folders = new ArrayDeque<String>();
+		folders.push(path);
+		while (!folders.isEmpty() && members < max) {
+			String folderPath = folders.pop();
+			String[] names = _store.getChildrenNames(transaction, folderPath);
+			if (names == null) {
+				continue;
+			}
+			members += names.length;
+			if (infinite) {
+				for (String name : names) {
+					String memberPath = URLUtil.getCleanPath(folderPath, name);
+					StoredObject so = _store.getStoredObject(transaction, memberPath);
+					if (so != null && so.isFolder()) {
+						folders.push(memberPath);
+					}
+				}
+			}
+		}
+		return Math.min(members, max);
+	}
+
+	/**
+	 * Lists the members that changed, with a 404 response for the ones that
+	 * no longer exist
+	 * 
+	 * @return number of entries written
+	 */
+	private int writeChanges(ITransaction transaction, HttpServletRequest req, XMLWriter generatedXML,
+			List<ChangeLog.Entry> changes, DoPropfind.PropertyPlan plan) throws IOException {
+		int entries = 0;
+		for (ChangeLog.Entry change : changes) {
+			StoredObject so = (change.isRemoved() ? null : _store.getStoredObject(transaction, change.getPath()));
+			if (so != null) {
+				_doPropfind.writeResponse(transaction, req, generatedXML, change.getPath(), so, plan);
+			} else {
+				writeStatusResponse(req, generatedXML, change.getPath(), STATUS_NOT_FOUND);
+			}
+			if (++entries % FLUSH_INTERVAL == 0) {
+				generatedXML.flush();
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Marks a report that was cut off by the limit of the client with a 507
+	 * response for the request URI, RFC 6578 section 3.6
+	 */
+	private void writeTruncatedResponse(HttpServletRequest req, XMLWriter generatedXML, String path) {
+		writeStatusResponse(req, generatedXML, path, "HTTP/1.1 " + HttpStatus.INSUFFICIENT_STORAGE.value() + " "
+				+ HttpStatus.INSUFFICIENT_STORAGE.getReasonPhrase());
+	}
+
+	private void writeStatusResponse(HttpServletRequest req, XMLWriter generatedXML, String path, String status) {
+		String href = URLUtil.getCleanPath(req.getContextPath(),req.getServletPath());
+		href = URLUtil.getCleanPath(href,path);
+
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESPONSE,XMLWriter.OPENING);
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.HREF,XMLWriter.OPENING);
+		generatedXML.writeText(rewriteUrl(href));
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.HREF,XMLWriter.CLOSING);
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS,XMLWriter.OPENING);
+		generatedXML.writeText(status);
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.STATUS,XMLWriter.CLOSING);
+		generatedXML.writeElement(NS_DAV_PREFIX,WebDAVConstants.XMLTag.RESPONSE,XMLWriter.CLOSING);
+	}
+
+	/**
+	 * @return the trimmed text of a child element, null if there is no such
+	 *         element
+	 */
+	private static String getText(Element parent, String localName) {
+		Node node = XMLHelper.findSubElement(parent, localName);
+		return (node != null ? node.getTextContent().trim() : null);
+	}
+
+	/**
+	 * @return the number of results the client asked for at most, 0 if it set
+	 *         no limit
+	 */
+	private static int getLimit(Element rootElement) {
+		Node limitNode = XMLHelper.findSubElement(rootElement, WebDAVConstants.XMLTag.LIMIT);
+		if (limitNode != null) {
+			Node nresults = XMLHelper.findSubElement(limitNode, WebDAVConstants.XMLTag.NRESULTS);
+			if (nresults != null) {
+				try {
+					return Math.max(0, Integer.parseInt(nresults.getTextContent().trim()));
+				} catch (NumberFormatException e) {
+					// no limit
+				}
+			}
+		}
+		return 0;
+	}
+}
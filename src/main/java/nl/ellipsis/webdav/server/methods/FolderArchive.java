@@ -0,0 +1,250 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.IWebDAVStore;
+import nl.ellipsis.webdav.server.StoredObject;
+import nl.ellipsis.webdav.server.util.CharsetUtil;
+import nl.ellipsis.webdav.server.util.ResponseCompressor;
+
+/**
+ * A collection and everything below it as a ZIP archive, written while the
+ * tree is walked. Content is copied from the store through one buffer, no
+ * temporary file is made and the size of the archive is not known up front.
+ *
+ * Media types that are compressed already are written at compression level
+ * 0. ZIP entries stored without compression need their CRC before their
+ * content, which would mean reading each file twice.
+ */
+public class FolderArchive {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(FolderArchive.class);
+
+	public static final String CONTENT_TYPE = "application/zip";
+	public static final String FORMAT_ZIP = "zip";
+	public static final String PARAM_FORMAT = "format";
+
+	/**
+	 * Media types of content that does not get smaller when deflated
+	 */
+	public static final Set<String> COMPRESSED_TYPES = Collections.unmodifiableSet(new HashSet<String>(
+			Arrays.asList("application/epub+zip", "application/gzip", "application/java-archive",
+					"application/vnd.openxmlformats-officedocument.presentationml.presentation",
+					"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+					"application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+					"application/vnd.oasis.opendocument.presentation", "application/vnd.oasis.opendocument.spreadsheet",
+					"application/vnd.oasis.opendocument.text", "application/x-7z-compressed",
+					"application/x-bzip2", "application/x-gzip", "application/x-rar-compressed", "application/x-xz",
+					"application/zip")));
+
+	/**
+	 * Media types below image/, audio/ and video/ that are not compressed
+	 */
+	private static final Set<String> UNCOMPRESSED_MEDIA_TYPES = Collections.unmodifiableSet(new HashSet<String>(
+			Arrays.asList("audio/wav", "audio/x-wav", "image/bmp", "image/svg+xml", "image/tiff", "image/x-icon")));
+
+	private static final int BUF_SIZE = 65536;
+	private static final String DEFAULT_NAME = "webdav";
+
+	private final IWebDAVStore _store;
+	private final IMimeTyper _mimeTyper;
+
+	public FolderArchive(IWebDAVStore store, IMimeTyper mimeTyper) {
+		_store = store;
+		_mimeTyper = mimeTyper;
+	}
+
+	/**
+	 * @return true if the request asks for a collection as ZIP archive, with
+	 *         ?format=zip or an Accept header naming application/zip
+	 */
+	public static boolean isRequested(HttpServletRequest req) {
+		if (FORMAT_ZIP.equalsIgnoreCase(req.getParameter(PARAM_FORMAT))) {
+			return true;
+		}
+		String accept = req.getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT);
+		if (accept != null) {
+			for (String range : accept.split(",")) {
+				int semicolon = range.indexOf(CharsetUtil.CHAR_SEMICOLON);
+				String type = (semicolon == -1 ? range : range.substring(0, semicolon)).trim();
+				if (CONTENT_TYPE.equalsIgnoreCase(type)) {
+					return semicolon == -1 || !ResponseCompressor.isZeroQuality(range.substring(semicolon + 1));
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if content of the media type is written without deflating
+	 */
+	public static boolean isCompressed(String mimeType) {
+		if (mimeType == null) {
+			return false;
+		}
+		int semicolon = mimeType.indexOf(CharsetUtil.CHAR_SEMICOLON);
+		String type = (semicolon == -1 ? mimeType : mimeType.substring(0, semicolon)).trim().toLowerCase(Locale.ENGLISH);
+		if (COMPRESSED_TYPES.contains(type)) {
+			return true;
+		}
+		return (type.startsWith("image/") || type.startsWith("audio/") || type.startsWith("video/"))
+				&& !UNCOMPRESSED_MEDIA_TYPES.contains(type);
+	}
+
+	/**
+	 * @return file name for the archive of the collection
+	 */
+	public static String getFileName(String path) {
+		String name = StringUtils.substringAfterLast(StringUtils.removeEnd(path, CharsetUtil.FORWARD_SLASH),
+				CharsetUtil.FORWARD_SLASH);
+		return (StringUtils.isEmpty(name) ? DEFAULT_NAME : name) + "." + FORMAT_ZIP;
+	}
+
+	/**
+	 * @return Content-Disposition header value that saves the archive under
+	 *         the name of the collection, as ASCII fallback and in UTF-8
+	 */
+	public static String getContentDisposition(String path) {
+		String fileName = getFileName(path);
+		String fallback = fileName.replaceAll("[^\\x20-\\x7e]|[\"\\\\]", "_");
+		String encoded;
+		try {
+			encoded = URLEncoder.encode(fileName, StandardCharsets.UTF_8.name()).replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			encoded = fallback;
+		}
+		return "attachment; filename=\"" + fallback + "\"; filename*=UTF-8''" + encoded;
+	}
+
+	/**
+	 * Writes the collection at path as ZIP archive. Entries are named
+	 * relative to the parent of the collection, so the archive unpacks into
+	 * a folder of the same name. Members that disappear while the tree is
+	 * walked are left out.
+	 */
+	public void write(ITransaction transaction, String path, OutputStream out) throws IOException {
+		String folder = StringUtils.removeEnd(path, CharsetUtil.FORWARD_SLASH);
+		String root = StringUtils.removeEnd(getFileName(path), "." + FORMAT_ZIP) + CharsetUtil.FORWARD_SLASH;
+		byte[] buffer = new byte[BUF_SIZE];
+		int entries = 0;
+
+		ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, BUF_SIZE));
+		// folders still to visit, depth first, with their name in the archive
+		Deque<String[]> folders = new ArrayDeque<String[]>();
+		folders.push(new String[] { folder, root });
+		while (!folders.isEmpty()) {
+			String[] next = folders.pop();
+			String folderPath = next[0].isEmpty() ? CharsetUtil.FORWARD_SLASH : next[0];
+			StoredObject so = _store.getStoredObject(transaction, folderPath);
+			if (so == null || !so.isFolder()) {
+				continue;
+			}
+			ZipEntry dirEntry = new ZipEntry(next[1]);
+			setTime(dirEntry, so);
+			zip.putNextEntry(dirEntry);
+			zip.closeEntry();
+			entries++;
+
+			String[] children = _store.getChildrenNames(transaction, folderPath);
+			if (children == null) {
+				continue;
+			}
+			Arrays.sort(children);
+			List<String[]> subfolders = new ArrayList<String[]>();
+			for (String child : children) {
+				String childPath = next[0] + CharsetUtil.FORWARD_SLASH + child;
+				String childName = next[1] + child;
+				StoredObject childSo = _store.getStoredObject(transaction, childPath);
+				if (childSo == null || childSo.isNullResource()) {
+					continue;
+				}
+				if (childSo.isFolder()) {
+					subfolders.add(new String[] { childPath, childName + CharsetUtil.FORWARD_SLASH });
+				} else {
+					writeResource(transaction, zip, childPath, childName, childSo, buffer);
+					entries++;
+				}
+			}
+			// pushed in reverse so subfolders are visited in name order
+			for (int i = subfolders.size() - 1; i >= 0; i--) {
+				folders.push(subfolders.get(i));
+			}
+		}
+		zip.finish();
+		zip.flush();
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Archived " + entries + " entries of " + path);
+		}
+	}
+
+	private void writeResource(ITransaction transaction, ZipOutputStream zip, String path, String name,
+			StoredObject so, byte[] buffer) throws IOException {
+		String mimeType = so.getMimeType();
+		if (mimeType == null) {
+			mimeType = _mimeTyper.getMimeType(transaction, path);
+		}
+		zip.setLevel(isCompressed(mimeType) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+		ZipEntry entry = new ZipEntry(name);
+		setTime(entry, so);
+		zip.putNextEntry(entry);
+		InputStream in = _store.getResourceContent(transaction, path);
+		try {
+			int read;
+			while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+				zip.write(buffer, 0, read);
+			}
+		} finally {
+			try {
+				in.close();
+			} catch (Exception e) {
+				LOG.warn("Closing InputStream causes Exception!\n" + e.toString());
+			}
+		}
+		zip.closeEntry();
+	}
+
+	private static void setTime(ZipEntry entry, StoredObject so) {
+		if (so.getLastModified() != null) {
+			entry.setTime(so.getLastModified().getTime());
+		}
+	}
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.IWebDAVStore;
+import nl.ellipsis.webdav.server.StoredObject;
+import nl.ellipsis.webdav.server.StoredObjectPrefetcher;
+import nl.ellipsis.webdav.server.util.URLUtil;
+import nl.ellipsis.webdav.server.util.XMLWriter;
+
+/**
+ * The HTML listing of a folder for browsers, one page at a time.
+ *
+ * Sorting by name only needs the names of the children, so only the children
+ * on the requested page are looked up. Sorting by size or date looks up all
+ * children, through the prefetcher when one is configured. Rows are written
+ * to the response as they are rendered. The style sheet is read once and date
+ * formats are created once per locale.
+ */
+public class FolderListing {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(FolderListing.class);
+
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+
+	public static final String PARAM_LIMIT = "limit";
+	public static final String PARAM_ORDER = "order";
+	public static final String PARAM_PAGE = "page";
+	public static final String PARAM_SORT = "sort";
+
+	private static final String ORDER_DESC = "desc";
+
+	private static final String DEFAULT_CSS = "body {\n" + "	font-family: Arial, Helvetica, sans-serif;\n" + "}\n"
+			+ "h1 {\n" + "	font-size: 1.5em;\n" + "}\n" + "th {\n" + "	background-color: #9DACBF;\n" + "}\n"
+			+ "table {\n" + "	border-top-style: solid;\n" + "	border-right-style: solid;\n"
+			+ "	border-bottom-style: solid;\n" + "	border-left-style: solid;\n" + "}\n" + "td {\n" + "	margin: 0px;\n"
+			+ "	padding-top: 2px;\n" + "	padding-right: 5px;\n" + "	padding-bottom: 2px;\n"
+			+ "	padding-left: 5px;\n" + "}\n" + "tr.even {\n" + "	background-color: #CCCCCC;\n" + "}\n"
+			+ "tr.odd {\n" + "	background-color: #FFFFFF;\n" + "}\n" + "";
+
+	/**
+	 * The columns a listing can be sorted by
+	 */
+	public enum SortKey {
+		NAME, SIZE, CREATED, MODIFIED;
+
+		static SortKey parse(String value) {
+			if (value != null) {
+				for (SortKey key : values()) {
+					if (key.name().equalsIgnoreCase(value.trim())) {
+						return key;
+					}
+				}
+			}
+			return NAME;
+		}
+	}
+
+	private final IWebDAVStore _store;
+	private final StoredObjectPrefetcher _prefetcher;
+	private final int _pageSize;
+	private final ConcurrentHashMap<Locale, DateFormat> _dateFormats = new ConcurrentHashMap<Locale, DateFormat>();
+	private volatile String _css = null;
+
+	/**
+	 * @param pageSize
+	 *            default and maximum number of children per page, 0 or less
+	 *            lists all children on one page
+	 */
+	public FolderListing(IWebDAVStore store, StoredObjectPrefetcher prefetcher, int pageSize) {
+		_store = store;
+		_prefetcher = prefetcher;
+		_pageSize = pageSize;
+	}
+
+	public int getPageSize() {
+		return _pageSize;
+	}
+
+	/**
+	 * @return the style sheet for listings, webdav.css from the class path if
+	 *         there is one
+	 */
+	public String getCSS() {
+		String css = _css;
+		if (css == null) {
+			css = DEFAULT_CSS;
+			try {
+				InputStream iStream = getClass().getClassLoader().getResourceAsStream("webdav.css");
+				if (iStream != null) {
+					try {
+						css = IOUtils.toString(iStream, StandardCharsets.UTF_8);
+					} finally {
+						iStream.close();
+					}
+				}
+			} catch (Exception ex) {
+				LOG.error("Error in reading webdav.css", ex);
+			}
+			_css = css;
+		}
+		return css;
+	}
+
+	/**
+	 * @return a date format for creation and modification dates, owned by the
+	 *         caller
+	 */
+	public DateFormat getDateFormat(Locale locale) {
+		if (locale == null) {
+			locale = Locale.getDefault();
+		}
+		DateFormat prototype = _dateFormats.get(locale);
+		if (prototype == null) {
+			prototype = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM, locale);
+			_dateFormats.putIfAbsent(locale, prototype);
+		}
+		// formats are not thread safe, a clone is much cheaper than a lookup
+		return (DateFormat) prototype.clone();
+	}
+
+	/**
+	 * Selects the children on the requested page
+	 *
+	 * @param children
+	 *            names of all children, sorted in place when sorting by name
+	 * @param sort
+	 *            value of the sort parameter
+	 * @param order
+	 *            value of the order parameter
+	 * @param page
+	 *            value of the page parameter, counting from 1
+	 * @param limit
+	 *            value of the limit parameter
+	 */
+	public Page select(ITransaction transaction, String path, String[] children, String sort, String order, String page,
+			String limit) {
+		SortKey sortKey = SortKey.parse(sort);
+		boolean descending = ORDER_DESC.equalsIgnoreCase(order);
+		int pageSize = parseInt(limit, _pageSize);
+		if (_pageSize > 0 && (pageSize <= 0 || pageSize > _pageSize)) {
+			pageSize = _pageSize;
+		}
+		if (pageSize <= 0) {
+			pageSize = Math.max(children.length, 1);
+		}
+		int pageCount = Math.max(1, (children.length + pageSize - 1) / pageSize);
+		int pageNumber = Math.min(Math.max(parseInt(page, 1), 1), pageCount);
+		int from = (pageNumber - 1) * pageSize;
+		int to = Math.min(from + pageSize, children.length);
+
+		List<Entry> entries = new ArrayList<Entry>(to - from);
+		if (sortKey == SortKey.NAME) {
+			Arrays.sort(children);
+			if (descending) {
+				Collections.reverse(Arrays.asList(children));
+			}
+			String[] names = Arrays.copyOfRange(children, from, to);
+			fetch(transaction, path, names, entries);
+		} else {
+			List<Entry> all = new ArrayList<Entry>(children.length);
+			fetch(transaction, path, children, all);
+			Comparator<Entry> comparator = getComparator(sortKey);
+			Collections.sort(all, descending ? Collections.reverseOrder(comparator) : comparator);
+			entries.addAll(all.subList(from, to));
+		}
+		return new Page(sortKey, descending, pageNumber, pageCount, pageSize, children.length, from, entries);
+	}
+
+	/**
+	 * Writes the listing as HTML, row by row
+	 *
+	 * @param href
+	 *            context and servlet path the links start with
+	 */
+	public void write(Writer out, String href, String path, Page page, Locale locale) throws IOException {
+		String folderHref = URLUtil.getCleanPath(href, path);
+		String title = XMLWriter.escape(folderHref);
+		DateFormat df = getDateFormat(locale);
+		out.write("<html><head><title>Content of folder ");
+		out.write(title);
+		out.write("</title><style type=\"text/css\">");
+		out.write(getCSS());
+		out.write("</style></head><body><h1>Content of folder ");
+		out.write(title);
+		out.write("</h1>");
+		if (page.getPageCount() > 1) {
+			out.write("<p>" + (page.getFirst() + 1) + " - " + (page.getFirst() + page.getEntries().size()) + " of "
+					+ page.getTotal() + "</p>");
+		}
+		out.write("<table><tr>");
+		writeColumnHeader(out, page, SortKey.NAME, "Name");
+		writeColumnHeader(out, page, SortKey.SIZE, "Size");
+		writeColumnHeader(out, page, SortKey.CREATED, "Created");
+		writeColumnHeader(out, page, SortKey.MODIFIED, "Modified");
+		out.write("</tr>");
+		if (!path.equals("/")) {
+			out.write("<tr><td colspan=\"4\"><a href=\"../\">Parent</a></td></tr>");
+		}
+		boolean isEven = false;
+		for (Entry entry : page.getEntries()) {
+			isEven = !isEven;
+			writeRow(out, folderHref, entry, isEven, df);
+		}
+		out.write("</table>");
+		if (page.getPageCount() > 1) {
+			out.write("<p>");
+			if (page.getPageNumber() > 1) {
+				writeLink(out, page.getQuery(page.getSortKey(), page.isDescending(), page.getPageNumber() - 1), "Previous");
+				out.write(' ');
+			}
+			out.write("Page " + page.getPageNumber() + " of " + page.getPageCount());
+			if (page.getPageNumber() < page.getPageCount()) {
+				out.write(' ');
+				writeLink(out, page.getQuery(page.getSortKey(), page.isDescending(), page.getPageNumber() + 1), "Next");
+			}
+			out.write("</p>");
+		}
+		out.write("</body></html>");
+	}
+
+	private void writeColumnHeader(Writer out, Page page, SortKey key, String label) throws IOException {
+		// a second click on the sorted column reverses the order
+		boolean descending = (page.getSortKey() == key && !page.isDescending());
+		out.write("<th>");
+		writeLink(out, page.getQuery(key, descending, 1), label);
+		out.write("</th>");
+	}
+
+	private static void writeLink(Writer out, String href, String label) throws IOException {
+		out.write("<a href=\"");
+		out.write(XMLWriter.escape(href));
+		out.write("\">");
+		out.write(label);
+		out.write("</a>");
+	}
+
+	private void writeRow(Writer out, String folderHref, Entry entry, boolean isEven, DateFormat df)
+			throws IOException {
+		StoredObject obj = entry.getStoredObject();
+		String childHref = URLUtil.getCleanPath(folderHref, entry.getName());
+		if (obj == null) {
+			LOG.error("Should not return null for " + childHref);
+		}
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("<tr class=\"").append(isEven ? "even" : "odd").append("\"><td><a href=\"");
+		XMLWriter.escape(sb, AbstractMethod.rewriteUrl(childHref));
+		if (obj != null && obj.isFolder()) {
+			sb.append('/');
+		}
+		sb.append("\">");
+		XMLWriter.escape(sb, entry.getName());
+		sb.append("</a></td>");
+		if (obj != null && obj.isFolder()) {
+			sb.append("<td>Folder</td>");
+		} else {
+			sb.append("<td>");
+			if (obj != null) {
+				sb.append(obj.getResourceLength());
+			} else {
+				sb.append("Unknown");
+			}
+			sb.append(" Bytes</td>");
+		}
+		appendDate(sb, obj != null ? obj.getCreationDate() : null, df);
+		appendDate(sb, obj != null ? obj.getLastModified() : null, df);
+		sb.append("</tr>");
+		out.append(sb);
+	}
+
+	private static void appendDate(StringBuilder sb, Date date, DateFormat df) {
+		sb.append("<td>");
+		if (date != null) {
+			sb.append(df.format(date));
+		}
+		sb.append("</td>");
+	}
+
+	private void fetch(ITransaction transaction, String path, String[] names, List<Entry> entries) {
+		StoredObjectPrefetcher.Lookahead children = _prefetcher.open(_store, transaction, path, names);
+		try {
+			for (String name : names) {
+				entries.add(new Entry(name, children.next()));
+			}
+		} finally {
+			children.close();
+		}
+	}
+
+	private static Comparator<Entry> getComparator(final SortKey sortKey) {
+		return new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				int result = Long.compare(getValue(a.getStoredObject()), getValue(b.getStoredObject()));
+				return (result != 0 ? result : a.getName().compareTo(b.getName()));
+			}
+
+			private long getValue(StoredObject so) {
+				if (so == null) {
+					return Long.MIN_VALUE;
+				}
+				Date date;
+				switch (sortKey) {
+				case SIZE:
+					return so.isFolder() ? -1 : so.getResourceLength();
+				case CREATED:
+					date = so.getCreationDate();
+					break;
+				default:
+					date = so.getLastModified();
+					break;
+				}
+				return date != null ? date.getTime() : Long.MIN_VALUE;
+			}
+		};
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * A child of the folder
+	 */
+	public static final class Entry {
+
+		private final String _name;
+		private final StoredObject _so;
+
+		Entry(String name, StoredObject so) {
+			_name = name;
+			_so = so;
+		}
+
+		public String getName() {
+			return _name;
+		}
+
+		/**
+		 * @return the child, null if it no longer exists
+		 */
+		public StoredObject getStoredObject() {
+			return _so;
+		}
+	}
+
+	/**
+	 * The children on one page of the listing
+	 */
+	public static final class Page {
+
+		private final SortKey _sortKey;
+		private final boolean _descending;
+		private final int _pageNumber;
+		private final int _pageCount;
+		private final int _pageSize;
+		private final int _total;
+		private final int _first;
+		private final List<Entry> _entries;
+
+		Page(SortKey sortKey, boolean descending, int pageNumber, int pageCount, int pageSize, int total, int first,
+				List<Entry> entries) {
+			_sortKey = sortKey;
+			_descending = descending;
+			_pageNumber = pageNumber;
+			_pageCount = pageCount;
+			_pageSize = pageSize;
+			_total = total;
+			_first = first;
+			_entries = entries;
+		}
+
+		public SortKey getSortKey() {
+			return _sortKey;
+		}
+
+		public boolean isDescending() {
+			return _descending;
+		}
+
+		public int getPageNumber() {
+			return _pageNumber;
+		}
+
+		public int getPageCount() {
+			return _pageCount;
+		}
+
+		public int getPageSize() {
+			return _pageSize;
+		}
+
+		/**
+		 * @return number of children of the folder
+		 */
+		public int getTotal() {
+			return _total;
+		}
+
+		/**
+		 * @return index of the first child on the page
+		 */
+		public int getFirst() {
+			return _first;
+		}
+
+		public List<Entry> getEntries() {
+			return _entries;
+		}
+
+		/**
+		 * @return query string for a page of the listing, sorted by key
+		 */
+		public String getQuery(SortKey key, boolean descending, int pageNumber) {
+			StringBuilder sb = new StringBuilder("?");
+			sb.append(PARAM_SORT).append('=').append(key.name().toLowerCase(Locale.ENGLISH));
+			if (descending) {
+				sb.append('&').append(PARAM_ORDER).append('=').append(ORDER_DESC);
+			}
+			if (pageNumber > 1) {
+				sb.append('&').append(PARAM_PAGE).append('=').append(pageNumber);
+			}
+			if (_pageCount > 1) {
+				sb.append('&').append(PARAM_LIMIT).append('=').append(_pageSize);
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * @return the StoredObjects on the page, for templates
+		 */
+		public List<StoredObject> getResources() {
+			List<StoredObject> resources = new ArrayList<StoredObject>(_entries.size());
+			for (Entry entry : _entries) {
+				if (entry.getStoredObject() != null) {
+					resources.add(entry.getStoredObject());
+				}
+			}
+			return resources;
+		}
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+
+import nl.ellipsis.webdav.server.IStoreListener;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.IWebDAVStore;
+import nl.ellipsis.webdav.server.StoreChange;
+import nl.ellipsis.webdav.server.StoredObject;
+import nl.ellipsis.webdav.server.util.CharsetUtil;
+
+/**
+ * Gzip compressed copies of text-like resources, made once when a resource is
+ * written so GET can send them to clients that accept gzip without
+ * compressing the content on every request.
+ *
+ * Variants are files in a directory of their own, at the path of the
+ * resource with ".gz" appended, next to a ".etag" file holding the ETag of
+ * the content they were made from. A variant is only served while that
+ * ETag is still the ETag of the resource. Variants are made on the thread
+ * that commits the write, or by a background thread, and are not kept when
+ * compression does not make the resource smaller.
+ */
+public class GzipVariants implements IStoreListener {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(GzipVariants.class);
+
+	/**
+	 * Manager that never has a variant, used when variants are not configured
+	 */
+	public static final GzipVariants NONE = new GzipVariants(null, 0, false);
+
+	/**
+	 * File extensions of the resources that are compressed
+	 */
+	public static final Set<String> COMPRESSIBLE_EXTENSIONS = Collections.unmodifiableSet(new HashSet<String>(
+			Arrays.asList("css", "csv", "htm", "html", "ics", "js", "json", "log", "md", "svg", "tsv", "txt",
+					"vcf", "xml")));
+
+	private static final String VARIANT_SUFFIX = ".gz";
+	private static final String ETAG_SUFFIX = ".etag";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String ETAG_SUFFIX_GZIP = "-gzip";
+	private static final int BUF_SIZE = 65536;
+	private static final int QUEUE_SIZE = 1000;
+
+	private final File _directory;
+	private final int _minSize;
+	private final ThreadPoolExecutor _executor;
+	private final Set<String> _pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ConcurrentHashMap<String, Variant> _variants = new ConcurrentHashMap<String, Variant>();
+	private IWebDAVStore _store = null;
+
+	/**
+	 * @param directory
+	 *            directory to keep the variants in, null disables variants
+	 * @param minSize
+	 *            smallest resource that is compressed, in bytes
+	 * @param background
+	 *            true to compress on a background thread, false to compress
+	 *            before the request that wrote the resource completes
+	 */
+	public GzipVariants(File directory, int minSize, boolean background) {
+		_directory = directory;
+		_minSize = Math.max(minSize, 0);
+		if (directory != null && background) {
+			_executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "webdav-gzip-variants");
+							thread.setDaemon(true);
+							thread.setPriority(Thread.MIN_PRIORITY);
+							return thread;
+						}
+					}, new ThreadPoolExecutor.DiscardPolicy());
+			_executor.allowCoreThreadTimeOut(true);
+		} else {
+			_executor = null;
+		}
+	}
+
+	public boolean isEnabled() {
+		return _directory != null;
+	}
+
+	public File getDirectory() {
+		return _directory;
+	}
+
+	public int getMinSize() {
+		return _minSize;
+	}
+
+	public boolean isBackground() {
+		return _executor != null;
+	}
+
+	/**
+	 * Sets the store the variants are made from, must be called before
+	 * changes are reported
+	 */
+	public void setStore(IWebDAVStore store) {
+		_store = store;
+	}
+
+	/**
+	 * Stops the background thread, variants already queued are still made
+	 */
+	public void shutdown() {
+		if (_executor != null) {
+			_executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return true if the resource is of a type that may have a variant,
+	 *         responses for it vary by Accept-Encoding
+	 */
+	public boolean isCompressible(String path) {
+		if (!isEnabled()) {
+			return false;
+		}
+		int lastSlash = path.lastIndexOf(CharsetUtil.CHAR_FORWARD_SLASH);
+		int lastDot = path.lastIndexOf(CharsetUtil.CHAR_DOT);
+		return lastDot > lastSlash
+				&& COMPRESSIBLE_EXTENSIONS.contains(path.substring(lastDot + 1).toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * @param path
+	 *            path of the resource
+	 * @param eTag
+	 *            the current ETag of the resource
+	 * @return the variant made from the current content, null if there is
+	 *         none
+	 */
+	public Variant getVariant(String path, String eTag) {
+		if (!isCompressible(path)) {
+			return null;
+		}
+		Variant variant = _variants.get(path);
+		if (variant == null) {
+			// made before a restart
+			variant = readVariant(path);
+			if (variant == null) {
+				return null;
+			}
+			_variants.put(path, variant);
+		}
+		if (!variant._sourceETag.equals(eTag) || !variant._file.isFile()) {
+			return null;
+		}
+		return variant;
+	}
+
+	/**
+	 * @return the ETag of the gzip variant of a representation with the ETag
+	 */
+	public static String getVariantETag(String eTag) {
+		int quote = eTag.lastIndexOf(CharsetUtil.DQUOTE);
+		if (quote <= 0) {
+			return eTag + ETAG_SUFFIX_GZIP;
+		}
+		return eTag.substring(0, quote) + ETAG_SUFFIX_GZIP + eTag.substring(quote);
+	}
+
+	public void committed(List<StoreChange> changes) {
+		for (StoreChange change : changes) {
+			final String path = change.getPath();
+			if (change.isRemoved()) {
+				remove(path);
+			} else if (isCompressible(path)) {
+				if (_executor == null) {
+					create(path);
+				} else if (_pending.add(path)) {
+					_executor.execute(new Runnable() {
+						public void run() {
+							_pending.remove(path);
+							create(path);
+						}
+					});
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compresses the current content of the resource
+	 */
+	void create(String path) {
+		IWebDAVStore store = _store;
+		if (store == null) {
+			return;
+		}
+		File file = getFile(path, VARIANT_SUFFIX);
+		if (file == null) {
+			return;
+		}
+		ITransaction transaction = null;
+		try {
+			transaction = store.begin(null);
+			StoredObject so = store.getStoredObject(transaction, path);
+			if (so == null || !so.isResource() || so.isNullResource() || so.getResourceLength() < _minSize) {
+				remove(path);
+			} else {
+				String eTag = AbstractMethod.getETag(so);
+				File temp = compress(store, transaction, path, file);
+				StoredObject after = store.getStoredObject(transaction, path);
+				if (after == null || !eTag.equals(AbstractMethod.getETag(after)) || temp.length() >= so.getResourceLength()) {
+					// changed while it was read, or not worth it
+					Files.delete(temp.toPath());
+					remove(path);
+				} else {
+					install(path, file, temp, eTag);
+				}
+			}
+			store.commit(transaction);
+		} catch (Exception e) {
+			LOG.warn("Making the gzip variant of " + path + " failed", e);
+			if (transaction != null) {
+				try {
+					store.rollback(transaction);
+				} catch (Exception re) {
+					LOG.debug("Rollback failed", re);
+				}
+			}
+		}
+	}
+
+	private File compress(IWebDAVStore store, ITransaction transaction, String path, File file) throws IOException {
+		file.getParentFile().mkdirs();
+		File temp = File.createTempFile(file.getName(), TEMP_SUFFIX, file.getParentFile());
+		InputStream in = store.getResourceContent(transaction, path);
+		try {
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), BUF_SIZE) {
+				{
+					def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			};
+			try {
+				byte[] buffer = new byte[BUF_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return temp;
+	}
+
+	private synchronized void install(String path, File file, File temp, String eTag) throws IOException {
+		File eTagFile = getFile(path, ETAG_SUFFIX);
+		// the ETag is written last, a variant without one is never served
+		Files.deleteIfExists(eTagFile.toPath());
+		_variants.remove(path);
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		FileUtils.writeStringToFile(eTagFile, eTag, StandardCharsets.UTF_8);
+		_variants.put(path, new Variant(eTag, file));
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Made gzip variant of " + path + ": " + file.length() + " bytes");
+		}
+	}
+
+	private synchronized void remove(String path) {
+		File file = getFile(path, VARIANT_SUFFIX);
+		if (file == null) {
+			return;
+		}
+		// a removed folder takes the variants of its members along
+		String prefix = path + CharsetUtil.FORWARD_SLASH;
+		for (String key : _variants.keySet()) {
+			if (key.equals(path) || key.startsWith(prefix)) {
+				_variants.remove(key);
+			}
+		}
+		FileUtils.deleteQuietly(getFile(path, ETAG_SUFFIX));
+		FileUtils.deleteQuietly(file);
+		FileUtils.deleteQuietly(getFile(path, ""));
+	}
+
+	private Variant readVariant(String path) {
+		File eTagFile = getFile(path, ETAG_SUFFIX);
+		File file = getFile(path, VARIANT_SUFFIX);
+		if (eTagFile == null || !eTagFile.isFile() || !file.isFile()) {
+			return null;
+		}
+		try {
+			return new Variant(FileUtils.readFileToString(eTagFile, StandardCharsets.UTF_8), file);
+		} catch (IOException e) {
+			LOG.debug("Cannot read " + eTagFile.getAbsolutePath(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the file in the variant directory, null for paths that would
+	 *         lead outside of it
+	 */
+	private File getFile(String path, String suffix) {
+		if (_directory == null || CharsetUtil.FORWARD_SLASH.equals(path)
+				|| (path + CharsetUtil.FORWARD_SLASH).contains("/../")) {
+			return null;
+		}
+		return new File(_directory, path + suffix);
+	}
+
+	/**
+	 * A gzip compressed copy of a resource
+	 */
+	public static final class Variant {
+
+		private final String _sourceETag;
+		private final File _file;
+
+		private Variant(String sourceETag, File file) {
+			_sourceETag = sourceETag;
+			_file = file;
+		}
+
+		public File getFile() {
+			return _file;
+		}
+
+		/**
+		 * Opens the compressed content; the length and body of a response are
+		 * both taken from the channel, as install() can replace the file
+		 *
+		 * @return the content, null if the variant is gone
+		 */
+		public FileChannel open() {
+			try {
+				return FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+			} catch (IOException e) {
+				LOG.debug("Gzip variant " + _file + " is gone: " + e.getMessage());
+				return null;
+			}
+		}
+
+		/**
+		 * @return the ETag of the compressed representation
+		 */
+		public String getETag() {
+			return getVariantETag(_sourceETag);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The conditional headers of a request, evaluated in the order of RFC 7232
+ * section 6. If-Match uses the strong comparison function, If-None-Match the
+ * weak one; dates are compared with a resolution of one second.
+ *
+ * The headers are read once, so a method can evaluate them before it opens
+ * the content of the resource.
+ */
+public final class Preconditions {
+
+	/**
+	 * The IMF-fixdate of RFC 7231 and the two obsolete formats recipients
+	 * must accept
+	 */
+	private static final String[] HTTP_DATE_FORMATS = new String[] { "EEE, dd MMM yyyy HH:mm:ss zzz",
+			"EEEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMM d HH:mm:ss yyyy" };
+
+	private static final String ANY = "*";
+	private static final String WEAK_PREFIX = "W/";
+
+	private final String _ifMatch;
+	private final String _ifNoneMatch;
+	private final long _ifModifiedSince;
+	private final long _ifUnmodifiedSince;
+
+	private Preconditions(String ifMatch, String ifNoneMatch, long ifModifiedSince, long ifUnmodifiedSince) {
+		_ifMatch = ifMatch;
+		_ifNoneMatch = ifNoneMatch;
+		_ifModifiedSince = ifModifiedSince;
+		_ifUnmodifiedSince = ifUnmodifiedSince;
+	}
+
+	/**
+	 * @return the conditions of the request, null if it has none
+	 */
+	public static Preconditions fromRequest(HttpServletRequest req) {
+		String ifMatch = req.getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+		String ifNoneMatch = req.getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+		// invalid dates are ignored
+		long ifModifiedSince = parseDate(req.getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE));
+		long ifUnmodifiedSince = parseDate(req.getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE));
+		if (ifMatch == null && ifNoneMatch == null && ifModifiedSince == -1 && ifUnmodifiedSince == -1) {
+			return null;
+		}
+		return new Preconditions(ifMatch, ifNoneMatch, ifModifiedSince, ifUnmodifiedSince);
+	}
+
+	/**
+	 * @param exists
+	 *            true if the resource has a current representation
+	 * @param eTag
+	 *            current entity tag of the resource, null if it has none
+	 * @param lastModified
+	 *            last modification of the resource, null if unknown
+	 * @param safe
+	 *            true for GET and HEAD, which get 304 where other methods get
+	 *            412
+	 * @return SC_OK if the method may be performed, SC_NOT_MODIFIED or
+	 *         SC_PRECONDITION_FAILED otherwise
+	 */
+	public int evaluate(boolean exists, String eTag, Date lastModified, boolean safe) {
+		if (_ifMatch != null) {
+			if (!matches(_ifMatch, exists, eTag, false)) {
+				return HttpServletResponse.SC_PRECONDITION_FAILED;
+			}
+		} else if (_ifUnmodifiedSince != -1 && lastModified != null) {
+			if (toSeconds(lastModified.getTime()) > toSeconds(_ifUnmodifiedSince)) {
+				return HttpServletResponse.SC_PRECONDITION_FAILED;
+			}
+		}
+
+		if (_ifNoneMatch != null) {
+			if (matches(_ifNoneMatch, exists, eTag, true)) {
+				return safe ? HttpServletResponse.SC_NOT_MODIFIED : HttpServletResponse.SC_PRECONDITION_FAILED;
+			}
+		} else if (safe && _ifModifiedSince != -1 && lastModified != null
+				&& _ifModifiedSince <= System.currentTimeMillis()) {
+			// a date in the future is invalid
+			if (toSeconds(lastModified.getTime()) <= toSeconds(_ifModifiedSince)) {
+				return HttpServletResponse.SC_NOT_MODIFIED;
+			}
+		}
+		return HttpServletResponse.SC_OK;
+	}
+
+	private static boolean matches(String header, boolean exists, String eTag, boolean weak) {
+		if (ANY.equals(header.trim())) {
+			return exists;
+		}
+		if (eTag == null) {
+			return false;
+		}
+		for (String tag : parseEntityTags(header)) {
+			if (weak ? weakMatch(tag, eTag) : strongMatch(tag, eTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Both entity tags are strong and identical
+	 */
+	static boolean strongMatch(String a, String b) {
+		return !a.startsWith(WEAK_PREFIX) && !b.startsWith(WEAK_PREFIX) && a.equals(b);
+	}
+
+	/**
+	 * The opaque parts of both entity tags are identical, weak or not
+	 */
+	static boolean weakMatch(String a, String b) {
+		return getOpaqueTag(a).equals(getOpaqueTag(b));
+	}
+
+	private static String getOpaqueTag(String eTag) {
+		return eTag.startsWith(WEAK_PREFIX) ? eTag.substring(WEAK_PREFIX.length()) : eTag;
+	}
+
+	/**
+	 * Splits a comma separated list of entity tags. Quoted tags may contain
+	 * commas, tags that are not quoted are taken up to the next comma.
+	 */
+	static List<String> parseEntityTags(String header) {
+		List<String> tags = new ArrayList<String>();
+		int length = header.length();
+		int i = 0;
+		while (i < length) {
+			char c = header.charAt(i);
+			if (c == ',' || Character.isWhitespace(c)) {
+				i++;
+				continue;
+			}
+			int start = i;
+			if (header.startsWith(WEAK_PREFIX, i)) {
+				i += WEAK_PREFIX.length();
+			}
+			int end;
+			if (i < length && header.charAt(i) == '"') {
+				end = header.indexOf('"', i + 1);
+				end = (end == -1 ? length : end + 1);
+			} else {
+				end = header.indexOf(',', i);
+				end = (end == -1 ? length : end);
+			}
+			tags.add(header.substring(start, end).trim());
+			i = end;
+		}
+		return tags;
+	}
+
+	/**
+	 * @return milliseconds since the epoch, -1 if value is null or not a
+	 *         valid HTTP date
+	 */
+	static long parseDate(String value) {
+		if (value == null) {
+			return -1;
+		}
+		// old clients append "; length=..."
+		int semicolon = value.indexOf(';');
+		String date = (semicolon != -1 ? value.substring(0, semicolon) : value).trim();
+		for (String pattern : HTTP_DATE_FORMATS) {
+			SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone(AbstractMethod.TIMEZONE_GMT));
+			try {
+				return format.parse(date).getTime();
+			} catch (ParseException e) {
+				// try the next format
+			}
+		}
+		return -1;
+	}
+
+	private static long toSeconds(long millis) {
+		return millis / 1000;
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.ellipsis.webdav.server.IStoreListener;
+import nl.ellipsis.webdav.server.StoreChange;
+import nl.ellipsis.webdav.server.util.CharsetUtil;
+
+/**
+ * Cache of rendered PROPFIND responses, for clients that repeat the same
+ * PROPFIND several times a second while a folder is open.
+ *
+ * Entries are looked up by a key of path, depth and requested properties,
+ * and hold the response body in its uncompressed and compressed form. An
+ * entry is dropped when the store reports a change to its path, to a parent
+ * or to a descendant; it is not used once the lock state has changed since
+ * it was rendered, or once it is older than the time to live. The time to
+ * live bounds how stale lock timeouts and changes made outside the servlet
+ * can get.
+ *
+ * Concurrent misses for the same key are rendered once, the other requests
+ * wait for the result.
+ */
+public class PropfindCache implements IStoreListener {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(PropfindCache.class);
+
+	/**
+	 * Cache that never holds anything, used when caching is not configured
+	 */
+	public static final PropfindCache NONE = new PropfindCache(0, 0);
+
+	private final int _maxEntries;
+	private final long _timeToLive;
+	private final LinkedHashMap<String, Entry> _entries;
+	private final ConcurrentHashMap<String, FutureTask<Entry>> _loading = new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+	/**
+	 * incremented on every change, responses rendered while it changed are
+	 * not stored
+	 */
+	private final AtomicLong _generation = new AtomicLong();
+
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            maximum number of cached responses, 0 or less disables the
+	 *            cache
+	 * @param timeToLive
+	 *            milliseconds a response is served from the cache at most
+	 */
+	public PropfindCache(int maxEntries, long timeToLive) {
+		_maxEntries = maxEntries;
+		_timeToLive = timeToLive;
+		_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	public boolean isEnabled() {
+		return _maxEntries > 0 && _timeToLive > 0;
+	}
+
+	public int getMaxEntries() {
+		return _maxEntries;
+	}
+
+	public long getTimeToLive() {
+		return _timeToLive;
+	}
+
+	/**
+	 * @return number of responses served from the cache, including requests
+	 *         that waited for a concurrent identical request
+	 */
+	public long getHits() {
+		return _hits.get();
+	}
+
+	/**
+	 * @return number of responses rendered for the cache
+	 */
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	/**
+	 * Returns the cached response for a key, or renders it with the loader.
+	 * When the same key is already being rendered by another request the
+	 * result of that request is returned.
+	 * 
+	 * @param key
+	 *            the request, see createKey
+	 * @param path
+	 *            path of the requested resource
+	 * @param lockVersion
+	 *            current version of the lock state
+	 * @param loader
+	 *            renders the response, returns null if it must not be cached
+	 * @return the response, null if the caller has to render it itself
+	 */
+	public Entry get(String key, String path, long lockVersion, Callable<Entry> loader) throws IOException {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Entry entry = _entries.get(key);
+			if (entry != null) {
+				if (entry._lockVersion == lockVersion && entry._expiresAt > now) {
+					_hits.incrementAndGet();
+					return entry;
+				}
+				_entries.remove(key);
+			}
+		}
+
+		FutureTask<Entry> task = new FutureTask<Entry>(loader);
+		FutureTask<Entry> running = _loading.putIfAbsent(key, task);
+		if (running != null) {
+			try {
+				Entry entry = running.get();
+				if (entry != null) {
+					_hits.incrementAndGet();
+				}
+				return entry;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException e) {
+				// render it ourselves, in our own transaction
+				return null;
+			}
+		}
+
+		_misses.incrementAndGet();
+		long generation = _generation.get();
+		try {
+			task.run();
+			Entry entry = task.get();
+			if (entry != null) {
+				entry._path = path;
+				entry._lockVersion = lockVersion;
+				entry._expiresAt = now + _timeToLive;
+				put(key, entry, generation);
+			}
+			return entry;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			_loading.remove(key, task);
+		}
+	}
+
+	private synchronized void put(String key, Entry entry, long generation) {
+		// the response may have been rendered from state that has changed since
+		if (generation != _generation.get()) {
+			return;
+		}
+		_entries.put(key, entry);
+		if (_entries.size() > _maxEntries) {
+			Iterator<Entry> it = _entries.values().iterator();
+			it.next();
+			it.remove();
+		}
+	}
+
+	public synchronized void committed(List<StoreChange> changes) {
+		_generation.incrementAndGet();
+		if (_entries.isEmpty()) {
+			return;
+		}
+		Iterator<Entry> it = _entries.values().iterator();
+		while (it.hasNext()) {
+			String path = it.next()._path;
+			for (StoreChange change : changes) {
+				if (isAncestorOrSelf(path, change.getPath()) || isAncestorOrSelf(change.getPath(), path)) {
+					it.remove();
+					break;
+				}
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("PROPFIND cache holds " + _entries.size() + " responses after " + changes.size() + " changes");
+		}
+	}
+
+	/**
+	 * Drops all cached responses
+	 */
+	public synchronized void clear() {
+		_generation.incrementAndGet();
+		_entries.clear();
+	}
+
+	private static boolean isAncestorOrSelf(String ancestor, String path) {
+		if (path.equals(ancestor) || CharsetUtil.FORWARD_SLASH.equals(ancestor)) {
+			return true;
+		}
+		return path.startsWith(ancestor) && path.charAt(ancestor.length()) == CharsetUtil.CHAR_FORWARD_SLASH;
+	}
+
+	/**
+	 * Builds the key of a PROPFIND request
+	 * 
+	 * @param base
+	 *            context and servlet path the hrefs start with
+	 * @param principal
+	 *            name of the user the response is for, the lock discovery
+	 *            and provider values may differ per user; null if anonymous
+	 * @param path
+	 *            path of the requested resource
+	 * @param depth
+	 *            effective depth
+	 * @param representation
+	 *            content type of the response
+	 * @param properties
+	 *            normalized description of the requested properties
+	 */
+	public static String createKey(String base, String principal, String path, int depth, String representation,
+			String properties) {
+		return base + CharsetUtil.CHAR_SPACE + (principal != null ? principal.length() + ":" + principal : "-")
+				+ CharsetUtil.CHAR_SPACE + path + CharsetUtil.CHAR_SPACE + depth + CharsetUtil.CHAR_SPACE
+				+ representation + CharsetUtil.CHAR_SPACE + properties;
+	}
+
+	@Override
+	public String toString() {
+		return "PropfindCache[maxEntries=" + _maxEntries + ", timeToLive=" + _timeToLive + "]";
+	}
+
+	/**
+	 * A rendered response
+	 */
+	public static final class Entry {
+		private final int _status;
+		private final String _contentType;
+		private final byte[] _body;
+		private final byte[] _compressedBody;
+		private String _path;
+		private long _lockVersion;
+		private long _expiresAt;
+
+		/**
+		 * @param body
+		 *            the response body
+		 * @param compressedBody
+		 *            the compressed response body, null if it is not
+		 *            compressed
+		 */
+		public Entry(int status, String contentType, byte[] body, byte[] compressedBody) {
+			_status = status;
+			_contentType = contentType;
+			_body = body;
+			_compressedBody = compressedBody;
+		}
+
+		public int getStatus() {
+			return _status;
+		}
+
+		public String getContentType() {
+			return _contentType;
+		}
+
+		public byte[] getBody() {
+			return _body;
+		}
+
+		public byte[] getCompressedBody() {
+			return _compressedBody;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.ellipsis.webdav.server.IStoreListener;
+import nl.ellipsis.webdav.server.StoreChange;
+import nl.ellipsis.webdav.server.util.CharsetUtil;
+import nl.ellipsis.webdav.server.util.XMLWriter;
+
+/**
+ * Cache of the rendered response elements of single resources, from which
+ * PROPFIND assembles listings of folders whose members mostly did not change.
+ *
+ * A fragment is looked up by a key of path, the state of the resource its
+ * ETag is computed from and the requested properties, so a changed resource
+ * never matches an old fragment. The supportedlock and lockdiscovery
+ * elements depend on the lock state instead, a fragment holds the markup
+ * around them and they are rendered each time the fragment is copied.
+ * Fragments of changed paths are dropped when the store reports the change.
+ */
+public class PropfindFragmentCache implements IStoreListener {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(PropfindFragmentCache.class);
+
+	/**
+	 * Cache that never holds anything, used when caching is not configured
+	 */
+	public static final PropfindFragmentCache NONE = new PropfindFragmentCache(0);
+
+	/**
+	 * The elements of a response that are rendered per request
+	 */
+	public enum LockElement {
+		SUPPORTEDLOCK, LOCKDISCOVERY
+	}
+
+	private final int _maxEntries;
+	private final LinkedHashMap<String, Fragment> _fragments;
+
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            maximum number of cached fragments, 0 or less disables the
+	 *            cache
+	 */
+	public PropfindFragmentCache(int maxEntries) {
+		_maxEntries = maxEntries;
+		_fragments = new LinkedHashMap<String, Fragment>(16, 0.75f, true);
+	}
+
+	public boolean isEnabled() {
+		return _maxEntries > 0;
+	}
+
+	public int getMaxEntries() {
+		return _maxEntries;
+	}
+
+	/**
+	 * @return number of responses copied from a fragment
+	 */
+	public long getHits() {
+		return _hits.get();
+	}
+
+	/**
+	 * @return number of responses rendered into a new fragment
+	 */
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	public synchronized int size() {
+		return _fragments.size();
+	}
+
+	/**
+	 * @param key
+	 *            the resource and properties, see createKey
+	 * @return the fragment, null if it has to be recorded
+	 */
+	public synchronized Fragment get(String key) {
+		Fragment fragment = _fragments.get(key);
+		if (fragment != null) {
+			_hits.incrementAndGet();
+		} else {
+			_misses.incrementAndGet();
+		}
+		return fragment;
+	}
+
+	/**
+	 * @param key
+	 *            the resource and properties, see createKey
+	 * @param path
+	 *            path of the resource, for invalidation
+	 */
+	public synchronized void put(String key, String path, Fragment fragment) {
+		fragment._path = path;
+		_fragments.put(key, fragment);
+		if (_fragments.size() > _maxEntries) {
+			Iterator<Fragment> it = _fragments.values().iterator();
+			it.next();
+			it.remove();
+		}
+	}
+
+	public synchronized void committed(List<StoreChange> changes) {
+		if (_fragments.isEmpty()) {
+			return;
+		}
+		Iterator<Fragment> it = _fragments.values().iterator();
+		while (it.hasNext()) {
+			String path = it.next()._path;
+			for (StoreChange change : changes) {
+				// a removed folder takes its members along
+				if (isAncestorOrSelf(change.getPath(), path)) {
+					it.remove();
+					break;
+				}
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("PROPFIND fragment cache holds " + _fragments.size() + " fragments after " + changes.size()
+					+ " changes");
+		}
+	}
+
+	/**
+	 * Drops all cached fragments
+	 */
+	public synchronized void clear() {
+		_fragments.clear();
+	}
+
+	private static boolean isAncestorOrSelf(String ancestor, String path) {
+		if (path.equals(ancestor) || CharsetUtil.FORWARD_SLASH.equals(ancestor)) {
+			return true;
+		}
+		return path.startsWith(ancestor) && path.charAt(ancestor.length()) == CharsetUtil.CHAR_FORWARD_SLASH;
+	}
+
+	/**
+	 * Builds the key of the response element of a resource
+	 * 
+	 * @param base
+	 *            context and servlet path the href starts with
+	 * @param path
+	 *            path of the resource
+	 * @param state
+	 *            the state of the resource its properties are computed from
+	 * @param properties
+	 *            normalized description of the requested properties
+	 */
+	public static String createKey(String base, String path, String state, String properties) {
+		return base + CharsetUtil.CHAR_SPACE + path + CharsetUtil.CHAR_SPACE + state + CharsetUtil.CHAR_SPACE
+				+ properties;
+	}
+
+	@Override
+	public String toString() {
+		return "PropfindFragmentCache[maxEntries=" + _maxEntries + "]";
+	}
+
+	/**
+	 * The response element of one resource: markup with the lock elements
+	 * left out, segment i is followed by lock element i
+	 */
+	public static final class Fragment {
+		private final String[] _segments;
+		private final LockElement[] _lockElements;
+		private String _path;
+
+		private Fragment(String[] segments, LockElement[] lockElements) {
+			_segments = segments;
+			_lockElements = lockElements;
+		}
+
+		/**
+		 * @return number of lock elements, there is one segment more
+		 */
+		public int getLockElementCount() {
+			return _lockElements.length;
+		}
+
+		public String getSegment(int i) {
+			return _segments[i];
+		}
+
+		public LockElement getLockElement(int i) {
+			return _lockElements[i];
+		}
+	}
+
+	/**
+	 * Writer that records a fragment
+	 */
+	public static final class Recorder extends XMLWriter {
+		private final List<String> _segments = new ArrayList<String>();
+		private final List<LockElement> _lockElements = new ArrayList<LockElement>();
+
+		/**
+		 * Marks the place of a lock element, instead of writing it
+		 */
+		public void writeLockElement(LockElement lockElement) {
+			_segments.add(buffer.toString());
+			_lockElements.add(lockElement);
+			buffer.setLength(0);
+		}
+
+		public Fragment toFragment() {
+			List<String> segments = new ArrayList<String>(_segments);
+			segments.add(buffer.toString());
+			return new Fragment(segments.toArray(new String[segments.size()]),
+					_lockElements.toArray(new LockElement[_lockElements.size()]));
+		}
+	}
+}
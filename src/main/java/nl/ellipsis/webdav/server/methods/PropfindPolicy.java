@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+/**
+ * Limits the work a single PROPFIND may cause.
+ *
+ * Depth infinity is either rejected with the DAV:propfind-finite-depth
+ * precondition (RFC 4918 section 9.1) or capped to a maximum depth. The
+ * number of entries in one response can be limited as well; a truncated
+ * multistatus ends with a 507 response for the request URI.
+ */
+public class PropfindPolicy {
+
+	/**
+	 * Policy without limits, the behaviour of RFC 4918 servers that allow
+	 * depth infinity
+	 */
+	public static final PropfindPolicy UNLIMITED = new PropfindPolicy(false, -1, -1);
+
+	private final boolean _rejectInfinity;
+	private final int _maxDepth;
+	private final int _maxEntries;
+
+	/**
+	 * @param rejectInfinity
+	 *            reject depth infinity with DAV:propfind-finite-depth
+	 * @param maxDepth
+	 *            maximum traversal depth, negative for no limit
+	 * @param maxEntries
+	 *            maximum number of entries in one response, 0 or negative for
+	 *            no limit
+	 */
+	public PropfindPolicy(boolean rejectInfinity, int maxDepth, int maxEntries) {
+		_rejectInfinity = rejectInfinity;
+		_maxDepth = maxDepth;
+		_maxEntries = maxEntries;
+	}
+
+	public boolean isRejectInfinity() {
+		return _rejectInfinity;
+	}
+
+	public int getMaxDepth() {
+		return _maxDepth;
+	}
+
+	public int getMaxEntries() {
+		return _maxEntries;
+	}
+
+	/**
+	 * @param depth
+	 *            depth requested by the client
+	 * @return true if the request must be refused
+	 */
+	public boolean rejects(int depth) {
+		return _rejectInfinity && depth == AbstractMethod.DEPTH_INFINITY;
+	}
+
+	/**
+	 * @param depth
+	 *            depth requested by the client
+	 * @return the depth the server will traverse
+	 */
+	public int getEffectiveDepth(int depth) {
+		if (_maxDepth >= 0 && (depth == AbstractMethod.DEPTH_INFINITY || depth > _maxDepth)) {
+			return _maxDepth;
+		}
+		return depth;
+	}
+
+	/**
+	 * @param entries
+	 *            number of entries written so far
+	 * @return true if no more entries may be written
+	 */
+	public boolean isEntryLimitReached(int entries) {
+		return _maxEntries > 0 && entries >= _maxEntries;
+	}
+
+	@Override
+	public String toString() {
+		return "PropfindPolicy[rejectInfinity=" + _rejectInfinity + ", maxDepth=" + _maxDepth + ", maxEntries="
+				+ _maxEntries + "]";
+	}
+}
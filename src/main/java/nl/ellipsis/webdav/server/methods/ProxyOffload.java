@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+
+import nl.ellipsis.webdav.server.ILocalFileStore;
+import nl.ellipsis.webdav.server.IStoreDecorator;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.IWebDAVStore;
+import nl.ellipsis.webdav.server.util.CharsetUtil;
+
+/**
+ * Leaves sending the content of a GET to the front proxy. Once locks and
+ * preconditions have been checked and the headers are set, the response
+ * only gets a header that tells the proxy which file to send, the proxy
+ * sends it with sendfile and the JVM never reads it.
+ *
+ * With X-Accel-Redirect (nginx) the header holds the path of the resource
+ * below an internal location of the proxy that maps to the root of the
+ * store. With X-Sendfile (Apache mod_xsendfile, lighttpd) it holds the
+ * absolute path of the file. Only stores that keep resources in local files
+ * can be offloaded.
+ */
+public class ProxyOffload {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ProxyOffload.class);
+
+	/**
+	 * Offload that sends everything through the JVM
+	 */
+	public static final ProxyOffload NONE = new ProxyOffload(null, null, null);
+
+	public enum Mode {
+		X_ACCEL_REDIRECT("X-Accel-Redirect"), X_SENDFILE("X-Sendfile");
+
+		private final String _header;
+
+		Mode(String header) {
+			_header = header;
+		}
+
+		public String getHeader() {
+			return _header;
+		}
+
+		/**
+		 * @return the mode named like its header, case insensitive
+		 * @throws IllegalArgumentException
+		 *             for an unknown name
+		 */
+		public static Mode fromName(String name) {
+			return valueOf(name.trim().toUpperCase(Locale.ENGLISH).replace(CharsetUtil.CHAR_DASH,
+					CharsetUtil.CHAR_UNDERSCORE));
+		}
+	}
+
+	private final Mode _mode;
+	private final String _location;
+	private final ILocalFileStore _files;
+
+	/**
+	 * @param mode
+	 *            header to send, null to disable
+	 * @param location
+	 *            internal location of the proxy that maps to the root of the
+	 *            store, only used with X-Accel-Redirect
+	 * @param store
+	 *            store the resources come from, offloading is disabled if it
+	 *            does not keep them in local files
+	 */
+	public ProxyOffload(Mode mode, String location, IWebDAVStore store) {
+		_mode = mode;
+		_location = StringUtils.removeEnd(StringUtils.defaultString(location), CharsetUtil.FORWARD_SLASH);
+		_files = getLocalFileStore(store);
+		if (mode != null && _files == null) {
+			LOG.warn("Store does not keep resources in local files, not offloading GET to the proxy");
+		}
+	}
+
+	public boolean isEnabled() {
+		return _mode != null && _files != null;
+	}
+
+	/**
+	 * Sets the offload header if the content of the resource is in a local
+	 * file. The body must not be written when this returns true.
+	 *
+	 * @return true if the proxy sends the content
+	 */
+	public boolean offload(ITransaction transaction, HttpServletResponse resp, String path) {
+		if (!isEnabled()) {
+			return false;
+		}
+		File file = _files.getFile(transaction, path);
+		if (file == null) {
+			return false;
+		}
+		String value;
+		if (_mode == Mode.X_SENDFILE) {
+			value = file.getAbsolutePath();
+		} else {
+			value = _location + encodePath(path);
+		}
+		resp.setHeader(_mode.getHeader(), value);
+		// the proxy sends the length of the file, not of this response
+		resp.setContentLength(0);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Offloading " + path + " to the proxy with " + _mode.getHeader() + ": " + value);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the path with each segment percent-encoded, as nginx expects
+	 *         in X-Accel-Redirect
+	 */
+	static String encodePath(String path) {
+		StringBuilder sb = new StringBuilder();
+		for (String segment : StringUtils.split(path, CharsetUtil.FORWARD_SLASH)) {
+			try {
+				sb.append(CharsetUtil.FORWARD_SLASH).append(
+						URLEncoder.encode(segment, StandardCharsets.UTF_8.name()).replace("+", "%20"));
+			} catch (UnsupportedEncodingException e) {
+				// UTF-8 is always supported
+				throw new IllegalStateException(e);
+			}
+		}
+		return sb.length() == 0 ? CharsetUtil.FORWARD_SLASH : sb.toString();
+	}
+
+	private static ILocalFileStore getLocalFileStore(IWebDAVStore store) {
+		// a decorator can keep content out of the files for a while
+		while (!(store instanceof ILocalFileStore) && store instanceof IStoreDecorator) {
+			store = ((IStoreDecorator) store).getDelegate();
+		}
+		return store instanceof ILocalFileStore ? (ILocalFileStore) store : null;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.methods;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import nl.ellipsis.webdav.server.util.CharsetUtil;
+import nl.ellipsis.webdav.server.util.DigestVerifyingInputStream;
+
+/**
+ * The digests a client sent along with the content of a PUT, from
+ * Content-MD5 (RFC 1864), Digest (RFC 3230) and Repr-Digest (RFC 9530).
+ * MD5 and SHA-256 are verified, other algorithms are ignored.
+ *
+ * The headers are read before the body, the content is verified by the
+ * stream that hands it to the store.
+ */
+public final class UploadDigests {
+
+	public static final String HEADER_CONTENT_MD5 = "Content-MD5";
+	public static final String HEADER_DIGEST = "Digest";
+	public static final String HEADER_REPR_DIGEST = "Repr-Digest";
+
+	/**
+	 * JCA names of the supported algorithms, by lower case header name
+	 */
+	private static final Map<String, String> ALGORITHMS = new HashMap<String, String>();
+	private static final Map<String, Integer> DIGEST_LENGTHS = new HashMap<String, Integer>();
+
+	static {
+		ALGORITHMS.put("md5", "MD5");
+		ALGORITHMS.put("sha-256", "SHA-256");
+		DIGEST_LENGTHS.put("MD5", 16);
+		DIGEST_LENGTHS.put("SHA-256", 32);
+	}
+
+	private final Map<String, byte[]> _expected;
+
+	private UploadDigests(Map<String, byte[]> expected) {
+		_expected = expected;
+	}
+
+	/**
+	 * @return the digests of the request, null if it has none that can be
+	 *         verified
+	 * @throws IllegalArgumentException
+	 *             if a digest is malformed or headers contradict each other
+	 */
+	public static UploadDigests fromRequest(HttpServletRequest req) {
+		Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+		String contentMD5 = req.getHeader(HEADER_CONTENT_MD5);
+		if (contentMD5 != null) {
+			add(expected, "md5", contentMD5);
+		}
+		String digest = req.getHeader(HEADER_DIGEST);
+		if (digest != null) {
+			// digest-algorithm "=" base64, the value can end with padding
+			for (String instance : digest.split(",")) {
+				int equals = instance.indexOf(CharsetUtil.CHAR_EQUALS);
+				if (equals != -1) {
+					add(expected, instance.substring(0, equals), instance.substring(equals + 1));
+				}
+			}
+		}
+		String reprDigest = req.getHeader(HEADER_REPR_DIGEST);
+		if (reprDigest != null) {
+			// structured field dictionary of byte sequences, key=:base64:
+			for (String member : reprDigest.split(",")) {
+				int equals = member.indexOf(CharsetUtil.CHAR_EQUALS);
+				if (equals == -1) {
+					continue;
+				}
+				String value = member.substring(equals + 1).trim();
+				int semicolon = value.indexOf(CharsetUtil.CHAR_SEMICOLON);
+				if (semicolon != -1) {
+					value = value.substring(0, semicolon).trim();
+				}
+				if (value.length() < 2 || value.charAt(0) != CharsetUtil.CHAR_COLON
+						|| value.charAt(value.length() - 1) != CharsetUtil.CHAR_COLON) {
+					throw new IllegalArgumentException("malformed " + HEADER_REPR_DIGEST + ": " + member);
+				}
+				add(expected, member.substring(0, equals), value.substring(1, value.length() - 1));
+			}
+		}
+		return expected.isEmpty() ? null : new UploadDigests(expected);
+	}
+
+	/**
+	 * @return the content, verified while it is read
+	 */
+	public DigestVerifyingInputStream verify(InputStream content) {
+		return new DigestVerifyingInputStream(content, _expected);
+	}
+
+	private static void add(Map<String, byte[]> expected, String name, String base64) {
+		String algorithm = ALGORITHMS.get(name.trim().toLowerCase(Locale.ENGLISH));
+		if (algorithm == null) {
+			return;
+		}
+		byte[] value;
+		try {
+			value = Base64.getDecoder().decode(base64.trim());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("malformed " + algorithm + " digest: " + base64, e);
+		}
+		if (value.length != DIGEST_LENGTHS.get(algorithm)) {
+			throw new IllegalArgumentException("malformed " + algorithm + " digest: " + base64);
+		}
+		byte[] previous = expected.put(algorithm, value);
+		if (previous != null && !Arrays.equals(previous, value)) {
+			throw new IllegalArgumentException("conflicting " + algorithm + " digests");
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.properties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.ellipsis.webdav.server.ITransaction;
+
+/**
+ * Base class for property providers. getValues falls back to calling
+ * getValue for every path, with a null StoredObject; providers with cost IO
+ * should override it with a single round trip.
+ */
+public abstract class AbstractPropertyProvider implements IPropertyProvider {
+
+	private final String _namespace;
+	private final String _name;
+	private final Cost _cost;
+
+	protected AbstractPropertyProvider(String namespace, String name, Cost cost) {
+		_namespace = namespace;
+		_name = name;
+		_cost = cost;
+	}
+
+	public String getNamespace() {
+		return _namespace;
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	public Cost getCost() {
+		return _cost;
+	}
+
+	public Map<String, String> getValues(ITransaction transaction, String[] paths) {
+		Map<String, String> values = new HashMap<String, String>();
+		for (String path : paths) {
+			String value = getValue(transaction, path, null);
+			if (value != null) {
+				values.put(path, value);
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[{" + _namespace + "}" + _name + ", " + _cost + "]";
+	}
+}
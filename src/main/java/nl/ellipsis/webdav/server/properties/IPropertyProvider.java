@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.properties;
+
+import java.util.Map;
+
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.StoredObject;
+
+/**
+ * Supplies one live property for PROPFIND, in addition to the properties
+ * built into DoPropfind. Providers are registered at servlet init and shared
+ * by all requests, so they must be thread safe.
+ */
+public interface IPropertyProvider {
+
+	/**
+	 * How expensive it is to compute the value of a property
+	 */
+	public enum Cost {
+		/**
+		 * Derived from the StoredObject only
+		 */
+		FREE,
+		/**
+		 * Needs a little work besides the StoredObject, evaluated per resource
+		 */
+		CHEAP,
+		/**
+		 * Needs I/O, evaluated for all children of a folder at once and left
+		 * out of allprop unless the client includes it by name
+		 */
+		IO
+	}
+
+	/**
+	 * @return namespace URI of the property
+	 */
+	String getNamespace();
+
+	/**
+	 * @return local name of the property
+	 */
+	String getName();
+
+	Cost getCost();
+
+	/**
+	 * Computes the value of the property of one resource
+	 *
+	 * @param transaction
+	 *            transaction of the request
+	 * @param path
+	 *            path of the resource
+	 * @param so
+	 *            the resource
+	 * @return the value, null if the resource does not have the property
+	 */
+	String getValue(ITransaction transaction, String path, StoredObject so);
+
+	/**
+	 * Computes the values of the property of several resources, called for
+	 * providers with cost IO with the children of one folder
+	 *
+	 * @param transaction
+	 *            transaction of the request
+	 * @param paths
+	 *            paths of the resources
+	 * @return the values by path, resources without the property may be left
+	 *         out
+	 */
+	Map<String, String> getValues(ITransaction transaction, String[] paths);
+
+}
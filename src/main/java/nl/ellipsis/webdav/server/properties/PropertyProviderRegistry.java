@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.properties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The property providers registered at servlet init, looked up by namespace
+ * and name. Each namespace other than DAV: gets its own prefix for the
+ * generated XML.
+ */
+public class PropertyProviderRegistry {
+
+	private static org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(PropertyProviderRegistry.class);
+
+	private static final String NS_DAV_FULLNAME = "DAV:";
+	private static final String NS_DAV_PREFIX = "D";
+	private static final String NS_PREFIX = "ns";
+
+	private final List<IPropertyProvider> _providers = new ArrayList<IPropertyProvider>();
+	private final HashMap<String, IPropertyProvider> _byQualifiedName = new HashMap<String, IPropertyProvider>();
+	private final HashMap<String, String> _prefixes = new HashMap<String, String>();
+
+	/**
+	 * Adds a provider, must not be called once requests are being served
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a provider for the same property is already registered
+	 */
+	public void register(IPropertyProvider provider) {
+		String qualifiedName = getQualifiedName(provider.getNamespace(), provider.getName());
+		if (_byQualifiedName.containsKey(qualifiedName)) {
+			throw new IllegalArgumentException("duplicate property provider for " + qualifiedName);
+		}
+		_providers.add(provider);
+		_byQualifiedName.put(qualifiedName, provider);
+		if (!_prefixes.containsKey(provider.getNamespace())) {
+			_prefixes.put(provider.getNamespace(), NS_DAV_FULLNAME.equals(provider.getNamespace()) ? NS_DAV_PREFIX
+					: NS_PREFIX + _prefixes.size());
+		}
+		LOG.info("Registered property provider " + provider);
+	}
+
+	public boolean isEmpty() {
+		return _providers.isEmpty();
+	}
+
+	/**
+	 * @return all providers in registration order
+	 */
+	public List<IPropertyProvider> getProviders() {
+		return Collections.unmodifiableList(_providers);
+	}
+
+	/**
+	 * @return the provider of the property, null if there is none
+	 */
+	public IPropertyProvider getProvider(String namespace, String name) {
+		return _byQualifiedName.get(getQualifiedName(namespace, name));
+	}
+
+	/**
+	 * @return prefix to write the namespace of a provider with
+	 */
+	public String getPrefix(IPropertyProvider provider) {
+		return _prefixes.get(provider.getNamespace());
+	}
+
+	private static String getQualifiedName(String namespace, String name) {
+		return "{" + (namespace != null ? namespace : "") + "}" + name;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.properties;
+
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.IWebDAVStore;
+import nl.ellipsis.webdav.server.Quota;
+import nl.ellipsis.webdav.server.StoredObject;
+
+/**
+ * DAV:quota-available-bytes and DAV:quota-used-bytes (RFC 4331) from the
+ * counters of a {@link Quota}. RFC 4331 asks not to return them for
+ * allprop, so they have cost IO and are only computed when asked for by
+ * name; the values themselves come from memory.
+ */
+public class QuotaPropertyProvider extends AbstractPropertyProvider {
+
+	public static final String QUOTA_AVAILABLE_BYTES = "quota-available-bytes";
+	public static final String QUOTA_USED_BYTES = "quota-used-bytes";
+
+	private static final String NS_DAV_FULLNAME = "DAV:";
+
+	private final IWebDAVStore _store;
+	private final Quota _quota;
+	private final boolean _available;
+
+	/**
+	 * @param name
+	 *            QUOTA_AVAILABLE_BYTES or QUOTA_USED_BYTES
+	 */
+	public QuotaPropertyProvider(IWebDAVStore store, Quota quota, String name) {
+		super(NS_DAV_FULLNAME, name, Cost.IO);
+		if (!QUOTA_AVAILABLE_BYTES.equals(name) && !QUOTA_USED_BYTES.equals(name)) {
+			throw new IllegalArgumentException("not a quota property: " + name);
+		}
+		_store = store;
+		_quota = quota;
+		_available = QUOTA_AVAILABLE_BYTES.equals(name);
+	}
+
+	public String getValue(ITransaction transaction, String path, StoredObject so) {
+		if (so == null) {
+			so = _store.getStoredObject(transaction, path);
+		}
+		if (so == null || so.isNullResource()) {
+			return null;
+		}
+		if (_available) {
+			long available = _quota.getAvailable(path, so.isFolder());
+			return available == Long.MAX_VALUE ? null : String.valueOf(available);
+		}
+		return String.valueOf(_quota.getUsed(path, so.isFolder()));
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Digests the content while it is read and compares the result with the
+ * expected digests at the end of the stream. A mismatch is reported by the
+ * read that would have returned end of stream, so whoever copies the stream
+ * sees a failed copy and can drop what it wrote.
+ *
+ * Stores that digest the content themselves can take the digest computed
+ * here instead of computing it again.
+ */
+public class DigestVerifyingInputStream extends FilterInputStream implements IStagedContent {
+
+	/**
+	 * The content read does not have the expected digest
+	 */
+	public static class DigestMismatchException extends IOException {
+
+		private static final long serialVersionUID = -3914212087620421931L;
+
+		private final String _algorithm;
+
+		public DigestMismatchException(String algorithm) {
+			super(algorithm + " digest of the content does not match");
+			_algorithm = algorithm;
+		}
+
+		public String getAlgorithm() {
+			return _algorithm;
+		}
+	}
+
+	private final Map<String, byte[]> _expected;
+	private final Map<String, MessageDigest> _digests = new LinkedHashMap<String, MessageDigest>();
+	private final Map<String, byte[]> _computed = new LinkedHashMap<String, byte[]>();
+	private boolean _verified = false;
+
+	/**
+	 * @param expected
+	 *            expected digest by JCA algorithm name, like "MD5" or
+	 *            "SHA-256"
+	 * @throws IllegalArgumentException
+	 *             if an algorithm is not available
+	 */
+	public DigestVerifyingInputStream(InputStream in, Map<String, byte[]> expected) {
+		super(in);
+		_expected = expected;
+		for (String algorithm : expected.keySet()) {
+			try {
+				_digests.put(algorithm, MessageDigest.getInstance(algorithm));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the content is digested with the algorithm
+	 */
+	public boolean isDigesting(String algorithm) {
+		return _digests.containsKey(algorithm);
+	}
+
+	/**
+	 * @return the verified digest, null before the end of the stream has been
+	 *         read or if the content is not digested with the algorithm
+	 */
+	public byte[] getDigest(String algorithm) {
+		return _computed.get(algorithm);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b == -1) {
+			verify();
+		} else {
+			for (MessageDigest digest : _digests.values()) {
+				digest.update((byte) b);
+			}
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		if (read == -1) {
+			verify();
+		} else {
+			for (MessageDigest digest : _digests.values()) {
+				digest.update(b, off, read);
+			}
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// skipped content has to be digested too
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	private void verify() throws DigestMismatchException {
+		if (_verified) {
+			return;
+		}
+		for (Map.Entry<String, MessageDigest> entry : _digests.entrySet()) {
+			byte[] computed = entry.getValue().digest();
+			if (!MessageDigest.isEqual(computed, _expected.get(entry.getKey()))) {
+				throw new DigestMismatchException(entry.getKey());
+			}
+			_computed.put(entry.getKey(), computed);
+		}
+		_verified = true;
+	}
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.ellipsis.webdav.server.util;
+
+/**
+ * Marks a content stream that may only replace a resource once all of it
+ * has been read, because it is verified at its end or was assembled from
+ * parts. Stores that can, write such content aside and publish it in one
+ * step, so readers never see part of it.
+ */
+public interface IStagedContent {
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.ellipsis.webdav.server.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Minimal streaming JSON writer for flat listings: an array of objects with
+ * string, number and boolean members. Output is written straight to the
+ * underlying writer, one object per line.
+ */
+public class JSONWriter {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Writer _writer;
+	private boolean _firstObject = true;
+	private boolean _firstMember = true;
+
+	public JSONWriter(Writer writer) {
+		_writer = writer;
+	}
+
+	public void writeArrayStart() throws IOException {
+		_writer.write("[\n");
+		_firstObject = true;
+	}
+
+	public void writeArrayEnd() throws IOException {
+		_writer.write(_firstObject ? "]\n" : "\n]\n");
+	}
+
+	public void writeObjectStart() throws IOException {
+		if (!_firstObject) {
+			_writer.write(",\n");
+		}
+		_writer.write('{');
+		_firstObject = false;
+		_firstMember = true;
+	}
+
+	public void writeObjectEnd() throws IOException {
+		_writer.write('}');
+	}
+
+	public void writeMember(String name, String value) throws IOException {
+		writeName(name);
+		if (value == null) {
+			_writer.write("null");
+		} else {
+			writeString(value);
+		}
+	}
+
+	public void writeMember(String name, long value) throws IOException {
+		writeName(name);
+		_writer.write(Long.toString(value));
+	}
+
+	public void writeMember(String name, boolean value) throws IOException {
+		writeName(name);
+		_writer.write(value ? "true" : "false");
+	}
+
+	public void flush() throws IOException {
+		_writer.flush();
+	}
+
+	private void writeName(String name) throws IOException {
+		if (!_firstMember) {
+			_writer.write(',');
+		}
+		_firstMember = false;
+		writeString(name);
+		_writer.write(':');
+	}
+
+	/**
+	 * Writes a quoted string, escaping as required by RFC 8259. Runs of
+	 * characters without escapes are written in one call.
+	 */
+	private void writeString(String value) throws IOException {
+		_writer.write('"');
+		int start = 0;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x20 || c == '"' || c == '\\') {
+				if (i > start) {
+					_writer.write(value, start, i - start);
+				}
+				switch (c) {
+				case '"':
+					_writer.write("\\\"");
+					break;
+				case '\\':
+					_writer.write("\\\\");
+					break;
+				case '\n':
+					_writer.write("\\n");
+					break;
+				case '\r':
+					_writer.write("\\r");
+					break;
+				case '\t':
+					_writer.write("\\t");
+					break;
+				default:
+					_writer.write("\\u00");
+					_writer.write(HEX[c >> 4]);
+					_writer.write(HEX[c & 0xf]);
+				}
+				start = i + 1;
+			}
+		}
+		if (start < length) {
+			_writer.write(value, start, length - start);
+		}
+		_writer.write('"');
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2018 Ellipsis BV, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.ellipsis.webdav.server.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Negotiates gzip compression of generated (XML) responses.
+ *
+ * The response is buffered until it reaches the minimum size; smaller
+ * responses are sent as is, larger ones are streamed through a
+ * {@link Deflater} with the configured level.
+ */
+public class ResponseCompressor {
+
+	public static final String ENCODING_GZIP = "gzip";
+
+	private static final String ENCODING_X_GZIP = "x-gzip";
+
+	private static final int BUF_SIZE = 8192;
+
+	/**
+	 * Compressor that never compresses, used when compression is not configured
+	 */
+	public static final ResponseCompressor NONE = new ResponseCompressor(Deflater.NO_COMPRESSION, 0);
+
+	private final int _level;
+	private final int _minSize;
+
+	/**
+	 * @param level
+	 *            deflate level (1-9), 0 or less disables compression
+	 * @param minSize
+	 *            minimum response size in bytes before compression is applied
+	 */
+	public ResponseCompressor(int level, int minSize) {
+		_level = Math.min(level, Deflater.BEST_COMPRESSION);
+		_minSize = Math.max(minSize, 0);
+	}
+
+	public int getLevel() {
+		return _level;
+	}
+
+	public int getMinSize() {
+		return _minSize;
+	}
+
+	public boolean isEnabled() {
+		return _level > Deflater.NO_COMPRESSION;
+	}
+
+	/**
+	 * Returns the writer to send the response body to. The writer must be
+	 * closed when the body is complete.
+	 *
+	 * @param req
+	 *            Servlet request
+	 * @param resp
+	 *            Servlet response, the content type must already be set
+	 * @return resp.getWriter() or a writer compressing to resp.getOutputStream()
+	 * @throws IOException
+	 */
+	public Writer getWriter(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		if (!isEnabled()) {
+			return resp.getWriter();
+		}
+		addVary(resp, javax.ws.rs.core.HttpHeaders.ACCEPT_ENCODING);
+		if (!acceptsGzip(req.getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT_ENCODING))) {
+			return resp.getWriter();
+		}
+		return new OutputStreamWriter(new ThresholdOutputStream(resp), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Compresses a complete response body ahead of time, so it can be sent
+	 * more than once without compressing it again
+	 *
+	 * @param body
+	 *            the uncompressed body
+	 * @return the gzip compressed body, null if compression is disabled or the
+	 *         body is smaller than the minimum size
+	 * @throws IOException
+	 */
+	public byte[] compress(byte[] body) throws IOException {
+		if (!isEnabled() || body.length <= _minSize) {
+			return null;
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length / 4 + 64);
+		OutputStream out = new GZIPOutputStream(buffer, BUF_SIZE) {
+			{
+				def.setLevel(_level);
+			}
+		};
+		out.write(body);
+		out.close();
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Sends a complete response body, compressed if the client accepts gzip
+	 * and a compressed variant is given
+	 *
+	 * @param req
+	 *            Servlet request
+	 * @param resp
+	 *            Servlet response, the content type must already be set
+	 * @param body
+	 *            the uncompressed body
+	 * @param compressedBody
+	 *            the result of compress(body), may be null
+	 * @throws IOException
+	 */
+	public void send(HttpServletRequest req, HttpServletResponse resp, byte[] body, byte[] compressedBody)
+			throws IOException {
+		byte[] content = body;
+		if (isEnabled()) {
+			addVary(resp, javax.ws.rs.core.HttpHeaders.ACCEPT_ENCODING);
+			if (compressedBody != null && acceptsGzip(req.getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT_ENCODING))) {
+				resp.setHeader(javax.ws.rs.core.HttpHeaders.CONTENT_ENCODING, ENCODING_GZIP);
+				content = compressedBody;
+			}
+		}
+		resp.setContentLength(content.length);
+		OutputStream out = resp.getOutputStream();
+		out.write(content);
+		out.close();
+	}
+
+	/**
+	 * Checks if gzip is an acceptable content-coding according to the given
+	 * Accept-Encoding header value (RFC 7231 section 5.3.4)
+	 *
+	 * @param acceptEncoding
+	 *            value of the Accept-Encoding header, may be null
+	 * @return true if the client accepts gzip
+	 */
+	public static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		boolean accepted = false;
+		for (String coding : acceptEncoding.split(",")) {
+			String name = coding;
+			boolean zeroQuality = false;
+			int semicolon = coding.indexOf(CharsetUtil.CHAR_SEMICOLON);
+			if (semicolon != -1) {
+				name = coding.substring(0, semicolon);
+				zeroQuality = isZeroQuality(coding.substring(semicolon + 1));
+			}
+			name = name.trim();
+			if (name.equalsIgnoreCase(ENCODING_GZIP) || name.equalsIgnoreCase(ENCODING_X_GZIP)) {
+				// an explicit gzip entry wins over the wildcard
+				return !zeroQuality;
+			} else if (name.equals(String.valueOf(CharsetUtil.CHAR_ASTERIX))) {
+				accepted = !zeroQuality;
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Adds the request header to the Vary header of the response, unless it
+	 * is listed there already
+	 */
+	public static void addVary(HttpServletResponse resp, String header) {
+		Collection<String> values = resp.getHeaders(javax.ws.rs.core.HttpHeaders.VARY);
+		if (values != null) {
+			for (String value : values) {
+				for (String name : value.split(",")) {
+					name = name.trim();
+					if (name.equalsIgnoreCase(header) || name.equals(String.valueOf(CharsetUtil.CHAR_ASTERIX))) {
+						return;
+					}
+				}
+			}
+		}
+		resp.addHeader(javax.ws.rs.core.HttpHeaders.VARY, header);
+	}
+
+	/**
+	 * @return true if the parameters of an Accept or Accept-Encoding element
+	 *         have q=0, the element is not acceptable
+	 */
+	public static boolean isZeroQuality(String params) {
+		for (String param : params.split(String.valueOf(CharsetUtil.CHAR_SEMICOLON))) {
+			int equals = param.indexOf(CharsetUtil.CHAR_EQUALS);
+			if (equals != -1 && param.substring(0, equals).trim().equalsIgnoreCase("q")) {
+				try {
+					return Float.parseFloat(param.substring(equals + 1).trim()) <= 0f;
+				} catch (NumberFormatException e) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Buffers up to the minimum size and then switches to a gzip stream on the
+	 * response. Headers are decided before the first byte reaches the response.
+	 */
+	private class ThresholdOutputStream extends OutputStream {
+
+		private final HttpServletResponse _resp;
+		private ByteArrayOutputStream _buffer = new ByteArrayOutputStream(Math.min(_minSize, BUF_SIZE) + 1);
+		private OutputStream _out = null;
+		private boolean _closed = false;
+
+		ThresholdOutputStream(HttpServletResponse resp) {
+			_resp = resp;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (_out == null) {
+				if (_buffer.size() + len <= _minSize) {
+					_buffer.write(b, off, len);
+					return;
+				}
+				startCompression();
+			}
+			_out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// nothing is flushed before the size threshold has been decided on
+			if (_out != null) {
+				_out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (_closed) {
+				return;
+			}
+			_closed = true;
+			if (_out == null) {
+				// below threshold, send uncompressed
+				_resp.setContentLength(_buffer.size());
+				OutputStream out = _resp.getOutputStream();
+				_buffer.writeTo(out);
+				_buffer = null;
+				out.close();
+			} else {
+				_out.close();
+			}
+		}
+
+		private void startCompression() throws IOException {
+			_resp.setHeader(javax.ws.rs.core.HttpHeaders.CONTENT_ENCODING, ENCODING_GZIP);
+			_out = new GZIPOutputStream(_resp.getOutputStream(), BUF_SIZE) {
+				{
+					def.setLevel(_level);
+				}
+			};
+			_buffer.writeTo(_out);
+			_buffer = null;
+		}
+	}
+}
@@ -41,17 +41,24 @@ import org.xml.sax.SAXException;
 
 public class XMLHelper {
 	
-	private static DocumentBuilder documentBuilder;
+	/**
+	 * DocumentBuilder is not thread safe, every request thread gets its own.
+	 */
+	private static final ThreadLocal<DocumentBuilder> thDocumentBuilder = new ThreadLocal<DocumentBuilder>();
 	
 	/**
-	 * Return JAXP document builder instance.
+	 * Return JAXP document builder instance for the current thread.
 	 * @throws ParserConfigurationException 
 	 */
 	public static DocumentBuilder getDocumentBuilder() throws ServletException, ParserConfigurationException {
+		DocumentBuilder documentBuilder = thDocumentBuilder.get();
 		if(documentBuilder == null) {
 			DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
 			documentBuilderFactory.setNamespaceAware(true);
 			documentBuilder = documentBuilderFactory.newDocumentBuilder();
+			thDocumentBuilder.set(documentBuilder);
+		} else {
+			documentBuilder.reset();
 		}
 		return documentBuilder;
 	}
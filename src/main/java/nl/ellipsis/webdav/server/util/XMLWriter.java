@@ -66,6 +66,35 @@ public class XMLWriter {
 	 */
 	public static final int NO_CONTENT = 2;
 
+	/**
+	 * Characters flush() copies to the writer at a time.
+	 */
+	private static final int FLUSH_CHUNK_SIZE = 8192;
+
+	/**
+	 * Replacement for characters that are not allowed in XML 1.0 documents.
+	 */
+	private static final String REPLACEMENT_CHARACTER = "\uFFFD";
+
+	/**
+	 * Escape sequences for the ASCII range, null for characters that can be
+	 * written as is. Covers both text and (double quoted) attribute content.
+	 */
+	private static final String[] ESCAPES = new String[128];
+
+	static {
+		for (char c = 0; c < 0x20; c++) {
+			ESCAPES[c] = REPLACEMENT_CHARACTER;
+		}
+		ESCAPES['\t'] = null;
+		ESCAPES['\n'] = null;
+		ESCAPES['\r'] = "&#13;";
+		ESCAPES['&'] = "&amp;";
+		ESCAPES['<'] = "&lt;";
+		ESCAPES['>'] = "&gt;";
+		ESCAPES['"'] = "&quot;";
+	}
+
 	// ----------------------------------------------------- Instance Variables
 
 	/**
@@ -73,11 +102,21 @@ public class XMLWriter {
 	 */
 	protected StringBuilder buffer = new StringBuilder();
 
+	/**
+	 * Chunk the buffer is copied through by flush(), allocated once.
+	 */
+	private char[] chunk = null;
+
 	/**
 	 * Writer.
 	 */
 	protected Writer writer = null;
 
+	/**
+	 * True once part of the document has been written by flush().
+	 */
+	protected boolean flushed = false;
+
 	// ----------------------------------------------------------- Constructors
 
 	/**
@@ -119,7 +158,7 @@ public class XMLWriter {
 	 */
 	public void writeProperty(String namespace, String namespaceInfo, String name, String value) {
 		writeElement(namespace, namespaceInfo, name, OPENING);
-		buffer.append(value);
+		escape(buffer, value);
 		writeElement(namespace, namespaceInfo, name, CLOSING);
 	}
 
@@ -135,7 +174,7 @@ public class XMLWriter {
 	 */
 	public void writeProperty(String namespace, String name, String value) {
 		writeElement(namespace, name, OPENING);
-		buffer.append(value);
+		escape(buffer, value);
 		writeElement(namespace, name, CLOSING);
 	}
 
@@ -181,35 +220,35 @@ public class XMLWriter {
 		if (!StringUtils.isEmpty(namespace)) {
 			switch (type) {
 			case OPENING:
+				buffer.append('<').append(namespace).append(CharsetUtil.CHAR_COLON).append(name);
 				if (namespaceInfo != null) {
-					buffer.append("<" + namespace + CharsetUtil.COLON + name + " xmlns:" + namespace + "=\"" + namespaceInfo + "\">");
-				} else {
-					buffer.append("<" + namespace + CharsetUtil.COLON + name + ">");
+					appendNamespace(namespace, namespaceInfo);
 				}
+				buffer.append('>');
 				break;
 			case CLOSING:
-				buffer.append("</" + namespace + CharsetUtil.COLON + name + ">\n");
+				buffer.append("</").append(namespace).append(CharsetUtil.CHAR_COLON).append(name).append(">\n");
 				break;
 			case NO_CONTENT:
 			default:
+				buffer.append('<').append(namespace).append(CharsetUtil.CHAR_COLON).append(name);
 				if (!StringUtils.isEmpty(namespaceInfo)) {
-					buffer.append("<" + namespace + CharsetUtil.COLON + name + " xmlns:" + namespace + "=\"" + namespaceInfo + "\"/>");
-				} else {
-					buffer.append("<" + namespace + CharsetUtil.COLON + name + "/>");
+					appendNamespace(namespace, namespaceInfo);
 				}
+				buffer.append("/>");
 				break;
 			}
 		} else {
 			switch (type) {
 			case OPENING:
-				buffer.append("<" + name + ">");
+				buffer.append('<').append(name).append('>');
 				break;
 			case CLOSING:
-				buffer.append("</" + name + ">\n");
+				buffer.append("</").append(name).append(">\n");
 				break;
 			case NO_CONTENT:
 			default:
-				buffer.append("<" + name + "/>");
+				buffer.append('<').append(name).append("/>");
 				break;
 			}
 		}
@@ -232,65 +271,135 @@ public class XMLWriter {
 			switch (type) {
 			case OPENING:
 				if (namespacePrefixMap != null && !namespacePrefixMap.isEmpty()) {
-					buffer.append("<" + namespace + ":" + name);
+					buffer.append('<').append(namespace).append(CharsetUtil.CHAR_COLON).append(name);
 					for(Entry<String, String> e : namespacePrefixMap.entrySet()) {
-						buffer.append(" xmlns:" + e.getKey() + "=\"" + e.getValue() + "\"");
+						appendNamespace(e.getKey(), e.getValue());
 					}
 					buffer.append(">");
 				} else {
-					buffer.append("<" + namespace + CharsetUtil.COLON + name + ">");
+					buffer.append('<').append(namespace).append(CharsetUtil.CHAR_COLON).append(name).append('>');
 				}
 				break;
 			case CLOSING:
-				buffer.append("</" + namespace + CharsetUtil.COLON + name + ">\n");
+				buffer.append("</").append(namespace).append(CharsetUtil.CHAR_COLON).append(name).append(">\n");
 				break;
 			case NO_CONTENT:
 			default:
 				if (namespacePrefixMap != null && !namespacePrefixMap.isEmpty()) {
-					buffer.append("<" + namespace + CharsetUtil.COLON + name);
+					buffer.append('<').append(namespace).append(CharsetUtil.CHAR_COLON).append(name);
 					for(Entry<String, String> e : namespacePrefixMap.entrySet()) {
-						buffer.append(" xmlns:" + e.getKey() + "=\"" + e.getValue() + "\"");
+						appendNamespace(e.getKey(), e.getValue());
 					}
 					buffer.append(">");
 				} else {
-					buffer.append("<" + namespace + CharsetUtil.COLON + name + ">");
+					buffer.append('<').append(namespace).append(CharsetUtil.CHAR_COLON).append(name).append('>');
 				}
 				break;
 			}
 		} else {
 			switch (type) {
 			case OPENING:
-				buffer.append("<" + name + ">");
+				buffer.append('<').append(name).append('>');
 				break;
 			case CLOSING:
-				buffer.append("</" + name + ">\n");
+				buffer.append("</").append(name).append(">\n");
 				break;
 			case NO_CONTENT:
 			default:
-				buffer.append("<" + name + "/>");
+				buffer.append('<').append(name).append("/>");
 				break;
 			}
 		}
 	}
 
 	/**
-	 * Write text.
+	 * Write text, escaping markup characters.
 	 * 
 	 * @param text
 	 *           Text to append
 	 */
 	public void writeText(String text) {
-		buffer.append(text);
+		escape(buffer, text);
 	}
 
 	/**
-	 * Write data.
+	 * Write data. Escaped like text, a CDATA section can not hold data
+	 * containing "]]&gt;".
 	 * 
 	 * @param data
 	 *           Data to append
 	 */
 	public void writeData(String data) {
-		buffer.append("<![CDATA[" + data + "]]>");
+		escape(buffer, data);
+	}
+
+	/**
+	 * Write markup as is, such as a fragment generated by another XMLWriter.
+	 *
+	 * @param markup
+	 *           Well-formed and escaped markup
+	 */
+	public void writeMarkup(String markup) {
+		buffer.append(markup);
+	}
+
+	/**
+	 * Appends the value to the buffer, escaped for use as text or attribute
+	 * content. Runs of characters that need no escaping are appended in bulk.
+	 * 
+	 * @param out
+	 *           Buffer to append to
+	 * @param value
+	 *           Value to escape, null is ignored
+	 */
+	public static void escape(StringBuilder out, String value) {
+		if (value == null) {
+			return;
+		}
+		int length = value.length();
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			String escape;
+			if (c < ESCAPES.length) {
+				escape = ESCAPES[c];
+			} else if (c == 0xFFFE || c == 0xFFFF) {
+				escape = REPLACEMENT_CHARACTER;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				// a pair is one character outside the BMP
+				i++;
+				continue;
+			} else if (Character.isSurrogate(c)) {
+				// half of a pair can not be encoded
+				escape = REPLACEMENT_CHARACTER;
+			} else {
+				continue;
+			}
+			if (escape != null) {
+				out.append(value, start, i).append(escape);
+				start = i + 1;
+			}
+		}
+		out.append(value, start, length);
+	}
+
+	/**
+	 * Returns the value escaped for use as text or attribute content.
+	 */
+	public static String escape(String value) {
+		if (value == null) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder(value.length() + 16);
+		escape(sb, value);
+		return sb.toString();
+	}
+
+	private void appendNamespace(String prefix, String namespaceInfo) {
+		buffer.append(" xmlns:").append(prefix).append("=\"");
+		escape(buffer, namespaceInfo);
+		buffer.append('"');
 	}
 
 	/**
@@ -308,11 +417,50 @@ public class XMLWriter {
 		if (writer != null) {
 			String content = buffer.toString();
 			if(LOG.isDebugEnabled()) {
-				LOG.debug((!StringUtils.isEmpty(logInfo) ? logInfo : "")+XMLHelper.format(content));
+				// the tail of a flushed document is not well-formed on its own
+				LOG.debug((!StringUtils.isEmpty(logInfo) ? logInfo : "")+(flushed ? content : XMLHelper.format(content)));
 			}
 			writer.write(content);
 			buffer = new StringBuilder();
 		}
 	}
 
+	/**
+	 * @return number of characters generated since the last flush
+	 */
+	public int getBufferedLength() {
+		return buffer.length();
+	}
+
+	/**
+	 * Drops what was generated after the given number of characters since the
+	 * last flush, like the unfinished part of an element that failed
+	 */
+	public void discard(int length) {
+		buffer.setLength(length);
+	}
+
+	/**
+	 * Writes the XML generated so far to the writer and empties the buffer,
+	 * so large documents can be streamed in parts. The buffer keeps its
+	 * capacity for the next part.
+	 */
+	public void flush() throws IOException {
+		if (writer != null && buffer.length() > 0) {
+			if (chunk == null) {
+				chunk = new char[FLUSH_CHUNK_SIZE];
+			}
+			// append() would copy the whole buffer into a String first
+			int length = buffer.length();
+			for (int start = 0; start < length; start += chunk.length) {
+				int end = Math.min(start + chunk.length, length);
+				buffer.getChars(start, end, chunk, 0);
+				writer.write(chunk, 0, end - start);
+			}
+			writer.flush();
+			buffer.setLength(0);
+			flushed = true;
+		}
+	}
+
 }
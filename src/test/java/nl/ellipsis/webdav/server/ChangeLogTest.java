@@ -0,0 +1,56 @@
+package nl.ellipsis.webdav.server;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ChangeLogTest {
+
+	@Test
+	public void testRepeatedChangesAreCompacted() {
+		ChangeLog changeLog = new ChangeLog(10);
+		String token = changeLog.getToken();
+
+		changeLog.committed(Arrays.asList(new StoreChange("/docs/a.txt", false), new StoreChange("/docs/b.txt", false)));
+		changeLog.committed(Arrays.asList(new StoreChange("/docs/a.txt", true)));
+
+		assertEquals(2, changeLog.size());
+		ChangeLog.Delta delta = changeLog.getChangesSince("/docs", token, false);
+		assertEquals(2, delta.getEntries().size());
+		assertEquals("/docs/b.txt", delta.getEntries().get(0).getPath());
+		assertEquals("/docs/a.txt", delta.getEntries().get(1).getPath());
+		assertTrue(delta.getEntries().get(1).isRemoved());
+		assertEquals(3, delta.getSequence());
+	}
+
+	@Test
+	public void testMembersOfCollection() {
+		ChangeLog changeLog = new ChangeLog(10);
+		String token = changeLog.getToken();
+
+		changeLog.committed(Arrays.asList(new StoreChange("/docs", false), new StoreChange("/docs/a.txt", false),
+				new StoreChange("/docs/sub/b.txt", false), new StoreChange("/docsx/c.txt", false)));
+
+		assertEquals(1, changeLog.getChangesSince("/docs", token, false).getEntries().size());
+		assertEquals(2, changeLog.getChangesSince("/docs", token, true).getEntries().size());
+		assertEquals(4, changeLog.getChangesSince("/", token, true).getEntries().size());
+	}
+
+	@Test
+	public void testTokensBeforeEvictedChangesAreInvalid() {
+		ChangeLog changeLog = new ChangeLog(2);
+		String first = changeLog.getToken();
+
+		changeLog.committed(Arrays.asList(new StoreChange("/a", false)));
+		String second = changeLog.getToken();
+		changeLog.committed(Arrays.asList(new StoreChange("/b", false), new StoreChange("/c", false)));
+
+		assertEquals(2, changeLog.size());
+		assertNull(changeLog.getChangesSince("/", first, true));
+		assertEquals(2, changeLog.getChangesSince("/", second, true).getEntries().size());
+		assertNull(changeLog.getChangesSince("/", "http://example.com/ns/sync/1", true));
+		assertEquals(-1, changeLog.parseToken(changeLog.getToken() + "x"));
+	}
+}
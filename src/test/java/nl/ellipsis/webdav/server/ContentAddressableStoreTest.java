@@ -0,0 +1,212 @@
+package nl.ellipsis.webdav.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.exceptions.WebDAVException;
+
+public class ContentAddressableStoreTest {
+
+	private static final byte[] TEMPLATE = "the same template in every project".getBytes(StandardCharsets.UTF_8);
+
+	private File _root;
+	private ContentAddressableStore _store;
+	private ITransaction _transaction;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("cas").toFile();
+		_store = new ContentAddressableStore(_root);
+		_transaction = _store.begin(null);
+		_store.createFolder(_transaction, "/a");
+		_store.createFolder(_transaction, "/b");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_store.commit(_transaction);
+		_store.destroy();
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testDuplicatesAreStoredOnce() throws Exception {
+		assertEquals(TEMPLATE.length, put("/a/template.txt", TEMPLATE));
+		assertEquals(TEMPLATE.length, put("/b/template.txt", TEMPLATE));
+		assertEquals(1, getBlobs().size());
+
+		StoredObject so = _store.getStoredObject(_transaction, "/b/template.txt");
+		assertTrue(so.isResource());
+		assertEquals(TEMPLATE.length, so.getResourceLength());
+		assertEquals(ContentDigestIndex.toHex(ContentDigestIndex.createDigest().digest(TEMPLATE)),
+				so.getContentDigest());
+		assertEquals(2, _store.getReferences(so.getContentDigest()));
+		assertArrayEquals(TEMPLATE, get("/a/template.txt"));
+		assertEquals(Arrays.asList("template.txt"), Arrays.asList(_store.getChildrenNames(_transaction, "/a")));
+
+		// the blob goes with its last reference
+		_store.removeObject(_transaction, "/a/template.txt");
+		assertEquals(1, getBlobs().size());
+		assertArrayEquals(TEMPLATE, get("/b/template.txt"));
+		put("/b/template.txt", "changed".getBytes(StandardCharsets.UTF_8));
+		assertEquals(1, getBlobs().size());
+		assertEquals(0, _store.getReferences(so.getContentDigest()));
+		assertFalse(_store.getBlobFile(so.getContentDigest()).exists());
+	}
+
+	@Test
+	public void testCopyOnlyAddsAReference() throws Exception {
+		put("/a/template.txt", TEMPLATE);
+		String hash = _store.getStoredObject(_transaction, "/a/template.txt").getContentDigest();
+		// a copy that read the content would store this instead
+		FileUtils.writeStringToFile(_store.getBlobFile(hash), "changed on disk", StandardCharsets.UTF_8);
+
+		InputStream content = _store.getResourceContent(_transaction, "/a/template.txt");
+		assertEquals(TEMPLATE.length, _store.setResourceContent(_transaction, "/b/copy.txt", content, null, null));
+		assertEquals(hash, _store.getStoredObject(_transaction, "/b/copy.txt").getContentDigest());
+		assertEquals(2, _store.getReferences(hash));
+		assertEquals(1, getBlobs().size());
+
+		// content that was read is stored as it is
+		content = _store.getResourceContent(_transaction, "/a/template.txt");
+		assertEquals('c', content.read());
+		_store.setResourceContent(_transaction, "/b/rest.txt", content, null, null);
+		assertEquals("hanged on disk", new String(get("/b/rest.txt"), StandardCharsets.UTF_8));
+		assertEquals(2, getBlobs().size());
+	}
+
+	@Test
+	public void testCopyThroughDecoratorsOnlyAddsAReference() throws Exception {
+		put("/a/template.txt", TEMPLATE);
+		String hash = _store.getStoredObject(_transaction, "/a/template.txt").getContentDigest();
+		FileUtils.writeStringToFile(_store.getBlobFile(hash), "changed on disk", StandardCharsets.UTF_8);
+		File spool = Files.createTempDirectory("cas-spool").toFile();
+		Quota quota = new Quota(-1, 3 * TEMPLATE.length, -1, null, 0);
+		WriteBehindStore writeBehind = new WriteBehindStore(_store, spool, WriteBehindStore.Acknowledge.STAGED, 1, 10);
+		QuotaStore store = new QuotaStore(writeBehind, quota);
+		try {
+			quota.count(store, _transaction);
+			store.createResource(_transaction, "/b/copy.txt");
+			assertEquals(TEMPLATE.length, store.copyResource(_transaction, "/a/template.txt", "/b/copy.txt"));
+			assertEquals(hash, _store.getStoredObject(_transaction, "/b/copy.txt").getContentDigest());
+			assertEquals(2, _store.getReferences(hash));
+			assertEquals(2 * TEMPLATE.length, quota.getUsed("/b/copy.txt", false));
+
+			store.createResource(_transaction, "/b/again.txt");
+			store.copyResource(_transaction, "/a/template.txt", "/b/again.txt");
+			store.createResource(_transaction, "/b/full.txt");
+			try {
+				store.copyResource(_transaction, "/a/template.txt", "/b/full.txt");
+				fail("WebDAVException expected");
+			} catch (WebDAVException e) {
+				assertTrue(e.getCause() instanceof Quota.QuotaExceededException);
+			}
+			assertEquals(3, _store.getReferences(hash));
+		} finally {
+			writeBehind.destroy();
+			FileUtils.deleteDirectory(spool);
+		}
+		_store = new ContentAddressableStore(_root);
+		_transaction = _store.begin(null);
+	}
+
+	@Test
+	public void testReferencesAreCountedAtStart() throws Exception {
+		put("/a/one.txt", TEMPLATE);
+		put("/b/two.txt", TEMPLATE);
+		put("/b/other.txt", "other".getBytes(StandardCharsets.UTF_8));
+		String hash = _store.getStoredObject(_transaction, "/a/one.txt").getContentDigest();
+		// left behind by a servlet that stopped
+		File orphan = _store.getBlobFile(ContentDigestIndex.toHex(new byte[32]));
+		FileUtils.writeStringToFile(orphan, "orphan", StandardCharsets.UTF_8);
+		File temp = new File(_root, "blobs/tmp/.webdav-cas-1.tmp");
+		FileUtils.writeStringToFile(temp, "partial", StandardCharsets.UTF_8);
+
+		_store = new ContentAddressableStore(_root);
+		_transaction = _store.begin(null);
+		assertEquals(2, _store.getReferences(hash));
+		assertFalse(orphan.exists());
+		assertFalse(temp.exists());
+		assertEquals(2, getBlobs().size());
+		assertArrayEquals(TEMPLATE, get("/b/two.txt"));
+	}
+
+	@Test
+	public void testReadersNeverLoseTheBlobOfAReplacedResource() throws Exception {
+		final byte[] other = "another version of the template".getBytes(StandardCharsets.UTF_8);
+		put("/a/template.txt", TEMPLATE);
+		final AtomicBoolean stop = new AtomicBoolean();
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				// every version is the only reference to its blob
+				for (int i = 0; !stop.get(); i++) {
+					put("/a/template.txt", i % 2 == 0 ? other : TEMPLATE);
+				}
+			}
+		});
+		writer.start();
+		try {
+			for (int i = 0; i < 2000; i++) {
+				byte[] content = get("/a/template.txt");
+				assertTrue(Arrays.equals(TEMPLATE, content) || Arrays.equals(other, content));
+			}
+		} finally {
+			stop.set(true);
+			writer.join();
+		}
+	}
+
+	@Test
+	public void testFoldersAndEmptyResources() throws Exception {
+		_store.createResource(_transaction, "/a/empty.txt");
+		assertEquals(0, _store.getResourceLength(_transaction, "/a/empty.txt"));
+		assertEquals(0, get("/a/empty.txt").length);
+		try {
+			_store.createResource(_transaction, "/a/empty.txt");
+			fail("WebDAVException expected");
+		} catch (nl.ellipsis.webdav.server.exceptions.WebDAVException e) {
+		}
+		assertTrue(_store.getStoredObject(_transaction, "/a").isFolder());
+		assertNull(_store.getStoredObject(_transaction, "/missing"));
+		_store.removeObject(_transaction, "/a/empty.txt");
+		_store.removeObject(_transaction, "/a");
+		assertEquals(Arrays.asList("b"), Arrays.asList(_store.getChildrenNames(_transaction, "/")));
+		assertEquals(0, getBlobs().size());
+	}
+
+	private long put(String path, byte[] content) {
+		return _store.setResourceContent(_transaction, path, new ByteArrayInputStream(content), null, null);
+	}
+
+	private byte[] get(String path) throws Exception {
+		InputStream in = _store.getResourceContent(_transaction, path);
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private Collection<File> getBlobs() {
+		Collection<File> blobs = FileUtils.listFiles(new File(_root, "blobs"), TrueFileFilter.INSTANCE,
+				TrueFileFilter.INSTANCE);
+		blobs.removeAll(FileUtils.listFiles(new File(_root, "blobs/tmp"), TrueFileFilter.INSTANCE,
+				TrueFileFilter.INSTANCE));
+		return blobs;
+	}
+}
@@ -0,0 +1,129 @@
+package nl.ellipsis.webdav.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentDigestIndexTest {
+
+	// SHA-256 of "hello"
+	private static final String HELLO_DIGEST = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+
+	private File _root;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("content-digests").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testIndexIsReloadedAndChangedFilesAreIgnored() throws Exception {
+		File file = write("a.txt", "hello");
+		ContentDigestIndex index = new ContentDigestIndex(_root, false);
+		index.put("/a.txt", file, ContentDigestIndex.compute(file));
+		index.close();
+
+		index = new ContentDigestIndex(_root, false);
+		assertEquals(HELLO_DIGEST, index.get("/a.txt", file));
+		assertTrue(index.isIndexFile(new File(_root, ContentDigestIndex.INDEX_FILE_NAME)));
+
+		// changed outside the index
+		file.setLastModified(file.lastModified() - 60000);
+		assertNull(index.get("/a.txt", file));
+		index.close();
+	}
+
+	@Test
+	public void testRemovedDigestStaysRemoved() throws Exception {
+		File file = write("a.txt", "hello");
+		ContentDigestIndex index = new ContentDigestIndex(_root, false);
+		index.put("/a.txt", file, HELLO_DIGEST);
+		index.remove("/a.txt");
+		index.close();
+
+		index = new ContentDigestIndex(_root, false);
+		assertNull(index.get("/a.txt", file));
+		index.close();
+	}
+
+	@Test
+	public void testIndexFileIsCompacted() throws Exception {
+		File a = write("a.txt", "hello");
+		File b = write("b.txt", "world");
+		ContentDigestIndex index = new ContentDigestIndex(_root, false);
+		index.put("/b.txt", b, "0000");
+		for (int i = 0; i < 5000; i++) {
+			index.put("/a.txt", a, i % 2 == 0 ? "1111" : HELLO_DIGEST);
+			index.remove("/b.txt");
+			index.put("/b.txt", b, "0000");
+		}
+		assertTrue(index.getIndexLines() < 1000);
+		index.close();
+		assertTrue(FileUtils.readLines(new File(_root, ContentDigestIndex.INDEX_FILE_NAME), StandardCharsets.UTF_8)
+				.size() < 1000);
+
+		index = new ContentDigestIndex(_root, false);
+		assertEquals(HELLO_DIGEST, index.get("/a.txt", a));
+		assertEquals("0000", index.get("/b.txt", b));
+		assertFalse(index.isIndexFile(a));
+		index.close();
+	}
+
+	@Test
+	public void testBackfillComputesMissingDigests() throws Exception {
+		new File(_root, "docs").mkdir();
+		File a = write("docs/a.txt", "hello");
+		File b = write("b.txt", "world");
+		ContentDigestIndex index = new ContentDigestIndex(_root, false);
+		index.put("/b.txt", b, "0000");
+
+		assertEquals(1, index.backfill(new AtomicBoolean()));
+		assertEquals(HELLO_DIGEST, index.get("/docs/a.txt", a));
+		assertEquals("0000", index.get("/b.txt", b));
+		assertEquals(0, index.backfill(new AtomicBoolean()));
+		assertEquals(0, new ContentDigestIndex(_root, false).backfill(new AtomicBoolean(true)));
+		index.close();
+	}
+
+	@Test
+	public void testStoreDigestsWrittenContent() throws Exception {
+		LocalFileSystemStore store = new LocalFileSystemStore(_root);
+		store.setContentDigests(true);
+		try {
+			store.createResource(null, "/a.txt");
+			store.setResourceContent(null, "/a.txt", new ByteArrayInputStream("hello".getBytes(StandardCharsets.UTF_8)),
+					null, null);
+
+			assertEquals(HELLO_DIGEST, store.getStoredObject(null, "/a.txt").getContentDigest());
+			assertEquals(Arrays.asList("a.txt"), Arrays.asList(store.getChildrenNames(null, "/")));
+			assertNull(store.getStoredObject(null, "/" + ContentDigestIndex.INDEX_FILE_NAME));
+		} finally {
+			store.destroy();
+		}
+		assertNull(new LocalFileSystemStore(_root).getStoredObject(null, "/a.txt").getContentDigest());
+	}
+
+	private File write(String path, String content) throws Exception {
+		File file = new File(_root, path);
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(content.getBytes(StandardCharsets.UTF_8));
+		fos.close();
+		return file;
+	}
+}
@@ -0,0 +1,188 @@
+package nl.ellipsis.webdav.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.exceptions.WebDAVException;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.methods.ChunkedUploads;
+import nl.ellipsis.webdav.server.methods.DoPut;
+import nl.ellipsis.webdav.server.properties.QuotaPropertyProvider;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class QuotaTest {
+
+	private File _root;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("quota").toFile();
+		FileUtils.writeByteArrayToFile(new File(_root, "alice/a.bin"), new byte[10]);
+		FileUtils.writeByteArrayToFile(new File(_root, "bob/docs/b.bin"), new byte[20]);
+		FileUtils.writeByteArrayToFile(new File(_root, "readme.txt"), new byte[5]);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testUsageIsKeptUpToDateByEveryChange() throws Exception {
+		Quota quota = new Quota(-1, 1000, 100, null, 0);
+		QuotaStore store = createStore(quota);
+		assertEquals(35, quota.getUsed("/", true));
+		assertEquals(10, quota.getUsed("/alice", true));
+		assertEquals(20, quota.getUsed("/bob/docs", true));
+		assertEquals(90, quota.getAvailable("/alice/new.bin", false));
+
+		assertEquals(201, put(store, quota, "/alice/new.bin", new byte[30]).getStatus());
+		assertEquals(201, put(store, quota, "/alice/a.bin", new byte[5]).getStatus());
+		assertEquals(35, quota.getUsed("/alice", true));
+
+		ITransaction transaction = store.begin(null);
+		store.removeObject(transaction, "/bob/docs/b.bin");
+		store.removeObject(transaction, "/readme.txt");
+		store.commit(transaction);
+		assertEquals(0, quota.getUsed("/bob", true));
+		assertEquals(35, quota.getUsed("/", true));
+		assertEquals(965, quota.getAvailable("/", true));
+	}
+
+	@Test
+	public void testUploadsThatDoNotFitAreRejected() throws Exception {
+		Quota quota = new Quota(50, -1, 100, null, 0);
+		QuotaStore store = createStore(quota);
+
+		// declared lengths are rejected before the body is read
+		assertEquals(413, put(store, quota, "/bob/large.bin", new byte[60]).getStatus());
+		assertEquals(201, put(store, quota, "/bob/fits.bin", new byte[50]).getStatus());
+		assertEquals(507, put(store, quota, "/bob/more.bin", new byte[40]).getStatus());
+		assertFalse(new File(_root, "bob/large.bin").exists());
+		assertFalse(new File(_root, "bob/more.bin").exists());
+		// replacing content only needs room for the difference
+		assertEquals(201, put(store, quota, "/bob/fits.bin", new byte[45]).getStatus());
+
+		// content of unknown length is stopped while it is copied
+		ITransaction transaction = store.begin(null);
+		try {
+			store.setResourceContent(transaction, "/alice/a.bin", new ByteArrayInputStream(new byte[95]), null, null);
+			fail("WebDAVException expected");
+		} catch (WebDAVException e) {
+			assertTrue(e.getCause() instanceof Quota.QuotaExceededException);
+			// the resource limit is lower than the room left in the home
+			assertTrue(((Quota.QuotaExceededException) e.getCause()).isTooLarge());
+		}
+		store.commit(transaction);
+		assertEquals(10, new File(_root, "alice/a.bin").length());
+		assertEquals(10, quota.getUsed("/alice", true));
+	}
+
+	@Test
+	public void testUploadsAtTheSameTimeShareTheRoom() throws Exception {
+		Quota quota = new Quota(-1, -1, 100, null, 0);
+		createStore(quota);
+
+		// both start while there is room for 90 bytes
+		InputStream first = quota.limit("/alice/first.bin", new ByteArrayInputStream(new byte[60]), 0);
+		InputStream second = quota.limit("/alice/second.bin", new ByteArrayInputStream(new byte[60]), 0);
+		assertEquals(60, IOUtils.toByteArray(first).length);
+		assertEquals(70, quota.getUsed("/alice", true));
+		try {
+			IOUtils.toByteArray(second);
+			fail("QuotaExceededException expected");
+		} catch (Quota.QuotaExceededException e) {
+			assertFalse(e.isTooLarge());
+		}
+
+		// what the rejected upload reserved is given back
+		quota.settle("/alice/second.bin", second, 0);
+		assertEquals(70, quota.getUsed("/alice", true));
+		quota.settle("/alice/first.bin", first, 60);
+		assertEquals(70, quota.getUsed("/alice", true));
+		assertEquals(30, quota.getAvailable("/alice/new.bin", false));
+	}
+
+	@Test
+	public void testFreeSpaceIsKept() throws Exception {
+		Quota quota = new Quota(-1, -1, -1, _root, Long.MAX_VALUE / 2);
+		assertTrue(quota.isEnabled());
+		assertFalse(quota.isCounting());
+		assertFalse(quota.hasRoom("/alice/new.bin", 1));
+		assertTrue(quota.hasRoom("/alice/a.bin", -10));
+		assertTrue(Quota.NONE.hasRoom("/alice/new.bin", Long.MAX_VALUE));
+		assertEquals(Long.MAX_VALUE, Quota.NONE.getAvailable("/", true));
+	}
+
+	@Test
+	public void testQuotaProperties() throws Exception {
+		Quota quota = new Quota(-1, 1000, -1, null, 0);
+		QuotaStore store = createStore(quota);
+		QuotaPropertyProvider available = new QuotaPropertyProvider(store, quota,
+				QuotaPropertyProvider.QUOTA_AVAILABLE_BYTES);
+		QuotaPropertyProvider used = new QuotaPropertyProvider(store, quota, QuotaPropertyProvider.QUOTA_USED_BYTES);
+		ITransaction transaction = store.begin(null);
+		assertEquals("965", available.getValue(transaction, "/alice", null));
+		assertEquals("35", used.getValue(transaction, "/alice", null));
+		assertNull(used.getValue(transaction, "/missing", null));
+		store.commit(transaction);
+		try {
+			new QuotaPropertyProvider(store, quota, "quota");
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testRejectedPutDoesNotCreateTheFolder() throws Exception {
+		Quota quota = new Quota(50, -1, -1, null, 0);
+		QuotaStore store = createStore(quota);
+		DoPut doPut = new DoPut(store, new ResourceLocks(), false, true, ChunkedUploads.NONE, quota);
+		assertEquals(413, put(doPut, store, "/carol/large.bin", new byte[60]).getStatus());
+		assertFalse(new File(_root, "carol").exists());
+
+		ResourceLocks resourceLocks = new ResourceLocks();
+		ITransaction transaction = store.begin(null);
+		assertTrue(resourceLocks.exclusiveLock(transaction, "/carol/new.bin", "someone else", 0, 60));
+		store.commit(transaction);
+		doPut = new DoPut(store, resourceLocks, false, true, ChunkedUploads.NONE, quota);
+		assertEquals(423, put(doPut, store, "/carol/new.bin", new byte[10]).getStatus());
+		assertFalse(new File(_root, "carol").exists());
+
+		// created for a PUT that is accepted
+		assertEquals(201, put(doPut, store, "/dave/new.bin", new byte[10]).getStatus());
+		assertEquals(10, new File(_root, "dave/new.bin").length());
+	}
+
+	private QuotaStore createStore(Quota quota) {
+		QuotaStore store = new QuotaStore(new LocalFileSystemStore(_root), quota);
+		ITransaction transaction = store.begin(null);
+		quota.count(store, transaction);
+		store.commit(transaction);
+		return store;
+	}
+
+	private RecordingResponse put(IWebDAVStore store, Quota quota, String path, byte[] content) throws Exception {
+		return put(new DoPut(store, new ResourceLocks(), false, false, ChunkedUploads.NONE, quota), store, path,
+				content);
+	}
+
+	private RecordingResponse put(DoPut doPut, IWebDAVStore store, String path, byte[] content) throws Exception {
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = store.begin(null);
+		doPut.execute(new RequestContext(transaction, new StubRequest(path, content).proxy(), response.proxy()));
+		store.commit(transaction);
+		return response;
+	}
+}
@@ -0,0 +1,144 @@
+package nl.ellipsis.webdav.server;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.exceptions.WebDAVException;
+
+public class StoredObjectPrefetcherTest {
+
+	private static final String[] NAMES = new String[] { "a", "b", "missing", "c", "d", "e", "f", "g", "h", "i" };
+
+	private StoredObjectPrefetcher _prefetcher;
+
+	@After
+	public void tearDown() {
+		if (_prefetcher != null) {
+			_prefetcher.shutdown();
+		}
+	}
+
+	@Test
+	public void testChildrenAreReturnedInOrder() throws Exception {
+		_prefetcher = new StoredObjectPrefetcher(4, 3);
+		SlowStore slowStore = new SlowStore(5);
+
+		StoredObjectPrefetcher.Lookahead children = _prefetcher.open(slowStore.proxy(), null, "/folder", NAMES);
+		for (String name : NAMES) {
+			assertTrue(children.hasNext());
+			assertEquals("/folder/" + name, children.nextPath());
+			StoredObject so = children.next();
+			if (name.equals("missing")) {
+				assertNull(so);
+			} else {
+				assertEquals((long) name.charAt(0), so.getResourceLength());
+			}
+		}
+		assertFalse(children.hasNext());
+		assertEquals(NAMES.length, slowStore._lookups.get());
+	}
+
+	@Test
+	public void testLookupsRunConcurrentlyWithinWindow() throws Exception {
+		_prefetcher = new StoredObjectPrefetcher(8, 3);
+		SlowStore slowStore = new SlowStore(20);
+
+		StoredObjectPrefetcher.Lookahead children = _prefetcher.open(slowStore.proxy(), null, "/folder", NAMES);
+		while (children.hasNext()) {
+			children.next();
+		}
+		assertTrue("max " + slowStore._maxConcurrent.get(), slowStore._maxConcurrent.get() > 1);
+		assertTrue("max " + slowStore._maxConcurrent.get(), slowStore._maxConcurrent.get() <= 3);
+		assertFalse(slowStore._threads.contains(Thread.currentThread().getName()));
+	}
+
+	@Test
+	public void testDisabledPrefetcherLooksUpOnCallingThread() throws Exception {
+		_prefetcher = StoredObjectPrefetcher.NONE;
+		SlowStore slowStore = new SlowStore(0);
+
+		assertFalse(_prefetcher.isEnabled());
+		StoredObjectPrefetcher.Lookahead children = _prefetcher.open(slowStore.proxy(), null, "/", NAMES);
+		assertNotNull(children.next());
+		assertEquals(1, slowStore._lookups.get());
+		assertEquals(Collections.singleton(Thread.currentThread().getName()), slowStore._threads);
+	}
+
+	@Test
+	public void testStoreExceptionIsRethrown() throws Exception {
+		_prefetcher = new StoredObjectPrefetcher(2, 2);
+		SlowStore slowStore = new SlowStore(0);
+		slowStore._failOn = "/folder/b";
+
+		StoredObjectPrefetcher.Lookahead children = _prefetcher.open(slowStore.proxy(), null, "/folder", NAMES);
+		assertNotNull(children.next());
+		try {
+			children.next();
+			fail("expected WebDAVException");
+		} catch (WebDAVException e) {
+			assertEquals("/folder/b", e.getMessage());
+		}
+		children.close();
+	}
+
+	/**
+	 * Store that takes a while to look up a StoredObject and records the
+	 * number of concurrent lookups
+	 */
+	private static class SlowStore implements InvocationHandler {
+
+		private final long _latency;
+		private final AtomicInteger _lookups = new AtomicInteger();
+		private final AtomicInteger _concurrent = new AtomicInteger();
+		private final AtomicInteger _maxConcurrent = new AtomicInteger();
+		private final Set<String> _threads = Collections.synchronizedSet(new HashSet<String>());
+		private volatile String _failOn = null;
+
+		SlowStore(long latency) {
+			_latency = latency;
+		}
+
+		IWebDAVStore proxy() {
+			return (IWebDAVStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { IWebDAVStore.class }, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (!method.getName().equals("getStoredObject")) {
+				throw new UnsupportedOperationException(method.getName());
+			}
+			String uri = (String) args[1];
+			_lookups.incrementAndGet();
+			_threads.add(Thread.currentThread().getName());
+			int concurrent = _concurrent.incrementAndGet();
+			try {
+				int max = _maxConcurrent.get();
+				while (concurrent > max && !_maxConcurrent.compareAndSet(max, concurrent)) {
+					max = _maxConcurrent.get();
+				}
+				Thread.sleep(_latency);
+				if (uri.equals(_failOn)) {
+					throw new WebDAVException(uri);
+				}
+				if (uri.endsWith("/missing")) {
+					return null;
+				}
+				StoredObject so = new StoredObject(uri);
+				so.setResourceLength(uri.charAt(uri.length() - 1));
+				return so;
+			} finally {
+				_concurrent.decrementAndGet();
+			}
+		}
+	}
+}
@@ -106,6 +106,91 @@ public class WebDAVServletTest extends MockTest {
 
                 oneOf(servletConfig).getInitParameter("no-content-length-headers");
                 will(returnValue("0"));
+
+                oneOf(servletConfig).getInitParameter("compression-level");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("compression-min-size");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("propfind-reject-infinity");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("propfind-max-depth");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("propfind-max-entries");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("propfind-prefetch-window");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("propfind-prefetch-threads");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("propfind-cache-size");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("propfind-cache-ttl");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("propfind-fragment-cache-size");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("property-providers");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("sync-change-log-size");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("content-digests");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("content-cache-size");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("content-cache-max-file-size");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("gzip-variants-path");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("gzip-variants-min-size");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("gzip-variants-background");
+                will(returnValue(null));
+
+                oneOf(servletConfig).getInitParameter("folder-listing-page-size");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("async-download-min-size");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("async-download-timeout");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("proxy-offload");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("proxy-offload-location");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("chunked-uploads-path");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("chunked-uploads-expiry");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("maxUploadSize");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("quota-mount-bytes");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("quota-home-bytes");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("quota-min-free-bytes");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("write-behind-spool");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("write-behind-acknowledge");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("write-behind-threads");
+                will(returnValue(null));
+                oneOf(servletConfig).getInitParameter("write-behind-queue-size");
+                will(returnValue(null));
             }
         });
 
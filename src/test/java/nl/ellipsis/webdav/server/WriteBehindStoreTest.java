@@ -0,0 +1,269 @@
+package nl.ellipsis.webdav.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.exceptions.WebDAVException;
+
+public class WriteBehindStoreTest {
+
+	private File _root;
+	private File _spool;
+	private GatedStore _backing;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("write-behind").toFile();
+		_spool = Files.createTempDirectory("write-behind-spool").toFile();
+		FileUtils.writeStringToFile(new File(_root, "ci/old.txt"), "old", StandardCharsets.UTF_8);
+		_backing = new GatedStore(_root);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_backing.open();
+		FileUtils.deleteDirectory(_root);
+		FileUtils.deleteDirectory(_spool);
+	}
+
+	@Test
+	public void testStagedContentIsReadUntilItIsWritten() throws Exception {
+		WriteBehindStore store = new WriteBehindStore(_backing, _spool, WriteBehindStore.Acknowledge.STAGED, 2, 10);
+		ITransaction transaction = store.begin(null);
+		assertEquals(3, put(store, transaction, "/ci/old.txt", "new"));
+		assertTrue(_backing._entered.await(10, TimeUnit.SECONDS));
+
+		// not written yet, but every read sees it
+		assertEquals("old", FileUtils.readFileToString(new File(_root, "ci/old.txt"), StandardCharsets.UTF_8));
+		assertEquals("new", get(store, transaction, "/ci/old.txt"));
+		assertEquals(3, store.getResourceLength(transaction, "/ci/old.txt"));
+		assertEquals(3, store.getStoredObject(transaction, "/ci/old.txt").getResourceLength());
+		assertNull(store.getFile(transaction, "/ci/old.txt"));
+		assertEquals(1, store.getPendingCount());
+
+		_backing.open();
+		store.destroy();
+		assertEquals("new", FileUtils.readFileToString(new File(_root, "ci/old.txt"), StandardCharsets.UTF_8));
+		assertEquals(0, store.getPendingCount());
+		assertEquals(0, _spool.list().length);
+		assertEquals(new File(_root, "ci/old.txt"), store.getFile(transaction, "/ci/old.txt"));
+	}
+
+	@Test
+	public void testWrittenContentKeepsTheStagedTimeAndDigest() throws Exception {
+		WriteBehindStore store = new WriteBehindStore(_backing, _spool, WriteBehindStore.Acknowledge.STAGED, 1, 10);
+		ITransaction transaction = store.begin(null);
+		put(store, transaction, "/ci/old.txt", "new");
+		assertTrue(_backing._entered.await(10, TimeUnit.SECONDS));
+		StoredObject staged = store.getStoredObject(transaction, "/ci/old.txt");
+		// the store does not compute digests
+		assertNull(staged.getContentDigest());
+		_backing.open();
+		store.destroy();
+		assertEquals(staged.getLastModified(), _backing.getStoredObject(transaction, "/ci/old.txt").getLastModified());
+
+		_backing.setContentDigests(true);
+		store = new WriteBehindStore(_backing, _spool, WriteBehindStore.Acknowledge.STAGED, 1, 10);
+		put(store, transaction, "/ci/new.txt", "digested");
+		staged = store.getStoredObject(transaction, "/ci/new.txt");
+		assertEquals(ContentDigestIndex.toHex(
+				ContentDigestIndex.createDigest().digest("digested".getBytes(StandardCharsets.UTF_8))),
+				staged.getContentDigest());
+		// destroying the store would stop its digests
+		awaitWritten(store);
+		StoredObject written = _backing.getStoredObject(transaction, "/ci/new.txt");
+		assertEquals(staged.getLastModified(), written.getLastModified());
+		assertEquals(staged.getContentDigest(), written.getContentDigest());
+		store.destroy();
+	}
+
+	@Test
+	public void testWritesOfAPathStayInOrder() throws Exception {
+		WriteBehindStore store = new WriteBehindStore(_backing, _spool, WriteBehindStore.Acknowledge.STAGED, 4, 10);
+		ITransaction transaction = store.begin(null);
+		put(store, transaction, "/ci/build.log", "first");
+		assertTrue(_backing._entered.await(10, TimeUnit.SECONDS));
+		put(store, transaction, "/ci/build.log", "second");
+		put(store, transaction, "/ci/build.log", "third");
+		assertEquals("third", get(store, transaction, "/ci/build.log"));
+
+		_backing.open();
+		store.destroy();
+		assertEquals("third", FileUtils.readFileToString(new File(_root, "ci/build.log"), StandardCharsets.UTF_8));
+		// the second write was replaced before its turn
+		assertEquals(2, _backing._writes.get());
+	}
+
+	@Test
+	public void testRemovalWaitsForTheWrites() throws Exception {
+		WriteBehindStore store = new WriteBehindStore(_backing, _spool, WriteBehindStore.Acknowledge.STAGED, 2, 10);
+		ITransaction transaction = store.begin(null);
+		put(store, transaction, "/ci/new.txt", "new");
+		assertTrue(_backing._entered.await(10, TimeUnit.SECONDS));
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				_backing.open();
+			}
+		}).start();
+		store.removeObject(transaction, "/ci/new.txt");
+		assertFalse(new File(_root, "ci/new.txt").exists());
+		assertNull(store.getStoredObject(transaction, "/ci/new.txt"));
+		store.destroy();
+	}
+
+	@Test
+	public void testFailedWritesAreTriedAgain() throws Exception {
+		_backing.open();
+		_backing._failures.set(2);
+		WriteBehindStore store = new WriteBehindStore(_backing, _spool, WriteBehindStore.Acknowledge.STAGED, 1, 10,
+				10);
+		ITransaction transaction = store.begin(null);
+		put(store, transaction, "/ci/old.txt", "new");
+		awaitWritten(store);
+		assertEquals("new", FileUtils.readFileToString(new File(_root, "ci/old.txt"), StandardCharsets.UTF_8));
+		assertEquals(3, _backing._writes.get());
+		// the files go once the write is no longer pending
+		for (int i = 0; i < 100 && _spool.list().length > 0; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, _spool.list().length);
+		store.destroy();
+	}
+
+	@Test
+	public void testFailedWritesStayInTheSpool() throws Exception {
+		_backing.open();
+		_backing._failures.set(Integer.MAX_VALUE);
+		WriteBehindStore store = new WriteBehindStore(_backing, _spool, WriteBehindStore.Acknowledge.STAGED, 1, 10,
+				10);
+		ITransaction transaction = store.begin(null);
+		put(store, transaction, "/ci/old.txt", "kept");
+		put(store, transaction, "/ci/dropped.txt", "dropped");
+		while (_backing._writes.get() < 4) {
+			Thread.sleep(10);
+		}
+		// still served, and a removal does not wait for the store
+		assertEquals("kept", get(store, transaction, "/ci/old.txt"));
+		store.removeObject(transaction, "/ci/dropped.txt");
+		assertNull(store.getStoredObject(transaction, "/ci/dropped.txt"));
+		store.destroy();
+		assertEquals("old", FileUtils.readFileToString(new File(_root, "ci/old.txt"), StandardCharsets.UTF_8));
+		assertEquals(2, _spool.list().length);
+
+		_backing._failures.set(0);
+		store = new WriteBehindStore(_backing, _spool, WriteBehindStore.Acknowledge.STAGED, 1, 10);
+		assertEquals("kept", FileUtils.readFileToString(new File(_root, "ci/old.txt"), StandardCharsets.UTF_8));
+		assertFalse(new File(_root, "ci/dropped.txt").exists());
+		assertEquals(0, _spool.list().length);
+		store.destroy();
+	}
+
+	@Test
+	public void testPersistedWaitsForTheStore() throws Exception {
+		_backing.open();
+		WriteBehindStore store = new WriteBehindStore(_backing, _spool, WriteBehindStore.Acknowledge.PERSISTED, 1,
+				1);
+		ITransaction transaction = store.begin(null);
+		put(store, transaction, "/ci/old.txt", "persisted");
+		assertEquals("persisted", FileUtils.readFileToString(new File(_root, "ci/old.txt"), StandardCharsets.UTF_8));
+		try {
+			put(store, transaction, "/missing/new.txt", "lost");
+			fail("WebDAVException expected");
+		} catch (WebDAVException e) {
+		}
+		// the slot of the failed write is free again
+		put(store, transaction, "/ci/old.txt", "again");
+		assertEquals("again", FileUtils.readFileToString(new File(_root, "ci/old.txt"), StandardCharsets.UTF_8));
+		store.destroy();
+	}
+
+	@Test
+	public void testWritesLeftInTheSpoolAreMade() throws Exception {
+		_backing.open();
+		FileUtils.writeStringToFile(new File(_spool, "1.data"), "recovered", StandardCharsets.UTF_8);
+		FileUtils.writeStringToFile(new File(_spool, "1.path"), "/ci/old.txt\ntext/plain\n\n1500000000000\n",
+				StandardCharsets.UTF_8);
+		FileUtils.writeStringToFile(new File(_spool, "2.data"), "never acknowledged", StandardCharsets.UTF_8);
+
+		WriteBehindStore store = new WriteBehindStore(_backing, _spool, WriteBehindStore.Acknowledge.STAGED, 1, 10);
+		assertEquals("recovered", FileUtils.readFileToString(new File(_root, "ci/old.txt"), StandardCharsets.UTF_8));
+		assertEquals(1500000000000L, new File(_root, "ci/old.txt").lastModified());
+		assertEquals(0, _spool.list().length);
+		assertEquals(WriteBehindStore.Acknowledge.PERSISTED, WriteBehindStore.Acknowledge.fromName(" Persisted"));
+		store.destroy();
+	}
+
+	private static void awaitWritten(WriteBehindStore store) throws InterruptedException {
+		for (int i = 0; i < 100 && store.getPendingCount() > 0; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, store.getPendingCount());
+	}
+
+	private static long put(IWebDAVStore store, ITransaction transaction, String path, String content) {
+		return store.setResourceContent(transaction, path,
+				new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), null, null);
+	}
+
+	private static String get(IWebDAVStore store, ITransaction transaction, String path) throws Exception {
+		InputStream in = store.getResourceContent(transaction, path);
+		try {
+			return IOUtils.toString(in, StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Slow disk: writes wait until the gate is opened, and the first ones
+	 * fail if told so
+	 */
+	private static class GatedStore extends LocalFileSystemStore {
+
+		private final CountDownLatch _gate = new CountDownLatch(1);
+		private final CountDownLatch _entered = new CountDownLatch(1);
+		private final AtomicInteger _writes = new AtomicInteger();
+		private final AtomicInteger _failures = new AtomicInteger();
+
+		GatedStore(File root) {
+			super(root);
+		}
+
+		void open() {
+			_gate.countDown();
+		}
+
+		@Override
+		public long setResourceContent(ITransaction transaction, String uri, InputStream is, String contentType,
+				String characterEncoding) {
+			_entered.countDown();
+			try {
+				_gate.await();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			if (_writes.incrementAndGet() <= _failures.get()) {
+				throw new WebDAVException("disk full");
+			}
+			return super.setResourceContent(transaction, uri, is, contentType, characterEncoding);
+		}
+	}
+}
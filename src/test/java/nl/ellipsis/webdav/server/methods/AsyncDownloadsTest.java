@@ -0,0 +1,302 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.StoredObjectPrefetcher;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class AsyncDownloadsTest {
+
+	private static final int WORKERS = 2;
+	private static final int DOWNLOADS = 20;
+	private static final int FILE_SIZE = 512 * 1024;
+
+	private File _root;
+	private LocalFileSystemStore _store;
+	private AsyncDownloads _downloads;
+	private DoGet _doGet;
+	private byte[] _content;
+
+	private ExecutorService _workers;
+	private ScheduledExecutorService _network;
+	private final AtomicInteger _inFlight = new AtomicInteger();
+	private final AtomicInteger _peakInFlight = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("async-downloads").toFile();
+		_content = new byte[FILE_SIZE];
+		new Random(42).nextBytes(_content);
+		FileUtils.writeByteArrayToFile(new File(_root, "large.bin"), _content);
+		FileUtils.writeByteArrayToFile(new File(_root, "small.bin"), Arrays.copyOf(_content, 100));
+		_store = new LocalFileSystemStore(_root);
+		_downloads = new AsyncDownloads(1024, 0);
+		IMimeTyper mimeTyper = new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return "application/octet-stream";
+			}
+		};
+		_doGet = new DoGet(_store, null, null, new ResourceLocks(), mimeTyper, 1, ContentCache.NONE,
+				GzipVariants.NONE, new FolderListing(_store, StoredObjectPrefetcher.NONE, 0), _downloads);
+		_workers = Executors.newFixedThreadPool(WORKERS);
+		_network = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_network.shutdownNow();
+		_workers.shutdownNow();
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testFixedPoolServesManyMoreSlowDownloads() throws Exception {
+		final CountDownLatch accepted = new CountDownLatch(DOWNLOADS);
+		final CountDownLatch completed = new CountDownLatch(DOWNLOADS);
+		final List<SlowClient> clients = new ArrayList<SlowClient>();
+		for (int i = 0; i < DOWNLOADS; i++) {
+			final SlowClient client = new SlowClient(completed);
+			clients.add(client);
+			_workers.submit(new Runnable() {
+				public void run() {
+					try {
+						get("/large.bin", client);
+					} catch (Exception e) {
+						client._failure = e;
+					}
+					accepted.countDown();
+				}
+			});
+		}
+
+		assertTrue("requests held their worker thread", accepted.await(10, TimeUnit.SECONDS));
+		assertTrue("downloads did not complete", completed.await(60, TimeUnit.SECONDS));
+
+		// each download was in flight longer than it took to accept them all
+		assertTrue("peak " + _peakInFlight.get(), _peakInFlight.get() > WORKERS);
+		for (SlowClient client : clients) {
+			assertNull(client._failure);
+			assertArrayEquals(client.getReceived(), _content);
+		}
+		assertEquals(0, _downloads.getActive());
+	}
+
+	@Test
+	public void testShutdownCompletesActiveDownloads() throws Exception {
+		CountDownLatch completed = new CountDownLatch(2);
+		SlowClient first = new SlowClient(completed);
+		SlowClient second = new SlowClient(completed);
+		get("/large.bin", first);
+		get("/large.bin", second);
+		assertEquals(2, _downloads.getActive());
+
+		_downloads.shutdown();
+		assertEquals(0, _downloads.getActive());
+		assertTrue("downloads were not completed", completed.await(10, TimeUnit.SECONDS));
+		assertTrue(first.getReceived().length < FILE_SIZE);
+		assertTrue(second.getReceived().length < FILE_SIZE);
+		AsyncDownloads.NONE.shutdown();
+	}
+
+	@Test
+	public void testSmallFilesAndSyncContainersAreSentOnTheRequestThread() throws Exception {
+		SlowClient client = new SlowClient(new CountDownLatch(1));
+		get("/small.bin", client);
+		assertFalse(client._async);
+		assertArrayEquals(Arrays.copyOf(_content, 100), client._response.getBodyBytes());
+
+		client = new SlowClient(new CountDownLatch(1));
+		client._asyncSupported = false;
+		get("/large.bin", client);
+		assertFalse(client._async);
+		assertArrayEquals(_content, client._response.getBodyBytes());
+	}
+
+	private void get(String path, SlowClient client) throws Exception {
+		ITransaction transaction = _store.begin(null);
+		_doGet.execute(new RequestContext(transaction, client.request(path), client.response()));
+		_store.commit(transaction);
+	}
+
+	/**
+	 * Client on a slow connection: the container accepts a few KB and makes
+	 * the output not ready until the network has taken them
+	 */
+	private class SlowClient {
+
+		private static final int SOCKET_BUFFER = 8 * 1024;
+		private static final int DRAIN_PER_TICK = 4 * 1024;
+
+		private final CountDownLatch _completed;
+		private final RecordingResponse _response = new RecordingResponse();
+		private final ByteArrayOutputStream _pending = new ByteArrayOutputStream();
+		private final ByteArrayOutputStream _received = new ByteArrayOutputStream();
+		private boolean _asyncSupported = true;
+		private volatile boolean _async = false;
+		private volatile Exception _failure;
+		private WriteListener _listener;
+		private boolean _waiting = false;
+
+		SlowClient(CountDownLatch completed) {
+			_completed = completed;
+		}
+
+		synchronized byte[] getReceived() {
+			return _received.toByteArray();
+		}
+
+		HttpServletRequest request(String path) {
+			final StubRequest stub = new StubRequest(path, new byte[0]);
+			return (HttpServletRequest) Proxy.newProxyInstance(AsyncDownloadsTest.class.getClassLoader(),
+					new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							if (method.getName().equals("isAsyncSupported")) {
+								return _asyncSupported;
+							} else if (method.getName().equals("startAsync")) {
+								_async = true;
+								return asyncContext();
+							}
+							return stub.invoke(proxy, method, args);
+						}
+					});
+		}
+
+		HttpServletResponse response() {
+			final HttpServletResponse recording = _response.proxy();
+			return (HttpServletResponse) Proxy.newProxyInstance(AsyncDownloadsTest.class.getClassLoader(),
+					new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							if (_async && method.getName().equals("getOutputStream")) {
+								return new Output();
+							}
+							return method.invoke(recording, args);
+						}
+					});
+		}
+
+		private void dispatch() {
+			_workers.submit(new Runnable() {
+				public void run() {
+					try {
+						_listener.onWritePossible();
+					} catch (IOException e) {
+						_failure = e;
+						_listener.onError(e);
+					}
+				}
+			});
+		}
+
+		private synchronized void drain() {
+			byte[] pending = _pending.toByteArray();
+			int n = Math.min(pending.length, DRAIN_PER_TICK);
+			_received.write(pending, 0, n);
+			_pending.reset();
+			_pending.write(pending, n, pending.length - n);
+			if (_waiting && _pending.size() < SOCKET_BUFFER) {
+				_waiting = false;
+				dispatch();
+			}
+		}
+
+		private class Output extends ServletOutputStream {
+
+			@Override
+			public void write(int b) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				synchronized (SlowClient.this) {
+					_pending.write(b, off, len);
+				}
+			}
+
+			public boolean isReady() {
+				synchronized (SlowClient.this) {
+					_waiting = _pending.size() >= SOCKET_BUFFER;
+					return !_waiting;
+				}
+			}
+
+			public void setWriteListener(WriteListener listener) {
+				_listener = listener;
+				int inFlight = _inFlight.incrementAndGet();
+				synchronized (_peakInFlight) {
+					_peakInFlight.set(Math.max(_peakInFlight.get(), inFlight));
+				}
+				_network.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						drain();
+					}
+				}, 1, 1, TimeUnit.MILLISECONDS);
+				dispatch();
+			}
+		}
+
+		/**
+		 * Completing the context closes the connection once the network has
+		 * taken the pending bytes
+		 */
+		private AsyncContext asyncContext() {
+			return (AsyncContext) Proxy.newProxyInstance(AsyncDownloadsTest.class.getClassLoader(),
+					new Class<?>[] { AsyncContext.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							if (method.getName().equals("complete")) {
+								_network.scheduleWithFixedDelay(new Runnable() {
+									boolean done = false;
+
+									public void run() {
+										synchronized (SlowClient.this) {
+											if (!done && _pending.size() == 0) {
+												done = true;
+												_inFlight.decrementAndGet();
+												_completed.countDown();
+											}
+										}
+									}
+								}, 1, 1, TimeUnit.MILLISECONDS);
+							}
+							// setTimeout and addListener
+							return null;
+						}
+					});
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class ChunkedUploadsTest {
+
+	private File _root;
+	private File _parts;
+	private LocalFileSystemStore _store;
+	private ResourceLocks _resourceLocks;
+	private ChunkedUploads _chunkedUploads;
+	private byte[] _content;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("chunked-uploads").toFile();
+		_parts = Files.createTempDirectory("chunked-uploads-parts").toFile();
+		FileUtils.writeStringToFile(new File(_root, "big.bin"), "old", "UTF-8");
+		_store = new LocalFileSystemStore(_root);
+		_resourceLocks = new ResourceLocks();
+		_chunkedUploads = new ChunkedUploads(_parts, TimeUnit.DAYS.toMillis(1));
+		_content = new byte[300000];
+		for (int i = 0; i < _content.length; i++) {
+			_content[i] = (byte) (i * 31);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_chunkedUploads.shutdown();
+		_store.destroy();
+		FileUtils.deleteDirectory(_root);
+		FileUtils.deleteDirectory(_parts);
+	}
+
+	@Test
+	public void testPartsOutOfOrderAreAssembled() throws Exception {
+		RecordingResponse response = putPart(_chunkedUploads, "/big.bin", 200000, 299999);
+		assertEquals(202, response.getStatus());
+		assertEquals("bytes=200000-299999", response.getHeader("Range"));
+
+		response = putPart(_chunkedUploads, "/big.bin", 0, 99999);
+		assertEquals(202, response.getStatus());
+		assertEquals("bytes=0-99999,200000-299999", response.getHeader("Range"));
+		// the resource is untouched until all parts have arrived
+		assertEquals("old", FileUtils.readFileToString(new File(_root, "big.bin"), "UTF-8"));
+
+		response = putPart(_chunkedUploads, "/big.bin", 100000, 199999);
+		assertEquals(201, response.getStatus());
+		assertArrayEquals(_content, FileUtils.readFileToByteArray(new File(_root, "big.bin")));
+
+		// the upload is gone once published
+		response = put(_chunkedUploads, new StubRequest("/big.bin", null).header("Content-Range", "bytes */300000"));
+		assertEquals(202, response.getStatus());
+		assertNull(response.getHeader("Range"));
+		assertEquals(0, _parts.list().length);
+	}
+
+	@Test
+	public void testPartsInParallel() throws Exception {
+		final int parts = 6;
+		final int partSize = _content.length / parts;
+		ExecutorService executor = Executors.newFixedThreadPool(parts);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < parts; i++) {
+				final int first = i * partSize;
+				results.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						return putPart(_chunkedUploads, "/new.bin", first, first + partSize - 1).getStatus();
+					}
+				}));
+			}
+			int published = 0;
+			for (Future<Integer> result : results) {
+				int status = result.get();
+				if (status == 201) {
+					published++;
+				} else {
+					assertEquals(202, status);
+				}
+			}
+			// exactly one request publishes the upload
+			assertEquals(1, published);
+		} finally {
+			executor.shutdown();
+		}
+		assertArrayEquals(_content, FileUtils.readFileToByteArray(new File(_root, "new.bin")));
+	}
+
+	@Test
+	public void testUploadIsResumedAfterRestart() throws Exception {
+		putPart(_chunkedUploads, "/big.bin", 0, 149999);
+		_chunkedUploads.shutdown();
+
+		ChunkedUploads restarted = new ChunkedUploads(_parts, TimeUnit.DAYS.toMillis(1));
+		RecordingResponse response = put(restarted,
+				new StubRequest("/big.bin", null).header("Content-Range", "bytes */300000"));
+		assertEquals(202, response.getStatus());
+		assertEquals("bytes=0-149999", response.getHeader("Range"));
+
+		response = putPart(restarted, "/big.bin", 150000, 299999);
+		assertEquals(201, response.getStatus());
+		assertArrayEquals(_content, FileUtils.readFileToByteArray(new File(_root, "big.bin")));
+		restarted.shutdown();
+	}
+
+	@Test
+	public void testOtherLengthWaitsForTheUploadToExpire() throws Exception {
+		putPart(_chunkedUploads, "/big.bin", 0, 149999);
+		RecordingResponse response = put(_chunkedUploads, new StubRequest("/big.bin", new byte[10])
+				.header("Content-Range", "bytes 0-9/10"));
+		assertEquals(409, response.getStatus());
+		response = put(_chunkedUploads, new StubRequest("/big.bin", null).header("Content-Range", "bytes */300000"));
+		assertEquals("bytes=0-149999", response.getHeader("Range"));
+
+		ChunkedUploads expiring = new ChunkedUploads(_parts, 0);
+		for (File file : _parts.listFiles()) {
+			file.setLastModified(System.currentTimeMillis() - 1000);
+		}
+		response = put(expiring, new StubRequest("/big.bin", new byte[10]).header("Content-Range", "bytes 0-9/10"));
+		assertEquals(201, response.getStatus());
+		assertEquals(10, new File(_root, "big.bin").length());
+		expiring.shutdown();
+	}
+
+	@Test
+	public void testBadPartsAreRejected() throws Exception {
+		// a body shorter than its range is not counted as received
+		RecordingResponse response = put(_chunkedUploads, new StubRequest("/big.bin", new byte[10])
+				.header("Content-Range", "bytes 0-99/300000"));
+		assertEquals(400, response.getStatus());
+		response = put(_chunkedUploads, new StubRequest("/big.bin", null).header("Content-Range", "bytes */300000"));
+		assertNull(response.getHeader("Range"));
+
+		response = put(_chunkedUploads, new StubRequest("/big.bin", new byte[10])
+				.header("Content-Range", "bytes 0-9/5"));
+		assertEquals(400, response.getStatus());
+
+		// without a directory for the parts a partial PUT is an error
+		response = put(ChunkedUploads.NONE, new StubRequest("/big.bin", new byte[10])
+				.header("Content-Range", "bytes 0-9/300000"));
+		assertEquals(400, response.getStatus());
+		assertEquals("old", FileUtils.readFileToString(new File(_root, "big.bin"), "UTF-8"));
+
+		try {
+			ChunkedUploads.parseContentRange("items 0-9/10");
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+		}
+		assertTrue(ChunkedUploads.parseContentRange("bytes */10").isStatusQuery());
+		assertEquals(5, ChunkedUploads.parseContentRange("bytes 5-9/10").getFirst());
+	}
+
+	private RecordingResponse putPart(ChunkedUploads chunkedUploads, String path, int first, int last)
+			throws Exception {
+		return put(chunkedUploads, new StubRequest(path, Arrays.copyOfRange(_content, first, last + 1))
+				.header("Content-Range", "bytes " + first + "-" + last + "/" + _content.length));
+	}
+
+	private RecordingResponse put(ChunkedUploads chunkedUploads, StubRequest request) throws Exception {
+		DoPut doPut = new DoPut(_store, _resourceLocks, false, false, chunkedUploads);
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(null);
+		doPut.execute(new RequestContext(transaction, request.proxy(), response.proxy()));
+		_store.commit(transaction);
+		return response;
+	}
+}
@@ -0,0 +1,218 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.HttpHeaders;
+import nl.ellipsis.webdav.server.IMethodExecutor;
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+/**
+ * Runs requests with different parameters concurrently through shared method
+ * executors and checks that every response only reflects its own request.
+ */
+public class ConcurrentExecutionTest {
+
+	private static final int THREADS = 16;
+	private static final int ITERATIONS = 100;
+	private static final int CHILDREN = 5;
+
+	private static final String MAC_USER_AGENT = "WebDAVFS/1.8 (01808000) Darwin/10.3.0 (i386)";
+	private static final String TRANSMIT_USER_AGENT = "Transmit/4.4.2 neon/0.29.0";
+	private static final String OTHER_USER_AGENT = "Microsoft-WebDAV-MiniRedir/10.0.17134";
+
+	private File _root;
+	private LocalFileSystemStore _store;
+	private ResourceLocks _resourceLocks;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("concurrent-execution").toFile();
+		_store = new LocalFileSystemStore(_root);
+		_resourceLocks = new ResourceLocks();
+		new File(_root, "tree").mkdir();
+		for (int i = 0; i < CHILDREN; i++) {
+			new File(_root, "tree/child" + i).createNewFile();
+		}
+		for (int t = 0; t < THREADS; t++) {
+			new File(_root, "t" + t).mkdir();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testLockScopeAndOwnerDoNotLeak() throws Exception {
+		final DoLock doLock = new DoLock(_store, _resourceLocks, false);
+
+		List<String> failures = run(new Task() {
+			public String execute(int thread, int iteration) throws Exception {
+				String path = "/t" + thread + "/lock" + iteration;
+				String userAgent;
+				String owner;
+				boolean exclusive;
+				StubRequest stub;
+				if (iteration % 5 == 0) {
+					// Finder sends no lock information
+					userAgent = MAC_USER_AGENT;
+					owner = MAC_USER_AGENT;
+					exclusive = true;
+					stub = new StubRequest(path, null);
+				} else {
+					userAgent = OTHER_USER_AGENT;
+					owner = "owner-" + thread + "-" + iteration;
+					exclusive = iteration % 2 == 0;
+					stub = new StubRequest(path, lockInfo(exclusive, owner).getBytes(StandardCharsets.UTF_8));
+				}
+				stub.header(javax.ws.rs.core.HttpHeaders.USER_AGENT, userAgent).header(HttpHeaders.DEPTH, "0");
+
+				RecordingResponse response = new RecordingResponse();
+				perform(doLock, stub, response);
+
+				String body = response.getBody();
+				if (response.getHeader(HttpHeaders.LOCK_TOKEN) == null) {
+					return path + ": no lock token, status " + response.getStatus();
+				}
+				if (!body.contains("<D:href>" + owner)) {
+					return path + ": expected owner " + owner + " in " + body;
+				}
+				if (!body.contains(exclusive ? "<D:exclusive/>" : "<D:shared/>")) {
+					return path + ": expected " + (exclusive ? "exclusive" : "shared") + " scope in " + body;
+				}
+				return null;
+			}
+		});
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	@Test
+	public void testPropfindDepthDoesNotLeak() throws Exception {
+		IMimeTyper mimeTyper = new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return "text/plain";
+			}
+		};
+		final DoPropfind doPropfind = new DoPropfind(_store, _resourceLocks, mimeTyper);
+
+		List<String> failures = run(new Task() {
+			public String execute(int thread, int iteration) throws Exception {
+				boolean deep = (thread + iteration) % 2 == 0;
+				StubRequest stub = new StubRequest("/tree", null).header(HttpHeaders.DEPTH, deep ? "1" : "0");
+
+				RecordingResponse response = new RecordingResponse();
+				perform(doPropfind, stub, response);
+
+				int expected = deep ? CHILDREN + 1 : 1;
+				int found = response.getBody().split("<D:response>", -1).length - 1;
+				if (found != expected) {
+					return "depth " + (deep ? 1 : 0) + ": expected " + expected + " responses, found " + found;
+				}
+				return null;
+			}
+		});
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	@Test
+	public void testPutUserAgentDoesNotLeak() throws Exception {
+		final DoPut doPut = new DoPut(_store, _resourceLocks, false, false);
+
+		List<String> failures = run(new Task() {
+			public String execute(int thread, int iteration) throws Exception {
+				String path = "/t" + thread + "/put" + iteration;
+				boolean transmit = (thread + iteration) % 2 == 0;
+				StubRequest stub = new StubRequest(path, ("content " + path).getBytes(StandardCharsets.UTF_8))
+						.header(javax.ws.rs.core.HttpHeaders.USER_AGENT, transmit ? TRANSMIT_USER_AGENT : OTHER_USER_AGENT);
+
+				RecordingResponse response = new RecordingResponse();
+				perform(doPut, stub, response);
+
+				// Transmit expects 204 instead of 201
+				int expected = transmit ? 204 : 201;
+				if (response.getStatus() != expected) {
+					return path + ": expected status " + expected + ", got " + response.getStatus();
+				}
+				return null;
+			}
+		});
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	private interface Task {
+		/**
+		 * @return null if the response is as expected, the failure otherwise
+		 */
+		String execute(int thread, int iteration) throws Exception;
+	}
+
+	private void perform(IMethodExecutor executor, StubRequest request, RecordingResponse response) throws Exception {
+		ITransaction transaction = _store.begin(null);
+		executor.execute(new RequestContext(transaction, request.proxy(), response.proxy()));
+		_store.commit(transaction);
+	}
+
+	private static List<String> run(final Task task) throws Exception {
+		final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						start.await();
+						for (int i = 0; i < ITERATIONS; i++) {
+							String failure = task.execute(thread, i);
+							if (failure != null) {
+								failures.add(failure);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return new ArrayList<String>(failures);
+	}
+
+	private static String lockInfo(boolean exclusive, String owner) {
+		return "<?xml version=\"1.0\" encoding=\"utf-8\" ?>" + "<D:lockinfo xmlns:D='DAV:'>" + "<D:lockscope>"
+				+ (exclusive ? "<D:exclusive/>" : "<D:shared/>") + "</D:lockscope>"
+				+ "<D:locktype><D:write/></D:locktype>" + "<D:owner><D:href>" + owner + "</D:href></D:owner>"
+				+ "</D:lockinfo>";
+	}
+}
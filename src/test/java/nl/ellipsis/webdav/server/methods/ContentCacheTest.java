@@ -0,0 +1,193 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.StoreChange;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class ContentCacheTest {
+
+	private static final int PAGE = ContentCache.PAGE_SIZE;
+
+	private File _root;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("content-cache").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testContentSpanningPages() throws Exception {
+		ContentCache cache = new ContentCache(4 * PAGE, 4 * PAGE);
+		byte[] content = new byte[2 * PAGE + 100];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+
+		assertArrayEquals(content, load(cache, "/a.bin", content));
+		assertEquals(1, cache.size());
+		assertEquals(3 * PAGE, cache.getUsed());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testIncompleteContentIsNotCached() throws Exception {
+		ContentCache cache = new ContentCache(4 * PAGE, PAGE);
+		ContentCache.Loader loader = cache.startLoad("/a.txt 1", "/a.txt", 10);
+		loader.write(new byte[5], 0, 5);
+		loader.finish();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getUsed());
+
+		assertNull(cache.startLoad("/b.txt 1", "/b.txt", PAGE + 1));
+	}
+
+	@Test
+	public void testShutdownReleasesTheContent() throws Exception {
+		ContentCache cache = new ContentCache(4 * PAGE, PAGE);
+		byte[] content = "cached".getBytes(StandardCharsets.UTF_8);
+		load(cache, "/a.txt", content);
+		ContentCache.Entry entry = cache.acquire(ContentCache.createKey("/a.txt", "1"));
+		ContentCache.Loader loader = cache.startLoad("/b.txt 1", "/b.txt", 10);
+
+		cache.shutdown();
+		assertEquals(0, cache.size());
+		assertNull(cache.acquire(ContentCache.createKey("/a.txt", "1")));
+		assertNull(cache.startLoad("/c.txt 1", "/c.txt", 10));
+		loader.write(new byte[10], 0, 10);
+		loader.finish();
+		assertEquals(0, cache.size());
+		try {
+			cache.writeTo(entry, new ByteArrayOutputStream());
+			fail("IOException expected");
+		} catch (IOException e) {
+		}
+		cache.release(entry);
+		assertEquals(0, cache.getUsed());
+		ContentCache.NONE.shutdown();
+	}
+
+	@Test
+	public void testFrequentFilesAreNotEvictedByOneOffs() throws Exception {
+		ContentCache cache = new ContentCache(2 * PAGE, PAGE);
+		byte[] content = "content".getBytes(StandardCharsets.UTF_8);
+		load(cache, "/hot1", content);
+		load(cache, "/hot2", content);
+		assertEquals(2, cache.size());
+
+		// requested once, less often than the cached files
+		assertNull(cache.acquire("/cold 1"));
+		assertNull(cache.startLoad("/cold 1", "/cold", content.length));
+		assertEquals(1, cache.getRejected());
+
+		// requested more often than the least recently used entry
+		for (int i = 0; i < 4; i++) {
+			assertNull(cache.acquire("/warm 1"));
+		}
+		ContentCache.Loader loader = cache.startLoad("/warm 1", "/warm", content.length);
+		assertNotNull(loader);
+		loader.write(content, 0, content.length);
+		loader.finish();
+		assertEquals(2, cache.size());
+		assertNull(cache.acquire("/hot1 1"));
+	}
+
+	@Test
+	public void testChangesDropEntriesInUseWhenReleased() throws Exception {
+		ContentCache cache = new ContentCache(2 * PAGE, PAGE);
+		byte[] content = "content".getBytes(StandardCharsets.UTF_8);
+		load(cache, "/docs/a.txt", content);
+		load(cache, "/docsx/b.txt", content);
+
+		ContentCache.Entry entry = cache.acquire("/docs/a.txt 1");
+		cache.committed(Arrays.asList(new StoreChange("/docs", true)));
+		assertEquals(1, cache.size());
+		assertNull(cache.acquire("/docs/a.txt 1"));
+		// pages are kept until the entry is written
+		assertEquals(2 * PAGE, cache.getUsed());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		cache.writeTo(entry, out);
+		cache.release(entry);
+		assertEquals("content", out.toString("UTF-8"));
+		assertEquals(PAGE, cache.getUsed());
+	}
+
+	@Test
+	public void testGetServesHitsWithoutOpeningContent() throws Exception {
+		FileOutputStream fos = new FileOutputStream(new File(_root, "a.txt"));
+		fos.write("hello".getBytes(StandardCharsets.UTF_8));
+		fos.close();
+		final int[] contentReads = new int[1];
+		LocalFileSystemStore store = new LocalFileSystemStore(_root) {
+			@Override
+			public InputStream getResourceContent(ITransaction transaction, String uri) {
+				contentReads[0]++;
+				return super.getResourceContent(transaction, uri);
+			}
+		};
+		ContentCache cache = new ContentCache(4 * PAGE, PAGE);
+		DoGet doGet = new DoGet(store, null, null, new ResourceLocks(), new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return "text/plain";
+			}
+		}, 0, cache);
+
+		for (int i = 0; i < 3; i++) {
+			RecordingResponse response = new RecordingResponse();
+			ITransaction transaction = store.begin(null);
+			doGet.execute(new RequestContext(transaction, new StubRequest("/a.txt", null).proxy(), response.proxy()));
+			store.commit(transaction);
+			assertEquals("hello", response.getBody());
+		}
+		assertEquals(1, contentReads[0]);
+		assertEquals(2, cache.getHits());
+	}
+
+	private static byte[] load(ContentCache cache, String path, byte[] content) throws Exception {
+		String key = ContentCache.createKey(path, "1");
+		assertNull(cache.acquire(key));
+		ContentCache.Loader loader = cache.startLoad(key, path, content.length);
+		assertNotNull(loader);
+		// in the chunks of a copy loop
+		for (int off = 0; off < content.length; off += 1000) {
+			loader.write(content, off, Math.min(1000, content.length - off));
+		}
+		loader.finish();
+
+		ContentCache.Entry entry = cache.acquire(key);
+		assertNotNull(entry);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			cache.writeTo(entry, out);
+		} finally {
+			cache.release(entry);
+		}
+		return out.toByteArray();
+	}
+}
@@ -8,6 +8,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -61,7 +62,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -128,7 +129,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -184,7 +185,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -269,7 +270,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -296,7 +297,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 
@@ -344,7 +345,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -435,7 +436,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -490,7 +491,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -567,7 +568,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 
@@ -627,7 +628,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 
@@ -701,7 +702,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 
@@ -757,7 +758,7 @@ public class DoCopyTest extends MockTest {
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
 		DoCopy doCopy = new DoCopy(mockStore, resLocks, doDelete, !readOnly);
-		doCopy.execute(mockTransaction, mockReq, mockRes);
+		doCopy.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 
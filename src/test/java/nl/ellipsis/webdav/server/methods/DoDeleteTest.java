@@ -7,6 +7,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -55,7 +56,7 @@ public class DoDeleteTest extends MockTest {
 
 		ResourceLocks resLocks = new ResourceLocks();
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, readOnly);
-		doDelete.execute(mockTransaction, mockReq, mockRes);
+		doDelete.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -71,6 +72,18 @@ public class DoDeleteTest extends MockTest {
 				oneOf(mockReq).getPathInfo();
 				will(returnValue(sourceFilePath));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
 				oneOf(mockRes).setStatus(HttpServletResponse.SC_NO_CONTENT);
 
 				StoredObject fileSo = initFileStoredObject(resourceContent);
@@ -84,7 +97,7 @@ public class DoDeleteTest extends MockTest {
 
 		DoDelete doDelete = new DoDelete(mockStore, new ResourceLocks(), !readOnly);
 
-		doDelete.execute(mockTransaction, mockReq, mockRes);
+		doDelete.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -100,6 +113,18 @@ public class DoDeleteTest extends MockTest {
 				oneOf(mockReq).getPathInfo();
 				will(returnValue(sourceFilePath));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
 				oneOf(mockRes).setStatus(HttpServletResponse.SC_NO_CONTENT);
 
 				StoredObject fileSo = null;
@@ -113,7 +138,7 @@ public class DoDeleteTest extends MockTest {
 
 		DoDelete doDelete = new DoDelete(mockStore, new ResourceLocks(), !readOnly);
 
-		doDelete.execute(mockTransaction, mockReq, mockRes);
+		doDelete.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -129,6 +154,18 @@ public class DoDeleteTest extends MockTest {
 				oneOf(mockReq).getPathInfo();
 				will(returnValue(sourceCollectionPath));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
 				oneOf(mockRes).setStatus(HttpServletResponse.SC_NO_CONTENT);
 
 				StoredObject folderSo = initFolderStoredObject();
@@ -169,7 +206,7 @@ public class DoDeleteTest extends MockTest {
 
 		DoDelete doDelete = new DoDelete(mockStore, new ResourceLocks(), !readOnly);
 
-		doDelete.execute(mockTransaction, mockReq, mockRes);
+		doDelete.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -185,6 +222,18 @@ public class DoDeleteTest extends MockTest {
 				oneOf(mockReq).getPathInfo();
 				will(returnValue(sourceCollectionPath));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
 				oneOf(mockRes).setStatus(HttpServletResponse.SC_NO_CONTENT);
 
 				StoredObject folderSo = null;
@@ -198,7 +247,7 @@ public class DoDeleteTest extends MockTest {
 
 		DoDelete doDelete = new DoDelete(mockStore, new ResourceLocks(), !readOnly);
 
-		doDelete.execute(mockTransaction, mockReq, mockRes);
+		doDelete.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -214,6 +263,18 @@ public class DoDeleteTest extends MockTest {
 				oneOf(mockReq).getPathInfo();
 				will(returnValue(sourceFilePath));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
 				oneOf(mockRes).setStatus(HttpServletResponse.SC_NO_CONTENT);
 
 				StoredObject fileSo = initFileStoredObject(resourceContent);
@@ -227,7 +288,7 @@ public class DoDeleteTest extends MockTest {
 
 		DoDelete doDelete = new DoDelete(mockStore, new ResourceLocks(), !readOnly);
 
-		doDelete.execute(mockTransaction, mockReq, mockRes);
+		doDelete.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -271,7 +332,7 @@ public class DoDeleteTest extends MockTest {
 
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
-		doDelete.execute(mockTransaction, mockReq, mockRes);
+		doDelete.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -296,6 +357,18 @@ public class DoDeleteTest extends MockTest {
 				oneOf(mockReq).getPathInfo();
 				will(returnValue(path));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
 				oneOf(mockReq).getHeader(HttpHeaders.IF);
 				will(returnValue(rightLockToken));
 
@@ -313,7 +386,7 @@ public class DoDeleteTest extends MockTest {
 
 		DoDelete doDelete = new DoDelete(mockStore, resLocks, !readOnly);
 
-		doDelete.execute(mockTransaction, mockReq, mockRes);
+		doDelete.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -331,6 +404,18 @@ public class DoDeleteTest extends MockTest {
 				oneOf(mockReq).getPathInfo();
 				will(returnValue("/folder/file"));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
 				oneOf(mockRes).setStatus(HttpServletResponse.SC_NO_CONTENT);
 
 				StoredObject nonExistingSo = null;
@@ -344,7 +429,7 @@ public class DoDeleteTest extends MockTest {
 
 		DoDelete doDelete = new DoDelete(mockStore, new ResourceLocks(), readOnly);
 
-		doDelete.execute(mockTransaction, mockReq, mockRes);
+		doDelete.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -1,6 +1,7 @@
 package nl.ellipsis.webdav.server.methods;
 
 import java.io.ByteArrayInputStream;
+import java.util.Collections;
 import java.util.Locale;
 
 import javax.servlet.http.HttpServletRequest;
@@ -9,6 +10,7 @@ import javax.servlet.http.HttpServletResponse;
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.IMimeTyper;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -71,7 +73,7 @@ public class DoGetTest extends MockTest {
 
 		DoGet doGet = new DoGet(mockStore, null, null, new ResourceLocks(), mockMimeTyper, 0);
 
-		doGet.execute(mockTransaction, mockReq, mockRes);
+		doGet.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -92,9 +94,18 @@ public class DoGetTest extends MockTest {
 				oneOf(mockStore).getStoredObject(mockTransaction, "/index.html");
 				will(returnValue(indexSo));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
 				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
 				will(returnValue(null));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
 				oneOf(mockRes).setDateHeader("last-modified", indexSo.getLastModified().getTime());
 
 				oneOf(mockRes).addHeader(with(any(String.class)), with(any(String.class)));
@@ -119,7 +130,7 @@ public class DoGetTest extends MockTest {
 
 		DoGet doGet = new DoGet(mockStore, null, null, new ResourceLocks(), mockMimeTyper, 0);
 
-		doGet.execute(mockTransaction, mockReq, mockRes);
+		doGet.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		assertEquals("<hello/>", tos.toString());
 
@@ -144,12 +155,30 @@ public class DoGetTest extends MockTest {
 				oneOf(mockStore).getStoredObject(mockTransaction, "/foo");
 				will(returnValue(fooSo));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
 				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
 				will(returnValue(null));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
 				oneOf(mockStore).getStoredObject(mockTransaction, "/foo");
 				will(returnValue(fooSo));
 
+				oneOf(mockRes).getHeaders(javax.ws.rs.core.HttpHeaders.VARY);
+				will(returnValue(Collections.emptyList()));
+				oneOf(mockRes).addHeader(javax.ws.rs.core.HttpHeaders.VARY, javax.ws.rs.core.HttpHeaders.ACCEPT);
+
+				oneOf(mockReq).getParameter("format");
+				will(returnValue(null));
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT);
+				will(returnValue(null));
+
 				oneOf(mockReq).getLocale();
 				will(returnValue(Locale.GERMAN));
 
@@ -163,6 +192,15 @@ public class DoGetTest extends MockTest {
 
 				oneOf(mockStore).getChildrenNames(mockTransaction, "/foo");
 				will(returnValue(new String[] { "AAA", "BBB" }));
+
+				oneOf(mockReq).getParameter("sort");
+				will(returnValue(null));
+				oneOf(mockReq).getParameter("order");
+				will(returnValue(null));
+				oneOf(mockReq).getParameter("page");
+				will(returnValue(null));
+				oneOf(mockReq).getParameter("limit");
+				will(returnValue(null));
 				
 				oneOf(mockReq).getContextPath();
 				will(returnValue("/"));
@@ -180,7 +218,7 @@ public class DoGetTest extends MockTest {
 
 		DoGet doGet = new DoGet(mockStore, null, null, new ResourceLocks(), mockMimeTyper, 0);
 
-		doGet.execute(mockTransaction, mockReq, mockRes);
+		doGet.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		assertTrue(tos.toString().length() > 0);
 
@@ -214,7 +252,7 @@ public class DoGetTest extends MockTest {
 
 		DoGet doGet = new DoGet(mockStore, "/indexFile", null, new ResourceLocks(), mockMimeTyper, 0);
 
-		doGet.execute(mockTransaction, mockReq, mockRes);
+		doGet.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -240,9 +278,18 @@ public class DoGetTest extends MockTest {
 				oneOf(mockStore).getStoredObject(mockTransaction, "/alternative");
 				will(returnValue(alternativeSo));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
 				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
 				will(returnValue(null));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
 				oneOf(mockRes).setDateHeader("last-modified", alternativeSo.getLastModified().getTime());
 
 				oneOf(mockRes).addHeader(with(any(String.class)), with(any(String.class)));
@@ -270,7 +317,7 @@ public class DoGetTest extends MockTest {
 
 		DoGet doGet = new DoGet(mockStore, null, "/alternative", new ResourceLocks(), mockMimeTyper, 0);
 
-		doGet.execute(mockTransaction, mockReq, mockRes);
+		doGet.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		assertEquals("<hello/>", tos.toString());
 
@@ -5,6 +5,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.server.IMimeTyper;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -59,7 +60,7 @@ public class DoHeadTest extends MockTest {
 		});
 
 		DoHead doHead = new DoHead(mockStore, null, null, new ResourceLocks(), mockMimeTyper, 0);
-		doHead.execute(mockTransaction, mockReq, mockRes);
+		doHead.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -80,9 +81,18 @@ public class DoHeadTest extends MockTest {
 				oneOf(mockStore).getStoredObject(mockTransaction, "/index.html");
 				will(returnValue(indexSo));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
 				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
 				will(returnValue(null));
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
 				oneOf(mockRes).setDateHeader("last-modified", indexSo.getLastModified().getTime());
 
 				oneOf(mockRes).addHeader(with(any(String.class)), with(any(String.class)));
@@ -96,7 +106,7 @@ public class DoHeadTest extends MockTest {
 
 		DoHead doHead = new DoHead(mockStore, null, null, new ResourceLocks(), mockMimeTyper, 0);
 
-		doHead.execute(mockTransaction, mockReq, mockRes);
+		doHead.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -128,7 +138,7 @@ public class DoHeadTest extends MockTest {
 
 		DoHead doHead = new DoHead(mockStore, "/indexFile", null, new ResourceLocks(), mockMimeTyper, 0);
 
-		doHead.execute(mockTransaction, mockReq, mockRes);
+		doHead.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -8,6 +8,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -65,7 +66,7 @@ public class DoLockTest extends MockTest {
 		ResourceLocks resLocks = new ResourceLocks();
 
 		DoLock doLock = new DoLock(mockStore, resLocks, readOnly);
-		doLock.execute(mockTransaction, mockReq, mockRes);
+		doLock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -118,7 +119,7 @@ public class DoLockTest extends MockTest {
 		});
 
 		DoLock doLock = new DoLock(mockStore, resLocks, !readOnly);
-		doLock.execute(mockTransaction, mockReq, mockRes);
+		doLock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -175,7 +176,7 @@ public class DoLockTest extends MockTest {
 		});
 
 		DoLock doLock = new DoLock(mockStore, resLocks, !readOnly);
-		doLock.execute(mockTransaction, mockReq, mockRes);
+		doLock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -232,7 +233,7 @@ public class DoLockTest extends MockTest {
 		});
 
 		DoLock doLock = new DoLock(mockStore, resLocks, !readOnly);
-		doLock.execute(mockTransaction, mockReq, mockRes);
+		doLock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -290,7 +291,7 @@ public class DoLockTest extends MockTest {
 		});
 
 		DoLock doLock = new DoLock(mockStore, resLocks, !readOnly);
-		doLock.execute(mockTransaction, mockReq, mockRes);
+		doLock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -347,7 +348,7 @@ public class DoLockTest extends MockTest {
 		});
 
 		DoLock doLock = new DoLock(mockStore, resLocks, !readOnly);
-		doLock.execute(mockTransaction, mockReq, mockRes);
+		doLock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -456,7 +457,7 @@ public class DoLockTest extends MockTest {
 		});
 
 		DoLock doLock = new DoLock(mockStore, mockResourceLocks, !readOnly);
-		doLock.execute(mockTransaction, mockReq, mockRes);
+		doLock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 
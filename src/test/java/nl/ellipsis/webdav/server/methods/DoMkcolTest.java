@@ -8,6 +8,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -62,7 +63,7 @@ public class DoMkcolTest extends MockTest {
 
 		ResourceLocks resLocks = new ResourceLocks();
 		DoMkcol doMkcol = new DoMkcol(mockStore, resLocks, readOnly);
-		doMkcol.execute(mockTransaction, mockReq, mockRes);
+		doMkcol.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -97,7 +98,7 @@ public class DoMkcolTest extends MockTest {
 
 		ResourceLocks resLocks = new ResourceLocks();
 		DoMkcol doMkcol = new DoMkcol(mockStore, resLocks, !readOnly);
-		doMkcol.execute(mockTransaction, mockReq, mockRes);
+		doMkcol.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -129,7 +130,7 @@ public class DoMkcolTest extends MockTest {
 
 		ResourceLocks resLocks = new ResourceLocks();
 		DoMkcol doMkcol = new DoMkcol(mockStore, resLocks, !readOnly);
-		doMkcol.execute(mockTransaction, mockReq, mockRes);
+		doMkcol.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -165,7 +166,7 @@ public class DoMkcolTest extends MockTest {
 
 		ResourceLocks resLocks = new ResourceLocks();
 		DoMkcol doMkcol = new DoMkcol(mockStore, resLocks, !readOnly);
-		doMkcol.execute(mockTransaction, mockReq, mockRes);
+		doMkcol.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -207,7 +208,7 @@ public class DoMkcolTest extends MockTest {
 		});
 
 		DoMkcol doMkcol = new DoMkcol(mockStore, resLocks, !readOnly);
-		doMkcol.execute(mockTransaction, mockReq, mockRes);
+		doMkcol.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -235,7 +236,7 @@ public class DoMkcolTest extends MockTest {
 		});
 
 		DoMkcol doMkcol = new DoMkcol(mockStore, resLocks, !readOnly);
-		doMkcol.execute(mockTransaction, mockReq, mockRes);
+		doMkcol.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -389,10 +390,10 @@ public class DoMkcolTest extends MockTest {
 		});
 
 		DoLock doLock = new DoLock(mockStore, mockResourceLocks, !readOnly);
-		doLock.execute(mockTransaction, mockReq, mockRes);
+		doLock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		DoMkcol doMkcol = new DoMkcol(mockStore, mockResourceLocks, !readOnly);
-		doMkcol.execute(mockTransaction, mockReq, mockRes);
+		doMkcol.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
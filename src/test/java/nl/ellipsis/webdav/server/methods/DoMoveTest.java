@@ -7,6 +7,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -75,7 +76,7 @@ public class DoMoveTest extends MockTest {
 
 		DoMove doMove = new DoMove(resLocks, doDelete, doCopy, readOnly);
 
-		doMove.execute(mockTransaction, mockReq, mockRes);
+		doMove.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -158,7 +159,7 @@ public class DoMoveTest extends MockTest {
 
 		DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
 
-		doMove.execute(mockTransaction, mockReq, mockRes);
+		doMove.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -219,7 +220,7 @@ public class DoMoveTest extends MockTest {
 
 		DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
 
-		doMove.execute(mockTransaction, mockReq, mockRes);
+		doMove.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -305,7 +306,7 @@ public class DoMoveTest extends MockTest {
 
 		DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
 
-		doMove.execute(mockTransaction, mockReq, mockRes);
+		doMove.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -360,7 +361,7 @@ public class DoMoveTest extends MockTest {
 
 		DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
 
-		doMove.execute(mockTransaction, mockReq, mockRes);
+		doMove.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -407,7 +408,7 @@ public class DoMoveTest extends MockTest {
 
 		DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
 
-		doMove.execute(mockTransaction, mockReq, mockRes);
+		doMove.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -516,7 +517,7 @@ public class DoMoveTest extends MockTest {
 
 		DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
 
-		doMove.execute(mockTransaction, mockReq, mockRes);
+		doMove.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -576,7 +577,7 @@ public class DoMoveTest extends MockTest {
 
 		DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
 
-		doMove.execute(mockTransaction, mockReq, mockRes);
+		doMove.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -696,7 +697,7 @@ public class DoMoveTest extends MockTest {
 
 		DoMove doMove = new DoMove(resLocks, doDelete, doCopy, !readOnly);
 
-		doMove.execute(mockTransaction, mockReq, mockRes);
+		doMove.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -4,6 +4,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.methods.DoNotImplemented;
 import nl.ellipsis.webdav.server.testutil.MockTest;
@@ -39,7 +40,7 @@ public class DoNotImplementedTest extends MockTest {
 		});
 
 		DoNotImplemented doNotImplemented = new DoNotImplemented(readOnly);
-		doNotImplemented.execute(mockTransaction, mockReq, mockRes);
+		doNotImplemented.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -56,7 +57,7 @@ public class DoNotImplementedTest extends MockTest {
 		});
 
 		DoNotImplemented doNotImplemented = new DoNotImplemented(!readOnly);
-		doNotImplemented.execute(mockTransaction, mockReq, mockRes);
+		doNotImplemented.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
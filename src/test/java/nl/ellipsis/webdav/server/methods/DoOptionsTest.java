@@ -7,6 +7,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.server.IMimeTyper;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -64,7 +65,7 @@ public class DoOptionsTest extends MockTest {
 		});
 
 		DoOptions doOptions = new DoOptions(mockStore, new ResourceLocks());
-		doOptions.execute(mockTransaction, mockReq, mockRes);
+		doOptions.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -94,7 +95,7 @@ public class DoOptionsTest extends MockTest {
 		});
 
 		DoOptions doOptions = new DoOptions(mockStore, new ResourceLocks());
-		doOptions.execute(mockTransaction, mockReq, mockRes);
+		doOptions.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
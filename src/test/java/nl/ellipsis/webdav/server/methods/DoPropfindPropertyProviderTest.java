@@ -0,0 +1,170 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.HttpHeaders;
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.StoredObject;
+import nl.ellipsis.webdav.server.StoredObjectPrefetcher;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.properties.AbstractPropertyProvider;
+import nl.ellipsis.webdav.server.properties.IPropertyProvider;
+import nl.ellipsis.webdav.server.properties.PropertyProviderRegistry;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class DoPropfindPropertyProviderTest {
+
+	private static final String NS = "urn:example:test";
+
+	private File _root;
+	private LocalFileSystemStore _store;
+	private ChecksumProvider _checksum;
+	private DoPropfind _doPropfind;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("propfind-providers").toFile();
+		File docs = new File(_root, "docs");
+		docs.mkdir();
+		for (String name : new String[] { "a.txt", "b.txt" }) {
+			FileOutputStream fos = new FileOutputStream(new File(docs, name));
+			fos.write(name.getBytes(StandardCharsets.UTF_8));
+			fos.close();
+		}
+		_store = new LocalFileSystemStore(_root);
+
+		PropertyProviderRegistry registry = new PropertyProviderRegistry();
+		registry.register(new LengthProvider());
+		_checksum = new ChecksumProvider();
+		registry.register(_checksum);
+
+		IMimeTyper mimeTyper = new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return "text/plain";
+			}
+		};
+		_doPropfind = new DoPropfind(_store, new ResourceLocks(), mimeTyper, PropfindPolicy.UNLIMITED,
+				StoredObjectPrefetcher.NONE, registry);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testAllpropLeavesOutIOProviders() throws Exception {
+		String body = propfind(null);
+
+		assertTrue(body, body.contains("<ns0:length xmlns:ns0=\"" + NS + "\">5</ns0:length>"));
+		assertFalse(body, body.contains("checksum"));
+		assertTrue(_checksum._batches.isEmpty());
+	}
+
+	@Test
+	public void testAllpropWithIncludeBatchesIOProviderPerFolder() throws Exception {
+		String body = propfind("<D:allprop/><D:include><T:checksum/></D:include>");
+
+		assertTrue(body, body.contains("<ns0:checksum xmlns:ns0=\"" + NS + "\">sum:/docs/a.txt</ns0:checksum>"));
+		assertTrue(body, body.contains("<ns0:checksum xmlns:ns0=\"" + NS + "\">sum:/docs/b.txt</ns0:checksum>"));
+		// one batch for the requested folder, one for its children
+		assertEquals(2, _checksum._batches.size());
+		assertEquals(Collections.singletonList("/docs"), _checksum._batches.get(0));
+		List<String> children = new ArrayList<String>(_checksum._batches.get(1));
+		Collections.sort(children);
+		assertEquals(Arrays.asList("/docs/a.txt", "/docs/b.txt"), children);
+	}
+
+	@Test
+	public void testPropReturnsProviderValuesAndUnknownAsNotFound() throws Exception {
+		String body = propfind("<D:prop><T:checksum/><T:length/><T:missing/></D:prop>");
+
+		assertTrue(body, body.contains("<ns0:checksum xmlns:ns0=\"" + NS + "\">sum:/docs/a.txt</ns0:checksum>\n"
+				+ "<ns0:length xmlns:ns0=\"" + NS + "\">5</ns0:length>"));
+		// the folder has no length
+		assertTrue(body, body.contains("<ns:length xmlns:ns=\"" + NS + "\"/><ns:missing xmlns:ns=\"" + NS + "\"/>"));
+	}
+
+	@Test
+	public void testPropnameListsProviders() throws Exception {
+		String body = propfind("<D:propname/>");
+
+		assertTrue(body, body.contains("<ns0:length xmlns:ns0=\"" + NS + "\"/><ns0:checksum xmlns:ns0=\"" + NS + "\"/>"));
+		assertTrue(_checksum._batches.isEmpty());
+	}
+
+	private String propfind(String content) throws Exception {
+		byte[] requestBody = null;
+		if (content != null) {
+			requestBody = ("<?xml version=\"1.0\" encoding=\"utf-8\" ?><D:propfind xmlns:D=\"DAV:\" xmlns:T=\"" + NS
+					+ "\">" + content + "</D:propfind>").getBytes(StandardCharsets.UTF_8);
+		}
+		StubRequest stub = new StubRequest("/docs", requestBody).header(HttpHeaders.DEPTH, "1");
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(null);
+		_doPropfind.execute(new RequestContext(transaction, stub.proxy(), response.proxy()));
+		_store.commit(transaction);
+		assertEquals(207, response.getStatus());
+		return response.getBody();
+	}
+
+	/**
+	 * Free property: the length of a file, taken from the StoredObject
+	 */
+	private static class LengthProvider extends AbstractPropertyProvider {
+
+		LengthProvider() {
+			super(NS, "length", IPropertyProvider.Cost.FREE);
+		}
+
+		public String getValue(ITransaction transaction, String path, StoredObject so) {
+			return so.isFolder() ? null : String.valueOf(so.getResourceLength());
+		}
+	}
+
+	/**
+	 * I/O bound property that records the batches it is asked for
+	 */
+	private static class ChecksumProvider extends AbstractPropertyProvider {
+
+		private final List<List<String>> _batches = new ArrayList<List<String>>();
+
+		ChecksumProvider() {
+			super(NS, "checksum", IPropertyProvider.Cost.IO);
+		}
+
+		public String getValue(ITransaction transaction, String path, StoredObject so) {
+			throw new UnsupportedOperationException("checksums are computed in batches");
+		}
+
+		@Override
+		public Map<String, String> getValues(ITransaction transaction, String[] paths) {
+			_batches.add(Arrays.asList(paths));
+			Map<String, String> values = new HashMap<String, String>();
+			for (String path : paths) {
+				values.put(path, "sum:" + path);
+			}
+			return values;
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package nl.ellipsis.webdav.server.methods;
 
+import java.io.ByteArrayInputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -8,6 +10,7 @@ import javax.servlet.http.HttpServletResponse;
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.IMimeTyper;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -21,6 +24,7 @@ import org.jmock.Expectations;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.DelegatingServletInputStream;
 
 public class DoPropfindTest extends MockTest {
 	static IWebDAVStore mockStore;
@@ -71,6 +75,9 @@ public class DoPropfindTest extends MockTest {
 				will(returnValue(0));
 				// no content, which means it is a all-prop request
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT);
+				will(returnValue(null));
+
 				oneOf(mockRes).setStatus(HttpStatus.MULTI_STATUS.value());
 
 				oneOf(mockRes).setContentType("text/xml; charset=UTF-8");
@@ -78,9 +85,6 @@ public class DoPropfindTest extends MockTest {
 				oneOf(mockRes).getWriter();
 				will(returnValue(pw));
 
-				oneOf(mockStore).getStoredObject(mockTransaction, path);
-				will(returnValue(rootSo));
-
 				oneOf(mockReq).getContextPath();
 				will(returnValue(""));
 
@@ -101,9 +105,6 @@ public class DoPropfindTest extends MockTest {
 				oneOf(mockReq).getServletPath();
 				will(returnValue(path));
 
-				oneOf(mockStore).getChildrenNames(mockTransaction, URLUtil.getCleanPath(path,"file1"));
-				will(returnValue(new String[] {}));
-
 				StoredObject file2So = initFileStoredObject(resourceContent);
 
 				oneOf(mockStore).getStoredObject(mockTransaction, path + "file2");
@@ -114,14 +115,11 @@ public class DoPropfindTest extends MockTest {
 
 				oneOf(mockReq).getServletPath();
 				will(returnValue(path));
-
-				oneOf(mockStore).getChildrenNames(mockTransaction, path + "file2");
-				will(returnValue(new String[] {}));
 			}
 		});
 
 		DoPropfind doPropfind = new DoPropfind(mockStore, new ResourceLocks(), mockMimeTyper);
-		doPropfind.execute(mockTransaction, mockReq, mockRes);
+		doPropfind.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -158,6 +156,9 @@ public class DoPropfindTest extends MockTest {
 				will(returnValue(0));
 				// no content, which means it is a allprop request
 
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT);
+				will(returnValue(null));
+
 				oneOf(mockRes).setStatus(HttpStatus.MULTI_STATUS.value());
 
 				oneOf(mockRes).setContentType("text/xml; charset=UTF-8");
@@ -165,9 +166,62 @@ public class DoPropfindTest extends MockTest {
 				oneOf(mockRes).getWriter();
 				will(returnValue(pw));
 
+				oneOf(mockReq).getContextPath();
+				will(returnValue(""));
+
+				oneOf(mockReq).getServletPath();
+				will(returnValue("/"));
+			}
+		});
+
+		DoPropfind doPropfind = new DoPropfind(mockStore, new ResourceLocks(), mockMimeTyper);
+
+		doPropfind.execute(new RequestContext(mockTransaction, mockReq, mockRes));
+
+		_mockery.assertIsSatisfied();
+	}
+
+	@Test
+	public void doPropFindOnFileAsJSON() throws Exception {
+		final String path = "/folder/testFile";
+
+		final StringWriter sw = new StringWriter();
+		final PrintWriter pw = new PrintWriter(sw);
+		final StoredObject fileSo = initFileStoredObject(resourceContent);
+
+		_mockery.checking(new Expectations() {
+			{
+				oneOf(mockReq).getAttribute(WebDAVConstants.HttpRequestParam.INCLUDE_PATH_INFO);
+				will(returnValue(null));
+
+				oneOf(mockReq).getPathInfo();
+				will(returnValue(path));
+
+				oneOf(mockReq).getHeader(HttpHeaders.DEPTH);
+				will(returnValue("0"));
+
 				oneOf(mockStore).getStoredObject(mockTransaction, path);
 				will(returnValue(fileSo));
 
+				oneOf(mockReq).getAttribute(WebDAVConstants.HttpRequestParam.INCLUDE_PATH_INFO);
+				will(returnValue(null));
+
+				oneOf(mockReq).getPathInfo();
+				will(returnValue(path));
+
+				oneOf(mockReq).getContentLength();
+				will(returnValue(0));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT);
+				will(returnValue("application/json, text/xml;q=0.5"));
+
+				oneOf(mockRes).setStatus(HttpServletResponse.SC_OK);
+
+				oneOf(mockRes).setContentType(WebDAVConstants.CONTENTTYPE_JSON_UTF8);
+
+				oneOf(mockRes).getWriter();
+				will(returnValue(pw));
+
 				oneOf(mockReq).getContextPath();
 				will(returnValue(""));
 
@@ -178,7 +232,12 @@ public class DoPropfindTest extends MockTest {
 
 		DoPropfind doPropfind = new DoPropfind(mockStore, new ResourceLocks(), mockMimeTyper);
 
-		doPropfind.execute(mockTransaction, mockReq, mockRes);
+		doPropfind.execute(new RequestContext(mockTransaction, mockReq, mockRes));
+
+		String expected = "[\n{\"href\":\"/folder/testFile\",\"name\":\"testFile\",\"collection\":false,\"mtime\":"
+				+ fileSo.getLastModified().getTime() + ",\"size\":" + resourceContent.length + ",\"etag\":\""
+				+ AbstractMethod.getETag(fileSo).replace("\"", "\\\"") + "\"}\n]\n";
+		assertEquals(expected, sw.toString());
 
 		_mockery.assertIsSatisfied();
 	}
@@ -214,9 +273,241 @@ public class DoPropfindTest extends MockTest {
 
 		DoPropfind doPropfind = new DoPropfind(mockStore, new ResourceLocks(), mockMimeTyper);
 
-		doPropfind.execute(mockTransaction, mockReq, mockRes);
+		doPropfind.execute(new RequestContext(mockTransaction, mockReq, mockRes));
+
+		_mockery.assertIsSatisfied();
+	}
+
+
+	@Test
+	public void doPropFindInfinityRejectedByPolicy() throws Exception {
+		final String path = "/";
+
+		final StringWriter sw = new StringWriter();
+		final PrintWriter pw = new PrintWriter(sw);
+
+		_mockery.checking(new Expectations() {
+			{
+				oneOf(mockReq).getAttribute(WebDAVConstants.HttpRequestParam.INCLUDE_PATH_INFO);
+				will(returnValue(null));
+
+				oneOf(mockReq).getPathInfo();
+				will(returnValue(path));
+
+				oneOf(mockReq).getHeader(HttpHeaders.DEPTH);
+				will(returnValue("infinity"));
+
+				oneOf(mockRes).setStatus(HttpServletResponse.SC_FORBIDDEN);
+
+				oneOf(mockRes).setContentType("text/xml; charset=UTF-8");
+
+				oneOf(mockRes).getWriter();
+				will(returnValue(pw));
+			}
+		});
+
+		DoPropfind doPropfind = new DoPropfind(mockStore, new ResourceLocks(), mockMimeTyper,
+				new PropfindPolicy(true, -1, 0));
+
+		doPropfind.execute(new RequestContext(mockTransaction, mockReq, mockRes));
+
+		assertTrue(sw.toString().contains("<D:error xmlns:D=\"DAV:\"><D:propfind-finite-depth/></D:error>"));
+		assertEquals(0, doPropfind.getRequestCount());
 
 		_mockery.assertIsSatisfied();
 	}
 
+	@Test
+	public void doPropFindInfinityCappedByPolicy() throws Exception {
+		final String path = "/";
+
+		final StringWriter sw = new StringWriter();
+		final PrintWriter pw = new PrintWriter(sw);
+
+		_mockery.checking(new Expectations() {
+			{
+				exactly(2).of(mockReq).getAttribute(WebDAVConstants.HttpRequestParam.INCLUDE_PATH_INFO);
+				will(returnValue(null));
+
+				exactly(2).of(mockReq).getPathInfo();
+				will(returnValue(path));
+
+				oneOf(mockReq).getHeader(HttpHeaders.DEPTH);
+				will(returnValue("infinity"));
+
+				StoredObject rootSo = initFolderStoredObject();
+
+				oneOf(mockStore).getStoredObject(mockTransaction, path);
+				will(returnValue(rootSo));
+
+				oneOf(mockReq).getContentLength();
+				will(returnValue(0));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT);
+				will(returnValue(null));
+
+				oneOf(mockRes).setStatus(HttpStatus.MULTI_STATUS.value());
+
+				oneOf(mockRes).setContentType("text/xml; charset=UTF-8");
+
+				oneOf(mockRes).getWriter();
+				will(returnValue(pw));
+
+				oneOf(mockStore).getChildrenNames(mockTransaction, path);
+				will(returnValue(new String[] { "folder" }));
+
+				// depth is capped to 1, the children of folder are not listed
+				oneOf(mockStore).getStoredObject(mockTransaction, "/folder");
+				will(returnValue(initFolderStoredObject()));
+
+				exactly(2).of(mockReq).getContextPath();
+				will(returnValue(""));
+
+				exactly(2).of(mockReq).getServletPath();
+				will(returnValue(path));
+			}
+		});
+
+		DoPropfind doPropfind = new DoPropfind(mockStore, new ResourceLocks(), mockMimeTyper,
+				new PropfindPolicy(false, 1, 0));
+
+		doPropfind.execute(new RequestContext(mockTransaction, mockReq, mockRes));
+
+		assertTrue(sw.toString().contains("<D:href>/folder/</D:href>"));
+		assertEquals(2, doPropfind.getEntriesVisited());
+
+		_mockery.assertIsSatisfied();
+	}
+
+	@Test
+	public void doPropFindTruncatedByPolicy() throws Exception {
+		final String path = "/";
+
+		final StringWriter sw = new StringWriter();
+		final PrintWriter pw = new PrintWriter(sw);
+
+		_mockery.checking(new Expectations() {
+			{
+				exactly(2).of(mockReq).getAttribute(WebDAVConstants.HttpRequestParam.INCLUDE_PATH_INFO);
+				will(returnValue(null));
+
+				exactly(2).of(mockReq).getPathInfo();
+				will(returnValue(path));
+
+				oneOf(mockReq).getHeader(HttpHeaders.DEPTH);
+				will(returnValue("1"));
+
+				StoredObject rootSo = initFolderStoredObject();
+
+				oneOf(mockStore).getStoredObject(mockTransaction, path);
+				will(returnValue(rootSo));
+
+				oneOf(mockReq).getContentLength();
+				will(returnValue(0));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT);
+				will(returnValue(null));
+
+				oneOf(mockRes).setStatus(HttpStatus.MULTI_STATUS.value());
+
+				oneOf(mockRes).setContentType("text/xml; charset=UTF-8");
+
+				oneOf(mockRes).getWriter();
+				will(returnValue(pw));
+
+				oneOf(mockStore).getChildrenNames(mockTransaction, path);
+				will(returnValue(new String[] { "file1", "file2", "file3" }));
+
+				// the limit is reached before file2 is looked up
+				oneOf(mockStore).getStoredObject(mockTransaction, "/file1");
+				will(returnValue(initFileStoredObject(resourceContent)));
+
+				exactly(3).of(mockReq).getContextPath();
+				will(returnValue(""));
+
+				exactly(3).of(mockReq).getServletPath();
+				will(returnValue(path));
+			}
+		});
+
+		DoPropfind doPropfind = new DoPropfind(mockStore, new ResourceLocks(), mockMimeTyper,
+				new PropfindPolicy(false, -1, 2));
+
+		doPropfind.execute(new RequestContext(mockTransaction, mockReq, mockRes));
+
+		String body = sw.toString();
+		assertTrue(body.contains("<D:href>/file1</D:href>"));
+		assertFalse(body.contains("file2"));
+		assertTrue(body.endsWith("<D:response><D:href>/</D:href>\n<D:status>HTTP/1.1 507 Insufficient Storage</D:status>\n"
+				+ "</D:response>\n</D:multistatus>\n"));
+		assertEquals(1, doPropfind.getTruncatedCount());
+
+		_mockery.assertIsSatisfied();
+	}
+
+	@Test
+	public void doPropFindByPropertyOnlyEvaluatesRequestedProperties() throws Exception {
+		final String path = "/testFile";
+
+		final StringWriter sw = new StringWriter();
+		final PrintWriter pw = new PrintWriter(sw);
+		// no dates or mime type, these must not be evaluated
+		final StoredObject fileSo = initFileStoredObject(resourceContent);
+		fileSo.setCreationDate(null);
+		fileSo.setLastModified(null);
+		fileSo.setMimeType(null);
+
+		final byte[] propfind = ("<?xml version=\"1.0\" encoding=\"utf-8\" ?>"
+				+ "<D:propfind xmlns:D=\"DAV:\"><D:prop><D:resourcetype/><D:displayname/><D:quota/></D:prop></D:propfind>")
+						.getBytes("UTF-8");
+
+		_mockery.checking(new Expectations() {
+			{
+				exactly(2).of(mockReq).getAttribute(WebDAVConstants.HttpRequestParam.INCLUDE_PATH_INFO);
+				will(returnValue(null));
+
+				exactly(2).of(mockReq).getPathInfo();
+				will(returnValue(path));
+
+				oneOf(mockReq).getHeader(HttpHeaders.DEPTH);
+				will(returnValue("0"));
+
+				oneOf(mockStore).getStoredObject(mockTransaction, path);
+				will(returnValue(fileSo));
+
+				oneOf(mockReq).getContentLength();
+				will(returnValue(propfind.length));
+
+				oneOf(mockReq).getInputStream();
+				will(returnValue(new DelegatingServletInputStream(new ByteArrayInputStream(propfind))));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.ACCEPT);
+				will(returnValue(null));
+
+				oneOf(mockRes).setStatus(HttpStatus.MULTI_STATUS.value());
+
+				oneOf(mockRes).setContentType("text/xml; charset=UTF-8");
+
+				oneOf(mockRes).getWriter();
+				will(returnValue(pw));
+
+				oneOf(mockReq).getContextPath();
+				will(returnValue(""));
+
+				oneOf(mockReq).getServletPath();
+				will(returnValue("/"));
+			}
+		});
+
+		DoPropfind doPropfind = new DoPropfind(mockStore, new ResourceLocks(), mockMimeTyper);
+
+		doPropfind.execute(new RequestContext(mockTransaction, mockReq, mockRes));
+
+		String body = sw.toString();
+		assertTrue(body, body.contains("<D:prop><D:resourcetype/><D:displayname>testFile</D:displayname>"));
+		assertTrue(body, body.contains("<D:prop><D:quota/></D:prop>\n<D:status>HTTP/1.1 404 Not Found</D:status>"));
+		assertFalse(body, body.contains("getlastmodified"));
+
+		_mockery.assertIsSatisfied();
+	}
 }
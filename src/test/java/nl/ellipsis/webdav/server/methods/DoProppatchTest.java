@@ -9,6 +9,7 @@ import javax.servlet.http.HttpServletResponse;
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.IMimeTyper;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -60,7 +61,7 @@ public class DoProppatchTest extends MockTest {
 
 		DoProppatch doProppatch = new DoProppatch(mockStore, new ResourceLocks(), readOnly);
 
-		doProppatch.execute(mockTransaction, mockReq, mockRes);
+		doProppatch.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -89,7 +90,7 @@ public class DoProppatchTest extends MockTest {
 
 		DoProppatch doProppatch = new DoProppatch(mockStore, new ResourceLocks(), !readOnly);
 
-		doProppatch.execute(mockTransaction, mockReq, mockRes);
+		doProppatch.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -130,7 +131,7 @@ public class DoProppatchTest extends MockTest {
 
 		DoProppatch doProppatch = new DoProppatch(mockStore, new ResourceLocks(), !readOnly);
 
-		doProppatch.execute(mockTransaction, mockReq, mockRes);
+		doProppatch.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -183,7 +184,7 @@ public class DoProppatchTest extends MockTest {
 
 		DoProppatch doProppatch = new DoProppatch(mockStore, new ResourceLocks(), !readOnly);
 
-		doProppatch.execute(mockTransaction, mockReq, mockRes);
+		doProppatch.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -7,6 +7,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -60,7 +61,7 @@ public class DoPutTest extends MockTest {
 		});
 
 		DoPut doPut = new DoPut(mockStore, new ResourceLocks(), readOnly, lazyFolderCreationOnPut);
-		doPut.execute(mockTransaction, mockReq, mockRes);
+		doPut.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -79,6 +80,33 @@ public class DoPutTest extends MockTest {
 				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.USER_AGENT);
 				will(returnValue("Goliath agent"));
 
+				oneOf(mockReq).getHeader("Expect");
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_CONTENT_MD5);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_DIGEST);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_REPR_DIGEST);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(ChunkedUploads.HEADER_CONTENT_RANGE);
+				will(returnValue(null));
+
 				StoredObject parentSo = initFolderStoredObject();
 
 				oneOf(mockStore).getStoredObject(mockTransaction, parentPath);
@@ -110,7 +138,7 @@ public class DoPutTest extends MockTest {
 		});
 
 		DoPut doPut = new DoPut(mockStore, new ResourceLocks(), !readOnly, lazyFolderCreationOnPut);
-		doPut.execute(mockTransaction, mockReq, mockRes);
+		doPut.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -137,6 +165,33 @@ public class DoPutTest extends MockTest {
 				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.USER_AGENT);
 				will(returnValue("Transmit agent"));
 
+				oneOf(mockReq).getHeader("Expect");
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_CONTENT_MD5);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_DIGEST);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_REPR_DIGEST);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(ChunkedUploads.HEADER_CONTENT_RANGE);
+				will(returnValue(null));
+
 				StoredObject parentSo = null;
 
 				oneOf(mockStore).getStoredObject(mockTransaction, parentPath);
@@ -154,7 +209,7 @@ public class DoPutTest extends MockTest {
 		});
 
 		DoPut doPut = new DoPut(mockStore, new ResourceLocks(), !readOnly, !lazyFolderCreationOnPut);
-		doPut.execute(mockTransaction, mockReq, mockRes);
+		doPut.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -173,6 +228,33 @@ public class DoPutTest extends MockTest {
 				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.USER_AGENT);
 				will(returnValue("WebDAVFS/1.5.0 (01500000) ....."));
 
+				oneOf(mockReq).getHeader("Expect");
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_CONTENT_MD5);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_DIGEST);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_REPR_DIGEST);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(ChunkedUploads.HEADER_CONTENT_RANGE);
+				will(returnValue(null));
+
 				StoredObject parentSo = null;
 
 				oneOf(mockStore).getStoredObject(mockTransaction, parentPath);
@@ -204,7 +286,7 @@ public class DoPutTest extends MockTest {
 		});
 
 		DoPut doPut = new DoPut(mockStore, new ResourceLocks(), !readOnly, lazyFolderCreationOnPut);
-		doPut.execute(mockTransaction, mockReq, mockRes);
+		doPut.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -223,6 +305,33 @@ public class DoPutTest extends MockTest {
 				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.USER_AGENT);
 				will(returnValue("WebDAVFS/1.5.0 (01500000) ....."));
 
+				oneOf(mockReq).getHeader("Expect");
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_CONTENT_MD5);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_DIGEST);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_REPR_DIGEST);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(ChunkedUploads.HEADER_CONTENT_RANGE);
+				will(returnValue(null));
+
 				StoredObject parentSo = initFileStoredObject(resourceContent);
 
 				oneOf(mockStore).getStoredObject(mockTransaction, parentPath);
@@ -233,7 +342,7 @@ public class DoPutTest extends MockTest {
 		});
 
 		DoPut doPut = new DoPut(mockStore, new ResourceLocks(), !readOnly, lazyFolderCreationOnPut);
-		doPut.execute(mockTransaction, mockReq, mockRes);
+		doPut.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -347,6 +456,33 @@ public class DoPutTest extends MockTest {
 				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.USER_AGENT);
 				will(returnValue("Transmit agent"));
 
+				oneOf(mockReq).getHeader("Expect");
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(javax.ws.rs.core.HttpHeaders.IF_UNMODIFIED_SINCE);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_CONTENT_MD5);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_DIGEST);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(UploadDigests.HEADER_REPR_DIGEST);
+				will(returnValue(null));
+
+				oneOf(mockReq).getHeader(ChunkedUploads.HEADER_CONTENT_RANGE);
+				will(returnValue(null));
+
 				oneOf(mockResourceLocks).getLockedObjectByPath(mockTransaction, parentPath);
 				will(returnValue(parentLo));
 
@@ -408,10 +544,10 @@ public class DoPutTest extends MockTest {
 		});
 
 		DoLock doLock = new DoLock(mockStore, mockResourceLocks, !readOnly);
-		doLock.execute(mockTransaction, mockReq, mockRes);
+		doLock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		DoPut doPut = new DoPut(mockStore, mockResourceLocks, !readOnly, lazyFolderCreationOnPut);
-		doPut.execute(mockTransaction, mockReq, mockRes);
+		doPut.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -0,0 +1,206 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.HttpHeaders;
+import nl.ellipsis.webdav.server.ChangeLog;
+import nl.ellipsis.webdav.server.IMethodExecutor;
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.ObservableStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class DoReportTest {
+
+	private static final Pattern SYNC_TOKEN = Pattern.compile("<D:sync-token>([^<]*)</D:sync-token>");
+
+	private File _root;
+	private ObservableStore _store;
+	private ResourceLocks _resourceLocks;
+	private DoReport _doReport;
+	private DoPut _doPut;
+	private DoDelete _doDelete;
+	private DoMkcol _doMkcol;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("report").toFile();
+		File docs = new File(_root, "docs");
+		docs.mkdir();
+		new File(docs, "sub").mkdir();
+		for (String name : new String[] { "a.txt", "b.txt" }) {
+			FileOutputStream fos = new FileOutputStream(new File(docs, name));
+			fos.write(name.getBytes(StandardCharsets.UTF_8));
+			fos.close();
+		}
+
+		_store = new ObservableStore(new LocalFileSystemStore(_root));
+		ChangeLog changeLog = new ChangeLog(100);
+		_store.addListener(changeLog);
+		_resourceLocks = new ResourceLocks();
+
+		IMimeTyper mimeTyper = new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return "text/plain";
+			}
+		};
+		DoPropfind doPropfind = new DoPropfind(_store, _resourceLocks, mimeTyper);
+		_doReport = new DoReport(_store, _resourceLocks, changeLog, doPropfind);
+		_doPut = new DoPut(_store, _resourceLocks, false, false);
+		_doDelete = new DoDelete(_store, _resourceLocks, false);
+		_doMkcol = new DoMkcol(_store, _resourceLocks, false);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testInitialSyncListsMembers() throws Exception {
+		RecordingResponse response = report("/docs", "", "1", 0);
+
+		assertEquals(207, response.getStatus());
+		String body = response.getBody();
+		assertEquals(3, countResponses(body));
+		assertTrue(body, body.contains("<D:href>/webdav/docs/a.txt</D:href>"));
+		assertTrue(body, body.contains("<D:href>/webdav/docs/sub/</D:href>"));
+		assertTrue(body, body.contains("<D:getcontentlength>5</D:getcontentlength>"));
+		assertNotNull(getToken(body));
+	}
+
+	@Test
+	public void testChangesSinceToken() throws Exception {
+		String token = getToken(report("/docs", "", "1", 0).getBody());
+
+		perform(_doPut, new StubRequest("/docs/c.txt", "new".getBytes(StandardCharsets.UTF_8)));
+		perform(_doDelete, new StubRequest("/docs/a.txt", null));
+		perform(_doMkcol, new StubRequest("/docs/sub/deeper", null));
+
+		RecordingResponse response = report("/docs", token, "1", 0);
+		assertEquals(207, response.getStatus());
+		String body = response.getBody();
+		// the folder created in sub is not a member
+		assertEquals(2, countResponses(body));
+		assertTrue(body, body.contains("<D:href>/webdav/docs/c.txt</D:href>\n<D:propstat>"));
+		assertTrue(body, body.contains("<D:getcontentlength>3</D:getcontentlength>"));
+		assertTrue(body, body.contains("<D:href>/webdav/docs/a.txt</D:href>\n<D:status>HTTP/1.1 404 Not Found</D:status>"));
+
+		String next = getToken(body);
+		assertFalse(token.equals(next));
+		assertEquals(0, countResponses(report("/docs", next, "1", 0).getBody()));
+
+		// the infinite level includes the folder created in sub
+		body = report("/docs", token, "infinite", 0).getBody();
+		assertEquals(3, countResponses(body));
+		assertTrue(body, body.contains("<D:href>/webdav/docs/sub/deeper/</D:href>"));
+	}
+
+	@Test
+	public void testLimitedReportContinuesWithNextToken() throws Exception {
+		String token = getToken(report("/docs", "", "1", 0).getBody());
+		for (String name : new String[] { "c.txt", "d.txt", "e.txt" }) {
+			perform(_doPut, new StubRequest("/docs/" + name, name.getBytes(StandardCharsets.UTF_8)));
+		}
+
+		String body = report("/docs", token, "1", 2).getBody();
+		assertTrue(body, body.contains("<D:href>/webdav/docs</D:href>\n<D:status>HTTP/1.1 507 Insufficient Storage</D:status>"));
+		assertTrue(body, body.contains("/docs/c.txt"));
+		assertTrue(body, body.contains("/docs/d.txt"));
+		assertFalse(body, body.contains("/docs/e.txt"));
+
+		body = report("/docs", getToken(body), "1", 2).getBody();
+		assertEquals(1, countResponses(body));
+		assertTrue(body, body.contains("/docs/e.txt"));
+	}
+
+	@Test
+	public void testInitialSyncOverTheLimitIsRejected() throws Exception {
+		RecordingResponse response = report("/docs", "", "1", 2);
+		assertEquals(507, response.getStatus());
+		assertTrue(response.getBody(), response.getBody().contains("<D:number-of-matches-within-limits/>"));
+
+		assertEquals(3, countResponses(report("/docs", "", "1", 3).getBody()));
+		perform(_doPut, new StubRequest("/docs/sub/c.txt", "c".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(3, countResponses(report("/docs", "", "1", 3).getBody()));
+		assertEquals(507, report("/docs", "", "infinite", 3).getStatus());
+	}
+
+	@Test
+	public void testReportIsAllowedOnFolders() throws Exception {
+		DoOptions doOptions = new DoOptions(_store, _resourceLocks);
+		doOptions.setSyncCollection(true);
+		assertTrue(perform(doOptions, new StubRequest("/docs", null)).getHeader("Allow").endsWith(", REPORT"));
+		assertFalse(perform(doOptions, new StubRequest("/docs/a.txt", null)).getHeader("Allow").contains("REPORT"));
+	}
+
+	@Test
+	public void testUnknownTokenIsRejected() throws Exception {
+		RecordingResponse response = report("/docs", "http://example.com/ns/sync/1", "1", 0);
+
+		assertEquals(403, response.getStatus());
+		assertTrue(response.getBody(), response.getBody().contains("<D:valid-sync-token/>"));
+	}
+
+	@Test
+	public void testRolledBackChangesAreNotReported() throws Exception {
+		String token = getToken(report("/docs", "", "1", 0).getBody());
+
+		ITransaction transaction = _store.begin(null);
+		_store.createFolder(transaction, "/docs/rolledback");
+		_store.rollback(transaction);
+
+		assertEquals(0, countResponses(report("/docs", token, "1", 0).getBody()));
+	}
+
+	@Test
+	public void testReportOnResourceIsNotSupported() throws Exception {
+		RecordingResponse response = report("/docs/a.txt", "", "1", 0);
+
+		assertEquals(403, response.getStatus());
+		assertTrue(response.getBody(), response.getBody().contains("<D:supported-report/>"));
+	}
+
+	private RecordingResponse report(String path, String token, String level, int limit) throws Exception {
+		String content = "<?xml version=\"1.0\" encoding=\"utf-8\" ?><D:sync-collection xmlns:D=\"DAV:\">"
+				+ "<D:sync-token>" + token + "</D:sync-token><D:sync-level>" + level + "</D:sync-level>"
+				+ (limit > 0 ? "<D:limit><D:nresults>" + limit + "</D:nresults></D:limit>" : "")
+				+ "<D:prop><D:getcontentlength/></D:prop></D:sync-collection>";
+		StubRequest stub = new StubRequest(path, content.getBytes(StandardCharsets.UTF_8)).header(HttpHeaders.DEPTH, "0");
+		return perform(_doReport, stub);
+	}
+
+	private RecordingResponse perform(IMethodExecutor executor, StubRequest stub) throws Exception {
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(null);
+		executor.execute(new RequestContext(transaction, stub.proxy(), response.proxy()));
+		_store.commit(transaction);
+		return response;
+	}
+
+	private static int countResponses(String body) {
+		return body.split("<D:response>", -1).length - 1;
+	}
+
+	private static String getToken(String body) {
+		Matcher matcher = SYNC_TOKEN.matcher(body);
+		assertTrue(body, matcher.find());
+		return matcher.group(1);
+	}
+}
@@ -8,6 +8,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import nl.ellipsis.webdav.HttpHeaders;
 import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.RequestContext;
 import nl.ellipsis.webdav.server.IWebDAVStore;
 import nl.ellipsis.webdav.server.StoredObject;
 import nl.ellipsis.webdav.server.WebDAVConstants;
@@ -61,7 +62,7 @@ public class DoUnlockTest extends MockTest {
 
 		DoUnlock doUnlock = new DoUnlock(mockStore, new ResourceLocks(), readOnly);
 
-		doUnlock.execute(mockTransaction, mockReq, mockRes);
+		doUnlock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -101,7 +102,7 @@ public class DoUnlockTest extends MockTest {
 
 		DoUnlock doUnlock = new DoUnlock(mockStore, resLocks, !readOnly);
 
-		doUnlock.execute(mockTransaction, mockReq, mockRes);
+		doUnlock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -135,7 +136,7 @@ public class DoUnlockTest extends MockTest {
 		});
 
 		DoUnlock doUnlock = new DoUnlock(mockStore, resLocks, !readOnly);
-		doUnlock.execute(mockTransaction, mockReq, mockRes);
+		doUnlock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -164,7 +165,7 @@ public class DoUnlockTest extends MockTest {
 
 		DoUnlock doUnlock = new DoUnlock(mockStore, resLocks, !readOnly);
 
-		doUnlock.execute(mockTransaction, mockReq, mockRes);
+		doUnlock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 	}
@@ -313,10 +314,10 @@ public class DoUnlockTest extends MockTest {
 		});
 
 		DoLock doLock = new DoLock(mockStore, mockResourceLocks, !readOnly);
-		doLock.execute(mockTransaction, mockReq, mockRes);
+		doLock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		DoUnlock doUnlock = new DoUnlock(mockStore, mockResourceLocks, !readOnly);
-		doUnlock.execute(mockTransaction, mockReq, mockRes);
+		doUnlock.execute(new RequestContext(mockTransaction, mockReq, mockRes));
 
 		_mockery.assertIsSatisfied();
 
@@ -0,0 +1,130 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class ExpectContinueTest {
+
+	private static final byte[] CONTENT = "a large body".getBytes(StandardCharsets.UTF_8);
+
+	private File _root;
+	private File _parts;
+	private LocalFileSystemStore _store;
+	private ResourceLocks _resourceLocks;
+	private ChunkedUploads _chunkedUploads;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("expect-continue").toFile();
+		_parts = Files.createTempDirectory("expect-continue-parts").toFile();
+		FileUtils.writeStringToFile(new File(_root, "docs/old.txt"), "old", StandardCharsets.UTF_8);
+		_store = new LocalFileSystemStore(_root);
+		_resourceLocks = new ResourceLocks();
+		_chunkedUploads = new ChunkedUploads(_parts, TimeUnit.DAYS.toMillis(1));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_chunkedUploads.shutdown();
+		_store.destroy();
+		FileUtils.deleteDirectory(_root);
+		FileUtils.deleteDirectory(_parts);
+	}
+
+	@Test
+	public void testRejectionsDoNotAskForTheBody() throws Exception {
+		// no parent collection
+		BodyTrackingRequest request = new BodyTrackingRequest("/missing/new.txt");
+		assertEquals(409, put(request).getStatus());
+		assertFalse(request._bodyRequested);
+
+		// failed precondition
+		request = new BodyTrackingRequest("/docs/old.txt");
+		request.header("If-Match", "\"other\"");
+		assertEquals(412, put(request).getStatus());
+		assertFalse(request._bodyRequested);
+
+		// part that does not fit its Content-Range
+		request = new BodyTrackingRequest("/docs/new.txt");
+		request.header("Content-Range", "bytes 0-99/200");
+		assertEquals(400, put(request).getStatus());
+		assertFalse(request._bodyRequested);
+
+		// locked by someone else
+		ITransaction transaction = _store.begin(null);
+		assertTrue(_resourceLocks.exclusiveLock(transaction, "/docs/old.txt", "someone else", 0, 60));
+		_store.commit(transaction);
+		request = new BodyTrackingRequest("/docs/old.txt");
+		assertEquals(423, put(request).getStatus());
+		assertFalse(request._bodyRequested);
+
+		assertEquals("old", FileUtils.readFileToString(new File(_root, "docs/old.txt"), StandardCharsets.UTF_8));
+		assertFalse(new File(_root, "docs/new.txt").exists());
+	}
+
+	@Test
+	public void testAcceptedRequestReadsTheBody() throws Exception {
+		BodyTrackingRequest request = new BodyTrackingRequest("/docs/new.txt");
+		assertEquals(201, put(request).getStatus());
+		assertTrue(request._bodyRequested);
+		assertArrayEquals(CONTENT, FileUtils.readFileToByteArray(new File(_root, "docs/new.txt")));
+	}
+
+	@Test
+	public void testUnknownExpectationFails() throws Exception {
+		BodyTrackingRequest request = new BodyTrackingRequest("/docs/new.txt");
+		request.header("Expect", "something-else");
+		assertEquals(417, put(request).getStatus());
+		assertFalse(request._bodyRequested);
+		assertFalse(AbstractMethod.isExpectContinue(request.proxy()));
+		assertTrue(AbstractMethod.isExpectContinue(new StubRequest("/", null).header("Expect", "100-Continue").proxy()));
+	}
+
+	private RecordingResponse put(StubRequest request) throws Exception {
+		DoPut doPut = new DoPut(_store, _resourceLocks, false, false, _chunkedUploads);
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(null);
+		doPut.execute(new RequestContext(transaction, request.proxy(), response.proxy()));
+		_store.commit(transaction);
+		return response;
+	}
+
+	/**
+	 * Keeps track of the first read, where the container would send 100
+	 * Continue
+	 */
+	private static class BodyTrackingRequest extends StubRequest {
+
+		private volatile boolean _bodyRequested = false;
+
+		BodyTrackingRequest(String path) {
+			super(path, CONTENT);
+			header("Expect", "100-continue");
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (method.getName().equals("getInputStream")) {
+				_bodyRequested = true;
+			}
+			return super.invoke(proxy, method, args);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class FolderArchiveTest {
+
+	private File _root;
+	private LocalFileSystemStore _store;
+	private DoGet _doGet;
+	private byte[] _repetitive;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("folder-archive").toFile();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append("the same line again\n");
+		}
+		_repetitive = sb.toString().getBytes(StandardCharsets.UTF_8);
+		FileUtils.writeByteArrayToFile(new File(_root, "docs/b.txt"), _repetitive);
+		FileUtils.writeByteArrayToFile(new File(_root, "docs/a.jpg"), _repetitive);
+		FileUtils.writeByteArrayToFile(new File(_root, "docs/sub/c.txt"), "c".getBytes(StandardCharsets.UTF_8));
+		new File(_root, "docs/empty").mkdirs();
+		_store = new LocalFileSystemStore(_root);
+		IMimeTyper mimeTyper = new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return path.endsWith(".jpg") ? "image/jpeg" : "text/plain";
+			}
+		};
+		_doGet = new DoGet(_store, null, null, new ResourceLocks(), mimeTyper, 1);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testCollectionIsStreamedAsZip() throws Exception {
+		RecordingResponse response = get(new StubRequest("/docs", new byte[0]).parameter("format", "zip"));
+
+		assertEquals("attachment; filename=\"docs.zip\"; filename*=UTF-8''docs.zip",
+				response.getHeader("Content-Disposition"));
+		File archive = new File(_root, "docs.zip");
+		FileUtils.writeByteArrayToFile(archive, response.getBodyBytes());
+		ZipFile zip = new ZipFile(archive);
+		try {
+			List<String> names = new ArrayList<String>();
+			for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+				names.add(e.nextElement().getName());
+			}
+			assertEquals(Arrays.asList("docs/", "docs/a.jpg", "docs/b.txt", "docs/empty/", "docs/sub/",
+					"docs/sub/c.txt"), names);
+
+			ZipEntry text = zip.getEntry("docs/b.txt");
+			assertArrayEquals(_repetitive, IOUtils.toByteArray(zip.getInputStream(text)));
+			assertTrue(text.getCompressedSize() < _repetitive.length / 10);
+
+			// already compressed media is not deflated again
+			ZipEntry image = zip.getEntry("docs/a.jpg");
+			assertArrayEquals(_repetitive, IOUtils.toByteArray(zip.getInputStream(image)));
+			assertTrue(image.getCompressedSize() >= _repetitive.length);
+
+			assertEquals("c", IOUtils.toString(zip.getInputStream(zip.getEntry("docs/sub/c.txt")),
+					StandardCharsets.UTF_8));
+		} finally {
+			zip.close();
+		}
+	}
+
+	@Test
+	public void testArchiveIsNegotiatedWithAccept() throws Exception {
+		assertTrue(FolderArchive.isRequested(new StubRequest("/docs", new byte[0])
+				.header("Accept", "text/html;q=0.9, application/zip").proxy()));
+		assertFalse(FolderArchive.isRequested(new StubRequest("/docs", new byte[0])
+				.header("Accept", "application/zip;q=0, text/html").proxy()));
+		assertFalse(FolderArchive.isRequested(new StubRequest("/docs", new byte[0])
+				.header("Accept", "text/html").proxy()));
+
+		RecordingResponse response = get(new StubRequest("/docs", new byte[0]).header("Accept", "text/html"));
+		assertTrue(response.getBody(), response.getBody().contains("b.txt"));
+		assertNull(response.getHeader("Content-Disposition"));
+	}
+
+	private RecordingResponse get(StubRequest request) throws Exception {
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(null);
+		_doGet.execute(new RequestContext(transaction, request.proxy(), response.proxy()));
+		_store.commit(transaction);
+		return response;
+	}
+}
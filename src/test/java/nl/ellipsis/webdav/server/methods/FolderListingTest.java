@@ -0,0 +1,116 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.StoredObject;
+import nl.ellipsis.webdav.server.StoredObjectPrefetcher;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class FolderListingTest {
+
+	private File _root;
+	private CountingStore _store;
+	private DoGet _doGet;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("folder-listing").toFile();
+		File docs = new File(_root, "docs");
+		docs.mkdir();
+		for (int i = 0; i < 25; i++) {
+			FileOutputStream fos = new FileOutputStream(new File(docs, String.format("f%02d.txt", i)));
+			// f00.txt is the largest
+			fos.write(new byte[100 - i]);
+			fos.close();
+		}
+		_store = new CountingStore(_root);
+		_doGet = new DoGet(_store, null, null, new ResourceLocks(), new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return "text/plain";
+			}
+		}, 0, ContentCache.NONE, GzipVariants.NONE, new FolderListing(_store, StoredObjectPrefetcher.NONE, 20));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testNamePageOnlyLooksUpItsChildren() throws Exception {
+		String body = get(new StubRequest("/docs", null).parameter("page", "2").parameter("limit", "10"));
+
+		assertTrue(body, body.contains("11 - 20 of 25"));
+		assertFalse(body, body.contains("f09.txt"));
+		assertTrue(body, body.contains("<a href=\"/webdav/docs/f10.txt\">f10.txt</a>"));
+		assertFalse(body, body.contains("f20.txt"));
+		assertTrue(body, body.contains("<a href=\"?sort=name&amp;limit=10\">Previous</a>"));
+		assertTrue(body, body.contains("<a href=\"?sort=name&amp;page=3&amp;limit=10\">Next</a>"));
+		// the folder itself twice, and the children on the page
+		assertEquals(12, _store._lookups.size());
+	}
+
+	@Test
+	public void testSortBySizeDescending() throws Exception {
+		String body = get(new StubRequest("/docs", null).parameter("sort", "size").parameter("order", "desc")
+				.parameter("limit", "1000"));
+
+		// capped at the configured page size
+		assertTrue(body, body.contains("1 - 20 of 25"));
+		assertTrue(body, body.indexOf("f00.txt") < body.indexOf("f01.txt"));
+		assertFalse(body, body.contains("f20.txt"));
+		assertTrue(body, body.contains("<a href=\"?sort=size&amp;limit=20\">Size</a>"));
+	}
+
+	@Test
+	public void testNamesAreEscaped() throws Exception {
+		new File(_root, "docs/a&b <c>.txt").createNewFile();
+		String body = get(new StubRequest("/docs", null).parameter("limit", "1"));
+
+		assertTrue(body, body.contains("<a href=\"/webdav/docs/a%26b%20%3Cc%3E.txt\">a&amp;b &lt;c&gt;.txt</a>"));
+	}
+
+	private String get(StubRequest request) throws Exception {
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(null);
+		_doGet.execute(new RequestContext(transaction, request.proxy(), response.proxy()));
+		_store.commit(transaction);
+		assertEquals(200, response.getStatus());
+		return response.getBody();
+	}
+
+	/**
+	 * Records the paths that are looked up
+	 */
+	private static class CountingStore extends LocalFileSystemStore {
+
+		private final List<String> _lookups = new ArrayList<String>();
+
+		CountingStore(File root) {
+			super(root);
+		}
+
+		@Override
+		public StoredObject getStoredObject(ITransaction transaction, String uri) {
+			_lookups.add(uri);
+			return super.getStoredObject(transaction, uri);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.ObservableStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class GzipVariantsTest {
+
+	private static final String CONTENT;
+
+	static {
+		StringBuilder sb = new StringBuilder("<log>");
+		for (int i = 0; i < 200; i++) {
+			sb.append("<line>entry ").append(i).append("</line>");
+		}
+		CONTENT = sb.append("</log>").toString();
+	}
+
+	private File _root;
+	private File _variantDir;
+	private ObservableStore _store;
+	private GzipVariants _variants;
+	private DoGet _doGet;
+	private DoHead _doHead;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("gzip-variants").toFile();
+		_variantDir = Files.createTempDirectory("gzip-variants-dir").toFile();
+		_store = new ObservableStore(new LocalFileSystemStore(_root));
+		_variants = new GzipVariants(_variantDir, 100, false);
+		_variants.setStore(_store);
+		_store.addListener(_variants);
+		IMimeTyper mimeTyper = new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return "application/xml";
+			}
+		};
+		_doGet = new DoGet(_store, null, null, new ResourceLocks(), mimeTyper, 1, ContentCache.NONE, _variants);
+		_doHead = new DoHead(_store, null, null, new ResourceLocks(), mimeTyper, 1, _variants);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+		FileUtils.deleteDirectory(_variantDir);
+	}
+
+	@Test
+	public void testVariantIsServedToClientsAcceptingGzip() throws Exception {
+		write("/docs/a.xml", CONTENT);
+		write("/docs/a.bin", CONTENT);
+
+		RecordingResponse response = get(_doGet, "/docs/a.xml", "gzip, deflate", null);
+		assertEquals("gzip", response.getHeader("Content-Encoding"));
+		assertEquals("Accept-Encoding", response.getHeader("Vary"));
+		assertTrue(response.getHeader("ETag"), response.getHeader("ETag").endsWith("-gzip\""));
+		assertEquals(CONTENT, IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(response.getBodyBytes())),
+				StandardCharsets.UTF_8));
+
+		// the same representation for HEAD and conditional requests
+		RecordingResponse head = get(_doHead, "/docs/a.xml", "gzip", null);
+		assertEquals(response.getHeader("ETag"), head.getHeader("ETag"));
+		assertEquals("gzip", head.getHeader("Content-Encoding"));
+		assertEquals("", head.getBody());
+
+		// not compressible
+		assertNull(get(_doGet, "/docs/a.bin", "gzip", null).getHeader("Vary"));
+	}
+
+	@Test
+	public void testIdentityForOtherClientsAndRanges() throws Exception {
+		write("/a.xml", CONTENT);
+
+		RecordingResponse response = get(_doGet, "/a.xml", null, null);
+		assertNull(response.getHeader("Content-Encoding"));
+		assertEquals("Accept-Encoding", response.getHeader("Vary"));
+		assertFalse(response.getHeader("ETag").endsWith("-gzip\""));
+		assertEquals(CONTENT, response.getBody());
+
+		response = get(_doGet, "/a.xml", "gzip", "bytes=0-10");
+		assertNull(response.getHeader("Content-Encoding"));
+		assertEquals(CONTENT, response.getBody());
+	}
+
+	@Test
+	public void testChangedContentDoesNotGetAStaleVariant() throws Exception {
+		write("/a.xml", CONTENT);
+		File resource = new File(_root, "a.xml");
+		// changed outside the store, the variant no longer matches the ETag
+		FileUtils.writeStringToFile(resource, "<small/>", StandardCharsets.UTF_8);
+		resource.setLastModified(resource.lastModified() + 5000);
+		RecordingResponse response = get(_doGet, "/a.xml", "gzip", null);
+		assertNull(response.getHeader("Content-Encoding"));
+		assertEquals("<small/>", response.getBody());
+
+		// too small to be compressed
+		write("/a.xml", "<small/>");
+		assertNull(_variants.getVariant("/a.xml", AbstractMethod.getETag(_store.getStoredObject(null, "/a.xml"))));
+		assertFalse(new File(_variantDir, "a.xml.gz").exists());
+
+		write("/docs/b.xml", CONTENT);
+		assertTrue(new File(_variantDir, "docs/b.xml.gz").exists());
+		ITransaction transaction = _store.begin(null);
+		_store.removeObject(transaction, "/docs/b.xml");
+		_store.commit(transaction);
+		assertFalse(new File(_variantDir, "docs/b.xml.gz").exists());
+	}
+
+	@Test
+	public void testOpenVariantSurvivesReplacement() throws Exception {
+		write("/a.xml", CONTENT);
+		GzipVariants.Variant variant = _variants.getVariant("/a.xml",
+				AbstractMethod.getETag(_store.getStoredObject(null, "/a.xml")));
+		FileChannel content = variant.open();
+		try {
+			long length = content.size();
+			// install() moves a new variant over the file
+			File replacement = new File(_variantDir, "replacement.tmp");
+			FileUtils.writeStringToFile(replacement, "other", StandardCharsets.UTF_8);
+			Files.move(replacement.toPath(), variant.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+			byte[] body = IOUtils.toByteArray(Channels.newInputStream(content));
+			assertEquals(length, body.length);
+			assertEquals(CONTENT, IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(body)),
+					StandardCharsets.UTF_8));
+		} finally {
+			content.close();
+		}
+		FileUtils.deleteQuietly(variant.getFile());
+		assertNull(variant.open());
+	}
+
+	@Test
+	public void testVariantETag() {
+		assertEquals("\"abc-gzip\"", GzipVariants.getVariantETag("\"abc\""));
+		assertEquals("W/\"5-1000-gzip\"", GzipVariants.getVariantETag("W/\"5-1000\""));
+	}
+
+	private void write(String path, String content) throws Exception {
+		ITransaction transaction = _store.begin(null);
+		if (path.startsWith("/docs/") && _store.getStoredObject(transaction, "/docs") == null) {
+			_store.createFolder(transaction, "/docs");
+		}
+		if (_store.getStoredObject(transaction, path) == null) {
+			_store.createResource(transaction, path);
+		}
+		_store.setResourceContent(transaction, path, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+				null, null);
+		_store.commit(transaction);
+	}
+
+	private RecordingResponse get(DoHead method, String path, String acceptEncoding, String range) throws Exception {
+		StubRequest request = new StubRequest(path, null);
+		if (acceptEncoding != null) {
+			request.header("Accept-Encoding", acceptEncoding);
+		}
+		if (range != null) {
+			request.header("Range", range);
+		}
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(null);
+		method.execute(new RequestContext(transaction, request.proxy(), response.proxy()));
+		_store.commit(transaction);
+		assertEquals(200, response.getStatus());
+		return response;
+	}
+}
@@ -0,0 +1,164 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.StoredObject;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class PreconditionsTest {
+
+	private static final String ETAG = "W/\"5-1000\"";
+	private static final Date LAST_MODIFIED = new Date(1500000000000L);
+
+	private File _root;
+	private CountingStore _store;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("preconditions").toFile();
+		FileOutputStream fos = new FileOutputStream(new File(_root, "a.txt"));
+		fos.write("a.txt".getBytes(StandardCharsets.UTF_8));
+		fos.close();
+		_store = new CountingStore(_root);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testParseEntityTags() {
+		assertEquals(Arrays.asList("\"a,b\"", "W/\"c\"", "\"d\""),
+				Preconditions.parseEntityTags(" \"a,b\" ,W/\"c\",\"d\""));
+		assertTrue(Preconditions.weakMatch("W/\"c\"", "\"c\""));
+		assertFalse(Preconditions.strongMatch("W/\"c\"", "W/\"c\""));
+		assertTrue(Preconditions.strongMatch("\"c\"", "\"c\""));
+	}
+
+	@Test
+	public void testParseDate() {
+		long expected = 784111777000L;
+		assertEquals(expected, Preconditions.parseDate("Sun, 06 Nov 1994 08:49:37 GMT"));
+		assertEquals(expected, Preconditions.parseDate("Sunday, 06-Nov-94 08:49:37 GMT"));
+		assertEquals(expected, Preconditions.parseDate("Sun Nov  6 08:49:37 1994"));
+		assertEquals(expected, Preconditions.parseDate("Sun, 06 Nov 1994 08:49:37 GMT; length=5"));
+		assertEquals(-1, Preconditions.parseDate("yesterday"));
+	}
+
+	@Test
+	public void testIfNoneMatch() {
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, evaluate("If-None-Match", "\"x\", " + ETAG, true));
+		assertEquals(HttpServletResponse.SC_PRECONDITION_FAILED, evaluate("If-None-Match", ETAG, false));
+		assertEquals(HttpServletResponse.SC_OK, evaluate("If-None-Match", "\"x\"", true));
+		assertEquals(HttpServletResponse.SC_PRECONDITION_FAILED, evaluate("If-None-Match", "*", false));
+		// create only
+		Preconditions preconditions = Preconditions.fromRequest(new StubRequest("/a.txt", null)
+				.header("If-None-Match", "*").proxy());
+		assertEquals(HttpServletResponse.SC_OK, preconditions.evaluate(false, null, null, false));
+	}
+
+	@Test
+	public void testIfMatchUsesStrongComparison() {
+		assertEquals(HttpServletResponse.SC_PRECONDITION_FAILED, evaluate("If-Match", ETAG, false));
+		assertEquals(HttpServletResponse.SC_OK, evaluate("If-Match", "*", false));
+	}
+
+	@Test
+	public void testDates() {
+		String before = "Fri, 14 Jul 2017 02:39:59 GMT";
+		String same = "Fri, 14 Jul 2017 02:40:00 GMT";
+
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, evaluate("If-Modified-Since", same, true));
+		assertEquals(HttpServletResponse.SC_OK, evaluate("If-Modified-Since", before, true));
+		// only for GET and HEAD
+		assertEquals(HttpServletResponse.SC_OK, evaluate("If-Modified-Since", same, false));
+		assertEquals(HttpServletResponse.SC_OK, evaluate("If-Unmodified-Since", same, false));
+		assertEquals(HttpServletResponse.SC_PRECONDITION_FAILED, evaluate("If-Unmodified-Since", before, false));
+
+		// If-None-Match takes precedence
+		Preconditions preconditions = Preconditions.fromRequest(new StubRequest("/a.txt", null)
+				.header("If-None-Match", "\"x\"").header("If-Modified-Since", same).proxy());
+		assertEquals(HttpServletResponse.SC_OK, preconditions.evaluate(true, ETAG, LAST_MODIFIED, true));
+	}
+
+	@Test
+	public void testNotModifiedGetDoesNotOpenContent() throws Exception {
+		ITransaction transaction = _store.begin(null);
+		String eTag = AbstractMethod.getETag(_store.getStoredObject(transaction, "/a.txt"));
+		DoGet doGet = new DoGet(_store, null, null, new ResourceLocks(), new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return "text/plain";
+			}
+		}, 0);
+
+		RecordingResponse response = new RecordingResponse();
+		doGet.execute(new RequestContext(transaction,
+				new StubRequest("/a.txt", null).header("If-None-Match", eTag).proxy(), response.proxy()));
+		_store.commit(transaction);
+
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+		assertEquals(eTag, response.getHeader("ETag"));
+		assertEquals("", response.getBody());
+		assertEquals(0, _store._contentReads);
+	}
+
+	@Test
+	public void testFailedPutLeavesResourceAlone() throws Exception {
+		ITransaction transaction = _store.begin(null);
+		DoPut doPut = new DoPut(_store, new ResourceLocks(), false, false);
+
+		RecordingResponse response = new RecordingResponse();
+		doPut.execute(new RequestContext(transaction, new StubRequest("/a.txt",
+				"changed".getBytes(StandardCharsets.UTF_8)).header("If-None-Match", "*").proxy(), response.proxy()));
+		_store.commit(transaction);
+
+		assertEquals(HttpServletResponse.SC_PRECONDITION_FAILED, response.getStatus());
+		assertEquals("a.txt", FileUtils.readFileToString(new File(_root, "a.txt"), StandardCharsets.UTF_8));
+	}
+
+	private static int evaluate(String header, String value, boolean safe) {
+		Preconditions preconditions = Preconditions.fromRequest(new StubRequest("/a.txt", null).header(header, value)
+				.proxy());
+		return preconditions.evaluate(true, ETAG, LAST_MODIFIED, safe);
+	}
+
+	/**
+	 * Counts how often the content of a resource is opened
+	 */
+	private static class CountingStore extends LocalFileSystemStore {
+
+		private int _contentReads = 0;
+
+		CountingStore(File root) {
+			super(root);
+		}
+
+		@Override
+		public InputStream getResourceContent(ITransaction transaction, String uri) {
+			_contentReads++;
+			return super.getResourceContent(transaction, uri);
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.HttpHeaders;
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.ObservableStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.StoredObject;
+import nl.ellipsis.webdav.server.StoredObjectPrefetcher;
+import nl.ellipsis.webdav.server.exceptions.AccessDeniedException;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.properties.AbstractPropertyProvider;
+import nl.ellipsis.webdav.server.properties.IPropertyProvider;
+import nl.ellipsis.webdav.server.properties.PropertyProviderRegistry;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class PropfindCacheTest {
+
+	private File _root;
+	private CountingStore _countingStore;
+	private ObservableStore _store;
+	private ResourceLocks _resourceLocks;
+	private PropfindCache _cache;
+	private PropertyProviderRegistry _propertyProviders;
+	private DoPropfind _doPropfind;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("propfind-cache").toFile();
+		File docs = new File(_root, "docs");
+		docs.mkdir();
+		for (String name : new String[] { "a.txt", "b.txt" }) {
+			FileOutputStream fos = new FileOutputStream(new File(docs, name));
+			fos.write(name.getBytes(StandardCharsets.UTF_8));
+			fos.close();
+		}
+		_countingStore = new CountingStore(_root);
+		_store = new ObservableStore(_countingStore);
+		_resourceLocks = new ResourceLocks();
+		_cache = new PropfindCache(100, 60000);
+		_store.addListener(_cache);
+
+		IMimeTyper mimeTyper = new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return "text/plain";
+			}
+		};
+		_propertyProviders = new PropertyProviderRegistry();
+		_doPropfind = new DoPropfind(_store, _resourceLocks, mimeTyper, PropfindPolicy.UNLIMITED,
+				StoredObjectPrefetcher.NONE, _propertyProviders, _cache);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testRepeatedPropfindIsServedFromCache() throws Exception {
+		String first = propfind("/docs", "1", null);
+		String second = propfind("/docs", "1", null);
+
+		assertEquals(first, second);
+		assertEquals(3, first.split("<D:response>", -1).length - 1);
+		assertEquals(1, _countingStore._listings.get());
+		assertEquals(1, _cache.getMisses());
+		assertEquals(1, _cache.getHits());
+	}
+
+	@Test
+	public void testPropertySetAndDepthArePartOfTheKey() throws Exception {
+		String etag = "<D:prop><D:getetag/></D:prop>";
+		String length = "<D:prop><D:getcontentlength/></D:prop>";
+
+		assertTrue(propfind("/docs", "1", etag).contains("getetag"));
+		assertTrue(propfind("/docs", "1", length).contains("getcontentlength"));
+		propfind("/docs", "0", etag);
+		assertEquals(3, _cache.getMisses());
+		assertEquals(0, _cache.getHits());
+	}
+
+	@Test
+	public void testWriteInvalidatesParent() throws Exception {
+		propfind("/docs", "1", null);
+		propfind("/", "1", null);
+
+		ITransaction transaction = _store.begin(null);
+		_store.createResource(transaction, "/docs/c.txt");
+		_store.commit(transaction);
+
+		// the cached listings of the parents are gone
+		assertTrue(propfind("/docs", "1", null).contains("/webdav/docs/c.txt"));
+		propfind("/", "1", null);
+		assertEquals(4, _cache.getMisses());
+	}
+
+	@Test
+	public void testRolledBackWriteKeepsEntries() throws Exception {
+		propfind("/docs", "1", null);
+
+		ITransaction transaction = _store.begin(null);
+		_store.createResource(transaction, "/docs/c.txt");
+		_store.rollback(transaction);
+
+		propfind("/docs", "1", null);
+		assertEquals(1, _cache.getHits());
+	}
+
+	@Test
+	public void testLockChangeInvalidates() throws Exception {
+		assertFalse(propfind("/docs", "1", null).contains("<D:activelock>"));
+
+		_resourceLocks.exclusiveLock(null, "/docs/a.txt", "owner", 0, 60);
+
+		assertTrue(propfind("/docs", "1", null).contains("<D:activelock>"));
+		assertEquals(2, _cache.getMisses());
+	}
+
+	@Test
+	public void testResponsesAreNotSharedBetweenUsers() throws Exception {
+		Principal alice = new Principal() {
+			public String getName() {
+				return "alice";
+			}
+		};
+		Principal bob = new Principal() {
+			public String getName() {
+				return "bob";
+			}
+		};
+		propfind("/docs", "1", null, alice);
+		propfind("/docs", "1", null, bob);
+		assertEquals(2, _cache.getMisses());
+		assertEquals(0, _cache.getHits());
+
+		propfind("/docs", "1", null, alice);
+		propfind("/docs", "1", null, bob);
+		propfind("/docs", "1", null);
+		assertEquals(3, _cache.getMisses());
+		assertEquals(2, _cache.getHits());
+	}
+
+	@Test
+	public void testProviderValuesAreNotCached() throws Exception {
+		final AtomicInteger used = new AtomicInteger();
+		// like DAV:quota-used-bytes, changes with writes anywhere
+		_propertyProviders.register(new AbstractPropertyProvider("urn:test", "used", IPropertyProvider.Cost.IO) {
+			public String getValue(ITransaction transaction, String path, StoredObject so) {
+				return String.valueOf(used.get());
+			}
+		});
+		String prop = "<D:prop><T:used xmlns:T=\"urn:test\"/></D:prop>";
+		assertTrue(propfind("/docs", "0", prop).contains(">0<"));
+		used.set(42);
+		assertTrue(propfind("/docs", "0", prop).contains(">42<"));
+		assertEquals(0, _cache.getMisses());
+		assertEquals(0, _cache.size());
+	}
+
+	@Test
+	public void testDepthInfinityIsNotCached() throws Exception {
+		propfind("/docs", "infinity", null);
+		propfind("/docs", "infinity", null);
+
+		assertEquals(0, _cache.getMisses());
+		assertEquals(0, _cache.size());
+	}
+
+	@Test
+	public void testConcurrentMissesAreRenderedOnce() throws Exception {
+		_countingStore._delay = 200;
+		final int requests = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(requests);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < requests; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						return propfind("/docs", "1", null);
+					}
+				}));
+			}
+			String expected = results.get(0).get();
+			for (Future<String> result : results) {
+				assertEquals(expected, result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, _countingStore._listings.get());
+		assertEquals(1, _cache.getMisses());
+		assertEquals(requests - 1, _cache.getHits());
+	}
+
+	@Test
+	public void testFailureAfterTheResponseIsCommittedEndsTheMultistatus() throws Exception {
+		File big = new File(_root, "big");
+		big.mkdir();
+		for (int i = 0; i < 150; i++) {
+			new File(big, "f" + i + ".txt").createNewFile();
+		}
+		// visited after the first part of the listing has been sent
+		String[] names = _store.getChildrenNames(null, "/big");
+		_countingStore._denied = "/big/" + names[names.length - 1];
+
+		String body = propfind("/big", "infinity", null);
+		assertTrue(body, body.contains(_countingStore._denied + "</D:href>\n<D:status>HTTP/1.1 403 Forbidden</D:status>"));
+		// the unfinished response is left out
+		assertEquals(body.split("<D:response>").length, body.split("</D:response>").length);
+		assertTrue(body, body.trim().endsWith("</D:multistatus>"));
+
+		// before anything is sent the request fails as a whole
+		_countingStore._denied = "/big";
+		StubRequest stub = new StubRequest("/big", null).header(HttpHeaders.DEPTH, "infinity");
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(null);
+		_doPropfind.execute(new RequestContext(transaction, stub.proxy(), response.proxy()));
+		_store.commit(transaction);
+		assertEquals(403, response.getStatus());
+	}
+
+	private String propfind(String path, String depth, String content) throws Exception {
+		return propfind(path, depth, content, null);
+	}
+
+	private String propfind(String path, String depth, String content, Principal principal) throws Exception {
+		byte[] requestBody = null;
+		if (content != null) {
+			requestBody = ("<?xml version=\"1.0\" encoding=\"utf-8\" ?><D:propfind xmlns:D=\"DAV:\">" + content
+					+ "</D:propfind>").getBytes(StandardCharsets.UTF_8);
+		}
+		StubRequest stub = new StubRequest(path, requestBody).header(HttpHeaders.DEPTH, depth);
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(principal);
+		_doPropfind.execute(new RequestContext(transaction, stub.proxy(), response.proxy()));
+		_store.commit(transaction);
+		assertEquals(207, response.getStatus());
+		return response.getBody();
+	}
+
+	/**
+	 * Counts the folder listings, optionally slowed down, and denies access
+	 * to a resource if asked
+	 */
+	private static class CountingStore extends LocalFileSystemStore {
+
+		private final AtomicInteger _listings = new AtomicInteger();
+		private volatile long _delay = 0;
+		private volatile String _denied = null;
+
+		CountingStore(File root) {
+			super(root);
+		}
+
+		@Override
+		public String[] getChildrenNames(ITransaction transaction, String uri) {
+			_listings.incrementAndGet();
+			if (_delay > 0) {
+				try {
+					Thread.sleep(_delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return super.getChildrenNames(transaction, uri);
+		}
+
+		@Override
+		public StoredObject getStoredObject(ITransaction transaction, String uri) {
+			if (uri.equals(_denied)) {
+				throw new AccessDeniedException(uri);
+			}
+			return super.getStoredObject(transaction, uri);
+		}
+	}
+}
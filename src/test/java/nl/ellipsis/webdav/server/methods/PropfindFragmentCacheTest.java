@@ -0,0 +1,154 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.HttpHeaders;
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.ObservableStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.StoredObject;
+import nl.ellipsis.webdav.server.StoredObjectPrefetcher;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.properties.AbstractPropertyProvider;
+import nl.ellipsis.webdav.server.properties.IPropertyProvider;
+import nl.ellipsis.webdav.server.properties.PropertyProviderRegistry;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class PropfindFragmentCacheTest {
+
+	private File _root;
+	private ObservableStore _store;
+	private ResourceLocks _resourceLocks;
+	private IMimeTyper _mimeTyper;
+	private PropfindFragmentCache _fragmentCache;
+	private DoPropfind _doPropfind;
+	private DoPropfind _uncached;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("propfind-fragments").toFile();
+		File docs = new File(_root, "docs");
+		docs.mkdir();
+		for (String name : new String[] { "a.txt", "b.txt" }) {
+			FileOutputStream fos = new FileOutputStream(new File(docs, name));
+			fos.write(name.getBytes(StandardCharsets.UTF_8));
+			fos.close();
+		}
+		_store = new ObservableStore(new LocalFileSystemStore(_root));
+		_resourceLocks = new ResourceLocks();
+		_fragmentCache = new PropfindFragmentCache(100);
+		_store.addListener(_fragmentCache);
+
+		_mimeTyper = new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return "text/plain";
+			}
+		};
+		_doPropfind = createDoPropfind(new PropertyProviderRegistry(), _fragmentCache);
+		_uncached = createDoPropfind(new PropertyProviderRegistry(), PropfindFragmentCache.NONE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testListingIsAssembledFromFragments() throws Exception {
+		String expected = propfind(_uncached, null);
+
+		assertEquals(expected, propfind(_doPropfind, null));
+		assertEquals(3, _fragmentCache.getMisses());
+		assertEquals(3, _fragmentCache.size());
+
+		assertEquals(expected, propfind(_doPropfind, null));
+		assertEquals(3, _fragmentCache.getHits());
+	}
+
+	@Test
+	public void testPropAndPropnameAreCachedSeparately() throws Exception {
+		String prop = "<D:prop><D:getcontentlength/><D:lockdiscovery/><D:getetag/></D:prop>";
+
+		assertEquals(propfind(_uncached, prop), propfind(_doPropfind, prop));
+		assertEquals(propfind(_uncached, "<D:propname/>"), propfind(_doPropfind, "<D:propname/>"));
+		assertEquals(6, _fragmentCache.getMisses());
+		assertEquals(0, _fragmentCache.getHits());
+	}
+
+	@Test
+	public void testLockElementsAreRenderedPerRequest() throws Exception {
+		assertFalse(propfind(_doPropfind, null).contains("<D:activelock>"));
+
+		_resourceLocks.exclusiveLock(null, "/docs/a.txt", "owner", 0, 60);
+
+		String body = propfind(_doPropfind, null);
+		assertTrue(body, body.contains("<D:owner><D:href>owner</D:href>"));
+		assertTrue(body, body.contains("<D:resourcetype/><D:supportedlock></D:supportedlock>"));
+		assertEquals(3, _fragmentCache.getMisses());
+		assertEquals(3, _fragmentCache.getHits());
+	}
+
+	@Test
+	public void testChangedResourceIsRenderedAgain() throws Exception {
+		propfind(_doPropfind, null);
+
+		ITransaction transaction = _store.begin(null);
+		_store.setResourceContent(transaction, "/docs/a.txt",
+				new ByteArrayInputStream("changed".getBytes(StandardCharsets.UTF_8)), null, null);
+		_store.commit(transaction);
+
+		String body = propfind(_doPropfind, null);
+		assertTrue(body, body.contains("<D:getcontentlength>7</D:getcontentlength>"));
+		assertEquals(4, _fragmentCache.getMisses());
+		assertEquals(2, _fragmentCache.getHits());
+	}
+
+	@Test
+	public void testProvidersThatNeedWorkBypassTheCache() throws Exception {
+		PropertyProviderRegistry registry = new PropertyProviderRegistry();
+		registry.register(new AbstractPropertyProvider("urn:example:test", "owner", IPropertyProvider.Cost.CHEAP) {
+			public String getValue(ITransaction transaction, String path, StoredObject so) {
+				return "owner";
+			}
+		});
+		DoPropfind doPropfind = createDoPropfind(registry, _fragmentCache);
+
+		assertTrue(propfind(doPropfind, null).contains(">owner<"));
+		assertEquals(0, _fragmentCache.size());
+		assertEquals(0, _fragmentCache.getMisses());
+	}
+
+	private DoPropfind createDoPropfind(PropertyProviderRegistry registry, PropfindFragmentCache fragmentCache) {
+		return new DoPropfind(_store, _resourceLocks, _mimeTyper, PropfindPolicy.UNLIMITED,
+				StoredObjectPrefetcher.NONE, registry, PropfindCache.NONE, fragmentCache);
+	}
+
+	private String propfind(DoPropfind doPropfind, String content) throws Exception {
+		byte[] requestBody = null;
+		if (content != null) {
+			requestBody = ("<?xml version=\"1.0\" encoding=\"utf-8\" ?><D:propfind xmlns:D=\"DAV:\">" + content
+					+ "</D:propfind>").getBytes(StandardCharsets.UTF_8);
+		}
+		StubRequest stub = new StubRequest("/docs", requestBody).header(HttpHeaders.DEPTH, "1");
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(null);
+		doPropfind.execute(new RequestContext(transaction, stub.proxy(), response.proxy()));
+		_store.commit(transaction);
+		assertEquals(207, response.getStatus());
+		return response.getBody();
+	}
+}
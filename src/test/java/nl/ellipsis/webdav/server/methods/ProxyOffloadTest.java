@@ -0,0 +1,93 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.IMimeTyper;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.ObservableStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.StoredObjectPrefetcher;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class ProxyOffloadTest {
+
+	private File _root;
+	private ObservableStore _store;
+	private IMimeTyper _mimeTyper;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("proxy-offload").toFile();
+		FileUtils.writeStringToFile(new File(_root, "docs/a b.txt"), "content", StandardCharsets.UTF_8);
+		_store = new ObservableStore(new LocalFileSystemStore(_root));
+		_mimeTyper = new IMimeTyper() {
+			public String getMimeType(ITransaction transaction, String path) {
+				return "text/plain";
+			}
+		};
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testAccelRedirectSendsHeadersOnly() throws Exception {
+		DoGet doGet = createDoGet(new ProxyOffload(ProxyOffload.Mode.X_ACCEL_REDIRECT, "/internal/", _store));
+		RecordingResponse response = get(doGet, new StubRequest("/docs/a b.txt", new byte[0]));
+
+		assertEquals("/internal/docs/a%20b.txt", response.getHeader("X-Accel-Redirect"));
+		assertNotNull(response.getHeader("ETag"));
+		assertEquals(0, response.getBodyBytes().length);
+	}
+
+	@Test
+	public void testSendfileAfterPreconditions() throws Exception {
+		DoGet doGet = createDoGet(new ProxyOffload(ProxyOffload.Mode.fromName("x-sendfile"), null, _store));
+		RecordingResponse response = get(doGet, new StubRequest("/docs/a b.txt", new byte[0]));
+		assertEquals(new File(_root, "docs/a b.txt").getAbsolutePath(), response.getHeader("X-Sendfile"));
+		assertEquals(0, response.getBodyBytes().length);
+
+		// a failed precondition never gets to the proxy
+		String eTag = response.getHeader("ETag");
+		response = get(doGet, new StubRequest("/docs/a b.txt", new byte[0]).header("If-None-Match", eTag));
+		assertEquals(304, response.getStatus());
+		assertNull(response.getHeader("X-Sendfile"));
+	}
+
+	@Test
+	public void testStoreWithoutLocalFilesIsServedByTheServlet() throws Exception {
+		ProxyOffload offload = new ProxyOffload(ProxyOffload.Mode.X_SENDFILE, null, new ObservableStore(null));
+		assertFalse(offload.isEnabled());
+		assertFalse(ProxyOffload.NONE.isEnabled());
+		assertEquals("/", ProxyOffload.encodePath("/"));
+		assertEquals("/a%2Bb/%C3%A9", ProxyOffload.encodePath("/a+b/é"));
+	}
+
+	private DoGet createDoGet(ProxyOffload offload) {
+		return new DoGet(_store, null, null, new ResourceLocks(), _mimeTyper, 1, ContentCache.NONE,
+				GzipVariants.NONE, new FolderListing(_store, StoredObjectPrefetcher.NONE, 0), AsyncDownloads.NONE,
+				offload);
+	}
+
+	private RecordingResponse get(DoGet doGet, StubRequest request) throws Exception {
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(null);
+		doGet.execute(new RequestContext(transaction, request.proxy(), response.proxy()));
+		_store.commit(transaction);
+		return response;
+	}
+}
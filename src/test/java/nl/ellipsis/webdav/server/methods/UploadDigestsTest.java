@@ -0,0 +1,102 @@
+package nl.ellipsis.webdav.server.methods;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.ContentDigestIndex;
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.LocalFileSystemStore;
+import nl.ellipsis.webdav.server.RequestContext;
+import nl.ellipsis.webdav.server.locking.ResourceLocks;
+import nl.ellipsis.webdav.server.testutil.RecordingResponse;
+import nl.ellipsis.webdav.server.testutil.StubRequest;
+
+public class UploadDigestsTest {
+
+	private static final byte[] CONTENT = "verified content".getBytes(StandardCharsets.UTF_8);
+
+	private File _root;
+	private LocalFileSystemStore _store;
+	private DoPut _doPut;
+
+	@Before
+	public void setUp() throws Exception {
+		_root = Files.createTempDirectory("upload-digests").toFile();
+		FileUtils.writeStringToFile(new File(_root, "old.txt"), "old", StandardCharsets.UTF_8);
+		_store = new LocalFileSystemStore(_root);
+		_store.setContentDigests(true);
+		_doPut = new DoPut(_store, new ResourceLocks(), false, false);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_store.destroy();
+		FileUtils.deleteDirectory(_root);
+	}
+
+	@Test
+	public void testMatchingDigestsAreStored() throws Exception {
+		RecordingResponse response = put(new StubRequest("/new.txt", CONTENT)
+				.header("Content-MD5", base64("MD5", CONTENT))
+				.header("Repr-Digest", "sha-512=:AAAA:, sha-256=:" + base64("SHA-256", CONTENT) + ":"));
+
+		assertEquals(201, response.getStatus());
+		assertArrayEquals(CONTENT, FileUtils.readFileToByteArray(new File(_root, "new.txt")));
+		// the verified digest is the one served as ETag
+		ITransaction transaction = _store.begin(null);
+		assertEquals(ContentDigestIndex.toHex(MessageDigest.getInstance("SHA-256").digest(CONTENT)),
+				_store.getStoredObject(transaction, "/new.txt").getContentDigest());
+		_store.commit(transaction);
+	}
+
+	@Test
+	public void testMismatchIsRejectedBeforeTheFileIsReplaced() throws Exception {
+		byte[] other = "other content".getBytes(StandardCharsets.UTF_8);
+		RecordingResponse response = put(new StubRequest("/old.txt", CONTENT)
+				.header("Digest", "SHA-256=" + base64("SHA-256", other)));
+		assertEquals(400, response.getStatus());
+		assertEquals("old", FileUtils.readFileToString(new File(_root, "old.txt"), StandardCharsets.UTF_8));
+
+		response = put(new StubRequest("/new.txt", CONTENT).header("Content-MD5", base64("MD5", other)));
+		assertEquals(400, response.getStatus());
+		assertFalse(new File(_root, "new.txt").exists());
+
+		// no temporary files are left behind
+		for (String name : _root.list()) {
+			assertFalse(name, name.endsWith(".tmp"));
+		}
+	}
+
+	@Test
+	public void testMalformedDigestIsRejected() throws Exception {
+		RecordingResponse response = put(new StubRequest("/new.txt", CONTENT).header("Content-MD5", "not base64!"));
+		assertEquals(400, response.getStatus());
+		assertFalse(new File(_root, "new.txt").exists());
+
+		response = put(new StubRequest("/new.txt", CONTENT).header("Content-MD5", base64("MD5", CONTENT))
+				.header("Digest", "md5=" + base64("MD5", "else".getBytes(StandardCharsets.UTF_8))));
+		assertEquals(400, response.getStatus());
+	}
+
+	private RecordingResponse put(StubRequest request) throws Exception {
+		RecordingResponse response = new RecordingResponse();
+		ITransaction transaction = _store.begin(null);
+		_doPut.execute(new RequestContext(transaction, request.proxy(), response.proxy()));
+		_store.commit(transaction);
+		return response;
+	}
+
+	private static String base64(String algorithm, byte[] content) throws Exception {
+		return Base64.getEncoder().encodeToString(MessageDigest.getInstance(algorithm).digest(content));
+	}
+}
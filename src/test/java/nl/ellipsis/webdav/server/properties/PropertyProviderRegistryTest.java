@@ -0,0 +1,57 @@
+package nl.ellipsis.webdav.server.properties;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.ITransaction;
+import nl.ellipsis.webdav.server.StoredObject;
+
+public class PropertyProviderRegistryTest {
+
+	@Test
+	public void testLookupAndPrefixes() {
+		PropertyProviderRegistry registry = new PropertyProviderRegistry();
+		assertTrue(registry.isEmpty());
+
+		IPropertyProvider quota = new ConstantProvider("DAV:", "quota-used-bytes");
+		IPropertyProvider owner = new ConstantProvider("urn:example:a", "owner");
+		IPropertyProvider checksum = new ConstantProvider("urn:example:b", "checksum");
+		IPropertyProvider color = new ConstantProvider("urn:example:a", "color");
+		registry.register(quota);
+		registry.register(owner);
+		registry.register(checksum);
+		registry.register(color);
+
+		assertSame(owner, registry.getProvider("urn:example:a", "owner"));
+		assertNull(registry.getProvider("urn:example:b", "owner"));
+		assertEquals("D", registry.getPrefix(quota));
+		assertEquals(registry.getPrefix(owner), registry.getPrefix(color));
+		assertFalse(registry.getPrefix(owner).equals(registry.getPrefix(checksum)));
+		assertEquals(4, registry.getProviders().size());
+	}
+
+	@Test
+	public void testDuplicateProviderIsRejected() {
+		PropertyProviderRegistry registry = new PropertyProviderRegistry();
+		registry.register(new ConstantProvider("urn:example:a", "owner"));
+		try {
+			registry.register(new ConstantProvider("urn:example:a", "owner"));
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(1, registry.getProviders().size());
+	}
+
+	private static class ConstantProvider extends AbstractPropertyProvider {
+
+		ConstantProvider(String namespace, String name) {
+			super(namespace, name, Cost.FREE);
+		}
+
+		public String getValue(ITransaction transaction, String path, StoredObject so) {
+			return getName();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package nl.ellipsis.webdav.server.testutil;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServletResponse stub that records status, headers and the body written
+ * to its writer or output stream, for tests that run requests concurrently.
+ */
+public class RecordingResponse implements InvocationHandler {
+
+	private int _status = HttpServletResponse.SC_OK;
+	private final Map<String, String> _headers = new HashMap<String, String>();
+	private final StringWriter _body = new StringWriter();
+	private final PrintWriter _writer = new PrintWriter(_body);
+	private final TestingOutputStream _outputStream = new TestingOutputStream();
+
+	public HttpServletResponse proxy() {
+		return (HttpServletResponse) Proxy.newProxyInstance(RecordingResponse.class.getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class }, this);
+	}
+
+	public int getStatus() {
+		return _status;
+	}
+
+	public String getHeader(String name) {
+		return _headers.get(name);
+	}
+
+	public String getBody() {
+		_writer.flush();
+		return _body.toString() + _outputStream.toString();
+	}
+
+	/**
+	 * @return what was written to the output stream
+	 */
+	public byte[] getBodyBytes() {
+		return _outputStream.toByteArray();
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("setStatus") || name.equals("sendError")) {
+			_status = (Integer) args[0];
+		} else if (name.equals("setHeader") || name.equals("addHeader")) {
+			_headers.put((String) args[0], (String) args[1]);
+		} else if (name.equals("getWriter")) {
+			return _writer;
+		} else if (name.equals("getOutputStream")) {
+			return _outputStream;
+		} else if (name.equals("isCommitted")) {
+			// the body is sent as soon as it is flushed
+			return getBody().length() > 0;
+		} else if (name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		} else if (name.equals("equals")) {
+			return proxy == args[0];
+		} else if (name.equals("toString")) {
+			return "RecordingResponse@" + System.identityHashCode(this);
+		}
+		return StubRequest.defaultValue(method.getReturnType());
+	}
+}
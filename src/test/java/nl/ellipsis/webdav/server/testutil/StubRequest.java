@@ -0,0 +1,87 @@
+package nl.ellipsis.webdav.server.testutil;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.mock.web.DelegatingServletInputStream;
+
+/**
+ * Thread safe HttpServletRequest stub for tests that run requests
+ * concurrently, where a (non synchronised) mockery can not be used.
+ */
+public class StubRequest implements InvocationHandler {
+
+	private final String _path;
+	private final Map<String, String> _headers = new HashMap<String, String>();
+	private final Map<String, String> _parameters = new HashMap<String, String>();
+	private final byte[] _body;
+	private final String _name;
+
+	public StubRequest(String path, byte[] body) {
+		_path = path;
+		_body = body != null ? body : new byte[0];
+		_name = "StubRequest@" + System.identityHashCode(this) + ":" + path;
+	}
+
+	public StubRequest header(String name, String value) {
+		_headers.put(name, value);
+		return this;
+	}
+
+	public StubRequest parameter(String name, String value) {
+		_parameters.put(name, value);
+		return this;
+	}
+
+	public HttpServletRequest proxy() {
+		return (HttpServletRequest) Proxy.newProxyInstance(StubRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, this);
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("getHeader")) {
+			return _headers.get(args[0]);
+		} else if (name.equals("getParameter")) {
+			return _parameters.get(args[0]);
+		} else if (name.equals("getPathInfo")) {
+			return _path;
+		} else if (name.equals("getRequestURI")) {
+			return "/webdav" + _path;
+		} else if (name.equals("getContextPath")) {
+			return "";
+		} else if (name.equals("getServletPath")) {
+			return "/webdav";
+		} else if (name.equals("getContentLength")) {
+			return _body.length;
+		} else if (name.equals("getContentLengthLong")) {
+			return (long) _body.length;
+		} else if (name.equals("getInputStream")) {
+			return new DelegatingServletInputStream(new ByteArrayInputStream(_body));
+		} else if (name.equals("toString")) {
+			return _name;
+		} else if (name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		} else if (name.equals("equals")) {
+			return proxy == args[0];
+		}
+		return defaultValue(method.getReturnType());
+	}
+
+	static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
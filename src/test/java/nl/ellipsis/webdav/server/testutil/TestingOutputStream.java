@@ -18,6 +18,10 @@ public class TestingOutputStream extends ServletOutputStream {
         return baos.toString();
     }
 
+    public byte[] toByteArray() {
+        return baos.toByteArray();
+    }
+
     /**
      * This method can be used to determine if data can be written without blocking.
      *
@@ -0,0 +1,48 @@
+package nl.ellipsis.webdav.server.util;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class JSONWriterTest {
+
+	@Test
+	public void testListing() throws Exception {
+		StringWriter sw = new StringWriter();
+		JSONWriter json = new JSONWriter(sw);
+		json.writeArrayStart();
+		json.writeObjectStart();
+		json.writeMember("name", "a");
+		json.writeMember("collection", true);
+		json.writeObjectEnd();
+		json.writeObjectStart();
+		json.writeMember("name", "b");
+		json.writeMember("size", 12L);
+		json.writeObjectEnd();
+		json.writeArrayEnd();
+		assertEquals("[\n{\"name\":\"a\",\"collection\":true},\n{\"name\":\"b\",\"size\":12}\n]\n", sw.toString());
+	}
+
+	@Test
+	public void testEmptyListing() throws Exception {
+		StringWriter sw = new StringWriter();
+		JSONWriter json = new JSONWriter(sw);
+		json.writeArrayStart();
+		json.writeArrayEnd();
+		assertEquals("[\n]\n", sw.toString());
+	}
+
+	@Test
+	public void testEscaping() throws Exception {
+		StringWriter sw = new StringWriter();
+		JSONWriter json = new JSONWriter(sw);
+		json.writeObjectStart();
+		json.writeMember("etag", "W/\"12-34\"");
+		json.writeMember("name", "back\\slash\ttab\u0001");
+		json.writeMember("null", (String) null);
+		json.writeObjectEnd();
+		assertEquals("{\"etag\":\"W/\\\"12-34\\\"\",\"name\":\"back\\\\slash\\ttab\\u0001\",\"null\":null}", sw.toString());
+	}
+}
@@ -0,0 +1,226 @@
+package nl.ellipsis.webdav.server.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.HttpHeaders;
+
+import org.apache.commons.io.IOUtils;
+import org.jmock.Expectations;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import nl.ellipsis.webdav.server.testutil.MockTest;
+
+public class ResponseCompressorTest extends MockTest {
+
+	static HttpServletRequest mockReq;
+	static HttpServletResponse mockRes;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		mockReq = _mockery.mock(HttpServletRequest.class);
+		mockRes = _mockery.mock(HttpServletResponse.class);
+	}
+
+	@Test
+	public void testAcceptsGzip() {
+		assertFalse(ResponseCompressor.acceptsGzip(null));
+		assertFalse(ResponseCompressor.acceptsGzip(""));
+		assertFalse(ResponseCompressor.acceptsGzip("identity"));
+		assertFalse(ResponseCompressor.acceptsGzip("deflate, br"));
+		assertTrue(ResponseCompressor.acceptsGzip("gzip"));
+		assertTrue(ResponseCompressor.acceptsGzip("deflate, GZIP"));
+		assertTrue(ResponseCompressor.acceptsGzip("x-gzip"));
+		assertTrue(ResponseCompressor.acceptsGzip("gzip;q=0.5"));
+		assertTrue(ResponseCompressor.acceptsGzip("*"));
+		assertFalse(ResponseCompressor.acceptsGzip("gzip;q=0"));
+		assertFalse(ResponseCompressor.acceptsGzip("gzip; q=0.0, *"));
+		assertFalse(ResponseCompressor.acceptsGzip("*;q=0"));
+	}
+
+	@Test
+	public void testDisabledUsesResponseWriter() throws Exception {
+		final PrintWriter pw = new PrintWriter(new StringWriter());
+
+		_mockery.checking(new Expectations() {
+			{
+				oneOf(mockRes).getWriter();
+				will(returnValue(pw));
+			}
+		});
+
+		ResponseCompressor compressor = new ResponseCompressor(0, 0);
+		assertFalse(compressor.isEnabled());
+		assertSame(pw, compressor.getWriter(mockReq, mockRes));
+	}
+
+	@Test
+	public void testGzipNotAccepted() throws Exception {
+		final PrintWriter pw = new PrintWriter(new StringWriter());
+
+		_mockery.checking(new Expectations() {
+			{
+				oneOf(mockRes).getHeaders(HttpHeaders.VARY);
+				will(returnValue(Collections.emptyList()));
+				oneOf(mockRes).addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+				oneOf(mockReq).getHeader(HttpHeaders.ACCEPT_ENCODING);
+				will(returnValue("identity"));
+
+				oneOf(mockRes).getWriter();
+				will(returnValue(pw));
+			}
+		});
+
+		assertSame(pw, new ResponseCompressor(6, 0).getWriter(mockReq, mockRes));
+	}
+
+	@Test
+	public void testSmallResponseIsNotCompressed() throws Exception {
+		final BufferOutputStream out = new BufferOutputStream();
+		final String body = "<D:multistatus xmlns:D=\"DAV:\"/>";
+
+		_mockery.checking(new Expectations() {
+			{
+				oneOf(mockRes).getHeaders(HttpHeaders.VARY);
+				will(returnValue(Collections.emptyList()));
+				oneOf(mockRes).addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+				oneOf(mockReq).getHeader(HttpHeaders.ACCEPT_ENCODING);
+				will(returnValue("gzip, deflate"));
+
+				oneOf(mockRes).setContentLength(body.length());
+
+				oneOf(mockRes).getOutputStream();
+				will(returnValue(out));
+			}
+		});
+
+		Writer writer = new ResponseCompressor(6, 1024).getWriter(mockReq, mockRes);
+		writer.write(body);
+		writer.close();
+
+		assertEquals(body, new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testLargeResponseIsCompressed() throws Exception {
+		final BufferOutputStream out = new BufferOutputStream();
+		StringBuilder sb = new StringBuilder("<D:multistatus xmlns:D=\"DAV:\">");
+		for (int i = 0; i < 500; i++) {
+			sb.append("<D:response><D:href>/folder/file").append(i).append("</D:href></D:response>");
+		}
+		sb.append("</D:multistatus>");
+		final String body = sb.toString();
+
+		_mockery.checking(new Expectations() {
+			{
+				oneOf(mockRes).getHeaders(HttpHeaders.VARY);
+				will(returnValue(Collections.emptyList()));
+				oneOf(mockRes).addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+				oneOf(mockReq).getHeader(HttpHeaders.ACCEPT_ENCODING);
+				will(returnValue("gzip"));
+
+				oneOf(mockRes).setHeader(HttpHeaders.CONTENT_ENCODING, ResponseCompressor.ENCODING_GZIP);
+
+				oneOf(mockRes).getOutputStream();
+				will(returnValue(out));
+			}
+		});
+
+		Writer writer = new ResponseCompressor(6, 1024).getWriter(mockReq, mockRes);
+		writer.write(body);
+		writer.close();
+
+		byte[] compressed = out.toByteArray();
+		assertTrue(compressed.length < body.length());
+		String inflated = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(compressed)), StandardCharsets.UTF_8);
+		assertEquals(body, inflated);
+	}
+
+	@Test
+	public void testSendPrecompressedBody() throws Exception {
+		final BufferOutputStream out = new BufferOutputStream();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append("<D:response><D:href>/webdav/file").append(i).append("</D:href></D:response>");
+		}
+		byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+		ResponseCompressor compressor = new ResponseCompressor(6, 1024);
+		final byte[] compressed = compressor.compress(body);
+		assertNull(compressor.compress(new byte[1024]));
+
+		_mockery.checking(new Expectations() {
+			{
+				oneOf(mockRes).getHeaders(HttpHeaders.VARY);
+				will(returnValue(Collections.emptyList()));
+				oneOf(mockRes).addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+				oneOf(mockReq).getHeader(HttpHeaders.ACCEPT_ENCODING);
+				will(returnValue("gzip"));
+
+				oneOf(mockRes).setHeader(HttpHeaders.CONTENT_ENCODING, ResponseCompressor.ENCODING_GZIP);
+
+				oneOf(mockRes).setContentLength(compressed.length);
+
+				oneOf(mockRes).getOutputStream();
+				will(returnValue(out));
+			}
+		});
+
+		compressor.send(mockReq, mockRes, body, compressed);
+
+		assertArrayEquals(compressed, out.toByteArray());
+		assertArrayEquals(body, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+	}
+
+	@Test
+	public void testVaryIsNotRepeated() throws Exception {
+		_mockery.checking(new Expectations() {
+			{
+				oneOf(mockRes).getHeaders(HttpHeaders.VARY);
+				will(returnValue(Arrays.asList("Accept, accept-encoding")));
+			}
+		});
+
+		ResponseCompressor.addVary(mockRes, HttpHeaders.ACCEPT_ENCODING);
+		_mockery.assertIsSatisfied();
+	}
+
+	private static class BufferOutputStream extends ServletOutputStream {
+
+		private ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+		@Override
+		public void write(int b) throws IOException {
+			baos.write(b);
+		}
+
+		public byte[] toByteArray() {
+			return baos.toByteArray();
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+		}
+	}
+}
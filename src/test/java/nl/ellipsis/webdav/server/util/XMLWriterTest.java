@@ -0,0 +1,94 @@
+package nl.ellipsis.webdav.server.util;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class XMLWriterTest {
+
+	@Test
+	public void testEscape() {
+		assertEquals(null, XMLWriter.escape(null));
+		assertEquals("", XMLWriter.escape(""));
+		assertEquals("plain text", XMLWriter.escape("plain text"));
+		assertEquals("a &amp; b &lt;c&gt; &quot;d&quot; 'e'", XMLWriter.escape("a & b <c> \"d\" 'e'"));
+		assertEquals("&lt;&lt;&amp;", XMLWriter.escape("<<&"));
+		assertEquals("tab\tnewline\ncr&#13;", XMLWriter.escape("tab\tnewline\ncr\r"));
+		assertEquals("bell\uFFFD", XMLWriter.escape("bell\u0007"));
+		assertEquals("\u00e9t\u00e9 \u20ac", XMLWriter.escape("\u00e9t\u00e9 \u20ac"));
+	}
+
+	@Test
+	public void testEscapeSurrogates() {
+		assertEquals("clef \uD834\uDD1E", XMLWriter.escape("clef \uD834\uDD1E"));
+		assertEquals("high\uFFFD low\uFFFD \uFFFD\uD834\uDD1E",
+				XMLWriter.escape("high\uD834 low\uDD1E \uDD1E\uD834\uDD1E"));
+		assertEquals("end\uFFFD", XMLWriter.escape("end\uD834"));
+	}
+
+	@Test
+	public void testWriteText() {
+		XMLWriter xml = new XMLWriter();
+		xml.writeElement("D", "href", XMLWriter.OPENING);
+		xml.writeText("/folder/a&b<c>.txt");
+		xml.writeElement("D", "href", XMLWriter.CLOSING);
+		assertEquals("<D:href>/folder/a&amp;b&lt;c&gt;.txt</D:href>\n", xml.toString());
+	}
+
+	@Test
+	public void testWriteDataWithCDATAEnd() {
+		XMLWriter xml = new XMLWriter();
+		xml.writeElement("D", "displayname", XMLWriter.OPENING);
+		xml.writeData("name]]>with<![CDATA[");
+		xml.writeElement("D", "displayname", XMLWriter.CLOSING);
+		assertEquals("<D:displayname>name]]&gt;with&lt;![CDATA[</D:displayname>\n", xml.toString());
+	}
+
+	@Test
+	public void testWriteProperty() {
+		XMLWriter xml = new XMLWriter();
+		xml.writeProperty("D", "getetag", "W/\"12-34\"");
+		xml.writeProperty("D", "getcontentlength");
+		assertEquals("<D:getetag>W/&quot;12-34&quot;</D:getetag>\n<D:getcontentlength/>", xml.toString());
+	}
+
+	@Test
+	public void testWriteElement() {
+		XMLWriter xml = new XMLWriter();
+		xml.writeElement("D", "DAV:", "multistatus", XMLWriter.OPENING);
+		xml.writeElement("D", "collection", XMLWriter.NO_CONTENT);
+		xml.writeElement(null, "plain", XMLWriter.NO_CONTENT);
+		xml.writeElement("D", "multistatus", XMLWriter.CLOSING);
+		assertEquals("<D:multistatus xmlns:D=\"DAV:\"><D:collection/><plain/></D:multistatus>\n", xml.toString());
+	}
+
+	@Test
+	public void testSendData() throws Exception {
+		StringWriter sw = new StringWriter();
+		XMLWriter xml = new XMLWriter(sw);
+		xml.writeText("first");
+		xml.sendData(null);
+		xml.writeText("second");
+		xml.sendData(null);
+		assertEquals("firstsecond", sw.toString());
+		assertEquals("", xml.toString());
+	}
+
+	@Test
+	public void testFlushWritesPartsLargerThanTheChunk() throws Exception {
+		StringWriter sw = new StringWriter();
+		XMLWriter xml = new XMLWriter(sw);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			xml.writeText("text" + i + " ");
+			expected.append("text").append(i).append(' ');
+		}
+		xml.flush();
+		xml.writeText("tail");
+		xml.flush();
+		assertEquals(expected + "tail", sw.toString());
+		assertEquals("", xml.toString());
+	}
+}